@@ -0,0 +1,63 @@
+/*
+ * Copyright 2016 Yahoo Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.yahoo.hive.udf.funnel;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Finds the funnel steps an action belongs to, in place of the funnel step
+ * sets. Matchers are built once per set of funnel steps and shared by all
+ * the groups of an evaluator.
+ */
+interface ActionMatcher {
+    /**
+     * Build the matcher of funnel steps: compiled patterns, a fingerprint
+     * table for large funnel steps, or null to use the funnel step sets.
+     *
+     * @param funnelSteps Funnel steps
+     * @param patterns Whether the funnel step values may be patterns
+     * @return Action matcher, or null
+     * @throws IllegalArgumentException if the patterns are invalid
+     */
+    static ActionMatcher build(List<Set<Object>> funnelSteps, boolean patterns) {
+        if (patterns) {
+            return StepMatcher.compile(funnelSteps);
+        } else if (FingerprintTable.isLarge(funnelSteps)) {
+            return FingerprintTable.build(funnelSteps);
+        }
+        return null;
+    }
+
+    /**
+     * Get the steps matched by an action.
+     *
+     * @param action Action value
+     * @return Steps matched, bit i for step i
+     */
+    long match(Object action);
+
+    /**
+     * Check if an action matches a step.
+     *
+     * @param action Action value
+     * @param step Step index
+     * @return True if the action matches the step
+     */
+    default boolean matches(Object action, int step) {
+        return (match(action) & (1L << step)) != 0;
+    }
+}
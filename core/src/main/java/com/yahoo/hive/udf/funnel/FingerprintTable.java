@@ -0,0 +1,232 @@
+/*
+ * Copyright 2016 Yahoo Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.yahoo.hive.udf.funnel;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Compact membership for large funnel steps, such as "any of 200k product
+ * ids". Values are reduced to 64-bit fingerprints kept in a primitive open
+ * addressing table, along with the steps they belong to, instead of boxed
+ * entries in hash sets. Tables too large for the L2 cache are fronted by a
+ * Bloom filter, so most actions that are not in any step are rejected
+ * without touching the table. Two distinct values only collide if their
+ * fingerprints do, which is negligible for 64-bit fingerprints.
+ */
+class FingerprintTable implements ActionMatcher {
+    /** Funnel step values, over all steps, from which the table is used. */
+    static final int MIN_VALUES = 1024;
+
+    /** Table size in bytes from which a Bloom filter is added. */
+    static final int BLOOM_MIN_BYTES = 256 * 1024;
+
+    /** Bloom filter bits per value. */
+    static final int BLOOM_BITS_PER_VALUE = 8;
+
+    /** Bloom filter hash functions. */
+    static final int BLOOM_HASHES = 3;
+
+    /** Fingerprints, 0 for empty slots. */
+    private final long[] fingerprints;
+
+    /** Steps of each fingerprint, bit i for step i. */
+    private final long[] steps;
+
+    /** Table capacity minus one, the capacity is a power of two. */
+    private final int mask;
+
+    /** Bloom filter bits, null without Bloom filter. */
+    private long[] bloom;
+
+    /** Bloom filter size in bits minus one, a power of two. */
+    private int bloomMask;
+
+    /**
+     * Create an empty table.
+     *
+     * @param values Number of values
+     */
+    private FingerprintTable(int values) {
+        int capacity = Integer.highestOneBit(Math.max(16, values * 2 - 1)) << 1;
+        fingerprints = new long[capacity];
+        steps = new long[capacity];
+        mask = capacity - 1;
+        if ((long) capacity * 2 * Long.BYTES >= BLOOM_MIN_BYTES) {
+            int bits = Integer.highestOneBit(values * BLOOM_BITS_PER_VALUE - 1) << 1;
+            bloom = new long[bits / Long.SIZE];
+            bloomMask = bits - 1;
+        }
+    }
+
+    /**
+     * Check if funnel steps are large enough to use a table.
+     *
+     * @param funnelSteps Funnel steps
+     * @return True if the funnel steps should use a table
+     */
+    static boolean isLarge(List<Set<Object>> funnelSteps) {
+        if (funnelSteps.size() > Long.SIZE) {
+            return false;
+        }
+        return funnelSteps.stream().mapToLong(Set::size).sum() >= MIN_VALUES;
+    }
+
+    /**
+     * Build the table of funnel steps, at most 64 steps.
+     *
+     * @param funnelSteps Funnel steps
+     * @return Fingerprint table
+     */
+    static FingerprintTable build(List<Set<Object>> funnelSteps) {
+        FingerprintTable table = new FingerprintTable((int) funnelSteps.stream().mapToLong(Set::size).sum());
+        for (int i = 0; i < funnelSteps.size(); i++) {
+            for (Object value : funnelSteps.get(i)) {
+                table.add(fingerprint(value), 1L << i);
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Fingerprint of a value, 64-bit FNV-1a of its string form followed by
+     * a final mix. Never 0, which marks empty slots.
+     *
+     * @param value Value
+     * @return Fingerprint
+     */
+    static long fingerprint(Object value) {
+        String string = value.toString();
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < string.length(); i++) {
+            hash = (hash ^ string.charAt(i)) * 0x100000001b3L;
+        }
+        hash = (hash ^ (hash >>> 33)) * 0xff51afd7ed558ccdL;
+        hash = (hash ^ (hash >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash == 0 ? 1 : hash;
+    }
+
+    /**
+     * Hash of funnel steps. The values of a step are combined with a sum,
+     * so their order doesn't matter, but the order of the steps does.
+     *
+     * @param funnelSteps Funnel steps
+     * @return Hash
+     */
+    static long stepsHash(List<Set<Object>> funnelSteps) {
+        long hash = 0;
+        for (Set<Object> step : funnelSteps) {
+            long stepHash = 0;
+            for (Object value : step) {
+                stepHash = addValue(stepHash, value);
+            }
+            hash = addStep(hash, stepHash, step.size());
+        }
+        return hash;
+    }
+
+    /**
+     * Add a value to the hash of a funnel step, to hash funnel steps as
+     * they are read.
+     *
+     * @param stepHash Hash of the funnel step so far
+     * @param value Funnel step value
+     * @return Hash of the funnel step
+     */
+    static long addValue(long stepHash, Object value) {
+        return stepHash + mix(fingerprint(value));
+    }
+
+    /**
+     * Add a funnel step to the hash of funnel steps.
+     *
+     * @param hash Hash of the funnel steps so far
+     * @param stepHash Hash of the funnel step
+     * @param size Number of values of the funnel step
+     * @return Hash of the funnel steps
+     */
+    static long addStep(long hash, long stepHash, int size) {
+        return mix(hash * 31 + stepHash + size);
+    }
+
+    /**
+     * Final mix of a 64-bit hash.
+     */
+    private static long mix(long hash) {
+        hash = (hash ^ (hash >>> 33)) * 0xff51afd7ed558ccdL;
+        hash = (hash ^ (hash >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return hash ^ (hash >>> 33);
+    }
+
+    /**
+     * Add a fingerprint to a step.
+     *
+     * @param fingerprint Fingerprint
+     * @param step Step bit
+     */
+    private void add(long fingerprint, long step) {
+        int slot = (int) fingerprint & mask;
+        while (fingerprints[slot] != 0 && fingerprints[slot] != fingerprint) {
+            slot = (slot + 1) & mask;
+        }
+        fingerprints[slot] = fingerprint;
+        steps[slot] |= step;
+        if (bloom != null) {
+            for (int i = 0; i < BLOOM_HASHES; i++) {
+                int bit = bloomBit(fingerprint, i);
+                bloom[bit >>> 6] |= 1L << bit;
+            }
+        }
+    }
+
+    /**
+     * Bloom filter bit of a fingerprint, double hashing on its two halves.
+     */
+    private int bloomBit(long fingerprint, int i) {
+        return (int) (fingerprint + i * ((fingerprint >>> 32) | 1)) & bloomMask;
+    }
+
+    @Override
+    public long match(Object action) {
+        long fingerprint = fingerprint(action);
+        if (bloom != null) {
+            for (int i = 0; i < BLOOM_HASHES; i++) {
+                int bit = bloomBit(fingerprint, i);
+                if ((bloom[bit >>> 6] & (1L << bit)) == 0) {
+                    return 0;
+                }
+            }
+        }
+        int slot = (int) fingerprint & mask;
+        while (fingerprints[slot] != 0) {
+            if (fingerprints[slot] == fingerprint) {
+                return steps[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return 0;
+    }
+
+    /**
+     * Size of the table and Bloom filter in bytes.
+     *
+     * @return Size in bytes
+     */
+    long sizeInBytes() {
+        return (long) fingerprints.length * 2 * Long.BYTES + (bloom == null ? 0 : (long) bloom.length * Long.BYTES);
+    }
+}
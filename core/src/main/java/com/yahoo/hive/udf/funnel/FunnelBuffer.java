@@ -0,0 +1,680 @@
+/*
+ * Copyright 2016 Yahoo Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.hive.udf.funnel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.ToLongFunction;
+import java.util.stream.IntStream;
+
+/**
+ * Buffers the events of a group and computes its funnel. Works on plain Java
+ * values and has no dependency on Hive, so the same engine can be embedded
+ * outside of Hive, e.g. in streaming jobs or microbenchmarks. Actions must be
+ * comparable and hashable, timestamps comparable.
+ */
+public class FunnelBuffer {
+    /** Events from which the sort and the funnel scan run on all cores. */
+    static final int PARALLEL_THRESHOLD = 1 << 20;
+
+    /** Events per chunk of the parallel funnel scan. */
+    static final int PARALLEL_CHUNK = 1 << 16;
+
+    /** List of actions. */
+    ArrayList<Object> actions = new ArrayList<>();
+
+    /** List of timestamps associated with actions. */
+    ArrayList<Object> timestamps = new ArrayList<>();
+
+    /** List of funnel steps. Funnel steps can have multiple funnels. */
+    List<Set<Object>> funnelSteps = new ArrayList<Set<Object>>();
+
+    /** Set of all funnels we are looking for. */
+    Set<Object> funnelSet = new HashSet<>();
+
+    /**
+     * Canonical hash of the funnel steps, see FingerprintTable.stepsHash,
+     * or 0 if not computed yet. Shared with the funnel steps.
+     */
+    long stepsHash;
+
+    /** Matches actions against the funnel steps. When set, used instead of the funnel step sets. */
+    ActionMatcher matcher;
+
+    /** Whether the funnel step values may be patterns. Travels with the partials. */
+    boolean patterns;
+
+    /** Time spent sorting in the last computeFunnel, in nanoseconds. */
+    long sortNanos;
+
+    /** Time spent matching funnel steps in the last computeFunnel, in nanoseconds. */
+    long computeNanos;
+
+    /**
+     * Converts a timestamp to a number. When set, computeFunnel records the
+     * durations between funnel steps.
+     */
+    ToLongFunction<Object> timestampClock;
+
+    /**
+     * Durations recorded by the last computeFunnel, the time since the
+     * previous step for each funnel step reached. Null for the first step
+     * and the steps not reached.
+     */
+    List<Long> durations = new ArrayList<>();
+
+    /**
+     * Index of the event that matched the first funnel step in the last
+     * computeFunnel, or -1 if none did.
+     */
+    int firstStepEvent = -1;
+
+    /**
+     * Funnel steps done, in any order, bit i for step i. Kept instead of the
+     * events in unordered mode.
+     */
+    long unorderedMask;
+
+    /** Number of funnel steps in unordered mode. */
+    int unorderedSteps;
+
+    /**
+     * Longest time between two events of the same session. When positive,
+     * computeFunnel splits the events into sessions.
+     */
+    long sessionGap;
+
+    /** Sum the funnels of all sessions, instead of keeping the best one. */
+    boolean sumSessions;
+
+    /** Converts a timestamp to a number, to split sessions. */
+    ToLongFunction<Object> sessionClock;
+
+    /** Events from which the sort and the funnel scan run on all cores. */
+    int parallelThreshold = PARALLEL_THRESHOLD;
+
+    /** Events per chunk of the parallel funnel scan. */
+    int parallelChunk = PARALLEL_CHUNK;
+
+    /**
+     * Set the funnel steps, dropping empty steps, and build their matcher.
+     *
+     * @param steps Funnel steps, each a set of actions
+     * @param patterns Whether the funnel step values may be patterns
+     * @throws IllegalArgumentException if the patterns are invalid
+     */
+    public void setFunnelSteps(List<Set<Object>> steps, boolean patterns) {
+        funnelSteps = new ArrayList<>();
+        funnelSet = new HashSet<>();
+        for (Set<Object> step : steps) {
+            if (!step.isEmpty()) {
+                funnelSteps.add(new HashSet<>(step));
+                funnelSet.addAll(step);
+            }
+        }
+        unorderedSteps = funnelSteps.size();
+        this.patterns = patterns;
+        stepsHash = 0;
+        matcher = MatcherCache.get(funnelSteps, patterns, this::stepsHash);
+    }
+
+    /**
+     * Use the funnel steps and matcher of another buffer, read only, instead
+     * of building them again for each group.
+     *
+     * @param other Buffer with the funnel steps set
+     */
+    public void shareFunnelSteps(FunnelBuffer other) {
+        funnelSteps = other.funnelSteps;
+        funnelSet = other.funnelSet;
+        unorderedSteps = other.unorderedSteps;
+        patterns = other.patterns;
+        stepsHash = other.stepsHash;
+        matcher = other.matcher;
+    }
+
+    /**
+     * Canonical hash of the funnel steps, computed once for the funnel
+     * steps and the buffers sharing them.
+     *
+     * @return Hash of the funnel steps, never 0
+     */
+    public long stepsHash() {
+        if (stepsHash == 0) {
+            long hash = FingerprintTable.stepsHash(funnelSteps);
+            stepsHash = hash != 0 ? hash : 1;
+        }
+        return stepsHash;
+    }
+
+    /**
+     * Split the events into sessions when computing the funnel.
+     *
+     * @param gap Longest time between two events of the same session
+     * @param sum Sum the funnels of all sessions, instead of keeping the best one
+     */
+    public void setSessions(long gap, boolean sum) {
+        sessionGap = gap;
+        sumSessions = sum;
+        sessionClock = timestamp -> (Long) timestamp;
+    }
+
+    /**
+     * Add an event, if its action is in a funnel step.
+     *
+     * @param action Action value
+     * @param timestamp Timestamp
+     * @return True if the event was kept
+     */
+    public boolean add(Object action, long timestamp) {
+        if (action == null || !isFunnelAction(action)) {
+            return false;
+        }
+        actions.add(action);
+        timestamps.add(timestamp);
+        return true;
+    }
+
+    /**
+     * Merge a partial built by serialize. The funnel steps, and whether
+     * they are patterns, are read from the partial if none are set yet; to
+     * merge many partials with the same funnel steps, share them first with
+     * shareFunnelSteps.
+     *
+     * @param partial Serialized partial
+     */
+    public void merge(List<Object> partial) {
+        if (funnelSteps.isEmpty()) {
+            deserializeFunnel((List<Object>) partial.get(2));
+            funnelSet = new HashSet<>();
+            funnelSteps.forEach(funnelSet::addAll);
+            unorderedSteps = funnelSteps.size();
+            patterns = Boolean.TRUE.equals(partial.get(3));
+            matcher = MatcherCache.get(funnelSteps, patterns, this::stepsHash);
+        }
+        actions.addAll((List<Object>) partial.get(0));
+        timestamps.addAll((List<Object>) partial.get(1));
+    }
+
+    /**
+     * Serialize actions, timestamps, funnel steps, and whether they are
+     * patterns, for merge.
+     *
+     * @return List of objects
+     */
+    public List<Object> serialize() {
+        List<Object> serialized = serializeEvents();
+        serialized.add(patterns);
+        return serialized;
+    }
+
+    /**
+     * Serialize actions, timestamps, and funnel steps. Have to split funnel
+     * steps with null. This is more efficient than passing around structs.
+     * Hive partials add their own fields after these.
+     *
+     * @return List of objects
+     */
+    List<Object> serializeEvents() {
+        List<Object> serialized = new ArrayList<>();
+        serialized.add(actions);
+        serialized.add(timestamps);
+        // Need to do special logic for funnel steps
+        List<Object> serializedFunnelSteps = new ArrayList<>();
+        for (Set e : funnelSteps) {
+            // Separate funnel steps with null
+            serializedFunnelSteps.addAll(e);
+            serializedFunnelSteps.add(null);
+        }
+        // Add the funnel steps
+        serialized.add(serializedFunnelSteps);
+        return serialized;
+    }
+
+    /**
+     * Deserialize funnel steps. Have to deserialize the null separated list.
+     */
+    public void deserializeFunnel(List<Object> serializedFunnel) {
+        stepsHash = 0;
+        // Have to "deserialize" from the null separated list
+        Set<Object> funnelStepAccumulator = new HashSet<>();
+        for (Object e : serializedFunnel) {
+            // If not null
+            if (e != null) {
+                // Add to the step accumulator
+                funnelStepAccumulator.add(e);
+            } else {
+                // Found a null, add the funnel step
+                // Need to do a deep copy
+                funnelSteps.add(new HashSet<>(funnelStepAccumulator));
+                // Clear the set
+                funnelStepAccumulator.clear();
+            }
+        }
+    }
+
+    /**
+     * Clear the aggregate.
+     */
+    public void clear() {
+        actions.clear();
+        timestamps.clear();
+        unorderedMask = 0L;
+        unorderedSteps = 0;
+    }
+
+    /**
+     * Mark the funnel steps matching an action as done, in unordered mode.
+     *
+     * @param action Action value
+     */
+    public void addUnordered(Object action) {
+        unorderedMask |= stepMask(action);
+    }
+
+    /**
+     * Get the funnel steps an action is in, as a bitmask. Only the first 64
+     * funnel steps are in the mask.
+     *
+     * @param action Action value
+     * @return Bit i is set if the action is in funnel step i
+     */
+    public long stepMask(Object action) {
+        if (matcher != null) {
+            return matcher.match(action);
+        }
+        long mask = 0L;
+        for (int i = 0; i < funnelSteps.size() && i < Long.SIZE; i++) {
+            if (funnelSteps.get(i).contains(action)) {
+                mask |= 1L << i;
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * Check if an action is in any funnel step.
+     *
+     * @param action Action value
+     * @return True if the action is in a funnel step
+     */
+    public boolean isFunnelAction(Object action) {
+        return matcher != null ? matcher.match(action) != 0 : funnelSet.contains(action);
+    }
+
+    /**
+     * Check if an action is in a funnel step.
+     *
+     * @param action Action value
+     * @param step Funnel step index
+     * @return True if the action is in the funnel step
+     */
+    private boolean isStepAction(Object action, int step) {
+        return matcher != null ? matcher.matches(action, step) : funnelSteps.get(step).contains(action);
+    }
+
+    /**
+     * Compute the funnel in unordered mode, without sorting. A step counts
+     * if it and all the steps before it were done, in any order.
+     *
+     * @return list of longs representing the funnel
+     */
+    public List<Long> computeUnorderedFunnel() {
+        List<Long> results = new ArrayList<>(Collections.nCopies(unorderedSteps, 0L));
+        for (int i = 0; i < unorderedSteps && (unorderedMask & (1L << i)) != 0; i++) {
+            results.set(i, 1L);
+        }
+        return results;
+    }
+
+    /**
+     * Compute the funnel. Sort the actions by timestamp/action, then build the
+     * funnel.
+     *
+     * @return list of longs representing the funnel
+     */
+    public List<Long> computeFunnel() {
+        Integer[] sortedIndex = sortEvents();
+        long computeStart = System.nanoTime();
+
+        // The last funnel index
+        int funnelStepSize = funnelSteps.size();
+
+        // Result funnel, all 0's at the start
+        List<Long> results = new ArrayList<>(Collections.nCopies(funnelStepSize, 0L));
+
+        // Match the funnel in each session instead
+        if (sessionGap > 0) {
+            firstStepEvent = -1;
+            computeSessions(sortedIndex, results);
+            computeNanos = System.nanoTime() - computeStart;
+            return results;
+        }
+
+        // Output 1 for each funnel step matched
+        int[] matches = matchFunnelSteps(sortedIndex);
+        firstStepEvent = funnelStepSize > 0 && matches[0] >= 0 ? sortedIndex[matches[0]] : -1;
+        for (int i = 0; i < funnelStepSize && matches[i] >= 0; i++) {
+            results.set(i, 1L);
+        }
+
+        // Record the time between funnel steps
+        if (timestampClock != null) {
+            durations = new ArrayList<>(Collections.nCopies(funnelStepSize, (Long) null));
+            for (int i = 1; i < funnelStepSize && matches[i] >= 0; i++) {
+                long previous = timestampClock.applyAsLong(timestamps.get(sortedIndex[matches[i - 1]]));
+                durations.set(i, timestampClock.applyAsLong(timestamps.get(sortedIndex[matches[i]])) - previous);
+            }
+        }
+        computeNanos = System.nanoTime() - computeStart;
+
+        return results;
+    }
+
+    /**
+     * Split the sorted events into sessions, at gaps longer than the session
+     * gap, and match the funnel in each session. Either adds 1 for each
+     * funnel step matched in each session, or 1 for each funnel step matched
+     * in the session that went the furthest.
+     *
+     * @param sortedIndex Index of the events, in sorted order
+     * @param results Result funnel, all 0's
+     */
+    private void computeSessions(Integer[] sortedIndex, List<Long> results) {
+        int bestSteps = 0;
+        int sessionStart = 0;
+        long previous = 0;
+        for (int i = 0; i <= sortedIndex.length; i++) {
+            long current = i < sortedIndex.length ? sessionClock.applyAsLong(timestamps.get(sortedIndex[i])) : 0;
+            // A session ends after the last event or before a gap
+            if (i > sessionStart && (i == sortedIndex.length || current - previous > sessionGap)) {
+                int[] matches = matchFunnelSteps(sortedIndex, sessionStart, i);
+                int steps = 0;
+                while (steps < matches.length && matches[steps] >= 0) {
+                    steps++;
+                }
+                if (sumSessions) {
+                    for (int step = 0; step < steps; step++) {
+                        results.set(step, results.get(step) + 1L);
+                    }
+                }
+                bestSteps = Math.max(bestSteps, steps);
+                sessionStart = i;
+            }
+            previous = current;
+        }
+        if (!sumSessions) {
+            for (int step = 0; step < bestSteps; step++) {
+                results.set(step, 1L);
+            }
+        }
+    }
+
+    /**
+     * Sort the events on timestamp/action.
+     *
+     * @return Index of the events, in sorted order
+     */
+    public Integer[] sortEvents() {
+        // Create index, sort on timestamp/action
+        long sortStart = System.nanoTime();
+        Integer[] sortedIndex;
+        if (actions.size() >= parallelThreshold) {
+            sortedIndex = parallelSortEvents();
+        } else {
+            sortedIndex = IntStream.rangeClosed(0, actions.size() - 1)
+                                   .boxed()
+                                   .sorted(this::funnelAggregateComparator)
+                                   .toArray(Integer[]::new);
+        }
+        sortNanos = System.nanoTime() - sortStart;
+        return sortedIndex;
+    }
+
+    /**
+     * Sort the events on all cores. When the events can be packed into
+     * longs, they are sorted with a parallel primitive sort, otherwise the
+     * index is sorted with a parallel merge sort. Both keep the order of
+     * the events that compare equal, like the sequential sort.
+     *
+     * @return Index of the events, in sorted order
+     */
+    private Integer[] parallelSortEvents() {
+        Integer[] sortedIndex = new Integer[actions.size()];
+        long[] keys = packEvents();
+        if (keys == null) {
+            Arrays.parallelSetAll(sortedIndex, Integer::valueOf);
+            Arrays.parallelSort(sortedIndex, this::funnelAggregateComparator);
+        } else {
+            Arrays.parallelSort(keys);
+            long indexMask = (1L << bits(actions.size() - 1)) - 1;
+            Arrays.parallelSetAll(sortedIndex, i -> (int) (keys[i] & indexMask));
+        }
+        return sortedIndex;
+    }
+
+    /**
+     * Pack each event into a long that sorts like the events: the timestamp,
+     * minus the smallest one, then the rank of the action, then the index of
+     * the event.
+     *
+     * @return Packed events, or null if the timestamps are not all longs or
+     *         the events don't fit in a long
+     */
+    private long[] packEvents() {
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (Object timestamp : timestamps) {
+            if (!(timestamp instanceof Long)) {
+                return null;
+            }
+            min = Math.min(min, (Long) timestamp);
+            max = Math.max(max, (Long) timestamp);
+        }
+
+        // Keep the sign bit clear, so the keys sort as signed longs
+        int indexBits = bits(actions.size() - 1);
+        long range = max - min;
+        if (range < 0 || bits(range) + indexBits >= Long.SIZE) {
+            return null;
+        }
+
+        // The action ranks get the bits left, stop counting actions once they don't fit
+        int freeBits = Long.SIZE - 1 - bits(range) - indexBits;
+        Map<Object, Long> ranks = new HashMap<>();
+        for (Object action : actions) {
+            if (ranks.putIfAbsent(action, 0L) == null && bits(ranks.size() - 1) > freeBits) {
+                return null;
+            }
+        }
+        Object[] distinct = ranks.keySet().toArray();
+        Arrays.sort(distinct);
+        for (int i = 0; i < distinct.length; i++) {
+            ranks.put(distinct[i], (long) i);
+        }
+        int rankBits = bits(distinct.length - 1);
+        long start = min;
+        long[] keys = new long[actions.size()];
+        Arrays.parallelSetAll(keys, i -> ((Long) timestamps.get(i) - start) << (rankBits + indexBits) | ranks.get(actions.get(i)) << indexBits | i);
+        return keys;
+    }
+
+    /**
+     * Number of bits needed for a non-negative value.
+     */
+    private static int bits(long value) {
+        return Long.SIZE - Long.numberOfLeadingZeros(value);
+    }
+
+    /**
+     * Match the sorted events against the funnel steps. Steps are matched in
+     * order, so only a prefix of the steps is matched.
+     *
+     * @param sortedIndex Index of the events, in sorted order
+     * @return For each funnel step, the position in sortedIndex of the event
+     *         that matched it, or -1 if not matched
+     */
+    public int[] matchFunnelSteps(Integer[] sortedIndex) {
+        return matchFunnelSteps(sortedIndex, 0, sortedIndex.length);
+    }
+
+    /**
+     * Match a range of the sorted events against the funnel steps.
+     *
+     * @param sortedIndex Index of the events, in sorted order
+     * @param from First position in sortedIndex, inclusive
+     * @param to Last position in sortedIndex, exclusive
+     * @return For each funnel step, the position in sortedIndex of the event
+     *         that matched it, or -1 if not matched
+     */
+    public int[] matchFunnelSteps(Integer[] sortedIndex, int from, int to) {
+        if (to - from >= parallelThreshold && funnelSteps.size() <= Long.SIZE) {
+            return parallelMatchFunnelSteps(sortedIndex, from, to);
+        }
+
+        // Stores the current index we are at for the funnel
+        int currentFunnelStep = 0;
+
+        // The last funnel index
+        int funnelStepSize = funnelSteps.size();
+
+        // Nothing matched at the start
+        int[] matches = new int[funnelStepSize];
+        Arrays.fill(matches, -1);
+
+        // Check every sorted action until we reach the end of the funnel
+        for (int i = from; i < to && currentFunnelStep < funnelStepSize; i++) {
+            // Check if the current action is in the current funnel step
+            if (isStepAction(actions.get(sortedIndex[i]), currentFunnelStep)) {
+                // We have a match, store where for this funnel step
+                matches[currentFunnelStep] = i;
+                // Move to the next funnel step
+                currentFunnelStep++;
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Match a range of the sorted events on all cores, with the same result
+     * as the sequential scan. The scan is a state machine over the funnel
+     * step reached, so each chunk of events is summarized, in parallel, by
+     * the step it ends at for each step it can start at. Chaining the
+     * summaries gives the step each chunk starts at, then the chunks that
+     * match a step are scanned again, in parallel, to find the events.
+     *
+     * @param sortedIndex Index of the events, in sorted order
+     * @param from First position in sortedIndex, inclusive
+     * @param to Last position in sortedIndex, exclusive
+     * @return For each funnel step, the position in sortedIndex of the event
+     *         that matched it, or -1 if not matched
+     */
+    private int[] parallelMatchFunnelSteps(Integer[] sortedIndex, int from, int to) {
+        // Match each event against all the steps once
+        long[] masks = new long[to - from];
+        Arrays.parallelSetAll(masks, i -> stepMask(actions.get(sortedIndex[from + i])));
+
+        int chunks = (masks.length + parallelChunk - 1) / parallelChunk;
+        int[][] ends = IntStream.range(0, chunks)
+                                .parallel()
+                                .mapToObj(chunk -> chunkEnds(masks, chunk))
+                                .toArray(int[][]::new);
+        int[] starts = new int[chunks];
+        int step = 0;
+        for (int chunk = 0; chunk < chunks; chunk++) {
+            starts[chunk] = step;
+            step = ends[chunk][step];
+        }
+
+        // Each step is matched in a single chunk, so the chunks write to distinct steps
+        int[] matches = new int[funnelSteps.size()];
+        Arrays.fill(matches, -1);
+        IntStream.range(0, chunks)
+                 .parallel()
+                 .filter(chunk -> ends[chunk][starts[chunk]] > starts[chunk])
+                 .forEach(chunk -> scanChunk(masks, chunk, starts[chunk], from, matches));
+        return matches;
+    }
+
+    /**
+     * Get the step a chunk of events ends at, for each step it can start at.
+     * The chunk is read once, backwards: starting at an event, the step
+     * reached is the one reached from the next event, from the following
+     * step if the event matches the current one.
+     *
+     * @param masks Steps of each event
+     * @param chunk Chunk index
+     * @return Step reached at the end of the chunk, by step at its start
+     */
+    private int[] chunkEnds(long[] masks, int chunk) {
+        int steps = funnelSteps.size();
+        int[] ends = IntStream.rangeClosed(0, steps).toArray();
+        for (int i = Math.min(masks.length, (chunk + 1) * parallelChunk) - 1; i >= chunk * parallelChunk; i--) {
+            // Lowest step first, so each reads the following step before it is updated
+            for (long mask = masks[i]; mask != 0; mask &= mask - 1) {
+                int step = Long.numberOfTrailingZeros(mask);
+                ends[step] = ends[step + 1];
+            }
+        }
+        return ends;
+    }
+
+    /**
+     * Scan a chunk of events from the step it starts at, and record the
+     * events that match the following steps.
+     *
+     * @param masks Steps of each event
+     * @param chunk Chunk index
+     * @param start Step at the start of the chunk
+     * @param from Position in sortedIndex of the first event
+     * @param matches Receives the matched positions in sortedIndex, by step
+     */
+    private void scanChunk(long[] masks, int chunk, int start, int from, int[] matches) {
+        int steps = funnelSteps.size();
+        int end = Math.min(masks.length, (chunk + 1) * parallelChunk);
+        int step = start;
+        for (int i = chunk * parallelChunk; i < end && step < steps; i++) {
+            if ((masks[i] & (1L << step)) != 0) {
+                matches[step++] = from + i;
+            }
+        }
+    }
+
+    /**
+     * Used for sorting array of integers according to funnel aggregate
+     * timestamp/action columns. If timestamps match, uses action column.
+     *
+     * @param i1
+     * @param i2
+     * @param funnelAggregate
+     * @return ordering of i1 and i2
+     */
+    private int funnelAggregateComparator(Integer i1, Integer i2) {
+        int result = ((Comparable) timestamps.get(i1)).compareTo(timestamps.get(i2));
+        // Match in timestamp, sort on action
+        if (result == 0) {
+            return ((Comparable) actions.get(i1)).compareTo(actions.get(i2));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,529 @@
+/*
+ * Copyright 2016 Yahoo Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.hive.udf.funnel;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Computes a funnel over delimited event files on a single machine, without
+ * a cluster, e.g. for backfills or to check the results of a cluster run.
+ * Each line is an event, with user, action and timestamp columns.
+ *
+ * <p>The files are memory mapped. A first pass over ranges of the files, in
+ * parallel, partitions the lines by the hash of their user, only keeping the
+ * line offsets. A second pass, one task per partition, buffers the events of
+ * each user in a FunnelBuffer, computes their funnels and sums them, like
+ * funnel_merge. Both passes run in a fork-join pool.
+ *
+ * <pre>
+ * java -cp funnel-core.jar com.yahoo.hive.udf.funnel.FunnelRunner \
+ *     --step signup_page --step confirm_button events/*.tsv
+ * </pre>
+ */
+public class FunnelRunner {
+    /** Partitions per thread, to balance users of different sizes. */
+    static final int PARTITIONS_PER_THREAD = 8;
+
+    /** Usage message. */
+    static final String USAGE = "Usage: FunnelRunner [options] file...\n"
+                                + "  --step a,b,...     Funnel step, the actions separated by commas. Repeat for each step.\n"
+                                + "  --delimiter C      Field delimiter, tab by default.\n"
+                                + "  --columns U,A,T    User, action and timestamp columns, 0,1,2 by default.\n"
+                                + "  --threads N        Threads, the number of cores by default.\n"
+                                + "  --patterns         Funnel step values may be prefix:, glob: or regex: patterns.\n"
+                                + "  --session-gap N    Split the events of each user into sessions.\n"
+                                + "  --sum-sessions     Sum the funnels of all sessions, instead of keeping the best one.";
+
+    /** Funnel steps. */
+    List<Set<Object>> funnelSteps = new ArrayList<>();
+
+    /** Field delimiter. */
+    byte delimiter = '\t';
+
+    /** User, action and timestamp columns. */
+    int[] columns = {0, 1, 2};
+
+    /** Number of threads. */
+    int threads = Runtime.getRuntime().availableProcessors();
+
+    /** Whether the funnel step values may be patterns. */
+    boolean patterns;
+
+    /** Session gap, 0 for no sessions. */
+    long sessionGap;
+
+    /** Sum the funnels of all sessions. */
+    boolean sumSessions;
+
+    /** Largest mapped chunk of a file. Lines never span two chunks. */
+    int chunkBytes = 1 << 30;
+
+    /** Bytes per range of the first pass. */
+    int rangeBytes = 8 << 20;
+
+    /** Mapped chunks of the files. */
+    private final List<ByteBuffer> chunks = new ArrayList<>();
+
+    /** Number of partitions of the users. */
+    private int partitions;
+
+    /** Funnel steps and matcher, shared read only by all the users. */
+    private FunnelBuffer steps;
+
+    /**
+     * A range of a chunk scanned by the first pass. Holds the lines that
+     * start in the range.
+     */
+    private static class Range {
+        /** Chunk index. */
+        final int chunk;
+
+        /** First byte, inclusive. */
+        final int start;
+
+        /** Last byte, exclusive. */
+        final int end;
+
+        /**
+         * Create a range.
+         *
+         * @param chunk Chunk index
+         * @param start First byte
+         * @param end Last byte
+         */
+        Range(int chunk, int start, int end) {
+            this.chunk = chunk;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    /**
+     * Growable list of longs, without boxing.
+     */
+    private static class LongList {
+        /** Values, only the first size are used. */
+        long[] values = new long[16];
+
+        /** Number of values. */
+        int size;
+
+        /**
+         * Append a value.
+         *
+         * @param value Value
+         */
+        void add(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+    }
+
+    /**
+     * Results of a run, or of some of its partitions.
+     */
+    static class Result {
+        /** Funnel counts summed over the users. */
+        long[] funnel;
+
+        /** Users with at least one funnel event. */
+        long users;
+
+        /** Events read. */
+        long events;
+
+        /** Lines skipped, missing columns or with an invalid timestamp. */
+        long skipped;
+
+        /** Time spent partitioning the lines, in nanoseconds. */
+        long partitionNanos;
+
+        /** Time spent computing the funnels, in nanoseconds. */
+        long computeNanos;
+
+        /**
+         * Create an empty result.
+         *
+         * @param steps Number of funnel steps
+         */
+        Result(int steps) {
+            funnel = new long[steps];
+        }
+
+        /**
+         * Add the counts of another result, the same way funnel_merge adds
+         * funnels.
+         *
+         * @param other Other result
+         * @return This result
+         */
+        Result merge(Result other) {
+            for (int i = 0; i < funnel.length; i++) {
+                funnel[i] += other.funnel[i];
+            }
+            users += other.users;
+            events += other.events;
+            skipped += other.skipped;
+            return this;
+        }
+    }
+
+    /**
+     * Parse the command line options.
+     *
+     * @param args Command line arguments
+     * @param files Receives the files to read
+     * @return Runner
+     * @throws IllegalArgumentException if the options are invalid
+     */
+    static FunnelRunner parse(String[] args, List<Path> files) {
+        FunnelRunner runner = new FunnelRunner();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (!arg.startsWith("--")) {
+                files.add(Paths.get(arg));
+                continue;
+            }
+            if (arg.equals("--patterns")) {
+                runner.patterns = true;
+            } else if (arg.equals("--sum-sessions")) {
+                runner.sumSessions = true;
+            } else if (i + 1 == args.length) {
+                throw new IllegalArgumentException("Missing value of " + arg + ".");
+            } else {
+                runner.setOption(arg, args[++i]);
+            }
+        }
+        if (runner.funnelSteps.isEmpty()) {
+            throw new IllegalArgumentException("No funnel steps, use --step.");
+        }
+        if (files.isEmpty()) {
+            throw new IllegalArgumentException("No files to read.");
+        }
+        return runner;
+    }
+
+    /**
+     * Set an option that takes a value.
+     *
+     * @param name Option name
+     * @param value Option value
+     */
+    private void setOption(String name, String value) {
+        try {
+            switch (name) {
+                case "--step":
+                    funnelSteps.add(new HashSet<>(Arrays.asList((Object[]) value.split(","))));
+                    break;
+                case "--delimiter":
+                    delimiter = (byte) ("\\t".equals(value) ? '\t' : value.charAt(0));
+                    break;
+                case "--columns":
+                    columns = Arrays.stream(value.split(",")).mapToInt(Integer::parseInt).toArray();
+                    if (columns.length != 3) {
+                        throw new IllegalArgumentException("--columns takes the user, action and timestamp columns.");
+                    }
+                    break;
+                case "--threads":
+                    threads = Integer.parseInt(value);
+                    if (threads < 1) {
+                        throw new IllegalArgumentException("--threads takes at least 1 thread.");
+                    }
+                    break;
+                case "--session-gap":
+                    sessionGap = Long.parseLong(value);
+                    if (sessionGap < 0) {
+                        throw new IllegalArgumentException("--session-gap can't be negative.");
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + name + ".");
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value of " + name + ": " + value + ".");
+        }
+    }
+
+    /**
+     * Compute the funnel over files.
+     *
+     * @param files Delimited event files
+     * @return Result
+     * @throws IOException if a file can't be mapped
+     */
+    public Result run(List<Path> files) throws IOException {
+        chunks.clear();
+        for (Path file : files) {
+            map(file);
+        }
+        List<Range> ranges = new ArrayList<>();
+        for (int i = 0; i < chunks.size(); i++) {
+            for (int start = 0; start < chunks.get(i).limit(); start += rangeBytes) {
+                ranges.add(new Range(i, start, (int) Math.min((long) start + rangeBytes, chunks.get(i).limit())));
+            }
+        }
+        partitions = threads * PARTITIONS_PER_THREAD;
+        steps = new FunnelBuffer();
+        steps.setFunnelSteps(funnelSteps, patterns);
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            long start = System.nanoTime();
+            List<LongList[]> scans = pool.submit(() -> ranges.parallelStream().map(this::scan).collect(Collectors.toList())).join();
+            long partitioned = System.nanoTime();
+            Result result = pool.submit(() -> IntStream.range(0, partitions)
+                                                       .parallel()
+                                                       .mapToObj(partition -> compute(scans, partition))
+                                                       .reduce(Result::merge)
+                                                       .get()).join();
+            result.partitionNanos = partitioned - start;
+            result.computeNanos = System.nanoTime() - partitioned;
+            return result;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Map a file, in chunks that end at a line end.
+     *
+     * @param file File
+     */
+    private void map(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long position = 0;
+            while (position < size) {
+                ByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(size - position, chunkBytes));
+                if (position + chunk.limit() < size) {
+                    // Cut after the last full line, the rest goes in the next chunk
+                    int end = chunk.limit();
+                    while (end > 0 && chunk.get(end - 1) != '\n') {
+                        end--;
+                    }
+                    if (end == 0) {
+                        throw new IOException("Line longer than " + chunkBytes + " bytes in " + file + ".");
+                    }
+                    chunk.limit(end);
+                }
+                chunks.add(chunk);
+                position += chunk.limit();
+            }
+        }
+    }
+
+    /**
+     * First pass, partition the lines that start in a range by user.
+     *
+     * @param range Range
+     * @return For each partition, the chunk and offset of its lines, null if none
+     */
+    private LongList[] scan(Range range) {
+        ByteBuffer chunk = chunks.get(range.chunk);
+        LongList[] lines = new LongList[partitions];
+        int[] bounds = new int[columns.length * 2];
+        int position = range.start;
+        // The line that spans the start of the range belongs to the previous range
+        while (position > 0 && position < chunk.limit() && chunk.get(position - 1) != '\n') {
+            position++;
+        }
+        while (position < range.end) {
+            int end = fields(chunk, position, bounds);
+            if (bounds[1] > bounds[0]) {
+                int partition = (int) ((hash(chunk, bounds[0], bounds[1]) >>> 1) % partitions);
+                if (lines[partition] == null) {
+                    lines[partition] = new LongList();
+                }
+                lines[partition].add((long) range.chunk << 32 | position);
+            }
+            position = end + 1;
+        }
+        return lines;
+    }
+
+    /**
+     * Second pass, compute the funnels of the users of a partition.
+     *
+     * @param scans Lines of each range, by partition
+     * @param partition Partition
+     * @return Result of the partition
+     */
+    private Result compute(List<LongList[]> scans, int partition) {
+        Result result = new Result(funnelSteps.size());
+        Map<String, FunnelBuffer> users = new HashMap<>();
+        int[] bounds = new int[columns.length * 2];
+        for (LongList[] scan : scans) {
+            LongList lines = scan[partition];
+            for (int i = 0; lines != null && i < lines.size; i++) {
+                ByteBuffer chunk = chunks.get((int) (lines.values[i] >>> 32));
+                fields(chunk, (int) lines.values[i], bounds);
+                if (bounds[2] < 0 || bounds[5] <= bounds[4]) {
+                    result.skipped++;
+                    continue;
+                }
+                long timestamp;
+                try {
+                    timestamp = Long.parseLong(string(chunk, bounds[4], bounds[5]));
+                } catch (NumberFormatException e) {
+                    result.skipped++;
+                    continue;
+                }
+                result.events++;
+                String action = string(chunk, bounds[2], bounds[3]);
+                if (steps.isFunnelAction(action)) {
+                    String user = string(chunk, bounds[0], bounds[1]);
+                    users.computeIfAbsent(user, this::newBuffer).add(action, timestamp);
+                }
+            }
+        }
+
+        for (FunnelBuffer buffer : users.values()) {
+            List<Long> funnel = buffer.computeFunnel();
+            for (int i = 0; i < result.funnel.length; i++) {
+                result.funnel[i] += funnel.get(i);
+            }
+        }
+        result.users = users.size();
+        return result;
+    }
+
+    /**
+     * Create the buffer of a user.
+     *
+     * @param user User
+     * @return Buffer sharing the funnel steps
+     */
+    private FunnelBuffer newBuffer(String user) {
+        FunnelBuffer buffer = new FunnelBuffer();
+        buffer.shareFunnelSteps(steps);
+        if (sessionGap > 0) {
+            buffer.setSessions(sessionGap, sumSessions);
+        }
+        return buffer;
+    }
+
+    /**
+     * Find the user, action and timestamp fields of a line.
+     *
+     * @param chunk Chunk
+     * @param start Line start
+     * @param bounds Receives the start and end of each field, -1 if missing
+     * @return Line end, the position of the newline or the chunk limit
+     */
+    private int fields(ByteBuffer chunk, int start, int[] bounds) {
+        Arrays.fill(bounds, -1);
+        int column = 0;
+        int fieldStart = start;
+        int position = start;
+        while (true) {
+            byte b = position < chunk.limit() ? chunk.get(position) : (byte) '\n';
+            if (b == delimiter || b == '\n') {
+                // Drop the carriage return of Windows line ends
+                int fieldEnd = b == '\n' && position > fieldStart && chunk.get(position - 1) == '\r' ? position - 1 : position;
+                for (int i = 0; i < columns.length; i++) {
+                    if (columns[i] == column) {
+                        bounds[2 * i] = fieldStart;
+                        bounds[2 * i + 1] = fieldEnd;
+                    }
+                }
+                if (b == '\n') {
+                    return position;
+                }
+                column++;
+                fieldStart = position + 1;
+            }
+            position++;
+        }
+    }
+
+    /**
+     * Hash of a field, 64-bit FNV-1a of its bytes.
+     *
+     * @param chunk Chunk
+     * @param start Field start
+     * @param end Field end
+     * @return Hash
+     */
+    private static long hash(ByteBuffer chunk, int start, int end) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = start; i < end; i++) {
+            hash = (hash ^ (chunk.get(i) & 0xff)) * 0x100000001b3L;
+        }
+        return hash ^ (hash >>> 32);
+    }
+
+    /**
+     * Decode a field as UTF-8.
+     *
+     * @param chunk Chunk
+     * @param start Field start
+     * @param end Field end
+     * @return Field value
+     */
+    private static String string(ByteBuffer chunk, int start, int end) {
+        byte[] bytes = new byte[end - start];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = chunk.get(start + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Run from the command line. Prints the funnel, tab separated, and the
+     * throughput.
+     *
+     * @param args Command line arguments
+     */
+    public static void main(String[] args) throws IOException {
+        List<Path> files = new ArrayList<>();
+        FunnelRunner runner;
+        try {
+            runner = parse(args, files);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(1);
+            return;
+        }
+        Result result = runner.run(files);
+        System.out.println(Arrays.stream(result.funnel).mapToObj(Long::toString).collect(Collectors.joining("\t")));
+
+        double seconds = (result.partitionNanos + result.computeNanos) / 1e9;
+        System.err.println(String.format("events=%d users=%d skipped=%d partition=%.3fs compute=%.3fs threads=%d events/sec=%.0f events/sec/core=%.0f",
+                                         result.events, result.users, result.skipped,
+                                         result.partitionNanos / 1e9, result.computeNanos / 1e9, runner.threads,
+                                         result.events / seconds, result.events / seconds / runner.threads));
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2016 Yahoo Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.hive.udf.funnel;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Matchers shared by the whole JVM, so the concurrent fragments of a query
+ * and repeated queries with the same funnel steps build their matcher once.
+ * Matchers are read only once built. Entries are keyed by a canonical hash
+ * of the funnel steps, which doesn't depend on the order of the values in a
+ * step, and checked against the number of values of each step, so a lookup
+ * costs the number of steps, not of values. Like the fingerprints of
+ * FingerprintTable, two distinct funnel steps only share a matcher if
+ * their 64-bit hashes collide. Lookups don't lock. The cache holds at most
+ * MAX_ENTRIES matchers and MAX_VALUES funnel step values, evicting the
+ * least recently used.
+ */
+final class MatcherCache {
+    /** Most matchers kept. */
+    static final int MAX_ENTRIES = 64;
+
+    /** Most funnel step values kept, over all matchers. */
+    static final long MAX_VALUES = 4_000_000L;
+
+    /** Matchers, by hash of their funnel steps. */
+    private static final Map<Long, Entry> CACHE = new ConcurrentHashMap<>();
+
+    /** Funnel step values of the cached matchers. */
+    private static final AtomicLong VALUES = new AtomicLong();
+
+    /** Counts the lookups, to order the entries by last use. */
+    private static final AtomicLong TICKS = new AtomicLong();
+
+    /** Not instantiated. */
+    private MatcherCache() {
+    }
+
+    /**
+     * A cached matcher.
+     */
+    private static class Entry {
+        /** Number of values of each funnel step. */
+        final int[] sizes;
+
+        /** Whether the funnel step values are patterns. */
+        final boolean patterns;
+
+        /** Matcher of the funnel steps. */
+        final ActionMatcher matcher;
+
+        /** Number of funnel step values. */
+        final long values;
+
+        /** Tick of the last lookup. */
+        volatile long lastUsed = TICKS.incrementAndGet();
+
+        /**
+         * Create an entry.
+         *
+         * @param sizes Number of values of each funnel step
+         * @param patterns Whether the funnel step values are patterns
+         * @param matcher Matcher
+         */
+        Entry(int[] sizes, boolean patterns, ActionMatcher matcher) {
+            this.sizes = sizes;
+            this.patterns = patterns;
+            this.matcher = matcher;
+            this.values = Arrays.stream(sizes).asLongStream().sum();
+        }
+
+        /**
+         * Check if the entry is for funnel steps of the same hash.
+         *
+         * @param stepSizes Number of values of each funnel step
+         * @param stepPatterns Whether the funnel step values are patterns
+         * @return True if the entry is for the funnel steps
+         */
+        boolean matches(int[] stepSizes, boolean stepPatterns) {
+            return patterns == stepPatterns && Arrays.equals(sizes, stepSizes);
+        }
+    }
+
+    /**
+     * Get the matcher of funnel steps, built once for the JVM. Same as
+     * ActionMatcher.build otherwise.
+     *
+     * @param funnelSteps Funnel steps
+     * @param patterns Whether the funnel step values may be patterns
+     * @return Action matcher, or null to use the funnel step sets
+     * @throws IllegalArgumentException if the patterns are invalid
+     */
+    static ActionMatcher get(List<Set<Object>> funnelSteps, boolean patterns) {
+        return get(funnelSteps, patterns, () -> FingerprintTable.stepsHash(funnelSteps));
+    }
+
+    /**
+     * Get the matcher of funnel steps whose canonical hash is known, or
+     * only computed if they need a matcher.
+     *
+     * @param funnelSteps Funnel steps
+     * @param patterns Whether the funnel step values may be patterns
+     * @param stepsHash Canonical hash of the funnel steps
+     * @return Action matcher, or null to use the funnel step sets
+     * @throws IllegalArgumentException if the patterns are invalid
+     */
+    static ActionMatcher get(List<Set<Object>> funnelSteps, boolean patterns, LongSupplier stepsHash) {
+        if (!patterns && !FingerprintTable.isLarge(funnelSteps)) {
+            return null;
+        }
+        long key = patterns ? ~stepsHash.getAsLong() : stepsHash.getAsLong();
+        int[] sizes = funnelSteps.stream().mapToInt(Set::size).toArray();
+        Entry entry = CACHE.get(key);
+        if (entry == null || !entry.matches(sizes, patterns)) {
+            if (Arrays.stream(sizes).asLongStream().sum() > MAX_VALUES) {
+                return ActionMatcher.build(funnelSteps, patterns);
+            }
+            // Concurrent misses on the same key wait for a single build
+            entry = CACHE.compute(key, (k, existing) -> insert(existing, funnelSteps, sizes, patterns));
+            evict();
+        }
+        entry.lastUsed = TICKS.incrementAndGet();
+        return entry.matcher;
+    }
+
+    /**
+     * Build the entry of funnel steps, unless the existing entry of the key
+     * already matches them. Called with the key locked.
+     *
+     * @param existing Entry of the key, or null
+     * @param funnelSteps Funnel steps
+     * @param sizes Number of values of each funnel step
+     * @param patterns Whether the funnel step values may be patterns
+     * @return Entry of the key
+     */
+    private static Entry insert(Entry existing, List<Set<Object>> funnelSteps, int[] sizes, boolean patterns) {
+        if (existing != null && existing.matches(sizes, patterns)) {
+            return existing;
+        }
+        Entry entry = new Entry(sizes, patterns, ActionMatcher.build(funnelSteps, patterns));
+        VALUES.addAndGet(existing == null ? entry.values : entry.values - existing.values);
+        return entry;
+    }
+
+    /**
+     * Evict the least recently used matchers while the cache is over its
+     * bounds. Only adding a matcher evicts, never a lookup.
+     */
+    private static void evict() {
+        while (CACHE.size() > MAX_ENTRIES || VALUES.get() > MAX_VALUES) {
+            Map.Entry<Long, Entry> oldest = CACHE.entrySet()
+                                                 .stream()
+                                                 .min(Comparator.comparingLong(e -> e.getValue().lastUsed))
+                                                 .orElse(null);
+            if (oldest == null) {
+                return;
+            }
+            if (CACHE.remove(oldest.getKey(), oldest.getValue())) {
+                VALUES.addAndGet(-oldest.getValue().values);
+            }
+        }
+    }
+
+    /**
+     * Number of cached matchers.
+     *
+     * @return Number of matchers
+     */
+    static int size() {
+        return CACHE.size();
+    }
+
+    /**
+     * Remove all the cached matchers.
+     */
+    static void clear() {
+        CACHE.clear();
+        VALUES.set(0);
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright 2016 Yahoo Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.hive.udf.funnel;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Matches actions against funnel steps made of literal values and patterns:
+ * 'prefix:...', 'glob:...' (with * and ?) and 'regex:...'. The steps are
+ * compiled once. Literals go in a hash map, prefixes in a trie walked once
+ * over the action, and globs and regexes in a single alternation that
+ * rejects most actions in one pass before the individual patterns are
+ * tried. Regexes with backreferences or named groups stay out of the
+ * alternation, where group numbers shift and names could clash, and are
+ * always tried. Results are cached per action, since the same actions come
+ * up again and again. The cache is a concurrent map, so a matcher can be
+ * shared by threads.
+ */
+class StepMatcher implements ActionMatcher {
+    /** Prefix pattern marker. */
+    static final String PREFIX = "prefix:";
+
+    /** Glob pattern marker. */
+    static final String GLOB = "glob:";
+
+    /** Regex pattern marker. */
+    static final String REGEX = "regex:";
+
+    /** Steps are bits of a long. */
+    static final int MAX_STEPS = Long.SIZE;
+
+    /** Number of actions cached before the cache is cleared. */
+    static final int CACHE_SIZE = 10000;
+
+    /** Steps of each literal value. */
+    private final Map<String, Long> literals = new HashMap<>();
+
+    /** Trie of the prefixes. */
+    private final TrieNode prefixes = new TrieNode();
+
+    /** Glob and regex patterns. */
+    private final List<Pattern> patterns = new ArrayList<>();
+
+    /** Steps of each pattern. */
+    private final List<Long> patternSteps = new ArrayList<>();
+
+    /** Alternation of all the patterns, null if there are none. */
+    private Pattern combined;
+
+    /** Patterns with backreferences or named groups, not in the alternation. */
+    private final List<Pattern> groupPatterns = new ArrayList<>();
+
+    /** Steps of each pattern with backreferences or named groups. */
+    private final List<Long> groupPatternSteps = new ArrayList<>();
+
+    /** Steps of the recently matched actions. */
+    private final Map<String, Long> cache = new ConcurrentHashMap<>();
+
+    /**
+     * Compile funnel steps.
+     *
+     * @param funnelSteps Funnel steps, sets of literal values and patterns
+     * @return Step matcher
+     * @throws IllegalArgumentException if there are too many steps or a pattern is invalid
+     */
+    static StepMatcher compile(List<Set<Object>> funnelSteps) {
+        if (funnelSteps.size() > MAX_STEPS) {
+            throw new IllegalArgumentException("Pattern funnels have at most " + MAX_STEPS + " steps, but " + funnelSteps.size() + " were passed.");
+        }
+        StepMatcher matcher = new StepMatcher();
+        for (int i = 0; i < funnelSteps.size(); i++) {
+            for (Object value : funnelSteps.get(i)) {
+                matcher.add(value.toString(), 1L << i);
+            }
+        }
+        if (!matcher.patterns.isEmpty()) {
+            StringBuilder alternation = new StringBuilder();
+            for (Pattern pattern : matcher.patterns) {
+                alternation.append(alternation.length() == 0 ? "" : "|").append("(?:").append(pattern.pattern()).append(')');
+            }
+            matcher.combined = Pattern.compile(alternation.toString());
+        }
+        return matcher;
+    }
+
+    /**
+     * Add a step value.
+     *
+     * @param value Literal value or pattern
+     * @param step Step bit
+     */
+    private void add(String value, long step) {
+        if (value.startsWith(PREFIX)) {
+            prefixes.add(value.substring(PREFIX.length())).steps |= step;
+        } else if (value.startsWith(GLOB)) {
+            addPattern(globToRegex(value.substring(GLOB.length())), step);
+        } else if (value.startsWith(REGEX)) {
+            addPattern(value.substring(REGEX.length()), step);
+        } else {
+            literals.merge(value, step, (a, b) -> a | b);
+        }
+    }
+
+    /**
+     * Add a regex pattern.
+     *
+     * @param regex Regex, matched against the whole action
+     * @param step Step bit
+     */
+    private void addPattern(String regex, long step) {
+        Pattern pattern;
+        try {
+            pattern = Pattern.compile(regex);
+        } catch (PatternSyntaxException e) {
+            throw new IllegalArgumentException("Invalid funnel step pattern '" + regex + "': " + e.getDescription());
+        }
+        if (refersToGroups(regex)) {
+            groupPatterns.add(pattern);
+            groupPatternSteps.add(step);
+        } else {
+            patterns.add(pattern);
+            patternSteps.add(step);
+        }
+    }
+
+    /**
+     * Check if a regex has backreferences or named groups, which depend on
+     * the groups before them. Escapes and quoted sections are skipped.
+     *
+     * @param regex Valid regex
+     * @return True if the regex can not go in the alternation
+     */
+    static boolean refersToGroups(String regex) {
+        int i = 0;
+        while (i < regex.length()) {
+            char c = regex.charAt(i);
+            if (c == '\\' && i + 1 < regex.length()) {
+                char next = regex.charAt(i + 1);
+                if (next == 'Q') {
+                    int end = regex.indexOf("\\E", i + 2);
+                    i = end < 0 ? regex.length() : end + 2;
+                    continue;
+                }
+                if ((next >= '1' && next <= '9') || next == 'k') {
+                    return true;
+                }
+                i += 2;
+            } else if (regex.startsWith("(?<", i) && i + 3 < regex.length() && Character.isLetter(regex.charAt(i + 3))) {
+                return true;
+            } else {
+                i++;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Convert a glob to a regex. * matches any characters, ? matches one.
+     *
+     * @param glob Glob
+     * @return Equivalent regex
+     */
+    static String globToRegex(String glob) {
+        StringBuilder regex = new StringBuilder();
+        StringBuilder literal = new StringBuilder();
+        for (char c : glob.toCharArray()) {
+            if (c == '*' || c == '?') {
+                if (literal.length() > 0) {
+                    regex.append(Pattern.quote(literal.toString()));
+                    literal.setLength(0);
+                }
+                regex.append(c == '*' ? ".*" : ".");
+            } else {
+                literal.append(c);
+            }
+        }
+        if (literal.length() > 0) {
+            regex.append(Pattern.quote(literal.toString()));
+        }
+        return regex.toString();
+    }
+
+    @Override
+    public long match(Object action) {
+        String value = action.toString();
+        Long cached = cache.get(value);
+        if (cached != null) {
+            return cached;
+        }
+        long steps = literals.getOrDefault(value, 0L) | prefixes.match(value);
+        if (combined != null && combined.matcher(value).matches()) {
+            for (int i = 0; i < patterns.size(); i++) {
+                if (patterns.get(i).matcher(value).matches()) {
+                    steps |= patternSteps.get(i);
+                }
+            }
+        }
+        for (int i = 0; i < groupPatterns.size(); i++) {
+            if (groupPatterns.get(i).matcher(value).matches()) {
+                steps |= groupPatternSteps.get(i);
+            }
+        }
+        if (cache.size() >= CACHE_SIZE) {
+            cache.clear();
+        }
+        cache.put(value, steps);
+        return steps;
+    }
+
+    /**
+     * Node of the prefix trie.
+     */
+    private static class TrieNode {
+        /** Children, by character. */
+        private final Map<Character, TrieNode> children = new HashMap<>();
+
+        /** Steps of the prefix ending at this node. */
+        private long steps;
+
+        /**
+         * Get the node of a prefix, adding it if needed.
+         *
+         * @param prefix Prefix
+         * @return Prefix node
+         */
+        private TrieNode add(String prefix) {
+            TrieNode node = this;
+            for (int i = 0; i < prefix.length(); i++) {
+                node = node.children.computeIfAbsent(prefix.charAt(i), c -> new TrieNode());
+            }
+            return node;
+        }
+
+        /**
+         * Get the steps of all the prefixes of a value, in one pass.
+         *
+         * @param value Value
+         * @return Steps matched
+         */
+        private long match(String value) {
+            TrieNode node = this;
+            long steps = node.steps;
+            for (int i = 0; i < value.length() && node != null; i++) {
+                node = node.children.get(value.charAt(i));
+                if (node != null) {
+                    steps |= node.steps;
+                }
+            }
+            return steps;
+        }
+    }
+}
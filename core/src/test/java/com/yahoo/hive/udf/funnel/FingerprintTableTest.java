@@ -0,0 +1,104 @@
+/*
+ * Copyright 2016 Yahoo Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.hive.udf.funnel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class FingerprintTableTest {
+    /** Funnel steps of random product ids. */
+    private static List<Set<Object>> randomSteps(Random random, int steps, int values) {
+        List<Set<Object>> funnelSteps = new ArrayList<>();
+        for (int i = 0; i < steps; i++) {
+            Set<Object> step = new HashSet<>();
+            while (step.size() < values) {
+                step.add("product_" + random.nextInt(values * 4));
+            }
+            funnelSteps.add(step);
+        }
+        return funnelSteps;
+    }
+
+    @Test
+    public void testIsLarge() {
+        Random random = new Random(0);
+        Assert.assertFalse(FingerprintTable.isLarge(randomSteps(random, 2, 10)));
+        Assert.assertTrue(FingerprintTable.isLarge(randomSteps(random, 2, FingerprintTable.MIN_VALUES / 2)));
+        Assert.assertFalse(FingerprintTable.isLarge(randomSteps(random, Long.SIZE + 1, FingerprintTable.MIN_VALUES)));
+    }
+
+    @Test
+    public void testSmallTable() {
+        FingerprintTable table = FingerprintTable.build(Arrays.asList(new HashSet<>(Arrays.asList("a", "b")), new HashSet<>(Arrays.asList("b", "c"))));
+        Assert.assertEquals(0b01L, table.match("a"));
+        Assert.assertEquals(0b11L, table.match("b"));
+        Assert.assertEquals(0b10L, table.match(new StringBuilder("c")));
+        Assert.assertEquals(0L, table.match("d"));
+        Assert.assertTrue(table.matches("b", 1));
+        Assert.assertFalse(table.matches("a", 1));
+    }
+
+    @Test
+    public void testRandomized() {
+        // Large enough for the Bloom filter
+        Random random = new Random(42);
+        List<Set<Object>> funnelSteps = randomSteps(random, 3, 20000);
+        FingerprintTable table = FingerprintTable.build(funnelSteps);
+        Assert.assertTrue(table.sizeInBytes() > (long) FingerprintTable.BLOOM_MIN_BYTES);
+        for (int i = 0; i < 100000; i++) {
+            String action = "product_" + random.nextInt(100000);
+            long expected = 0;
+            for (int step = 0; step < funnelSteps.size(); step++) {
+                if (funnelSteps.get(step).contains(action)) {
+                    expected |= 1L << step;
+                }
+            }
+            Assert.assertEquals(action, expected, table.match(action));
+        }
+    }
+
+    @Test
+    public void testFingerprint() {
+        Assert.assertEquals(FingerprintTable.fingerprint("abc"), FingerprintTable.fingerprint(new StringBuilder("abc")));
+        Assert.assertNotEquals(FingerprintTable.fingerprint("abc"), FingerprintTable.fingerprint("abd"));
+        Assert.assertNotEquals(0L, FingerprintTable.fingerprint(""));
+    }
+
+    /** Funnel steps from values. */
+    private static List<Set<Object>> steps(List<?>... values) {
+        List<Set<Object>> steps = new ArrayList<>();
+        for (List<?> step : values) {
+            steps.add(new HashSet<>(step));
+        }
+        return steps;
+    }
+
+    @Test
+    public void testStepsHash() {
+        long hash = FingerprintTable.stepsHash(steps(Arrays.asList("a", "b"), Arrays.asList("c")));
+        // The order of the values of a step doesn't matter, the order of the steps does
+        Assert.assertEquals(hash, FingerprintTable.stepsHash(steps(Arrays.asList("b", "a"), Arrays.asList("c"))));
+        Assert.assertNotEquals(hash, FingerprintTable.stepsHash(steps(Arrays.asList("c"), Arrays.asList("a", "b"))));
+        Assert.assertNotEquals(hash, FingerprintTable.stepsHash(steps(Arrays.asList("a"), Arrays.asList("b", "c"))));
+    }
+}
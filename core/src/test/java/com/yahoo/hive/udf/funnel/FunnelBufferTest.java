@@ -0,0 +1,226 @@
+/*
+ * Copyright 2016 Yahoo Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.hive.udf.funnel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.function.LongFunction;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit test for FunnelBuffer, without Hive on the classpath.
+ */
+public class FunnelBufferTest {
+    /** Funnel steps from values. */
+    private static List<Set<Object>> steps(List<?>... values) {
+        List<Set<Object>> steps = new ArrayList<>();
+        for (List<?> step : values) {
+            steps.add(new HashSet<>(step));
+        }
+        return steps;
+    }
+
+    /** Buffer with the a, b, c funnel steps. */
+    private static FunnelBuffer buffer() {
+        FunnelBuffer buffer = new FunnelBuffer();
+        buffer.setFunnelSteps(steps(Arrays.asList("a"), Arrays.asList("b"), Arrays.asList("c")), false);
+        return buffer;
+    }
+
+    @Test
+    public void testComputeFunnel() {
+        FunnelBuffer buffer = buffer();
+        Assert.assertTrue(buffer.add("b", 1L));
+        Assert.assertTrue(buffer.add("a", 2L));
+        Assert.assertFalse(buffer.add("x", 3L));
+        Assert.assertFalse(buffer.add(null, 4L));
+        Assert.assertTrue(buffer.add("b", 5L));
+        Assert.assertEquals(3, buffer.actions.size());
+        Assert.assertEquals(Arrays.asList(1L, 1L, 0L), buffer.computeFunnel());
+    }
+
+    @Test
+    public void testEmptySteps() {
+        FunnelBuffer buffer = new FunnelBuffer();
+        buffer.setFunnelSteps(steps(Arrays.asList("a"), Arrays.asList(), Arrays.asList("b")), false);
+        buffer.add("a", 1L);
+        buffer.add("b", 2L);
+        Assert.assertEquals(Arrays.asList(1L, 1L), buffer.computeFunnel());
+    }
+
+    @Test
+    public void testPatterns() {
+        FunnelBuffer buffer = new FunnelBuffer();
+        buffer.setFunnelSteps(steps(Arrays.asList("prefix:/p/"), Arrays.asList("regex:/cart/\\d+")), true);
+        Assert.assertTrue(buffer.add("/p/1", 1L));
+        Assert.assertFalse(buffer.add("/cart/x", 2L));
+        Assert.assertTrue(buffer.add("/cart/2", 3L));
+        Assert.assertEquals(Arrays.asList(1L, 1L), buffer.computeFunnel());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidPattern() {
+        new FunnelBuffer().setFunnelSteps(steps(Arrays.asList("regex:(")), true);
+    }
+
+    @Test
+    public void testSessions() {
+        FunnelBuffer buffer = buffer();
+        buffer.setSessions(10L, true);
+        buffer.add("a", 0L);
+        buffer.add("b", 5L);
+        buffer.add("a", 100L);
+        buffer.add("b", 105L);
+        buffer.add("c", 110L);
+        Assert.assertEquals(Arrays.asList(2L, 2L, 1L), buffer.computeFunnel());
+    }
+
+    @Test
+    public void testMergePartials() {
+        FunnelBuffer first = buffer();
+        first.add("a", 1L);
+        first.add("c", 4L);
+        FunnelBuffer second = buffer();
+        second.add("b", 2L);
+
+        // Funnel steps come from the first partial
+        FunnelBuffer merged = new FunnelBuffer();
+        merged.merge(first.serialize());
+        merged.merge(second.serialize());
+        Assert.assertEquals(3, merged.funnelSteps.size());
+        Assert.assertEquals(Arrays.asList(1L, 1L, 1L), merged.computeFunnel());
+    }
+
+    @Test
+    public void testStepsHash() {
+        FunnelBuffer buffer = buffer();
+        FunnelBuffer shared = new FunnelBuffer();
+        shared.shareFunnelSteps(buffer);
+        Assert.assertSame(buffer.funnelSteps, shared.funnelSteps);
+        Assert.assertEquals(FingerprintTable.stepsHash(buffer.funnelSteps), shared.stepsHash());
+
+        // The partial funnel steps hash the same
+        FunnelBuffer merged = new FunnelBuffer();
+        merged.merge(buffer.serialize());
+        Assert.assertEquals(buffer.stepsHash(), merged.stepsHash());
+    }
+
+    @Test
+    public void testMergePatterns() {
+        FunnelBuffer buffer = new FunnelBuffer();
+        buffer.setFunnelSteps(steps(Arrays.asList("glob:/p/*"), Arrays.asList("glob:/cart/?")), true);
+        buffer.add("/p/1", 1L);
+
+        // The merged buffer matches the funnel steps as patterns too
+        FunnelBuffer merged = new FunnelBuffer();
+        merged.merge(buffer.serialize());
+        Assert.assertTrue(merged.add("/cart/2", 2L));
+        Assert.assertFalse(merged.add("/cart/22", 3L));
+        Assert.assertEquals(Arrays.asList(1L, 1L), merged.computeFunnel());
+    }
+
+    @Test
+    public void testClear() {
+        FunnelBuffer buffer = buffer();
+        buffer.add("a", 1L);
+        buffer.clear();
+        Assert.assertEquals(Arrays.asList(0L, 0L, 0L), buffer.computeFunnel());
+    }
+
+    /**
+     * Fill a sequential and a parallel buffer with the same random events,
+     * and check they sort and match the same. Half the events are out of
+     * the funnel, among the given number of actions, if there are any.
+     */
+    private static void checkParallel(Random random, int events, int steps, int others, LongFunction<Object> timestamp) {
+        List<Set<Object>> funnelSteps = new ArrayList<>();
+        for (int i = 0; i < steps; i++) {
+            funnelSteps.add(new HashSet<>(Arrays.asList("s" + i, "t" + (i / 2))));
+        }
+        FunnelBuffer sequential = new FunnelBuffer();
+        sequential.setFunnelSteps(funnelSteps, false);
+        FunnelBuffer parallel = new FunnelBuffer();
+        parallel.setFunnelSteps(funnelSteps, false);
+        parallel.parallelThreshold = 1;
+        parallel.parallelChunk = 1 + random.nextInt(16);
+        for (int i = 0; i < events; i++) {
+            // Steps in a mostly increasing order, so funnels go far
+            String action = (random.nextBoolean() ? "s" : "t") + Math.min(steps - 1, i * steps / events + random.nextInt(3));
+            if (others > 0 && random.nextBoolean()) {
+                action = "o" + random.nextInt(others);
+            }
+            Object time = timestamp.apply(random.nextInt(events / 4 + 1));
+            for (FunnelBuffer buffer : Arrays.asList(sequential, parallel)) {
+                buffer.actions.add(action);
+                buffer.timestamps.add(time);
+            }
+        }
+        if (timestamp.apply(0) instanceof Long) {
+            sequential.timestampClock = t -> (Long) t;
+            parallel.timestampClock = t -> (Long) t;
+        }
+        Assert.assertArrayEquals(sequential.sortEvents(), parallel.sortEvents());
+        Assert.assertEquals(sequential.computeFunnel(), parallel.computeFunnel());
+        Assert.assertEquals(sequential.firstStepEvent, parallel.firstStepEvent);
+        Assert.assertEquals(sequential.durations, parallel.durations);
+    }
+
+    @Test
+    public void testParallel() {
+        Random random = new Random(50);
+        for (int i = 0; i < 50; i++) {
+            int events = 1 + random.nextInt(500);
+            int steps = 1 + random.nextInt(8);
+            // Packed long timestamps, longs too far apart to pack, and strings
+            checkParallel(random, events, steps, 0, t -> t * 1000L);
+            checkParallel(random, events, steps, 0, t -> t == 0 ? Long.MIN_VALUE / 2 : t * (Long.MAX_VALUE / 1000));
+            checkParallel(random, events, steps, 0, t -> String.format("%08d", t));
+        }
+    }
+
+    @Test
+    public void testParallelManySteps() {
+        // More steps than fit in a mask, the scan stays sequential
+        checkParallel(new Random(51), 2000, 70, 0, t -> t);
+        checkParallel(new Random(52), 2000, 64, 0, t -> t);
+    }
+
+    @Test
+    public void testParallelDistinctActions() {
+        // Mostly distinct actions, as buffered by funnel_paths, packed with their ranks
+        checkParallel(new Random(53), 2000, 4, 1000, t -> t);
+        // The timestamps fit in a long, the ranks of the actions don't
+        checkParallel(new Random(54), 2000, 4, 1000, t -> t << 38);
+    }
+
+    @Test
+    public void testParallelSessions() {
+        FunnelBuffer buffer = buffer();
+        buffer.parallelThreshold = 1;
+        buffer.parallelChunk = 2;
+        buffer.setSessions(10L, true);
+        for (long t : new long[] {100, 0, 5, 105, 110, 3}) {
+            buffer.add(t % 100 == 0 ? "a" : t % 100 == 5 ? "b" : "c", t);
+        }
+        Assert.assertEquals(Arrays.asList(2L, 2L, 1L), buffer.computeFunnel());
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2016 Yahoo Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.hive.udf.funnel;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Unit test for FunnelRunner.
+ */
+public class FunnelRunnerTest {
+    /** Directory of the event files. */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /** Write an event file. */
+    private Path write(String... lines) throws IOException {
+        Path file = folder.newFile().toPath();
+        Files.write(file, String.join("\n", lines).getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    /** Runner from command line arguments, without the files. */
+    private static FunnelRunner runner(String... args) {
+        List<Path> files = new ArrayList<>();
+        List<String> arguments = new ArrayList<>(Arrays.asList(args));
+        arguments.add("unused");
+        return FunnelRunner.parse(arguments.toArray(new String[0]), files);
+    }
+
+    @Test
+    public void testRun() throws IOException {
+        Path file = write("u1\ta\t1", "u1\tb\t2", "u2\tb\t1", "u2\ta\t2", "u3\ta\t5", "u3\tb\t6", "u3\tc\t7", "u4\tx\t1");
+        FunnelRunner.Result result = runner("--step", "a", "--step", "b", "--step", "c", "--threads", "2").run(Arrays.asList(file));
+        Assert.assertArrayEquals(new long[] {3, 2, 1}, result.funnel);
+        Assert.assertEquals(3, result.users);
+        Assert.assertEquals(8, result.events);
+        Assert.assertEquals(0, result.skipped);
+    }
+
+    @Test
+    public void testSkipped() throws IOException {
+        Path file = write("u1,a,1", "", "u1,b", "u1,b,x", "u1,b,2\r", "u2", "u2,c,3", "u3,a,4");
+        FunnelRunner.Result result = runner("--step", "a", "--step", "b,c", "--delimiter", ",").run(Arrays.asList(file));
+        Assert.assertArrayEquals(new long[] {2, 1}, result.funnel);
+        Assert.assertEquals(4, result.events);
+        Assert.assertEquals(3, result.skipped);
+    }
+
+    @Test
+    public void testColumns() throws IOException {
+        Path file = write("1\ta\tu1", "2\tb\tu1", "3\tb\tu2");
+        FunnelRunner.Result result = runner("--step", "a", "--step", "b", "--columns", "2,1,0").run(Arrays.asList(file));
+        Assert.assertArrayEquals(new long[] {1, 1}, result.funnel);
+    }
+
+    @Test
+    public void testSessions() throws IOException {
+        Path file = write("u1\ta\t0", "u1\tb\t5", "u1\ta\t100", "u1\tb\t105");
+        Assert.assertArrayEquals(new long[] {1, 1}, runner("--step", "a", "--step", "b", "--session-gap", "10").run(Arrays.asList(file)).funnel);
+        Assert.assertArrayEquals(new long[] {2, 2}, runner("--step", "a", "--step", "b", "--session-gap", "10", "--sum-sessions").run(Arrays.asList(file)).funnel);
+    }
+
+    @Test
+    public void testPatterns() throws IOException {
+        Path file = write("u1\t/p/1\t1", "u1\t/cart\t2", "u2\t/cart\t1");
+        FunnelRunner.Result result = runner("--step", "prefix:/p/", "--step", "/cart", "--patterns").run(Arrays.asList(file));
+        Assert.assertArrayEquals(new long[] {1, 1}, result.funnel);
+    }
+
+    @Test
+    public void testChunksAndRanges() throws IOException {
+        // Small chunks and ranges, so lines are cut at every boundary
+        Random random = new Random(47);
+        List<String> actions = Arrays.asList("a", "b", "c", "x");
+        Map<String, FunnelBuffer> expected = new HashMap<>();
+        FunnelBuffer steps = new FunnelBuffer();
+        steps.setFunnelSteps(Arrays.asList(new HashSet<>(Arrays.asList("a")),
+                                           new HashSet<>(Arrays.asList("b")),
+                                           new HashSet<>(Arrays.asList("c"))), false);
+        List<Path> files = new ArrayList<>();
+        for (int f = 0; f < 2; f++) {
+            List<String> lines = new ArrayList<>();
+            for (int i = 0; i < 2000; i++) {
+                String user = "user" + random.nextInt(100);
+                String action = actions.get(random.nextInt(actions.size()));
+                long timestamp = random.nextInt(1000);
+                lines.add(user + "\t" + action + "\t" + timestamp);
+                if (!expected.containsKey(user)) {
+                    FunnelBuffer buffer = new FunnelBuffer();
+                    buffer.shareFunnelSteps(steps);
+                    expected.put(user, buffer);
+                }
+                expected.get(user).add(action, timestamp);
+            }
+            files.add(write(lines.toArray(new String[0])));
+        }
+        long[] funnel = new long[3];
+        for (FunnelBuffer buffer : expected.values()) {
+            List<Long> counts = buffer.computeFunnel();
+            for (int i = 0; i < funnel.length; i++) {
+                funnel[i] += counts.get(i);
+            }
+        }
+
+        FunnelRunner runner = runner("--step", "a", "--step", "b", "--step", "c", "--threads", "3");
+        runner.chunkBytes = 256;
+        runner.rangeBytes = 100;
+        FunnelRunner.Result result = runner.run(files);
+        Assert.assertArrayEquals(funnel, result.funnel);
+        Assert.assertEquals(4000, result.events);
+        Assert.assertArrayEquals(funnel, runner("--step", "a", "--step", "b", "--step", "c", "--threads", "1").run(files).funnel);
+    }
+
+    @Test(expected = IOException.class)
+    public void testLineTooLong() throws IOException {
+        FunnelRunner runner = runner("--step", "a");
+        runner.chunkBytes = 8;
+        runner.run(Arrays.asList(write("user\ta\t123456789", "user\ta\t2")));
+    }
+
+    @Test
+    public void testInvalidOptions() {
+        List<String[]> invalid = Arrays.asList(new String[] {"file"},
+                                               new String[] {"--step", "a"},
+                                               new String[] {"--step", "a", "--threads", "x", "file"},
+                                               new String[] {"--step", "a", "--threads", "0", "file"},
+                                               new String[] {"--step", "a", "--session-gap", "-1", "file"},
+                                               new String[] {"--step", "a", "--columns", "1,2", "file"},
+                                               new String[] {"--step", "a", "--unknown", "1", "file"},
+                                               new String[] {"file", "--step"});
+        for (String[] args : invalid) {
+            try {
+                FunnelRunner.parse(args, new ArrayList<>());
+                Assert.fail(Arrays.toString(args));
+            } catch (IllegalArgumentException e) {
+                Assert.assertNotNull(e.getMessage());
+            }
+        }
+    }
+}
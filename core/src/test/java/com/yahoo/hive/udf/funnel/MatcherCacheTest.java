@@ -0,0 +1,147 @@
+/*
+ * Copyright 2016 Yahoo Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.hive.udf.funnel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit test for MatcherCache.
+ */
+public class MatcherCacheTest {
+    @Before
+    public void setUp() {
+        MatcherCache.clear();
+    }
+
+    /** Funnel steps from values. */
+    private static List<Set<Object>> steps(List<?>... values) {
+        List<Set<Object>> steps = new ArrayList<>();
+        for (List<?> step : values) {
+            steps.add(new HashSet<>(step));
+        }
+        return steps;
+    }
+
+    /** Large funnel steps, using a fingerprint table. */
+    private static List<Set<Object>> largeSteps(String prefix) {
+        Set<Object> step = new HashSet<>();
+        for (int i = 0; i < FingerprintTable.MIN_VALUES; i++) {
+            step.add(prefix + i);
+        }
+        return Arrays.asList(step, new HashSet<>(Arrays.asList("done")));
+    }
+
+    /** Hash that must not be computed. */
+    private static long noHash() {
+        throw new AssertionError("hashed");
+    }
+
+    @Test
+    public void testShared() {
+        ActionMatcher matcher = MatcherCache.get(steps(Arrays.asList("prefix:/p/", "a"), Arrays.asList("b")), true);
+        Assert.assertSame(matcher, MatcherCache.get(steps(Arrays.asList("a", "prefix:/p/"), Arrays.asList("b")), true));
+        Assert.assertSame(MatcherCache.get(largeSteps("x"), false), MatcherCache.get(largeSteps("x"), false));
+        Assert.assertEquals(2, MatcherCache.size());
+    }
+
+    @Test
+    public void testDifferentSteps() {
+        ActionMatcher matcher = MatcherCache.get(steps(Arrays.asList("a"), Arrays.asList("b")), true);
+        Assert.assertNotSame(matcher, MatcherCache.get(steps(Arrays.asList("b"), Arrays.asList("a")), true));
+        Assert.assertNotSame(matcher, MatcherCache.get(steps(Arrays.asList("a", "b")), true));
+        Assert.assertNotSame(MatcherCache.get(largeSteps("x"), false), MatcherCache.get(largeSteps("x"), true));
+    }
+
+    @Test
+    public void testSmallSteps() {
+        Assert.assertNull(MatcherCache.get(steps(Arrays.asList("a"), Arrays.asList("b")), false));
+        Assert.assertEquals(0, MatcherCache.size());
+    }
+
+    @Test
+    public void testStepsCopied() {
+        List<Set<Object>> funnelSteps = steps(Arrays.asList("a"), Arrays.asList("b"));
+        ActionMatcher matcher = MatcherCache.get(funnelSteps, true);
+        funnelSteps.get(0).add("c");
+        Assert.assertNotSame(matcher, MatcherCache.get(funnelSteps, true));
+        Assert.assertSame(matcher, MatcherCache.get(steps(Arrays.asList("a"), Arrays.asList("b")), true));
+    }
+
+    @Test
+    public void testKnownHash() {
+        List<Set<Object>> funnelSteps = steps(Arrays.asList("a"), Arrays.asList("b"));
+        long hash = FingerprintTable.stepsHash(funnelSteps);
+        ActionMatcher matcher = MatcherCache.get(funnelSteps, true, () -> hash);
+        Assert.assertSame(matcher, MatcherCache.get(steps(Arrays.asList("a"), Arrays.asList("b")), true));
+
+        // Small steps without patterns don't hash
+        Assert.assertNull(MatcherCache.get(funnelSteps, false, MatcherCacheTest::noHash));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidPattern() {
+        MatcherCache.get(steps(Arrays.asList("regex:(")), true);
+    }
+
+    @Test
+    public void testEviction() {
+        ActionMatcher first = MatcherCache.get(steps(Arrays.asList("first")), true);
+        ActionMatcher used = MatcherCache.get(steps(Arrays.asList("used")), true);
+        for (int i = 0; i < MatcherCache.MAX_ENTRIES - 2; i++) {
+            MatcherCache.get(steps(Arrays.asList("step" + i)), true);
+        }
+        Assert.assertEquals(MatcherCache.MAX_ENTRIES, MatcherCache.size());
+
+        // The least recently used goes first
+        Assert.assertSame(used, MatcherCache.get(steps(Arrays.asList("used")), true));
+        MatcherCache.get(steps(Arrays.asList("new")), true);
+        Assert.assertEquals(MatcherCache.MAX_ENTRIES, MatcherCache.size());
+        Assert.assertSame(used, MatcherCache.get(steps(Arrays.asList("used")), true));
+        Assert.assertNotSame(first, MatcherCache.get(steps(Arrays.asList("first")), true));
+    }
+
+    @Test
+    public void testConcurrentLookups() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<ActionMatcher>> matchers = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                matchers.add(executor.submit(() -> MatcherCache.get(steps(Arrays.asList("glob:/p/*"), Arrays.asList("b")), true)));
+            }
+            // Concurrent misses build a single matcher, shared by every thread
+            ActionMatcher last = matchers.get(matchers.size() - 1).get();
+            for (Future<ActionMatcher> matcher : matchers) {
+                Assert.assertSame(last, matcher.get());
+                Assert.assertEquals(1L, matcher.get().match("/p/1"));
+            }
+            Assert.assertSame(last, MatcherCache.get(steps(Arrays.asList("glob:/p/*"), Arrays.asList("b")), true));
+            Assert.assertEquals(1, MatcherCache.size());
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
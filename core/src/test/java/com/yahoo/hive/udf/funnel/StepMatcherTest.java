@@ -0,0 +1,118 @@
+/*
+ * Copyright 2016 Yahoo Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.hive.udf.funnel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class StepMatcherTest {
+    /** Funnel steps from values. */
+    private static List<Set<Object>> steps(List<?>... values) {
+        List<Set<Object>> steps = new ArrayList<>();
+        for (List<?> step : values) {
+            steps.add(new HashSet<>(step));
+        }
+        return steps;
+    }
+
+    @Test
+    public void testLiterals() {
+        StepMatcher matcher = StepMatcher.compile(steps(Arrays.asList("a", "b"), Arrays.asList("b", "c")));
+        Assert.assertEquals(0b01L, matcher.match("a"));
+        Assert.assertEquals(0b11L, matcher.match("b"));
+        Assert.assertEquals(0b10L, matcher.match(new StringBuilder("c")));
+        Assert.assertEquals(0L, matcher.match("d"));
+    }
+
+    @Test
+    public void testPrefixes() {
+        StepMatcher matcher = StepMatcher.compile(steps(Arrays.asList("prefix:/cart"), Arrays.asList("prefix:/cart/checkout"), Arrays.asList("prefix:")));
+        Assert.assertEquals(0b101L, matcher.match("/cart"));
+        Assert.assertEquals(0b111L, matcher.match("/cart/checkout/1"));
+        Assert.assertEquals(0b101L, matcher.match("/cart/check"));
+        Assert.assertEquals(0b100L, matcher.match("/car"));
+    }
+
+    @Test
+    public void testGlobs() {
+        StepMatcher matcher = StepMatcher.compile(steps(Arrays.asList("glob:/p/*/view"), Arrays.asList("glob:a?c", "glob:x.y")));
+        Assert.assertEquals(0b01L, matcher.match("/p/123/view"));
+        Assert.assertEquals(0L, matcher.match("/p/123/edit"));
+        Assert.assertEquals(0b10L, matcher.match("abc"));
+        Assert.assertEquals(0L, matcher.match("abbc"));
+        // Glob characters other than * and ? are literal
+        Assert.assertEquals(0b10L, matcher.match("x.y"));
+        Assert.assertEquals(0L, matcher.match("xzy"));
+    }
+
+    @Test
+    public void testGlobToRegex() {
+        Assert.assertEquals(".*\\Q.html\\E", StepMatcher.globToRegex("*.html"));
+        Assert.assertEquals("\\Qa\\E.\\Qb\\E", StepMatcher.globToRegex("a?b"));
+    }
+
+    @Test
+    public void testBackreferences() {
+        // The first pattern shifts the group numbers of the others in an alternation
+        StepMatcher matcher = StepMatcher.compile(steps(Arrays.asList("regex:(x)y"), Arrays.asList("regex:(a)\\1"), Arrays.asList("regex:(?<c>b)\\k<c>")));
+        Assert.assertEquals(0b001L, matcher.match("xy"));
+        Assert.assertEquals(0b010L, matcher.match("aa"));
+        Assert.assertEquals(0L, matcher.match("ax"));
+        Assert.assertEquals(0b100L, matcher.match("bb"));
+    }
+
+    @Test
+    public void testRefersToGroups() {
+        Assert.assertTrue(StepMatcher.refersToGroups("(a)\\1"));
+        Assert.assertTrue(StepMatcher.refersToGroups("(?<name>a)"));
+        Assert.assertFalse(StepMatcher.refersToGroups("(?<=a)b"));
+        Assert.assertFalse(StepMatcher.refersToGroups("a\\\\1"));
+        Assert.assertFalse(StepMatcher.refersToGroups(StepMatcher.globToRegex("a\\1*")));
+    }
+
+    @Test
+    public void testRegexes() {
+        StepMatcher matcher = StepMatcher.compile(steps(Arrays.asList("regex:/p/\\d+"), Arrays.asList("regex:/p/.*", "done")));
+        Assert.assertEquals(0b11L, matcher.match("/p/42"));
+        Assert.assertEquals(0b10L, matcher.match("/p/x"));
+        Assert.assertEquals(0b10L, matcher.match("done"));
+        Assert.assertEquals(0L, matcher.match("/q/42"));
+        // Cached results are the same
+        Assert.assertEquals(0b11L, matcher.match("/p/42"));
+        Assert.assertTrue(matcher.matches("/p/42", 0));
+        Assert.assertFalse(matcher.matches("/p/x", 0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidRegex() {
+        StepMatcher.compile(steps(Arrays.asList("regex:(")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTooManySteps() {
+        List<Set<Object>> steps = new ArrayList<>();
+        for (int i = 0; i <= StepMatcher.MAX_STEPS; i++) {
+            steps.add(new HashSet<>(Arrays.asList("a" + i)));
+        }
+        StepMatcher.compile(steps);
+    }
+}
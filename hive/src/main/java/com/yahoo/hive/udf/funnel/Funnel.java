@@ -0,0 +1,832 @@
+/*
+ * Copyright 2016 Yahoo Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.hive.udf.funnel;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.MapredContext;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentLengthException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.parse.SemanticException;
+import org.apache.hadoop.hive.ql.udf.UDFType;
+import org.apache.hadoop.hive.ql.udf.generic.AbstractGenericUDAFResolver;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFParameterInfo;
+import org.apache.hadoop.hive.serde2.objectinspector.ConstantObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ListObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector.PrimitiveCategory;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.StandardStructObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.StructField;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.typeinfo.ListTypeInfo;
+import org.apache.hadoop.hive.serde2.typeinfo.PrimitiveTypeInfo;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfoUtils;
+
+@UDFType(deterministic = true)
+@Description(name = "funnel",
+             value = "_FUNC_(action_column, timestamp_column, step_1, step_2, ..., [sample_key], [options]) - Builds a funnel report applied to the action_column. Steps are arrays of the same type as action. Should be used with merge_funnel UDF.",
+             extended = "Example: SELECT funnel(action, timestamp, array('signup_page', 'email_signup'), \n" +
+                        "                                          array('confirm_button'),\n" +
+                        "                                          array('submit_button')) AS funnel\n" +
+                        "         FROM table\n" +
+                        "         GROUP BY user_id;")
+public class Funnel extends AbstractGenericUDAFResolver {
+    static final Log LOG = LogFactory.getLog(Funnel.class.getName());
+
+    @Override
+    public FunnelEvaluator getEvaluator(GenericUDAFParameterInfo info) throws SemanticException {
+        checkParameters(info.getParameters(), true);
+        return new FunnelEvaluator();
+    }
+
+    /**
+     * Check the funnel parameters: the action column, the timestamp column,
+     * the funnel steps, and maybe a trailing options string. The funnel steps
+     * may all be in a steps file named in the options.
+     *
+     * @param parameters Parameter types
+     * @param acceptOptions Whether a trailing options string is accepted
+     */
+    protected static void checkParameters(TypeInfo[] parameters, boolean acceptOptions) throws SemanticException {
+        // Check number of arguments
+        if (parameters.length < 3) {
+            throw new UDFArgumentLengthException("Please specify the action column, the timestamp column, and at least one funnel.");
+        }
+
+        // Check the action_column type and enforce that all funnel steps are the same type
+        if (parameters[0].getCategory() != ObjectInspector.Category.PRIMITIVE) {
+            throw new UDFArgumentTypeException(0, "Only primitive type arguments are accepted but " + parameters[0].getTypeName() + " was passed.");
+        }
+        PrimitiveCategory actionColumnCategory = ((PrimitiveTypeInfo) parameters[0]).getPrimitiveCategory();
+
+        // Check the timestamp_column type
+        if (parameters[1].getCategory() != ObjectInspector.Category.PRIMITIVE) {
+            throw new UDFArgumentTypeException(1, "Only primitive type arguments are accepted but " + parameters[0].getTypeName() + " was passed.");
+        }
+
+        // The options are a trailing string
+        int funnelStepEnd = parameters.length;
+        if (acceptOptions && isOptionsType(parameters[parameters.length - 1])) {
+            funnelStepEnd--;
+            // The sample key is a primitive between the funnel steps and the options
+            if (funnelStepEnd > 2 && parameters[funnelStepEnd - 1].getCategory() == ObjectInspector.Category.PRIMITIVE) {
+                funnelStepEnd--;
+            }
+        }
+
+        // Check that all funnel steps are the same type as the action_column
+        for (int i = 2; i < funnelStepEnd; i++) {
+            switch (parameters[i].getCategory()) {
+                case LIST:
+                    // Check that the list is of primitives of the same type as the action column
+                    TypeInfo typeInfo = ((ListTypeInfo) parameters[i]).getListElementTypeInfo();
+                    if (typeInfo.getCategory() != ObjectInspector.Category.PRIMITIVE || ((PrimitiveTypeInfo) typeInfo).getPrimitiveCategory() != actionColumnCategory) {
+                        throw new UDFArgumentTypeException(i, "Funnel list parameter " + Integer.toString(i) + " of type " + parameters[i].getTypeName() + " does not match expected type " + parameters[0].getTypeName() + ".");
+                    }
+                    break;
+                default:
+                    throw new UDFArgumentTypeException(i, "Funnel list parameter " + Integer.toString(i) + " of type " + parameters[i].getTypeName() + " should be a list.");
+            }
+        }
+    }
+
+    /**
+     * Check if a parameter type is an options string.
+     */
+    private static boolean isOptionsType(TypeInfo typeInfo) {
+        return typeInfo.getCategory() == ObjectInspector.Category.PRIMITIVE
+            && ((PrimitiveTypeInfo) typeInfo).getPrimitiveCategory() == PrimitiveCategory.STRING;
+    }
+
+    public static class FunnelEvaluator extends GenericUDAFEvaluator {
+        /** For PARTIAL1 and COMPLETE. */
+        private ObjectInspector actionObjectInspector;
+
+        /** For PARTIAL1 and COMPLETE. */
+        private ObjectInspector timestampObjectInspector;
+
+        /** For PARTIAL1 and COMPLETE. */
+        private ListObjectInspector funnelObjectInspector;
+
+        /** For PARTIAL2 and FINAL. */
+        private StandardStructObjectInspector internalMergeObjectInspector;
+
+        /** For PARTIAL2 and FINAL. */
+        private StructField actionField;
+
+        /** For PARTIAL2 and FINAL. */
+        private StructField timestampField;
+
+        /** For PARTIAL2 and FINAL. */
+        private StructField funnelField;
+
+        /** Action key constant. */
+        private static final String ACTION = "action";
+
+        /** Timestamp key constant. */
+        private static final String TIMESTAMP = "timestamp";
+
+        /** Funnel key constant. */
+        private static final String FUNNEL = "funnel";
+
+        /** Unordered mask key constant. */
+        private static final String UNORDERED_MASK = "unordered_mask";
+
+        /** Unordered steps key constant. */
+        private static final String UNORDERED_STEPS = "unordered_steps";
+
+        /** Session gap key constant. */
+        private static final String SESSION_GAP = "session_gap";
+
+        /** Session sum key constant. */
+        private static final String SESSION_SUM = "session_sum";
+
+        /** Patterns key constant. */
+        private static final String PATTERNS = "patterns";
+
+        /** Steps file key constant. */
+        private static final String STEPS_FILE = "steps_file";
+
+        /** Number of parameters after the funnel steps. For PARTIAL1 and COMPLETE. */
+        protected int trailingParameters;
+
+        /** Funnel options. For PARTIAL1 and COMPLETE. */
+        protected FunnelOptions options = new FunnelOptions();
+
+        /** Whether only the funnel steps done are kept, from the options or the partials. */
+        private boolean unordered;
+
+        /** For PARTIAL2 and FINAL, in unordered mode. */
+        private StructField unorderedMaskField;
+
+        /** For PARTIAL2 and FINAL, in unordered mode. */
+        private StructField unorderedStepsField;
+
+        /** Whether the events are split into sessions, from the options or the partials. */
+        private boolean sessions;
+
+        /** For PARTIAL2 and FINAL, in session mode. */
+        private StructField sessionGapField;
+
+        /** For PARTIAL2 and FINAL, in session mode. */
+        private StructField sessionSumField;
+
+        /** Object inspector of the timestamps in the aggregate. For FINAL and COMPLETE, in session mode. */
+        private PrimitiveObjectInspector sessionTimestampObjectInspector;
+
+        /** Whether the funnel steps may be patterns, from the options or the partials. */
+        private boolean patterns;
+
+        /** Last built matcher, reused while the funnel steps don't change. */
+        private ActionMatcher matcher;
+
+        /** Funnel steps of the last built matcher, compared by identity. */
+        private List<Set<Object>> matcherSteps;
+
+        /** Funnel steps built from constant parameters or the steps file, shared read only by all the groups. */
+        private FunnelAggregateBuffer sharedFunnel;
+
+        /** Funnel steps read from the last partial that changed them, shared read only by the next groups. For PARTIAL2 and FINAL. */
+        private FunnelAggregateBuffer mergedFunnel;
+
+        /** Length of the serialized funnel steps of mergedFunnel. */
+        private int mergedFunnelLength;
+
+        /** Name of the funnel steps file, from the options or the partials. */
+        private String stepsFile;
+
+        /** For PARTIAL2 and FINAL, with a steps file. */
+        private StructField stepsFileField;
+
+        /** Sample key object inspector, or null if the groups are not sampled. For PARTIAL1 and COMPLETE. */
+        private ObjectInspector sampleKeyObjectInspector;
+
+        /** Object inspector of the actions in the aggregate, to convert the steps file values. */
+        private ObjectInspector bufferedActionObjectInspector;
+
+        /** Job configuration key for the group size limit. */
+        static final String GROUP_SIZE_LIMIT_CONF = "funnel.group.size.limit";
+
+        /** Default group size limit. */
+        static final long DEFAULT_GROUP_SIZE_LIMIT = 1000000L;
+
+        /** Groups with more events than this are counted in the task counters. */
+        private long groupSizeLimit = DEFAULT_GROUP_SIZE_LIMIT;
+
+        /** Task counters. */
+        private final TaskCounters counters = new TaskCounters(Funnel.class.getName());
+
+        @Override
+        public void configure(MapredContext mapredContext) {
+            counters.configure(mapredContext);
+            if (mapredContext.getJobConf() != null) {
+                groupSizeLimit = mapredContext.getJobConf().getLong(GROUP_SIZE_LIMIT_CONF, DEFAULT_GROUP_SIZE_LIMIT);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            counters.flush();
+        }
+
+        @Override
+        public ObjectInspector init(Mode m, ObjectInspector[] parameters) throws HiveException {
+            super.init(m, parameters);
+
+            // Setup the object inspectors and return type
+            switch (m) {
+                case PARTIAL1:
+                    // Get the object inspectors
+                    actionObjectInspector = parameters[0];
+                    timestampObjectInspector = parameters[1];
+                    // The funnel steps may all be in the steps file
+                    funnelObjectInspector = parameters[2] instanceof ListObjectInspector ? (ListObjectInspector) parameters[2] : null;
+                    setupParameters(parameters);
+
+                    // Unordered partials are the funnel steps done
+                    if (unordered) {
+                        return unorderedPartialObjectInspector();
+                    }
+
+                    // The field names for the struct, order matters
+                    List<String> fieldNames = new ArrayList<>(Arrays.asList(ACTION, TIMESTAMP, FUNNEL));
+
+                    // The field inspectors for the struct, order matters
+                    List<ObjectInspector> fieldInspectors = Arrays.asList(actionObjectInspector, timestampObjectInspector, actionObjectInspector)
+                                                                  .stream()
+                                                                  .map(ObjectInspectorUtils::getStandardObjectInspector)
+                                                                  .map(ObjectInspectorFactory::getStandardListObjectInspector)
+                                                                  .collect(Collectors.toCollection(ArrayList::new));
+
+                    // The session options travel with the partials
+                    if (sessions) {
+                        fieldNames.addAll(Arrays.asList(SESSION_GAP, SESSION_SUM));
+                        fieldInspectors.add(PrimitiveObjectInspectorFactory.javaLongObjectInspector);
+                        fieldInspectors.add(PrimitiveObjectInspectorFactory.javaBooleanObjectInspector);
+                    }
+
+                    // The funnel steps are matched as patterns on the reduce side too
+                    if (patterns) {
+                        fieldNames.add(PATTERNS);
+                        fieldInspectors.add(PrimitiveObjectInspectorFactory.javaBooleanObjectInspector);
+                    }
+
+                    // The funnel steps are loaded from the steps file on the reduce side too
+                    if (stepsFile != null) {
+                        fieldNames.add(STEPS_FILE);
+                        fieldInspectors.add(PrimitiveObjectInspectorFactory.javaStringObjectInspector);
+                    }
+
+                    // Will output structs
+                    return ObjectInspectorFactory.getStandardStructObjectInspector(fieldNames, fieldInspectors);
+                case PARTIAL2:
+                    // Get the struct object inspector
+                    setupMergeObjectInspector(parameters[0]);
+                    if (unordered) {
+                        return unorderedPartialObjectInspector();
+                    }
+
+                    // Will output standard structs, the input may be a serde specific inspector (e.g. LazyBinary)
+                    return ObjectInspectorUtils.getStandardObjectInspector(internalMergeObjectInspector);
+                case FINAL:
+                    // Get the struct object inspector
+                    setupMergeObjectInspector(parameters[0]);
+                    if (sessions) {
+                        sessionTimestampObjectInspector = FunnelTimed.bufferedTimestampObjectInspector(m, parameters);
+                    }
+
+                    // Will output list of longs
+                    return ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaLongObjectInspector);
+                case COMPLETE:
+                    // Get the object inspectors
+                    actionObjectInspector = parameters[0];
+                    timestampObjectInspector = parameters[1];
+                    // The funnel steps may all be in the steps file
+                    funnelObjectInspector = parameters[2] instanceof ListObjectInspector ? (ListObjectInspector) parameters[2] : null;
+                    setupParameters(parameters);
+                    if (sessions) {
+                        sessionTimestampObjectInspector = FunnelTimed.bufferedTimestampObjectInspector(m, parameters);
+                    }
+
+                    // Will output list of longs
+                    return ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaLongObjectInspector);
+                default:
+                    throw new HiveException("Unknown Mode: " + m.toString());
+            }
+        }
+
+        /**
+         * Store the partial struct object inspector and look up its fields
+         * once, instead of on every merge.
+         *
+         * @param parameter Partial struct object inspector
+         */
+        private void setupMergeObjectInspector(ObjectInspector parameter) {
+            internalMergeObjectInspector = (StandardStructObjectInspector) parameter;
+
+            // Unordered partials have their own fields
+            for (StructField field : internalMergeObjectInspector.getAllStructFieldRefs()) {
+                if (UNORDERED_MASK.equals(field.getFieldName())) {
+                    unordered = true;
+                    unorderedMaskField = field;
+                    unorderedStepsField = internalMergeObjectInspector.getStructFieldRef(UNORDERED_STEPS);
+                    return;
+                }
+            }
+            // Session partials have the session options
+            for (StructField field : internalMergeObjectInspector.getAllStructFieldRefs()) {
+                if (SESSION_GAP.equals(field.getFieldName())) {
+                    sessions = true;
+                    sessionGapField = field;
+                    sessionSumField = internalMergeObjectInspector.getStructFieldRef(SESSION_SUM);
+                } else if (PATTERNS.equals(field.getFieldName())) {
+                    patterns = true;
+                } else if (STEPS_FILE.equals(field.getFieldName())) {
+                    stepsFileField = field;
+                }
+            }
+            actionField = internalMergeObjectInspector.getStructFieldRef(ACTION);
+            bufferedActionObjectInspector = ObjectInspectorUtils.getStandardObjectInspector(((ListObjectInspector) actionField.getFieldObjectInspector()).getListElementObjectInspector());
+            timestampField = internalMergeObjectInspector.getStructFieldRef(TIMESTAMP);
+            funnelField = internalMergeObjectInspector.getStructFieldRef(FUNNEL);
+        }
+
+        /**
+         * Read the options, if the last parameter is an options string, and
+         * count the parameters after the funnel steps. For PARTIAL1 and
+         * COMPLETE.
+         *
+         * @param parameters Input object inspectors
+         */
+        protected void setupParameters(ObjectInspector[] parameters) throws HiveException {
+            trailingParameters = 0;
+            int last = parameters.length - 1;
+            if (last >= 2 && parameters[last].getCategory() == ObjectInspector.Category.PRIMITIVE
+                && ((PrimitiveObjectInspector) parameters[last]).getPrimitiveCategory() == PrimitiveCategory.STRING) {
+                if (!(parameters[last] instanceof ConstantObjectInspector)) {
+                    throw new UDFArgumentTypeException(last, "The funnel options should be a constant.");
+                }
+                String value = PrimitiveObjectInspectorUtils.getString(((ConstantObjectInspector) parameters[last]).getWritableConstantValue(), (PrimitiveObjectInspector) parameters[last]);
+                options = FunnelOptions.parse(value == null ? "" : value);
+                trailingParameters = 1;
+            }
+
+            // Groups are sampled by a hash of the sample key, before the options
+            sampleKeyObjectInspector = null;
+            int sampleKey = last - 1;
+            if (trailingParameters == 1 && sampleKey >= 2 && parameters[sampleKey].getCategory() == ObjectInspector.Category.PRIMITIVE) {
+                if (options.sampleRate >= 1) {
+                    throw new UDFArgumentException("A sample key was passed without the '" + FunnelOptions.SAMPLE + "' funnel option.");
+                }
+                sampleKeyObjectInspector = parameters[sampleKey];
+                trailingParameters = 2;
+            } else if (options.sampleRate < 1) {
+                throw new UDFArgumentLengthException("The '" + FunnelOptions.SAMPLE + "' funnel option needs a sample key, such as the user id, before the options.");
+            }
+
+            // Sessions are split on the difference between timestamps
+            sessions = options.sessionGap > 0;
+            if (sessions) {
+                FunnelTimed.checkTimestampType(TypeInfoUtils.getTypeInfoFromObjectInspector(parameters[1]));
+            }
+
+            // Patterns match strings
+            patterns = options.patterns;
+            if (patterns && ((PrimitiveObjectInspector) parameters[0]).getPrimitiveCategory() != PrimitiveCategory.STRING) {
+                throw new UDFArgumentTypeException(0, "Pattern funnel steps need a string action column, but " + parameters[0].getTypeName() + " was passed.");
+            }
+
+            // Unordered funnel steps are bits of a long
+            unordered = options.unordered;
+            int steps = parameters.length - 2 - trailingParameters;
+            if (unordered && steps > Long.SIZE) {
+                throw new UDFArgumentException("Unordered funnels have at most " + Long.SIZE + " steps, but " + steps + " were passed.");
+            }
+
+            // The funnel steps are either arguments or in the steps file, loaded by the tasks
+            stepsFile = options.stepsFile;
+            bufferedActionObjectInspector = ObjectInspectorUtils.getStandardObjectInspector(parameters[0]);
+            if (stepsFile != null && steps > 0) {
+                throw new UDFArgumentException("Funnel steps should be either arguments or in the steps file, not both.");
+            } else if (stepsFile == null && steps == 0) {
+                throw new UDFArgumentLengthException("Please specify at least one funnel, or a steps file.");
+            }
+            setupSharedFunnel(parameters);
+        }
+
+        /**
+         * Build the funnel steps once if they are all constants, instead of
+         * once per group.
+         *
+         * @param parameters Input object inspectors
+         */
+        protected void setupSharedFunnel(ObjectInspector[] parameters) throws HiveException {
+            sharedFunnel = null;
+            Object[] funnelSteps = new Object[parameters.length - 2 - trailingParameters];
+            for (int i = 0; i < funnelSteps.length; i++) {
+                if (!(parameters[i + 2] instanceof ConstantObjectInspector)) {
+                    return;
+                }
+                funnelSteps[i] = ((ConstantObjectInspector) parameters[i + 2]).getWritableConstantValue();
+            }
+            FunnelAggregateBuffer funnelAggregate = new FunnelAggregateBuffer();
+            addFunnelSteps(funnelAggregate, funnelSteps);
+            if (!funnelAggregate.funnelSteps.isEmpty()) {
+                funnelAggregate.unorderedSteps = funnelAggregate.funnelSteps.size();
+                funnelAggregate.matcher = matcher(funnelAggregate);
+                sharedFunnel = funnelAggregate;
+            }
+        }
+
+        /**
+         * Build the unordered partial struct object inspector, the funnel
+         * steps done and the number of funnel steps.
+         *
+         * @return Unordered partial struct object inspector
+         */
+        private ObjectInspector unorderedPartialObjectInspector() {
+            List<String> fieldNames = Arrays.asList(UNORDERED_MASK, UNORDERED_STEPS);
+            List<ObjectInspector> fieldInspectors = Arrays.asList(PrimitiveObjectInspectorFactory.javaLongObjectInspector,
+                                                                  PrimitiveObjectInspectorFactory.javaIntObjectInspector);
+            return ObjectInspectorFactory.getStandardStructObjectInspector(fieldNames, fieldInspectors);
+        }
+
+        /**
+         * Load the shared funnel steps from the steps file, once.
+         */
+        private void loadStepsFile() throws HiveException {
+            if (sharedFunnel != null) {
+                return;
+            }
+            FunnelAggregateBuffer funnelAggregate = new FunnelAggregateBuffer();
+            for (Set<Object> funnelStep : FunnelStepsFile.loadFunnelSteps(stepsFile, bufferedActionObjectInspector)) {
+                funnelAggregate.funnelSteps.add(funnelStep);
+                funnelAggregate.funnelSet.addAll(funnelStep);
+            }
+            if (unordered && funnelAggregate.funnelSteps.size() > Long.SIZE) {
+                throw new UDFArgumentException("Unordered funnels have at most " + Long.SIZE + " steps, but the steps file has " + funnelAggregate.funnelSteps.size() + ".");
+            }
+            funnelAggregate.unorderedSteps = funnelAggregate.funnelSteps.size();
+            funnelAggregate.matcher = matcher(funnelAggregate);
+            sharedFunnel = funnelAggregate;
+        }
+
+        @Override
+        public AggregationBuffer getNewAggregationBuffer() throws HiveException {
+            FunnelAggregateBuffer funnelAggregate = new FunnelAggregateBuffer();
+            if (sessions) {
+                // Replaced by the partial session options in PARTIAL2 and FINAL
+                funnelAggregate.sessionGap = options.sessionGap;
+                funnelAggregate.sumSessions = options.sumSessions;
+                funnelAggregate.sessionClock = this::toSessionTime;
+            }
+            return funnelAggregate;
+        }
+
+        /**
+         * Convert a buffered timestamp to a number, seconds for timestamps.
+         *
+         * @param timestamp Buffered timestamp
+         * @return Timestamp as a long
+         */
+        private long toSessionTime(Object timestamp) {
+            return PrimitiveObjectInspectorUtils.getLong(timestamp, sessionTimestampObjectInspector);
+        }
+
+
+        /**
+         * Adds funnel steps to the aggregate. Funnel steps can be lists or
+         * scalars.
+         *
+         * @param funnelAggregate
+         * @param parameters
+         */
+        private void addFunnelSteps(FunnelAggregateBuffer funnelAggregate, Object[] parameters) {
+            Arrays.stream(parameters)
+                  .map(this::convertFunnelStepObjectToList)
+                  .map(ListUtils::removeNullFromList)
+                  .filter(ListUtils::isNotEmpty)
+                  .forEach(funnelStep -> {
+                          funnelAggregate.funnelSteps.add(new HashSet<Object>(funnelStep));
+                          funnelAggregate.funnelSet.addAll(funnelStep);
+                      });
+        }
+
+        @Override
+        public void iterate(AggregationBuffer aggregate, Object[] parameters) throws HiveException {
+            FunnelAggregateBuffer funnelAggregate = (FunnelAggregateBuffer) aggregate;
+
+            // Add the funnel steps if not already stored
+            if (funnelAggregate.funnelSteps.isEmpty()) {
+                if (stepsFile != null) {
+                    loadStepsFile();
+                }
+                if (sharedFunnel != null) {
+                    // Constant funnel steps, read only
+                    funnelAggregate.shareFunnelSteps(sharedFunnel);
+                } else {
+                    // Funnel steps start at index 2
+                    addFunnelSteps(funnelAggregate, Arrays.copyOfRange(parameters, 2, parameters.length - trailingParameters));
+                    funnelAggregate.matcher = matcher(funnelAggregate);
+                }
+            }
+            // The steps outlive reset, the step count does not
+            funnelAggregate.unorderedSteps = funnelAggregate.funnelSteps.size();
+
+            counters.increment(FunnelCounter.ROWS_SEEN, 1);
+
+            // Drop the groups out of the sample, before buffering anything, their funnel is all 0s
+            if (sampleKeyObjectInspector != null) {
+                // The sample key is the same for the whole group, hash it once
+                if (funnelAggregate.sampled == null) {
+                    Object sampleKey = ObjectInspectorUtils.copyToStandardObject(parameters[parameters.length - 2], sampleKeyObjectInspector);
+                    funnelAggregate.sampled = options.isSampled(sampleKey);
+                }
+                if (!funnelAggregate.sampled) {
+                    counters.increment(FunnelCounter.ROWS_SAMPLED_OUT, 1);
+                    return;
+                }
+            }
+
+            // Get the action_column value and add it (if it matches a funnel)
+            Object action = parameters[0];
+            Object timestamp = parameters[1];
+            if (action != null && timestamp != null) {
+                // Get the action value
+                Object actionValue = ObjectInspectorUtils.copyToStandardObject(action, actionObjectInspector);
+                // Get the timestamp value
+                Object timestampValue = ObjectInspectorUtils.copyToStandardObject(timestamp, timestampObjectInspector);
+
+                // In unordered mode, only keep the funnel steps done
+                if (unordered) {
+                    if (actionValue != null && timestampValue != null && funnelAggregate.isFunnelAction(actionValue)) {
+                        funnelAggregate.addUnordered(actionValue);
+                        counters.increment(FunnelCounter.ROWS_MATCHED, 1);
+                    }
+                    return;
+                }
+
+                // If the action is not null and it is one of the funnels we are looking for, keep it
+                if (actionValue != null && timestampValue != null && isBuffered(funnelAggregate, actionValue)) {
+                    funnelAggregate.actions.add(actionValue);
+                    funnelAggregate.timestamps.add(timestampValue);
+                    counters.increment(FunnelCounter.ROWS_MATCHED, 1);
+                    counters.increment(FunnelCounter.EVENTS_BUFFERED, 1);
+                }
+            }
+        }
+
+        /**
+         * Whether an action should be kept in the aggregate. Only actions in
+         * the funnel steps are needed to compute the funnel.
+         *
+         * @param funnelAggregate
+         * @param action Action value
+         * @return True if the action is kept
+         */
+        protected boolean isBuffered(FunnelAggregateBuffer funnelAggregate, Object action) {
+            return funnelAggregate.isFunnelAction(action);
+        }
+
+        /**
+         * Get the matcher of the funnel steps: compiled patterns, a
+         * fingerprint table for large funnel steps, or null to use the
+         * funnel step sets. Groups sharing the same funnel step sets reuse
+         * the last matcher without looking at their values; other funnel
+         * steps are looked up in MatcherCache, shared with the other
+         * evaluators of the JVM, by their hash.
+         *
+         * @param funnelAggregate Aggregate with the funnel steps set
+         * @return Action matcher, or null
+         */
+        private ActionMatcher matcher(FunnelAggregateBuffer funnelAggregate) throws HiveException {
+            if (funnelAggregate.funnelSteps != matcherSteps) {
+                try {
+                    matcher = MatcherCache.get(funnelAggregate.funnelSteps, patterns, funnelAggregate::stepsHash);
+                } catch (IllegalArgumentException e) {
+                    throw new UDFArgumentException(e.getMessage());
+                }
+                matcherSteps = funnelAggregate.funnelSteps;
+            }
+            return matcher;
+        }
+
+        /**
+         * Append a standard copy of each element of a partial list field to
+         * the target list. The list is read element by element through its
+         * object inspector, so lazy lists are never materialized. The serde
+         * reuses the partial objects between rows, so we can't keep
+         * references to them.
+         *
+         * @param partial Partial struct object
+         * @param field List field to read
+         * @param target List to append to
+         * @return Number of elements appended
+         */
+        private int appendListField(Object partial, StructField field, ArrayList<Object> target) {
+            ListObjectInspector listObjectInspector = (ListObjectInspector) field.getFieldObjectInspector();
+            ObjectInspector elementObjectInspector = listObjectInspector.getListElementObjectInspector();
+            Object list = internalMergeObjectInspector.getStructFieldData(partial, field);
+            int length = listObjectInspector.getListLength(list);
+            target.ensureCapacity(target.size() + length);
+            for (int i = 0; i < length; i++) {
+                target.add(ObjectInspectorUtils.copyToStandardObject(listObjectInspector.getListElement(list, i), elementObjectInspector));
+            }
+            return Math.max(length, 0);
+        }
+
+        /**
+         * Set the funnel steps of a group from its first partial. All the
+         * partials of a query usually carry the same funnel steps, so their
+         * sets are built once and shared read only by the groups whose
+         * partial funnel steps have the same length and hash. The hash is
+         * computed reading the partial in place, distinct funnel steps are
+         * only mixed up if their 64-bit hashes collide.
+         *
+         * @param funnelAggregate Aggregate without funnel steps
+         * @param partialFunnel Serialized funnel steps of the partial
+         */
+        private void mergeFunnelSteps(FunnelAggregateBuffer funnelAggregate, Object partialFunnel) throws HiveException {
+            ListObjectInspector listObjectInspector = (ListObjectInspector) funnelField.getFieldObjectInspector();
+            ObjectInspector elementObjectInspector = listObjectInspector.getListElementObjectInspector();
+            int length = Math.max(listObjectInspector.getListLength(partialFunnel), 0);
+            long hash = 0;
+            long stepHash = 0;
+            int stepSize = 0;
+            for (int i = 0; i < length; i++) {
+                Object element = listObjectInspector.getListElement(partialFunnel, i);
+                if (element == null) {
+                    // Null ends a funnel step
+                    hash = FingerprintTable.addStep(hash, stepHash, stepSize);
+                    stepHash = 0;
+                    stepSize = 0;
+                } else if (elementObjectInspector instanceof PrimitiveObjectInspector) {
+                    stepHash = FingerprintTable.addValue(stepHash, ((PrimitiveObjectInspector) elementObjectInspector).getPrimitiveJavaObject(element));
+                    stepSize++;
+                } else {
+                    stepHash = FingerprintTable.addValue(stepHash, ObjectInspectorUtils.copyToStandardObject(element, elementObjectInspector));
+                    stepSize++;
+                }
+            }
+
+            hash = hash != 0 ? hash : 1;
+
+            if (mergedFunnel == null || mergedFunnel.stepsHash != hash || mergedFunnelLength != length) {
+                FunnelAggregateBuffer funnel = new FunnelAggregateBuffer();
+                funnel.deserializeFunnel((List<Object>) ObjectInspectorUtils.copyToStandardObject(partialFunnel, listObjectInspector));
+                funnel.funnelSteps.forEach(funnel.funnelSet::addAll);
+                funnel.unorderedSteps = funnel.funnelSteps.size();
+                funnel.stepsHash = hash;
+                funnel.matcher = matcher(funnel);
+                mergedFunnel = funnel;
+                mergedFunnelLength = length;
+            }
+            funnelAggregate.shareFunnelSteps(mergedFunnel);
+        }
+
+        @Override
+        public void merge(AggregationBuffer aggregate, Object partial) throws HiveException {
+            FunnelAggregateBuffer funnelAggregate = (FunnelAggregateBuffer) aggregate;
+
+            // Unordered partials are merged with a bitwise or, partials of empty groups have no steps
+            if (unordered) {
+                Object mask = internalMergeObjectInspector.getStructFieldData(partial, unorderedMaskField);
+                Object steps = internalMergeObjectInspector.getStructFieldData(partial, unorderedStepsField);
+                funnelAggregate.unorderedMask |= PrimitiveObjectInspectorUtils.getLong(mask, (PrimitiveObjectInspector) unorderedMaskField.getFieldObjectInspector());
+                funnelAggregate.unorderedSteps = Math.max(funnelAggregate.unorderedSteps, PrimitiveObjectInspectorUtils.getInt(steps, (PrimitiveObjectInspector) unorderedStepsField.getFieldObjectInspector()));
+                counters.increment(FunnelCounter.PARTIALS_MERGED, 1);
+                return;
+            }
+
+            // If we don't have any funnel steps stored, then we should copy the funnel steps from the partial list, or the steps file
+            if (funnelAggregate.funnelSteps.isEmpty()) {
+                if (stepsFileField != null) {
+                    Object name = internalMergeObjectInspector.getStructFieldData(partial, stepsFileField);
+                    stepsFile = PrimitiveObjectInspectorUtils.getString(name, (PrimitiveObjectInspector) stepsFileField.getFieldObjectInspector());
+                    loadStepsFile();
+                    funnelAggregate.shareFunnelSteps(sharedFunnel);
+                } else {
+                    mergeFunnelSteps(funnelAggregate, internalMergeObjectInspector.getStructFieldData(partial, funnelField));
+                }
+            }
+
+            // The session options come with the partial
+            if (sessions) {
+                Object gap = internalMergeObjectInspector.getStructFieldData(partial, sessionGapField);
+                Object sum = internalMergeObjectInspector.getStructFieldData(partial, sessionSumField);
+                funnelAggregate.sessionGap = PrimitiveObjectInspectorUtils.getLong(gap, (PrimitiveObjectInspector) sessionGapField.getFieldObjectInspector());
+                funnelAggregate.sumSessions = PrimitiveObjectInspectorUtils.getBoolean(sum, (PrimitiveObjectInspector) sessionSumField.getFieldObjectInspector());
+            }
+
+            // Add all the partial actions and timestamps to the end of the lists
+            int size = appendListField(partial, actionField, funnelAggregate.actions);
+            appendListField(partial, timestampField, funnelAggregate.timestamps);
+
+            counters.increment(FunnelCounter.PARTIALS_MERGED, 1);
+            counters.increment(FunnelCounter.EVENTS_BUFFERED, size);
+        }
+
+        @Override
+        public void reset(AggregationBuffer aggregate) throws HiveException {
+            FunnelAggregateBuffer funnelAggregate = (FunnelAggregateBuffer) aggregate;
+            funnelAggregate.clear();
+            funnelAggregate.sampled = null;
+        }
+
+
+        @Override
+        public Object terminate(AggregationBuffer aggregate) throws HiveException {
+            FunnelAggregateBuffer funnelAggregate = (FunnelAggregateBuffer) aggregate;
+            if (unordered) {
+                return funnelAggregate.computeUnorderedFunnel();
+            }
+            countGroupSize(funnelAggregate);
+            List<Long> result = funnelAggregate.computeFunnel();
+            counters.increment(FunnelCounter.SORT_TIME_NANOS, funnelAggregate.sortNanos);
+            return result;
+        }
+
+        @Override
+        public Object terminatePartial(AggregationBuffer aggregate) throws HiveException {
+            FunnelAggregateBuffer funnelAggregate = (FunnelAggregateBuffer) aggregate;
+            if (unordered) {
+                // A long and an int
+                counters.increment(FunnelCounter.PARTIAL_BYTES_EMITTED, 12L);
+                return Arrays.asList(funnelAggregate.unorderedMask, funnelAggregate.unorderedSteps);
+            }
+            counters.increment(FunnelCounter.PARTIAL_BYTES_EMITTED, funnelAggregate.estimateSerializedSize());
+            List<Object> partial = funnelAggregate.serializeEvents();
+            if (sessions) {
+                partial.add(funnelAggregate.sessionGap);
+                partial.add(funnelAggregate.sumSessions);
+            }
+            if (patterns) {
+                partial.add(true);
+            }
+            if (stepsFile != null) {
+                // The funnel steps are read from the steps file instead
+                partial.set(2, new ArrayList<>());
+                partial.add(stepsFile);
+            }
+            return partial;
+        }
+
+        /**
+         * Update the group size counters. Only called by terminate, where
+         * the whole group is seen, partials hold a part of the group.
+         *
+         * @param funnelAggregate
+         */
+        private void countGroupSize(FunnelAggregateBuffer funnelAggregate) {
+            int size = funnelAggregate.actions.size();
+            counters.max(FunnelCounter.MAX_EVENTS_PER_GROUP, size);
+            if (size > groupSizeLimit) {
+                counters.increment(FunnelCounter.GROUPS_OVER_SIZE_LIMIT, 1);
+            }
+        }
+
+        /**
+         * Convert object to list of funnels for a funnel step.
+         *
+         * @parameter
+         * @return List of funnels in funnel step
+         */
+        private List<Object> convertFunnelStepObjectToList(Object parameter) {
+            if (parameter instanceof List) {
+                return (List<Object>) funnelObjectInspector.getList(parameter);
+            } else {
+                return Arrays.asList(ObjectInspectorUtils.copyToStandardObject(parameter, funnelObjectInspector.getListElementObjectInspector()));
+            }
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2016 Yahoo Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.hive.udf.funnel;
+
+import java.util.Set;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.AggregationBuffer;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.Text;
+
+/**
+ * Used to build funnel. The funnel engine is in FunnelBuffer, this adds what
+ * Hive needs on top of it.
+ */
+class FunnelAggregateBuffer extends FunnelBuffer implements AggregationBuffer {
+    /**
+     * Whether the group is in the sample, decided on its first row, or null
+     * before. Reset with the group.
+     */
+    Boolean sampled;
+
+    /**
+     * Estimate the serialized size of the partial in bytes. Strings and
+     * binary values count their length, everything else counts 8 bytes.
+     *
+     * @return Estimated size in bytes
+     */
+    public long estimateSerializedSize() {
+        long size = 0;
+        for (Object e : actions) {
+            size += estimateSize(e);
+        }
+        // Timestamps are all of the same type
+        if (!timestamps.isEmpty()) {
+            size += timestamps.size() * estimateSize(timestamps.get(0));
+        }
+        for (Set<Object> e : funnelSteps) {
+            for (Object step : e) {
+                size += estimateSize(step);
+            }
+            // Null separator
+            size += 1;
+        }
+        return size;
+    }
+
+    /**
+     * Estimate the serialized size of a single value.
+     */
+    private static long estimateSize(Object value) {
+        if (value instanceof String) {
+            return ((String) value).length() + 1;
+        } else if (value instanceof Text) {
+            return ((Text) value).getLength() + 1;
+        } else if (value instanceof byte[]) {
+            return ((byte[]) value).length + 1;
+        } else if (value instanceof BytesWritable) {
+            return ((BytesWritable) value).getLength() + 1;
+        }
+        return 8;
+    }
+}
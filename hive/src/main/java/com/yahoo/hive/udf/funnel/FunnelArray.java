@@ -0,0 +1,192 @@
+/*
+ * Copyright 2016 Yahoo Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.hive.udf.funnel;
+
+import java.util.List;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentLengthException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.UDFType;
+import org.apache.hadoop.hive.serde2.objectinspector.ListObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.StructField;
+import org.apache.hadoop.hive.serde2.objectinspector.StructObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfoUtils;
+
+@UDFType(deterministic = true)
+@Description(name = "funnel_array",
+             value = "_FUNC_(events, step_1, step_2, ..., [options]) - Builds the funnel of an array of events, like funnel does for a group.\n" +
+                     "_FUNC_(actions, timestamps, step_1, step_2, ..., [options]) - Same, with parallel arrays of actions and timestamps.",
+             extended = "Events are structs, the first field is the action and the second field is the timestamp.\n" +
+                        "Takes the same funnel steps and options as funnel. Use with merge_funnel.\n" +
+                        "Example: SELECT funnel_merge(funnel_array(events, array('signup_page'), array('confirm_button')))\n" +
+                        "         FROM user_events;")
+public class FunnelArray extends FunnelStepsUDF {
+    static final Log LOG = LogFactory.getLog(FunnelArray.class.getName());
+
+    /** Events list object inspector, or actions list object inspector for parallel arrays. */
+    private ListObjectInspector eventsObjectInspector;
+
+    /** Timestamps list object inspector, or null for an array of events. */
+    private ListObjectInspector timestampsObjectInspector;
+
+    /** Event struct object inspector, or null for parallel arrays. */
+    private StructObjectInspector eventObjectInspector;
+
+    /** For an array of events. */
+    private StructField actionField;
+
+    /** For an array of events. */
+    private StructField timestampField;
+
+    /** Timestamp object inspector. */
+    private PrimitiveObjectInspector timestampObjectInspector;
+
+    /** Standard object inspector of the timestamps in the funnel. */
+    private PrimitiveObjectInspector standardTimestampObjectInspector;
+
+    /** Funnel of the current row, reused. */
+    private final FunnelAggregateBuffer funnel = new FunnelAggregateBuffer();
+
+    @Override
+    public ObjectInspector initialize(ObjectInspector[] arguments) throws UDFArgumentException {
+        if (arguments.length < 2) {
+            throw new UDFArgumentLengthException("Please specify the events, or the actions and the timestamps, and at least one funnel or a steps file.");
+        }
+        if (arguments[0].getCategory() != ObjectInspector.Category.LIST) {
+            throw new UDFArgumentTypeException(0, "Only list type arguments are accepted but " + arguments[0].getTypeName() + " was passed as the first parameter.");
+        }
+        eventsObjectInspector = (ListObjectInspector) arguments[0];
+        ObjectInspector elementObjectInspector = eventsObjectInspector.getListElementObjectInspector();
+
+        ObjectInspector action;
+        ObjectInspector timestamp;
+        int first;
+        if (elementObjectInspector.getCategory() == ObjectInspector.Category.STRUCT) {
+            // An array of events, the action and timestamp are the first two fields
+            eventObjectInspector = (StructObjectInspector) elementObjectInspector;
+            timestampsObjectInspector = null;
+            List<? extends StructField> fields = eventObjectInspector.getAllStructFieldRefs();
+            if (fields.size() < 2) {
+                throw new UDFArgumentTypeException(0, "Events should be structs of an action and a timestamp, but " + arguments[0].getTypeName() + " was passed.");
+            }
+            actionField = fields.get(0);
+            timestampField = fields.get(1);
+            action = actionField.getFieldObjectInspector();
+            timestamp = timestampField.getFieldObjectInspector();
+            first = 1;
+        } else {
+            // Parallel arrays of actions and timestamps
+            if (arguments[1].getCategory() != ObjectInspector.Category.LIST) {
+                throw new UDFArgumentTypeException(1, "An array of timestamps should be passed, but " + arguments[1].getTypeName() + " was passed.");
+            }
+            eventObjectInspector = null;
+            timestampsObjectInspector = (ListObjectInspector) arguments[1];
+            action = elementObjectInspector;
+            timestamp = timestampsObjectInspector.getListElementObjectInspector();
+            first = 2;
+        }
+
+        // Check the timestamp type
+        if (timestamp.getCategory() != ObjectInspector.Category.PRIMITIVE) {
+            throw new UDFArgumentTypeException(first - 1, "Only primitive timestamps are accepted but " + timestamp.getTypeName() + " was passed.");
+        }
+        timestampObjectInspector = (PrimitiveObjectInspector) timestamp;
+        standardTimestampObjectInspector = (PrimitiveObjectInspector) ObjectInspectorUtils.getStandardObjectInspector(timestampObjectInspector);
+
+        setupFunnelSteps(arguments, first, action, 0);
+
+        // Sessions are split on the difference between timestamps
+        if (options.sessionGap > 0) {
+            FunnelTimed.checkTimestampType(TypeInfoUtils.getTypeInfoFromObjectInspector(timestampObjectInspector));
+        }
+        funnel.sessionGap = options.sessionGap;
+        funnel.sumSessions = options.sumSessions;
+        funnel.sessionClock = value -> PrimitiveObjectInspectorUtils.getLong(value, standardTimestampObjectInspector);
+
+        // This UDF will return a list of longs, the same as funnel
+        return ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaLongObjectInspector);
+    }
+
+    @Override
+    public Object evaluate(DeferredObject[] args) throws HiveException {
+        loadFunnelSteps();
+        funnel.clear();
+        funnel.funnelSteps = funnelSteps;
+        funnel.funnelSet = funnelSet;
+        funnel.matcher = matcher;
+        funnel.unorderedSteps = funnelSteps.size();
+
+        Object events = args[0].get();
+        if (events == null) {
+            return null;
+        }
+        int length = eventsObjectInspector.getListLength(events);
+        Object timestamps = null;
+        if (timestampsObjectInspector != null) {
+            // Extra actions or timestamps have nothing to pair with
+            timestamps = args[1].get();
+            length = timestamps == null ? 0 : Math.min(length, timestampsObjectInspector.getListLength(timestamps));
+        }
+
+        for (int i = 0; i < length; i++) {
+            Object action;
+            Object timestamp;
+            if (timestampsObjectInspector != null) {
+                action = eventsObjectInspector.getListElement(events, i);
+                timestamp = timestampsObjectInspector.getListElement(timestamps, i);
+            } else {
+                Object event = eventsObjectInspector.getListElement(events, i);
+                if (event == null) {
+                    continue;
+                }
+                action = eventObjectInspector.getStructFieldData(event, actionField);
+                timestamp = eventObjectInspector.getStructFieldData(event, timestampField);
+            }
+            if (action == null || timestamp == null) {
+                continue;
+            }
+
+            // Only keep the events in the funnel steps
+            Object actionValue = ObjectInspectorUtils.copyToStandardObject(action, actionObjectInspector);
+            if (!isFunnelAction(actionValue)) {
+                continue;
+            }
+            if (options.unordered) {
+                funnel.addUnordered(actionValue);
+            } else {
+                funnel.actions.add(actionValue);
+                funnel.timestamps.add(ObjectInspectorUtils.copyToStandardObject(timestamp, timestampObjectInspector));
+            }
+        }
+        return options.unordered ? funnel.computeUnorderedFunnel() : funnel.computeFunnel();
+    }
+
+    @Override
+    public String getDisplayString(String[] children) {
+        return "funnel_array(" + String.join(", ", children) + ")";
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright 2016 Yahoo Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.hive.udf.funnel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentLengthException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.parse.SemanticException;
+import org.apache.hadoop.hive.ql.udf.UDFType;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFParameterInfo;
+import org.apache.hadoop.hive.serde2.objectinspector.ListObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.objectinspector.StructField;
+import org.apache.hadoop.hive.serde2.objectinspector.StructObjectInspector;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+
+@UDFType(deterministic = true)
+@Description(name = "funnel_attributed",
+             value = "_FUNC_(action_column, timestamp_column, step_1, step_2, ..., attribute_column) - Same as funnel, but also returns the attribute_column of the event that matched the first funnel step. Should be used with funnel_merge UDF.",
+             extended = "Returns struct<funnel, attribute>. The attribute is null if the first funnel step was not matched.\n" +
+                        "Example: SELECT f.attribute AS source, funnel_merge(f.funnel)\n" +
+                        "         FROM (SELECT funnel_attributed(action, timestamp, array('signup_page'),\n" +
+                        "                                                           array('confirm_button'),\n" +
+                        "                                                           traffic_source) AS f\n" +
+                        "               FROM table\n" +
+                        "               GROUP BY user_id) t\n" +
+                        "         GROUP BY f.attribute;")
+public class FunnelAttributed extends Funnel {
+    static final Log LOG = LogFactory.getLog(FunnelAttributed.class.getName());
+
+    @Override
+    public FunnelAttributedEvaluator getEvaluator(GenericUDAFParameterInfo info) throws SemanticException {
+        // Get the parameters
+        TypeInfo [] parameters = info.getParameters();
+
+        // Check number of arguments
+        if (parameters.length < 4) {
+            throw new UDFArgumentLengthException("Please specify the action column, the timestamp column, at least one funnel, and the attribute column.");
+        }
+
+        // Same parameters as funnel, without the attribute column
+        checkParameters(Arrays.copyOf(parameters, parameters.length - 1), false);
+
+        // Check the attribute_column type
+        int last = parameters.length - 1;
+        if (parameters[last].getCategory() != ObjectInspector.Category.PRIMITIVE) {
+            throw new UDFArgumentTypeException(last, "Only primitive type arguments are accepted but " + parameters[last].getTypeName() + " was passed.");
+        }
+        return new FunnelAttributedEvaluator();
+    }
+
+    public static class FunnelAttributedEvaluator extends FunnelEvaluator {
+        /** Attribute key constant. */
+        private static final String ATTRIBUTE = "attribute";
+
+        /** Output field names, order matters. */
+        private static final List<String> OUTPUT_FIELD_NAMES = Arrays.asList("funnel", ATTRIBUTE);
+
+        /** For PARTIAL1 and COMPLETE. */
+        private ObjectInspector attributeObjectInspector;
+
+        /** For PARTIAL2 and FINAL. */
+        private StructObjectInspector partialObjectInspector;
+
+        /** For PARTIAL2 and FINAL. */
+        private StructField attributeField;
+
+        @Override
+        public ObjectInspector init(Mode m, ObjectInspector[] parameters) throws HiveException {
+            ObjectInspector funnelObjectInspector = super.init(m, parameters);
+
+            switch (m) {
+                case PARTIAL1:
+                    // Will output structs
+                    return partialObjectInspector(funnelObjectInspector, ObjectInspectorUtils.getStandardObjectInspector(attributeObjectInspector));
+                case PARTIAL2:
+                    setupPartialObjectInspector(parameters[0]);
+
+                    // Will output structs, with standard attributes
+                    return partialObjectInspector(funnelObjectInspector, bufferedAttributeObjectInspector());
+                case FINAL:
+                    setupPartialObjectInspector(parameters[0]);
+                    return outputObjectInspector(funnelObjectInspector, bufferedAttributeObjectInspector());
+                case COMPLETE:
+                    return outputObjectInspector(funnelObjectInspector, ObjectInspectorUtils.getStandardObjectInspector(attributeObjectInspector));
+                default:
+                    throw new HiveException("Unknown Mode: " + m.toString());
+            }
+        }
+
+        @Override
+        protected void setupParameters(ObjectInspector[] parameters) throws HiveException {
+            // The attribute column follows the funnel steps, there are no options
+            trailingParameters = 1;
+            setupSharedFunnel(parameters);
+            attributeObjectInspector = parameters[parameters.length - 1];
+        }
+
+        /**
+         * Build the partial struct object inspector, the funnel partial
+         * struct with the buffered attributes added.
+         *
+         * @param funnelObjectInspector Funnel partial struct object inspector
+         * @param bufferedAttributeObjectInspector Standard attribute object inspector
+         * @return Partial struct object inspector
+         */
+        private ObjectInspector partialObjectInspector(ObjectInspector funnelObjectInspector, ObjectInspector bufferedAttributeObjectInspector) {
+            List<String> fieldNames = new ArrayList<>();
+            List<ObjectInspector> fieldInspectors = new ArrayList<>();
+            for (StructField field : ((StructObjectInspector) funnelObjectInspector).getAllStructFieldRefs()) {
+                // The attributes are already there in PARTIAL2
+                if (!ATTRIBUTE.equals(field.getFieldName())) {
+                    fieldNames.add(field.getFieldName());
+                    fieldInspectors.add(field.getFieldObjectInspector());
+                }
+            }
+            fieldNames.add(ATTRIBUTE);
+            fieldInspectors.add(ObjectInspectorFactory.getStandardListObjectInspector(bufferedAttributeObjectInspector));
+            return ObjectInspectorFactory.getStandardStructObjectInspector(fieldNames, fieldInspectors);
+        }
+
+        /**
+         * Store the partial struct object inspector and attribute field.
+         *
+         * @param parameter Partial struct object inspector
+         */
+        private void setupPartialObjectInspector(ObjectInspector parameter) {
+            partialObjectInspector = (StructObjectInspector) parameter;
+            attributeField = partialObjectInspector.getStructFieldRef(ATTRIBUTE);
+        }
+
+        /**
+         * Get the standard object inspector of the partial attributes.
+         *
+         * @return Buffered attribute object inspector
+         */
+        private ObjectInspector bufferedAttributeObjectInspector() {
+            ListObjectInspector attributeListObjectInspector = (ListObjectInspector) attributeField.getFieldObjectInspector();
+            return ObjectInspectorUtils.getStandardObjectInspector(attributeListObjectInspector.getListElementObjectInspector());
+        }
+
+        /**
+         * Build the output struct object inspector.
+         *
+         * @param funnelObjectInspector Funnel list object inspector
+         * @param bufferedAttributeObjectInspector Standard attribute object inspector
+         * @return Output struct object inspector
+         */
+        private ObjectInspector outputObjectInspector(ObjectInspector funnelObjectInspector, ObjectInspector bufferedAttributeObjectInspector) {
+            List<ObjectInspector> fieldInspectors = Arrays.asList(funnelObjectInspector, bufferedAttributeObjectInspector);
+            return ObjectInspectorFactory.getStandardStructObjectInspector(OUTPUT_FIELD_NAMES, fieldInspectors);
+        }
+
+        @Override
+        public AggregationBuffer getNewAggregationBuffer() throws HiveException {
+            return new FunnelAttributedAggregateBuffer();
+        }
+
+        @Override
+        public void iterate(AggregationBuffer aggregate, Object[] parameters) throws HiveException {
+            FunnelAttributedAggregateBuffer funnelAggregate = (FunnelAttributedAggregateBuffer) aggregate;
+            int size = funnelAggregate.actions.size();
+            super.iterate(aggregate, parameters);
+
+            // Keep the attribute of each buffered event
+            if (funnelAggregate.actions.size() > size) {
+                Object attribute = parameters[parameters.length - 1];
+                funnelAggregate.attributes.add(ObjectInspectorUtils.copyToStandardObject(attribute, attributeObjectInspector));
+            }
+        }
+
+        @Override
+        public void merge(AggregationBuffer aggregate, Object partial) throws HiveException {
+            super.merge(aggregate, partial);
+            FunnelAttributedAggregateBuffer funnelAggregate = (FunnelAttributedAggregateBuffer) aggregate;
+            ListObjectInspector attributeListObjectInspector = (ListObjectInspector) attributeField.getFieldObjectInspector();
+            ObjectInspector elementObjectInspector = attributeListObjectInspector.getListElementObjectInspector();
+            Object attributes = partialObjectInspector.getStructFieldData(partial, attributeField);
+            int length = attributeListObjectInspector.getListLength(attributes);
+            for (int i = 0; i < length; i++) {
+                funnelAggregate.attributes.add(ObjectInspectorUtils.copyToStandardObject(attributeListObjectInspector.getListElement(attributes, i), elementObjectInspector));
+            }
+        }
+
+        @Override
+        public Object terminate(AggregationBuffer aggregate) throws HiveException {
+            FunnelAttributedAggregateBuffer funnelAggregate = (FunnelAttributedAggregateBuffer) aggregate;
+            Object funnel = super.terminate(aggregate);
+            Object attribute = funnelAggregate.firstStepEvent >= 0 ? funnelAggregate.attributes.get(funnelAggregate.firstStepEvent) : null;
+            return Arrays.asList(funnel, attribute);
+        }
+
+        @Override
+        public Object terminatePartial(AggregationBuffer aggregate) throws HiveException {
+            FunnelAttributedAggregateBuffer funnelAggregate = (FunnelAttributedAggregateBuffer) aggregate;
+            List<Object> partial = (List<Object>) super.terminatePartial(aggregate);
+            partial.add(funnelAggregate.attributes);
+            return partial;
+        }
+    }
+
+    /**
+     * Funnel aggregate that also buffers an attribute for each event.
+     */
+    static class FunnelAttributedAggregateBuffer extends FunnelAggregateBuffer {
+        /** List of attributes associated with actions. */
+        ArrayList<Object> attributes = new ArrayList<>();
+
+        @Override
+        public void clear() {
+            super.clear();
+            attributes.clear();
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2016 Yahoo Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.hive.udf.funnel;
+
+import java.util.HashSet;
+import java.util.List;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentLengthException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.parse.SemanticException;
+import org.apache.hadoop.hive.ql.udf.UDFType;
+import org.apache.hadoop.hive.ql.udf.generic.AbstractGenericUDAFResolver;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFParameterInfo;
+import org.apache.hadoop.hive.serde2.objectinspector.ListObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector.PrimitiveCategory;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.typeinfo.ListTypeInfo;
+import org.apache.hadoop.hive.serde2.typeinfo.PrimitiveTypeInfo;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+
+@UDFType(deterministic = true)
+@Description(name = "funnel_bitmap",
+             value = "_FUNC_(action_column, user_id_column, step_1, step_2, ...) - Builds one bitmap of user ids per funnel step, without grouping by user. Use with funnel_bitmap_merge and funnel_intersect UDFs.",
+             extended = "User ids are signed 32 bit integers. Bitmaps are binary and can be stored and merged later.\n" +
+                        "Example: SELECT funnel_intersect(funnel_bitmap(action, user_id, array('signup_page', 'email_signup'), \n" +
+                        "                                                                array('confirm_button'),\n" +
+                        "                                                                array('submit_button')))\n" +
+                        "         FROM table;")
+public class FunnelBitmap extends AbstractGenericUDAFResolver {
+    static final Log LOG = LogFactory.getLog(FunnelBitmap.class.getName());
+
+    @Override
+    public FunnelBitmapEvaluator getEvaluator(GenericUDAFParameterInfo info) throws SemanticException {
+        // Get the parameters
+        TypeInfo [] parameters = info.getParameters();
+
+        // Check number of arguments
+        if (parameters.length < 3) {
+            throw new UDFArgumentLengthException("Please specify the action column, the user id column, and at least one funnel.");
+        }
+
+        // Check the action_column type
+        if (parameters[0].getCategory() != ObjectInspector.Category.PRIMITIVE) {
+            throw new UDFArgumentTypeException(0, "Only primitive type arguments are accepted but " + parameters[0].getTypeName() + " was passed.");
+        }
+        PrimitiveCategory actionColumnCategory = ((PrimitiveTypeInfo) parameters[0]).getPrimitiveCategory();
+
+        // Check the user_id_column type
+        if (parameters[1].getCategory() != ObjectInspector.Category.PRIMITIVE) {
+            throw new UDFArgumentTypeException(1, "An integer argument should be passed, but " + parameters[1].getTypeName() + " was passed instead.");
+        }
+        switch (((PrimitiveTypeInfo) parameters[1]).getPrimitiveCategory()) {
+            case BYTE:
+            case SHORT:
+            case INT:
+            case LONG:
+                break;
+            default:
+                throw new UDFArgumentTypeException(1, "An integer argument should be passed, but " + parameters[1].getTypeName() + " was passed instead.");
+        }
+
+        // Check that all funnel steps are lists of the same type as the action_column
+        for (int i = 2; i < parameters.length; i++) {
+            if (parameters[i].getCategory() != ObjectInspector.Category.LIST) {
+                throw new UDFArgumentTypeException(i, "Funnel list parameter " + Integer.toString(i) + " of type " + parameters[i].getTypeName() + " should be a list.");
+            }
+            TypeInfo typeInfo = ((ListTypeInfo) parameters[i]).getListElementTypeInfo();
+            if (typeInfo.getCategory() != ObjectInspector.Category.PRIMITIVE || ((PrimitiveTypeInfo) typeInfo).getPrimitiveCategory() != actionColumnCategory) {
+                throw new UDFArgumentTypeException(i, "Funnel list parameter " + Integer.toString(i) + " of type " + parameters[i].getTypeName() + " does not match expected type " + parameters[0].getTypeName() + ".");
+            }
+        }
+
+        return new FunnelBitmapEvaluator();
+    }
+
+    public static class FunnelBitmapEvaluator extends FunnelBitmapMerge.FunnelBitmapMergeEvaluator {
+        /** For PARTIAL1 and COMPLETE. */
+        private ObjectInspector actionObjectInspector;
+
+        /** For PARTIAL1 and COMPLETE. */
+        private PrimitiveObjectInspector userIdObjectInspector;
+
+        /** For PARTIAL1 and COMPLETE. */
+        private ListObjectInspector[] funnelObjectInspectors;
+
+        @Override
+        public ObjectInspector init(Mode m, ObjectInspector[] parameters) throws HiveException {
+            switch (m) {
+                case PARTIAL1:
+                case COMPLETE:
+                    // Get the object inspectors
+                    actionObjectInspector = parameters[0];
+                    userIdObjectInspector = (PrimitiveObjectInspector) parameters[1];
+                    funnelObjectInspectors = new ListObjectInspector[parameters.length - 2];
+                    for (int i = 2; i < parameters.length; i++) {
+                        funnelObjectInspectors[i - 2] = (ListObjectInspector) parameters[i];
+                    }
+
+                    // Bitmaps are only read from partials, same output as the merge
+                    return super.init(m, new ObjectInspector[]{FunnelBitmapMerge.bitmapsObjectInspector()});
+                default:
+                    return super.init(m, parameters);
+            }
+        }
+
+        @Override
+        public void iterate(AggregationBuffer aggregate, Object[] parameters) throws HiveException {
+            FunnelBitmapAggregateBuffer bitmapAggregate = (FunnelBitmapAggregateBuffer) aggregate;
+
+            // Add the funnel steps if not already stored, funnel steps start at index 2
+            if (bitmapAggregate.funnelSteps.isEmpty()) {
+                for (int i = 2; i < parameters.length; i++) {
+                    addFunnelStep(bitmapAggregate, funnelObjectInspectors[i - 2], parameters[i]);
+                }
+            }
+
+            Object action = parameters[0];
+            Object userId = parameters[1];
+            if (action != null && userId != null) {
+                Object actionValue = ObjectInspectorUtils.copyToStandardObject(action, actionObjectInspector);
+                long userIdValue = PrimitiveObjectInspectorUtils.getLong(userId, userIdObjectInspector);
+                // Signed only, unsigned values above Integer.MAX_VALUE would alias negative ids
+                if (userIdValue != (int) userIdValue) {
+                    throw new HiveException("User id " + userIdValue + " does not fit in a 32 bit integer.");
+                }
+                bitmapAggregate.addEvent(actionValue, (int) userIdValue);
+            }
+        }
+
+        /**
+         * Add a funnel step to the aggregate, without the nulls. Empty steps
+         * are kept, so bitmaps always line up with the step parameters.
+         *
+         * @param bitmapAggregate
+         * @param funnelObjectInspector Funnel step list object inspector
+         * @param funnelStep Funnel step list object
+         */
+        private void addFunnelStep(FunnelBitmapAggregateBuffer bitmapAggregate, ListObjectInspector funnelObjectInspector, Object funnelStep) {
+            HashSet<Object> step = new HashSet<>();
+            List<?> list = funnelStep == null ? null : funnelObjectInspector.getList(funnelStep);
+            if (list != null) {
+                for (Object element : list) {
+                    if (element != null) {
+                        step.add(ObjectInspectorUtils.copyToStandardObject(element, funnelObjectInspector.getListElementObjectInspector()));
+                    }
+                }
+            }
+            bitmapAggregate.funnelSteps.add(step);
+        }
+    }
+}
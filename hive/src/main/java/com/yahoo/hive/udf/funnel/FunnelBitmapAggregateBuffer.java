@@ -0,0 +1,108 @@
+/*
+ * Copyright 2016 Yahoo Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.hive.udf.funnel;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.AggregationBuffer;
+import org.apache.hadoop.hive.serde2.objectinspector.ListObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.BinaryObjectInspector;
+
+/**
+ * Builds and merges one user id bitmap per funnel step.
+ */
+class FunnelBitmapAggregateBuffer implements AggregationBuffer {
+    /** Funnel steps, only set when building bitmaps from events. */
+    List<Set<Object>> funnelSteps = new ArrayList<>();
+
+    /** User id bitmap of each funnel step. */
+    List<IntBitmap> bitmaps = new ArrayList<>();
+
+    /**
+     * Make sure there is a bitmap for each step.
+     *
+     * @param length Number of funnel steps
+     */
+    private void checkSize(int length) throws HiveException {
+        // If empty, use the number of steps of these bitmaps
+        if (bitmaps.isEmpty()) {
+            for (int i = 0; i < length; i++) {
+                bitmaps.add(new IntBitmap());
+            }
+        } else if (bitmaps.size() != length) {
+            // If the sizes don't match, throw an exception
+            throw new UDFArgumentTypeException(0, "Funnel bitmaps must have the same number of steps to merge!");
+        }
+    }
+
+    /**
+     * Add a user to the bitmaps of the funnel steps matching an action.
+     *
+     * @param action Action value
+     * @param userId User id
+     */
+    public void addEvent(Object action, int userId) throws HiveException {
+        checkSize(funnelSteps.size());
+        for (int i = 0; i < funnelSteps.size(); i++) {
+            if (funnelSteps.get(i).contains(action)) {
+                bitmaps.get(i).add(userId);
+            }
+        }
+    }
+
+    /**
+     * Merge serialized bitmaps, one per funnel step.
+     *
+     * @param bitmapsObjectInspector Bitmaps list object inspector
+     * @param serializedBitmaps Bitmaps list object
+     */
+    public void addBitmaps(ListObjectInspector bitmapsObjectInspector, Object serializedBitmaps) throws HiveException {
+        BinaryObjectInspector bitmapObjectInspector = (BinaryObjectInspector) bitmapsObjectInspector.getListElementObjectInspector();
+        int length = bitmapsObjectInspector.getListLength(serializedBitmaps);
+        checkSize(length);
+        for (int i = 0; i < length; i++) {
+            Object bitmap = bitmapsObjectInspector.getListElement(serializedBitmaps, i);
+            if (bitmap != null) {
+                bitmaps.get(i).or(IntBitmap.deserialize(bitmapObjectInspector.getPrimitiveJavaObject(bitmap)));
+            }
+        }
+    }
+
+    /**
+     * Clear the aggregate.
+     */
+    public void clear() {
+        funnelSteps.clear();
+        bitmaps.clear();
+    }
+
+    /**
+     * Output aggregate, the serialized bitmap of each funnel step.
+     *
+     * @return List of serialized bitmaps
+     */
+    public List<Object> output() {
+        List<Object> output = new ArrayList<>(bitmaps.size());
+        for (IntBitmap bitmap : bitmaps) {
+            output.add(bitmap.serialize());
+        }
+        return output;
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2016 Yahoo Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.hive.udf.funnel;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentLengthException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.parse.SemanticException;
+import org.apache.hadoop.hive.ql.udf.UDFType;
+import org.apache.hadoop.hive.ql.udf.generic.AbstractGenericUDAFResolver;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFParameterInfo;
+import org.apache.hadoop.hive.serde2.objectinspector.ListObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector.PrimitiveCategory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.typeinfo.ListTypeInfo;
+import org.apache.hadoop.hive.serde2.typeinfo.PrimitiveTypeInfo;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+
+@UDFType(deterministic = true)
+@Description(name = "funnel_bitmap_merge",
+             value = "_FUNC_(bitmaps_column) - Merges funnel bitmaps, the union of the users of each funnel step. Use with funnel_bitmap and funnel_intersect UDFs.",
+             extended = "Example: SELECT funnel_intersect(funnel_bitmap_merge(bitmaps))\n" +
+                        "         FROM daily_bitmaps\n" +
+                        "         WHERE day BETWEEN '2016-01-01' AND '2016-01-07';")
+public class FunnelBitmapMerge extends AbstractGenericUDAFResolver {
+    static final Log LOG = LogFactory.getLog(FunnelBitmapMerge.class.getName());
+
+    @Override
+    public FunnelBitmapMergeEvaluator getEvaluator(GenericUDAFParameterInfo info) throws SemanticException {
+        // Get the parameters
+        TypeInfo [] parameters = info.getParameters();
+
+        // Check number of arguments
+        if (parameters.length != 1) {
+            throw new UDFArgumentLengthException("Please specify the funnel bitmaps column.");
+        }
+
+        // Check that the parameter is a list of binaries
+        if (!isBitmapsType(parameters[0])) {
+            throw new UDFArgumentTypeException(0, "A binary array argument should be passed, but " + parameters[0].getTypeName() + " was passed instead.");
+        }
+
+        return new FunnelBitmapMergeEvaluator();
+    }
+
+    /**
+     * Check that a type is funnel bitmaps, array<binary>.
+     */
+    static boolean isBitmapsType(TypeInfo typeInfo) {
+        if (typeInfo.getCategory() != ObjectInspector.Category.LIST) {
+            return false;
+        }
+        TypeInfo bitmapTypeInfo = ((ListTypeInfo) typeInfo).getListElementTypeInfo();
+        return bitmapTypeInfo.getCategory() == ObjectInspector.Category.PRIMITIVE
+            && ((PrimitiveTypeInfo) bitmapTypeInfo).getPrimitiveCategory() == PrimitiveCategory.BINARY;
+    }
+
+    /**
+     * Build the funnel bitmaps object inspector, array<binary>.
+     *
+     * @return Funnel bitmaps object inspector
+     */
+    static ListObjectInspector bitmapsObjectInspector() {
+        return ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaByteArrayObjectInspector);
+    }
+
+    public static class FunnelBitmapMergeEvaluator extends GenericUDAFEvaluator {
+        /** Bitmaps list object inspector. */
+        private ListObjectInspector bitmapsObjectInspector;
+
+        @Override
+        public ObjectInspector init(Mode m, ObjectInspector[] parameters) throws HiveException {
+            super.init(m, parameters);
+
+            // Input and partials are bitmaps
+            bitmapsObjectInspector = (ListObjectInspector) parameters[0];
+
+            // Will output bitmaps
+            return bitmapsObjectInspector();
+        }
+
+        @Override
+        public AggregationBuffer getNewAggregationBuffer() throws HiveException {
+            return new FunnelBitmapAggregateBuffer();
+        }
+
+        @Override
+        public void iterate(AggregationBuffer aggregate, Object[] parameters) throws HiveException {
+            merge(aggregate, parameters[0]);
+        }
+
+        @Override
+        public void merge(AggregationBuffer aggregate, Object partial) throws HiveException {
+            if (partial != null) {
+                FunnelBitmapAggregateBuffer bitmapAggregate = (FunnelBitmapAggregateBuffer) aggregate;
+                bitmapAggregate.addBitmaps(bitmapsObjectInspector, partial);
+            }
+        }
+
+        @Override
+        public void reset(AggregationBuffer aggregate) throws HiveException {
+            FunnelBitmapAggregateBuffer bitmapAggregate = (FunnelBitmapAggregateBuffer) aggregate;
+            bitmapAggregate.clear();
+        }
+
+        @Override
+        public Object terminate(AggregationBuffer aggregate) throws HiveException {
+            FunnelBitmapAggregateBuffer bitmapAggregate = (FunnelBitmapAggregateBuffer) aggregate;
+            return bitmapAggregate.output();
+        }
+
+        @Override
+        public Object terminatePartial(AggregationBuffer aggregate) throws HiveException {
+            return terminate(aggregate);
+        }
+    }
+}
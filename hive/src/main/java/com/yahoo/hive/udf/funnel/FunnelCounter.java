@@ -0,0 +1,50 @@
+/*
+ * Copyright 2016 Yahoo Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.hive.udf.funnel;
+
+/**
+ * Task counters published by the funnel evaluators. Each evaluator publishes
+ * under its own counter group, not every evaluator uses every counter.
+ */
+public enum FunnelCounter {
+    /** Rows passed to iterate. */
+    ROWS_SEEN,
+
+    /** Rows of groups out of the sample, dropped before iterate buffers them. */
+    ROWS_SAMPLED_OUT,
+
+    /** Rows with an action matching one of the funnel steps. */
+    ROWS_MATCHED,
+
+    /** Partials passed to merge. */
+    PARTIALS_MERGED,
+
+    /** Events added to aggregate buffers, from iterate and merge. */
+    EVENTS_BUFFERED,
+
+    /** Largest number of events in a single group, per task. Written to the task log, not published. */
+    MAX_EVENTS_PER_GROUP,
+
+    /** Time spent sorting events, in nanoseconds. */
+    SORT_TIME_NANOS,
+
+    /** Estimated serialized size of the partials emitted. */
+    PARTIAL_BYTES_EMITTED,
+
+    /** Groups with more events than the configured group size limit. */
+    GROUPS_OVER_SIZE_LIMIT
+}
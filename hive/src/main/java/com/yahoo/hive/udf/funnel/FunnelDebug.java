@@ -0,0 +1,187 @@
+/*
+ * Copyright 2016 Yahoo Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.hive.udf.funnel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.parse.SemanticException;
+import org.apache.hadoop.hive.ql.udf.UDFType;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFParameterInfo;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.StructField;
+import org.apache.hadoop.hive.serde2.objectinspector.StructObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.LongObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+
+@UDFType(deterministic = true)
+@Description(name = "funnel_debug",
+             value = "_FUNC_(action_column, timestamp_column, step_1, step_2, ...) - Same as funnel, but returns a struct with the funnel and the cost of computing it.",
+             extended = "Returns struct<funnel, events, distinct_actions, sort_nanos, compute_nanos, partials>.\n" +
+                        "Example: SELECT user_id, f.events, f.sort_nanos\n" +
+                        "         FROM (SELECT user_id, funnel_debug(action, timestamp, array('signup_page'),\n" +
+                        "                                                                array('confirm_button')) AS f\n" +
+                        "               FROM table\n" +
+                        "               GROUP BY user_id) t\n" +
+                        "         ORDER BY f.sort_nanos DESC\n" +
+                        "         LIMIT 10;")
+public class FunnelDebug extends Funnel {
+    static final Log LOG = LogFactory.getLog(FunnelDebug.class.getName());
+
+    @Override
+    public FunnelDebugEvaluator getEvaluator(GenericUDAFParameterInfo info) throws SemanticException {
+        // Same parameters as funnel
+        checkParameters(info.getParameters(), false);
+        return new FunnelDebugEvaluator();
+    }
+
+    public static class FunnelDebugEvaluator extends FunnelEvaluator {
+        /** Partial count key constant. */
+        private static final String PARTIALS = "partials";
+
+        /** Output field names, order matters. */
+        private static final List<String> OUTPUT_FIELD_NAMES = Arrays.asList("funnel", "events", "distinct_actions", "sort_nanos", "compute_nanos", PARTIALS);
+
+        /** For PARTIAL2 and FINAL. */
+        private StructObjectInspector partialObjectInspector;
+
+        /** For PARTIAL2 and FINAL. */
+        private StructField partialsField;
+
+        @Override
+        public ObjectInspector init(Mode m, ObjectInspector[] parameters) throws HiveException {
+            ObjectInspector funnelObjectInspector = super.init(m, parameters);
+
+            switch (m) {
+                case PARTIAL1:
+                    // Will output structs
+                    return partialObjectInspector(funnelObjectInspector);
+                case PARTIAL2:
+                    // Get the partial count field
+                    setupPartialObjectInspector(parameters[0]);
+
+                    // Will output structs
+                    return partialObjectInspector(funnelObjectInspector);
+                case FINAL:
+                    // Get the partial count field
+                    setupPartialObjectInspector(parameters[0]);
+                    return outputObjectInspector(funnelObjectInspector);
+                case COMPLETE:
+                    return outputObjectInspector(funnelObjectInspector);
+                default:
+                    throw new HiveException("Unknown Mode: " + m.toString());
+            }
+        }
+
+        /**
+         * Build the partial struct object inspector, the funnel partial
+         * struct with the partial count added.
+         *
+         * @param funnelObjectInspector Funnel partial struct object inspector
+         * @return Partial struct object inspector
+         */
+        private ObjectInspector partialObjectInspector(ObjectInspector funnelObjectInspector) {
+            List<String> fieldNames = new ArrayList<>();
+            List<ObjectInspector> fieldInspectors = new ArrayList<>();
+            for (StructField field : ((StructObjectInspector) funnelObjectInspector).getAllStructFieldRefs()) {
+                // The partial count is already there in PARTIAL2
+                if (!PARTIALS.equals(field.getFieldName())) {
+                    fieldNames.add(field.getFieldName());
+                    fieldInspectors.add(field.getFieldObjectInspector());
+                }
+            }
+            fieldNames.add(PARTIALS);
+            fieldInspectors.add(PrimitiveObjectInspectorFactory.javaLongObjectInspector);
+            return ObjectInspectorFactory.getStandardStructObjectInspector(fieldNames, fieldInspectors);
+        }
+
+        /**
+         * Store the partial struct object inspector and partial count field.
+         *
+         * @param parameter Partial struct object inspector
+         */
+        private void setupPartialObjectInspector(ObjectInspector parameter) {
+            partialObjectInspector = (StructObjectInspector) parameter;
+            partialsField = partialObjectInspector.getStructFieldRef(PARTIALS);
+        }
+
+        /**
+         * Build the output struct object inspector.
+         *
+         * @param funnelObjectInspector Funnel list object inspector
+         * @return Output struct object inspector
+         */
+        private ObjectInspector outputObjectInspector(ObjectInspector funnelObjectInspector) {
+            List<ObjectInspector> fieldInspectors = new ArrayList<>();
+            fieldInspectors.add(funnelObjectInspector);
+            for (int i = 1; i < OUTPUT_FIELD_NAMES.size(); i++) {
+                fieldInspectors.add(PrimitiveObjectInspectorFactory.javaLongObjectInspector);
+            }
+            return ObjectInspectorFactory.getStandardStructObjectInspector(OUTPUT_FIELD_NAMES, fieldInspectors);
+        }
+
+        @Override
+        public AggregationBuffer getNewAggregationBuffer() throws HiveException {
+            return new FunnelDebugAggregateBuffer();
+        }
+
+        @Override
+        public void merge(AggregationBuffer aggregate, Object partial) throws HiveException {
+            super.merge(aggregate, partial);
+            Object partials = partialObjectInspector.getStructFieldData(partial, partialsField);
+            ((FunnelDebugAggregateBuffer) aggregate).partials += ((LongObjectInspector) partialsField.getFieldObjectInspector()).get(partials);
+        }
+
+        @Override
+        public void reset(AggregationBuffer aggregate) throws HiveException {
+            super.reset(aggregate);
+            ((FunnelDebugAggregateBuffer) aggregate).partials = 0;
+        }
+
+        @Override
+        public Object terminate(AggregationBuffer aggregate) throws HiveException {
+            FunnelDebugAggregateBuffer funnelAggregate = (FunnelDebugAggregateBuffer) aggregate;
+            long events = funnelAggregate.actions.size();
+            long distinctActions = new HashSet<>(funnelAggregate.actions).size();
+            Object funnel = super.terminate(aggregate);
+            return Arrays.asList(funnel, events, distinctActions, funnelAggregate.sortNanos, funnelAggregate.computeNanos, funnelAggregate.partials);
+        }
+
+        @Override
+        public Object terminatePartial(AggregationBuffer aggregate) throws HiveException {
+            FunnelDebugAggregateBuffer funnelAggregate = (FunnelDebugAggregateBuffer) aggregate;
+            List<Object> partial = (List<Object>) super.terminatePartial(aggregate);
+            // A partial built by iterate counts as one
+            partial.add(Math.max(1L, funnelAggregate.partials));
+            return partial;
+        }
+    }
+
+    /**
+     * Funnel aggregate that also counts the partials merged into it.
+     */
+    static class FunnelDebugAggregateBuffer extends FunnelAggregateBuffer {
+        /** Number of partials merged. */
+        long partials;
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2016 Yahoo Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.hive.udf.funnel;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.AggregationBuffer;
+import org.apache.hadoop.hive.serde2.objectinspector.ListObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
+
+/**
+ * Merges funnel step durations into an aggregate, one histogram per funnel
+ * step.
+ */
+class FunnelDurationsAggregateBuffer implements AggregationBuffer {
+    /** Duration histogram of each funnel step. */
+    List<LogHistogram> steps = new ArrayList<>();
+
+    /**
+     * Make sure there is a histogram for each step.
+     *
+     * @param length Number of funnel steps
+     */
+    private void checkSize(int length) throws HiveException {
+        // If empty, use the number of steps of these durations
+        if (steps.isEmpty()) {
+            for (int i = 0; i < length; i++) {
+                steps.add(new LogHistogram());
+            }
+        } else if (steps.size() != length) {
+            // If the sizes don't match, throw an exception
+            throw new UDFArgumentTypeException(0, "Funnel durations must have the same number of steps to merge!");
+        }
+    }
+
+    /**
+     * Add the durations of a user, skipping the nulls.
+     *
+     * @param durationsObjectInspector Durations list object inspector
+     * @param durations Durations list object
+     */
+    public void addDurations(ListObjectInspector durationsObjectInspector, Object durations) throws HiveException {
+        PrimitiveObjectInspector durationObjectInspector = (PrimitiveObjectInspector) durationsObjectInspector.getListElementObjectInspector();
+        int length = durationsObjectInspector.getListLength(durations);
+        checkSize(length);
+        for (int i = 0; i < length; i++) {
+            Object duration = durationsObjectInspector.getListElement(durations, i);
+            if (duration != null) {
+                steps.get(i).add(PrimitiveObjectInspectorUtils.getLong(duration, durationObjectInspector), 1L);
+            }
+        }
+    }
+
+    /**
+     * Merge duration histograms.
+     *
+     * @param histogramsObjectInspector Histograms list object inspector
+     * @param histograms Histograms list object
+     */
+    public void addHistograms(ListObjectInspector histogramsObjectInspector, Object histograms) throws HiveException {
+        ListObjectInspector histogramObjectInspector = (ListObjectInspector) histogramsObjectInspector.getListElementObjectInspector();
+        int length = histogramsObjectInspector.getListLength(histograms);
+        checkSize(length);
+        for (int i = 0; i < length; i++) {
+            Object histogram = histogramsObjectInspector.getListElement(histograms, i);
+            if (histogram != null) {
+                steps.get(i).merge(histogramObjectInspector, histogram);
+            }
+        }
+    }
+
+    /**
+     * Clear the aggregate.
+     */
+    public void clear() {
+        steps.clear();
+    }
+
+    /**
+     * Output aggregate, the histogram of each funnel step.
+     *
+     * @return List of histograms
+     */
+    public List<Object> output() {
+        List<Object> output = new ArrayList<>(steps.size());
+        for (LogHistogram step : steps) {
+            output.add(step.serialize());
+        }
+        return output;
+    }
+}
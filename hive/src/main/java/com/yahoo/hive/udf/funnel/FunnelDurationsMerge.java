@@ -0,0 +1,159 @@
+/*
+ * Copyright 2016 Yahoo Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.hive.udf.funnel;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentLengthException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.parse.SemanticException;
+import org.apache.hadoop.hive.ql.udf.UDFType;
+import org.apache.hadoop.hive.ql.udf.generic.AbstractGenericUDAFResolver;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFParameterInfo;
+import org.apache.hadoop.hive.serde2.objectinspector.ListObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.typeinfo.ListTypeInfo;
+import org.apache.hadoop.hive.serde2.typeinfo.PrimitiveTypeInfo;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+
+@UDFType(deterministic = true)
+@Description(name = "funnel_durations_merge",
+             value = "_FUNC_(durations_column) - Merges funnel step durations into one histogram per funnel step. Use with funnel_timed and funnel_quantiles UDFs.",
+             extended = "Accepts the durations of funnel_timed, or histograms from another funnel_durations_merge.\n" +
+                        "Histogram buckets grow by 10%, so quantiles are within 5% of the true durations.\n" +
+                        "Example: SELECT funnel_quantiles(funnel_durations_merge(f.durations), array(0.5, 0.9))\n" +
+                        "         FROM (SELECT funnel_timed(action, timestamp, array('signup_page', 'email_signup'), \n" +
+                        "                                                      array('confirm_button'),\n" +
+                        "                                                      array('submit_button')) AS f\n" +
+                        "               FROM table\n" +
+                        "               GROUP BY user_id) t;")
+public class FunnelDurationsMerge extends AbstractGenericUDAFResolver {
+    static final Log LOG = LogFactory.getLog(FunnelDurationsMerge.class.getName());
+
+    @Override
+    public FunnelDurationsMergeEvaluator getEvaluator(GenericUDAFParameterInfo info) throws SemanticException {
+        // Get the parameters
+        TypeInfo [] parameters = info.getParameters();
+
+        // Check number of arguments
+        if (parameters.length != 1) {
+            throw new UDFArgumentLengthException("Please specify the funnel durations column.");
+        }
+
+        // Check that the parameter is a list of integers, or a list of lists of integers
+        if (parameters[0].getCategory() != ObjectInspector.Category.LIST) {
+            throw new UDFArgumentTypeException(0, "Only list type arguments are accepted, but " + parameters[0].getTypeName() + " was passed.");
+        }
+        TypeInfo elementTypeInfo = ((ListTypeInfo) parameters[0]).getListElementTypeInfo();
+        if (elementTypeInfo.getCategory() == ObjectInspector.Category.LIST) {
+            elementTypeInfo = ((ListTypeInfo) elementTypeInfo).getListElementTypeInfo();
+        }
+        if (!isIntegerType(elementTypeInfo)) {
+            throw new UDFArgumentTypeException(0, "A funnel durations argument should be passed, but " + parameters[0].getTypeName() + " was passed instead.");
+        }
+
+        return new FunnelDurationsMergeEvaluator();
+    }
+
+    /**
+     * Check that a type is an integer type.
+     */
+    private static boolean isIntegerType(TypeInfo typeInfo) {
+        if (typeInfo.getCategory() != ObjectInspector.Category.PRIMITIVE) {
+            return false;
+        }
+        switch (((PrimitiveTypeInfo) typeInfo).getPrimitiveCategory()) {
+            case BYTE:
+            case SHORT:
+            case INT:
+            case LONG:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    public static class FunnelDurationsMergeEvaluator extends GenericUDAFEvaluator {
+        /** Input list object inspector. */
+        private ListObjectInspector inputObjectInspector;
+
+        /** Whether the input is histograms rather than durations. */
+        private boolean histogramInput;
+
+        @Override
+        public ObjectInspector init(Mode m, ObjectInspector[] parameters) throws HiveException {
+            super.init(m, parameters);
+
+            // Input is durations or histograms, partials are always histograms
+            inputObjectInspector = (ListObjectInspector) parameters[0];
+            histogramInput = inputObjectInspector.getListElementObjectInspector().getCategory() == ObjectInspector.Category.LIST;
+
+            // Will output list of histograms
+            return ObjectInspectorFactory.getStandardListObjectInspector(
+                ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaLongObjectInspector));
+        }
+
+        @Override
+        public AggregationBuffer getNewAggregationBuffer() throws HiveException {
+            return new FunnelDurationsAggregateBuffer();
+        }
+
+        @Override
+        public void iterate(AggregationBuffer aggregate, Object[] parameters) throws HiveException {
+            FunnelDurationsAggregateBuffer durationsAggregate = (FunnelDurationsAggregateBuffer) aggregate;
+            Object parameter = parameters[0];
+            // If not null
+            if (parameter != null) {
+                if (histogramInput) {
+                    durationsAggregate.addHistograms(inputObjectInspector, parameter);
+                } else {
+                    durationsAggregate.addDurations(inputObjectInspector, parameter);
+                }
+            }
+        }
+
+        @Override
+        public void merge(AggregationBuffer aggregate, Object partial) throws HiveException {
+            if (partial != null) {
+                FunnelDurationsAggregateBuffer durationsAggregate = (FunnelDurationsAggregateBuffer) aggregate;
+                durationsAggregate.addHistograms(inputObjectInspector, partial);
+            }
+        }
+
+        @Override
+        public void reset(AggregationBuffer aggregate) throws HiveException {
+            FunnelDurationsAggregateBuffer durationsAggregate = (FunnelDurationsAggregateBuffer) aggregate;
+            durationsAggregate.clear();
+        }
+
+        @Override
+        public Object terminate(AggregationBuffer aggregate) throws HiveException {
+            FunnelDurationsAggregateBuffer durationsAggregate = (FunnelDurationsAggregateBuffer) aggregate;
+            return durationsAggregate.output();
+        }
+
+        @Override
+        public Object terminatePartial(AggregationBuffer aggregate) throws HiveException {
+            return terminate(aggregate);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2016 Yahoo Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.hive.udf.funnel;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentLengthException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.UDFType;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+
+@UDFType(deterministic = true)
+@Description(name = "funnel_filter",
+             value = "_FUNC_(action_column, step_1, step_2, ..., [options]) - Returns true if the action is in one of the funnel steps.",
+             extended = "Takes the same funnel steps and options as funnel. Use it in the WHERE clause to drop the\n" +
+                        "events that cannot match a funnel step before they are shuffled.\n" +
+                        "Example: SELECT funnel(action, timestamp, array('signup_page'), array('confirm_button'))\n" +
+                        "         FROM table\n" +
+                        "         WHERE funnel_filter(action, array('signup_page'), array('confirm_button'))\n" +
+                        "         GROUP BY user_id;")
+public class FunnelFilter extends FunnelStepsUDF {
+    static final Log LOG = LogFactory.getLog(FunnelFilter.class.getName());
+
+    @Override
+    public ObjectInspector initialize(ObjectInspector[] arguments) throws UDFArgumentException {
+        if (arguments.length < 2) {
+            throw new UDFArgumentLengthException("Please specify the action column, and at least one funnel or a steps file.");
+        }
+
+        // Funnel steps start at index 1
+        setupFunnelSteps(arguments, 1, arguments[0], 0);
+
+        // This UDF will return a boolean
+        return PrimitiveObjectInspectorFactory.javaBooleanObjectInspector;
+    }
+
+    @Override
+    public Object evaluate(DeferredObject[] args) throws HiveException {
+        loadFunnelSteps();
+
+        Object action = args[0].get();
+        if (action == null) {
+            return false;
+        }
+        return isFunnelAction(ObjectInspectorUtils.copyToStandardObject(action, actionObjectInspector));
+    }
+
+    @Override
+    public String getDisplayString(String[] children) {
+        return "funnel_filter(" + String.join(", ", children) + ")";
+    }
+}
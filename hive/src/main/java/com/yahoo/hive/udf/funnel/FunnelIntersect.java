@@ -0,0 +1,93 @@
+/*
+ * Copyright 2016 Yahoo Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.hive.udf.funnel;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentLengthException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.UDFType;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDF;
+import org.apache.hadoop.hive.serde2.objectinspector.ListObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.BinaryObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfoUtils;
+
+@UDFType(deterministic = true)
+@Description(name = "funnel_intersect",
+             value = "funnel_intersect(bitmaps) - Converts funnel bitmaps to a funnel, the number of users in all of the steps 1 to k, for each k.",
+             extended = "Steps are not ordered in time, a user counts for step k if the user did all of the steps 1 to k.")
+public class FunnelIntersect extends GenericUDF {
+    static final Log LOG = LogFactory.getLog(FunnelIntersect.class.getName());
+
+    private ListObjectInspector bitmapsObjectInspector;
+
+    @Override
+    public ObjectInspector initialize(ObjectInspector[] arguments) throws UDFArgumentException {
+        if (arguments.length != 1) {
+            throw new UDFArgumentLengthException("The operator 'funnel_intersect' accepts 1 argument.");
+        }
+
+        // Check that the argument is a list of binaries
+        if (!FunnelBitmapMerge.isBitmapsType(TypeInfoUtils.getTypeInfoFromObjectInspector(arguments[0]))) {
+            throw new UDFArgumentTypeException(0, "A binary array argument should be passed, but " + arguments[0].getTypeName() + " was passed instead.");
+        }
+
+        // Get the list object inspector
+        bitmapsObjectInspector = (ListObjectInspector) arguments[0];
+
+        // This UDF will return a list of longs
+        return ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaLongObjectInspector);
+    }
+
+    @Override
+    public Object evaluate(DeferredObject[] args) throws HiveException {
+        // Check that we only have one argument
+        if (args.length != 1) {
+            return null;
+        }
+        Object bitmaps = args[0].get();
+        if (bitmaps == null) {
+            return null;
+        }
+
+        // Intersect the bitmaps step by step
+        BinaryObjectInspector bitmapObjectInspector = (BinaryObjectInspector) bitmapsObjectInspector.getListElementObjectInspector();
+        int length = bitmapsObjectInspector.getListLength(bitmaps);
+        List<Long> result = new ArrayList<>(length);
+        IntBitmap users = null;
+        for (int i = 0; i < length; i++) {
+            Object bitmap = bitmapsObjectInspector.getListElement(bitmaps, i);
+            IntBitmap step = bitmap == null ? new IntBitmap() : IntBitmap.deserialize(bitmapObjectInspector.getPrimitiveJavaObject(bitmap));
+            users = users == null ? step : users.and(step);
+            result.add(users.cardinality());
+        }
+        return result;
+    }
+
+    @Override
+    public String getDisplayString(String[] children) {
+        return "Converts funnel bitmaps to a funnel.";
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2016 Yahoo Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.hive.udf.funnel;
+
+import java.util.Locale;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+
+/**
+ * Funnel options, passed as a trailing constant string of comma separated
+ * options, each either a name or name=value. For example 'unordered' or
+ * 'session_gap=1800,sessions=sum'.
+ */
+class FunnelOptions {
+    /** Unordered option name. */
+    static final String UNORDERED = "unordered";
+
+    /** Patterns option name. */
+    static final String PATTERNS = "patterns";
+
+    /** Steps file option name. */
+    static final String STEPS_FILE = "steps_file";
+
+    /** Session gap option name. */
+    static final String SESSION_GAP = "session_gap";
+
+    /** Sessions option name. */
+    static final String SESSIONS = "sessions";
+
+    /** Sample option name. */
+    static final String SAMPLE = "sample";
+
+    /** Only check that each step was done, in any order. */
+    boolean unordered;
+
+    /** Funnel step values may be patterns, see StepMatcher. */
+    boolean patterns;
+
+    /** Name of the file with the funnel steps, null for funnel step arguments. */
+    String stepsFile;
+
+    /** Longest time between two events of the same session, 0 for no sessions. */
+    long sessionGap;
+
+    /** Sum the funnels of all sessions, instead of keeping the best one. */
+    boolean sumSessions;
+
+    /** Fraction of the groups kept, by a hash of the sample key. */
+    double sampleRate = 1.0;
+
+    /**
+     * Parse an options string.
+     *
+     * @param options Options string
+     * @return Parsed options
+     */
+    static FunnelOptions parse(String options) throws UDFArgumentException {
+        FunnelOptions parsed = new FunnelOptions();
+        for (String option : options.split(",")) {
+            String[] nameValue = option.split("=", 2);
+            String name = nameValue[0].trim().toLowerCase(Locale.ROOT);
+            String value = nameValue.length > 1 ? nameValue[1].trim() : null;
+            switch (name) {
+                case "":
+                    break;
+                case UNORDERED:
+                    parsed.unordered = parseFlag(name, value);
+                    break;
+                case PATTERNS:
+                    parsed.patterns = parseFlag(name, value);
+                    break;
+                case STEPS_FILE:
+                    if (value == null || value.isEmpty()) {
+                        throw new UDFArgumentException("Funnel option '" + name + "' should be a file name.");
+                    }
+                    parsed.stepsFile = value;
+                    break;
+                case SESSION_GAP:
+                    parsed.sessionGap = parsePositiveLong(name, value);
+                    break;
+                case SESSIONS:
+                    parsed.sumSessions = parseSessions(name, value);
+                    break;
+                case SAMPLE:
+                    parsed.sampleRate = parseRate(name, value);
+                    break;
+                default:
+                    throw new UDFArgumentException("Unknown funnel option '" + name + "'.");
+            }
+        }
+
+        // Unordered funnels have no events to split
+        if (parsed.unordered && parsed.sessionGap > 0) {
+            throw new UDFArgumentException("Funnel options '" + UNORDERED + "' and '" + SESSION_GAP + "' can't be used together.");
+        }
+        return parsed;
+    }
+
+    /**
+     * Parse the value of a flag, true if there is no value.
+     *
+     * @param name Option name
+     * @param value Option value, or null
+     * @return Flag value
+     */
+    private static boolean parseFlag(String name, String value) throws UDFArgumentException {
+        if (value == null || "true".equalsIgnoreCase(value)) {
+            return true;
+        } else if ("false".equalsIgnoreCase(value)) {
+            return false;
+        }
+        throw new UDFArgumentException("Funnel option '" + name + "' should be true or false, but '" + value + "' was passed.");
+    }
+
+    /**
+     * Parse the value of a positive number option.
+     *
+     * @param name Option name
+     * @param value Option value, or null
+     * @return Option value
+     */
+    private static long parsePositiveLong(String name, String value) throws UDFArgumentException {
+        long parsed;
+        try {
+            parsed = Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            parsed = 0;
+        }
+        if (parsed <= 0) {
+            throw new UDFArgumentException("Funnel option '" + name + "' should be a positive integer, but '" + value + "' was passed.");
+        }
+        return parsed;
+    }
+
+    /**
+     * Parse the value of a rate option, in (0, 1].
+     *
+     * @param name Option name
+     * @param value Option value, or null
+     * @return Option value
+     */
+    static double parseRate(String name, String value) throws UDFArgumentException {
+        double parsed;
+        try {
+            parsed = Double.parseDouble(value);
+        } catch (NullPointerException | NumberFormatException e) {
+            parsed = 0;
+        }
+        if (!(parsed > 0 && parsed <= 1)) {
+            throw new UDFArgumentException("Funnel option '" + name + "' should be a rate in (0, 1], but '" + value + "' was passed.");
+        }
+        return parsed;
+    }
+
+    /**
+     * Check if the group of a sample key is in the sample. The same key is
+     * always in or out, across tasks and runs.
+     *
+     * @param key Standard sample key value
+     * @return True if the group is kept
+     */
+    boolean isSampled(Object key) {
+        if (sampleRate >= 1) {
+            return true;
+        }
+        // The top 53 bits of the fingerprint, as a uniform double in [0, 1)
+        return key != null && (FingerprintTable.fingerprint(key) >>> 11) * 0x1.0p-53 < sampleRate;
+    }
+
+    /**
+     * Parse the value of the sessions option, best or sum.
+     *
+     * @param name Option name
+     * @param value Option value, or null
+     * @return Whether to sum the sessions
+     */
+    private static boolean parseSessions(String name, String value) throws UDFArgumentException {
+        if ("sum".equalsIgnoreCase(value)) {
+            return true;
+        } else if ("best".equalsIgnoreCase(value)) {
+            return false;
+        }
+        throw new UDFArgumentException("Funnel option '" + name + "' should be best or sum, but '" + value + "' was passed.");
+    }
+}
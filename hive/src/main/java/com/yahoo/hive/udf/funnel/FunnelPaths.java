@@ -0,0 +1,116 @@
+/*
+ * Copyright 2016 Yahoo Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.hive.udf.funnel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.parse.SemanticException;
+import org.apache.hadoop.hive.ql.udf.UDFType;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFParameterInfo;
+import org.apache.hadoop.hive.serde2.objectinspector.ListObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorUtils.ObjectInspectorCopyOption;
+import org.apache.hadoop.hive.serde2.objectinspector.StructObjectInspector;
+
+@UDFType(deterministic = true)
+@Description(name = "funnel_paths",
+             value = "_FUNC_(action_column, timestamp_column, step_1, step_2, ...) - For a user that stopped at a funnel step, finds the action done right after it. Should be used with funnel_paths_merge UDF.",
+             extended = "Returns an array with, for each funnel step, an array of struct<action, count, error>.\n" +
+                        "Example: SELECT funnel_paths_merge(paths)\n" +
+                        "         FROM (SELECT funnel_paths(action, timestamp, array('signup_page', 'email_signup'), \n" +
+                        "                                                      array('confirm_button'),\n" +
+                        "                                                      array('submit_button')) AS paths\n" +
+                        "               FROM table\n" +
+                        "               GROUP BY user_id) t;")
+public class FunnelPaths extends Funnel {
+    static final Log LOG = LogFactory.getLog(FunnelPaths.class.getName());
+
+    @Override
+    public FunnelPathsEvaluator getEvaluator(GenericUDAFParameterInfo info) throws SemanticException {
+        // Same parameters as funnel
+        checkParameters(info.getParameters(), false);
+        return new FunnelPathsEvaluator();
+    }
+
+    public static class FunnelPathsEvaluator extends FunnelEvaluator {
+        /** Object inspector of the actions in the aggregate. For FINAL and COMPLETE. */
+        private ObjectInspector bufferedActionObjectInspector;
+
+        @Override
+        public ObjectInspector init(Mode m, ObjectInspector[] parameters) throws HiveException {
+            ObjectInspector funnelObjectInspector = super.init(m, parameters);
+
+            switch (m) {
+                case PARTIAL1:
+                case PARTIAL2:
+                    // Same partials as funnel
+                    return funnelObjectInspector;
+                case FINAL:
+                    // Actions are standard copies of the partial actions
+                    ListObjectInspector actionListObjectInspector = (ListObjectInspector) ((StructObjectInspector) parameters[0]).getStructFieldRef("action").getFieldObjectInspector();
+                    bufferedActionObjectInspector = ObjectInspectorUtils.getStandardObjectInspector(actionListObjectInspector.getListElementObjectInspector());
+                    return FunnelPathsMerge.pathsObjectInspector(bufferedActionObjectInspector);
+                case COMPLETE:
+                    // Actions are standard copies of the input actions
+                    bufferedActionObjectInspector = ObjectInspectorUtils.getStandardObjectInspector(parameters[0]);
+                    return FunnelPathsMerge.pathsObjectInspector(bufferedActionObjectInspector);
+                default:
+                    throw new HiveException("Unknown Mode: " + m.toString());
+            }
+        }
+
+        @Override
+        protected boolean isBuffered(FunnelAggregateBuffer funnelAggregate, Object action) {
+            // The next action can be any action
+            return true;
+        }
+
+        @Override
+        public Object terminate(AggregationBuffer aggregate) throws HiveException {
+            FunnelAggregateBuffer funnelAggregate = (FunnelAggregateBuffer) aggregate;
+            Integer[] sortedIndex = funnelAggregate.sortEvents();
+            int[] matches = funnelAggregate.matchFunnelSteps(sortedIndex);
+
+            // One list of next actions per funnel step
+            int funnelStepSize = funnelAggregate.funnelSteps.size();
+            List<Object> paths = new ArrayList<>(funnelStepSize);
+            for (int i = 0; i < funnelStepSize; i++) {
+                paths.add(new ArrayList<>());
+            }
+
+            // Find the last funnel step reached
+            int lastStep = -1;
+            while (lastStep + 1 < funnelStepSize && matches[lastStep + 1] >= 0) {
+                lastStep++;
+            }
+
+            // The user stopped at the last step reached, unless it is the end of the funnel
+            if (lastStep >= 0 && lastStep < funnelStepSize - 1 && matches[lastStep] + 1 < sortedIndex.length) {
+                Object nextAction = funnelAggregate.actions.get(sortedIndex[matches[lastStep] + 1]);
+                nextAction = ObjectInspectorUtils.copyToStandardObject(nextAction, bufferedActionObjectInspector, ObjectInspectorCopyOption.JAVA);
+                ((List<Object>) paths.get(lastStep)).add(Arrays.asList(nextAction, 1L, 0L));
+            }
+            return paths;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2016 Yahoo Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.hive.udf.funnel;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.AggregationBuffer;
+import org.apache.hadoop.hive.serde2.objectinspector.ListObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorUtils.ObjectInspectorCopyOption;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.StructField;
+import org.apache.hadoop.hive.serde2.objectinspector.StructObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
+
+/**
+ * Merges funnel paths into an aggregate, one top-k sketch per funnel step.
+ */
+class FunnelPathsAggregateBuffer implements AggregationBuffer {
+    /** Number of counters in each sketch, 0 until known. */
+    int capacity;
+
+    /** Next action sketch of each funnel step. */
+    List<SpaceSaving> steps = new ArrayList<>();
+
+    /**
+     * Merge funnel paths, reading them through their object inspector.
+     *
+     * @param pathsObjectInspector Funnel paths list object inspector
+     * @param paths Funnel paths list object
+     */
+    public void addPaths(ListObjectInspector pathsObjectInspector, Object paths) throws HiveException {
+        ListObjectInspector sketchObjectInspector = (ListObjectInspector) pathsObjectInspector.getListElementObjectInspector();
+        StructObjectInspector entryObjectInspector = (StructObjectInspector) sketchObjectInspector.getListElementObjectInspector();
+        StructField actionField = entryObjectInspector.getStructFieldRef(FunnelPathsMerge.ACTION);
+        StructField countField = entryObjectInspector.getStructFieldRef(FunnelPathsMerge.COUNT);
+        StructField errorField = entryObjectInspector.getStructFieldRef(FunnelPathsMerge.ERROR);
+
+        // If empty, use the number of steps of these paths
+        int length = pathsObjectInspector.getListLength(paths);
+        if (steps.isEmpty()) {
+            for (int i = 0; i < length; i++) {
+                steps.add(new SpaceSaving(capacity));
+            }
+        } else if (steps.size() != length) {
+            // If the sizes don't match, throw an exception
+            throw new UDFArgumentTypeException(0, "Funnel paths must have the same number of steps to merge!");
+        }
+
+        for (int i = 0; i < length; i++) {
+            Object sketch = pathsObjectInspector.getListElement(paths, i);
+            SpaceSaving other = new SpaceSaving(capacity);
+            for (int j = 0; j < sketchObjectInspector.getListLength(sketch); j++) {
+                Object entry = sketchObjectInspector.getListElement(sketch, j);
+                Object action = ObjectInspectorUtils.copyToStandardObject(entryObjectInspector.getStructFieldData(entry, actionField), actionField.getFieldObjectInspector(), ObjectInspectorCopyOption.JAVA);
+                long count = PrimitiveObjectInspectorUtils.getLong(entryObjectInspector.getStructFieldData(entry, countField), (PrimitiveObjectInspector) countField.getFieldObjectInspector());
+                long error = PrimitiveObjectInspectorUtils.getLong(entryObjectInspector.getStructFieldData(entry, errorField), (PrimitiveObjectInspector) errorField.getFieldObjectInspector());
+                other.add(action, count, error);
+            }
+            steps.get(i).merge(other);
+        }
+    }
+
+    /**
+     * Clear the aggregate.
+     */
+    public void clear() {
+        capacity = 0;
+        steps.clear();
+    }
+
+    /**
+     * Output aggregate, the sketch of each funnel step, largest counts
+     * first.
+     *
+     * @return List of sketches
+     */
+    public List<Object> output() {
+        List<Object> output = new ArrayList<>(steps.size());
+        for (SpaceSaving step : steps) {
+            output.add(step.serialize());
+        }
+        return output;
+    }
+}
@@ -0,0 +1,303 @@
+/*
+ * Copyright 2016 Yahoo Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.hive.udf.funnel;
+
+import java.util.Arrays;
+import java.util.List;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentLengthException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.parse.SemanticException;
+import org.apache.hadoop.hive.ql.udf.UDFType;
+import org.apache.hadoop.hive.ql.udf.generic.AbstractGenericUDAFResolver;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFParameterInfo;
+import org.apache.hadoop.hive.serde2.objectinspector.ConstantObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ListObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorUtils.ObjectInspectorCopyOption;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.StructField;
+import org.apache.hadoop.hive.serde2.objectinspector.StructObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.typeinfo.ListTypeInfo;
+import org.apache.hadoop.hive.serde2.typeinfo.PrimitiveTypeInfo;
+import org.apache.hadoop.hive.serde2.typeinfo.StructTypeInfo;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+
+@UDFType(deterministic = true)
+@Description(name = "funnel_paths_merge",
+             value = "_FUNC_(paths_column, [actions_per_step]) - Merges funnel paths, keeping the most frequent next actions of each funnel step. Use with funnel_paths UDF.",
+             extended = "Returns an array with, for each funnel step, an array of struct<action, count, error>, largest count first.\n" +
+                        "The true count of an action is between count - error and count. Defaults to 20 actions per step.\n" +
+                        "Example: SELECT funnel_paths_merge(paths, 10)\n" +
+                        "         FROM (SELECT funnel_paths(action, timestamp, array('signup_page', 'email_signup'), \n" +
+                        "                                                      array('confirm_button'),\n" +
+                        "                                                      array('submit_button')) AS paths\n" +
+                        "               FROM table\n" +
+                        "               GROUP BY user_id) t;")
+public class FunnelPathsMerge extends AbstractGenericUDAFResolver {
+    static final Log LOG = LogFactory.getLog(FunnelPathsMerge.class.getName());
+
+    /** Action key constant. */
+    static final String ACTION = "action";
+
+    /** Count key constant. */
+    static final String COUNT = "count";
+
+    /** Error key constant. */
+    static final String ERROR = "error";
+
+    /** Default number of actions kept per step. */
+    static final int DEFAULT_ACTIONS_PER_STEP = 20;
+
+    @Override
+    public FunnelPathsMergeEvaluator getEvaluator(GenericUDAFParameterInfo info) throws SemanticException {
+        // Get the parameters
+        TypeInfo [] parameters = info.getParameters();
+
+        // Check number of arguments
+        if (parameters.length != 1 && parameters.length != 2) {
+            throw new UDFArgumentLengthException("Please specify the funnel paths column, and optionally the number of actions to keep per step.");
+        }
+
+        // Check that the parameter is a list of lists of structs
+        if (!isPathsType(parameters[0])) {
+            throw new UDFArgumentTypeException(0, "A funnel paths argument should be passed, but " + parameters[0].getTypeName() + " was passed instead.");
+        }
+
+        // Check the number of actions to keep
+        if (parameters.length == 2) {
+            if (parameters[1].getCategory() != ObjectInspector.Category.PRIMITIVE) {
+                throw new UDFArgumentTypeException(1, "An integer argument should be passed, but " + parameters[1].getTypeName() + " was passed instead.");
+            }
+            switch (((PrimitiveTypeInfo) parameters[1]).getPrimitiveCategory()) {
+                case BYTE:
+                case SHORT:
+                case INT:
+                case LONG:
+                    break;
+                default:
+                    throw new UDFArgumentTypeException(1, "An integer argument should be passed, but " + parameters[1].getTypeName() + " was passed instead.");
+            }
+        }
+
+        return new FunnelPathsMergeEvaluator();
+    }
+
+    /**
+     * Check that a type is funnel paths, array<array<struct<action, count, error>>>.
+     */
+    private static boolean isPathsType(TypeInfo typeInfo) {
+        if (typeInfo.getCategory() != ObjectInspector.Category.LIST) {
+            return false;
+        }
+        TypeInfo sketchTypeInfo = ((ListTypeInfo) typeInfo).getListElementTypeInfo();
+        if (sketchTypeInfo.getCategory() != ObjectInspector.Category.LIST) {
+            return false;
+        }
+        TypeInfo entryTypeInfo = ((ListTypeInfo) sketchTypeInfo).getListElementTypeInfo();
+        if (entryTypeInfo.getCategory() != ObjectInspector.Category.STRUCT) {
+            return false;
+        }
+        return ((StructTypeInfo) entryTypeInfo).getAllStructFieldNames().containsAll(Arrays.asList(ACTION, COUNT, ERROR));
+    }
+
+    /**
+     * Build the funnel paths object inspector,
+     * array<array<struct<action, count, error>>>. Values are standard java
+     * objects.
+     *
+     * @param actionObjectInspector Action object inspector
+     * @return Funnel paths object inspector
+     */
+    static ListObjectInspector pathsObjectInspector(ObjectInspector actionObjectInspector) {
+        List<String> fieldNames = Arrays.asList(ACTION, COUNT, ERROR);
+        List<ObjectInspector> fieldInspectors = Arrays.asList(ObjectInspectorUtils.getStandardObjectInspector(actionObjectInspector, ObjectInspectorCopyOption.JAVA),
+                                                              PrimitiveObjectInspectorFactory.javaLongObjectInspector,
+                                                              PrimitiveObjectInspectorFactory.javaLongObjectInspector);
+        ObjectInspector entryObjectInspector = ObjectInspectorFactory.getStandardStructObjectInspector(fieldNames, fieldInspectors);
+        return ObjectInspectorFactory.getStandardListObjectInspector(ObjectInspectorFactory.getStandardListObjectInspector(entryObjectInspector));
+    }
+
+    /**
+     * Get the action object inspector of funnel paths.
+     *
+     * @param pathsObjectInspector Funnel paths object inspector
+     * @return Action object inspector
+     */
+    static ObjectInspector actionObjectInspector(ListObjectInspector pathsObjectInspector) {
+        ListObjectInspector sketchObjectInspector = (ListObjectInspector) pathsObjectInspector.getListElementObjectInspector();
+        StructObjectInspector entryObjectInspector = (StructObjectInspector) sketchObjectInspector.getListElementObjectInspector();
+        return entryObjectInspector.getStructFieldRef(ACTION).getFieldObjectInspector();
+    }
+
+    public static class FunnelPathsMergeEvaluator extends GenericUDAFEvaluator {
+        /** Actions per step key constant. */
+        private static final String ACTIONS_PER_STEP = "actions_per_step";
+
+        /** Paths key constant. */
+        private static final String PATHS = "paths";
+
+        /** Input paths object inspector. For PARTIAL1 and COMPLETE. */
+        private ListObjectInspector pathsObjectInspector;
+
+        /** Number of actions kept per step. For PARTIAL1 and COMPLETE. */
+        private int actionsPerStep = DEFAULT_ACTIONS_PER_STEP;
+
+        /** For PARTIAL2 and FINAL. */
+        private StructObjectInspector partialObjectInspector;
+
+        /** For PARTIAL2 and FINAL. */
+        private StructField actionsPerStepField;
+
+        /** For PARTIAL2 and FINAL. */
+        private StructField pathsField;
+
+        @Override
+        public ObjectInspector init(Mode m, ObjectInspector[] parameters) throws HiveException {
+            super.init(m, parameters);
+
+            // Setup the object inspectors and return type
+            switch (m) {
+                case PARTIAL1:
+                    setupInput(parameters);
+
+                    // Will output structs
+                    return partialObjectInspector(actionObjectInspector(pathsObjectInspector));
+                case PARTIAL2:
+                    setupPartialObjectInspector(parameters[0]);
+
+                    // Will output structs
+                    return partialObjectInspector(actionObjectInspector(pathsObjectInspector));
+                case FINAL:
+                    setupPartialObjectInspector(parameters[0]);
+
+                    // Will output funnel paths
+                    return pathsObjectInspector(actionObjectInspector(pathsObjectInspector));
+                case COMPLETE:
+                    setupInput(parameters);
+
+                    // Will output funnel paths
+                    return pathsObjectInspector(actionObjectInspector(pathsObjectInspector));
+                default:
+                    throw new HiveException("Unknown Mode: " + m.toString());
+            }
+        }
+
+        /**
+         * Store the input object inspector and the number of actions to
+         * keep, which has to be a constant.
+         *
+         * @param parameters Input object inspectors
+         */
+        private void setupInput(ObjectInspector[] parameters) throws HiveException {
+            pathsObjectInspector = (ListObjectInspector) parameters[0];
+            if (parameters.length > 1) {
+                if (!(parameters[1] instanceof ConstantObjectInspector)) {
+                    throw new UDFArgumentTypeException(1, "The number of actions per step should be a constant.");
+                }
+                Object value = ((ConstantObjectInspector) parameters[1]).getWritableConstantValue();
+                actionsPerStep = PrimitiveObjectInspectorUtils.getInt(value, (PrimitiveObjectInspector) parameters[1]);
+                if (actionsPerStep < 1) {
+                    throw new UDFArgumentException("The number of actions per step should be at least 1, but " + actionsPerStep + " was passed.");
+                }
+            }
+        }
+
+        /**
+         * Store the partial struct object inspector and its fields.
+         *
+         * @param parameter Partial struct object inspector
+         */
+        private void setupPartialObjectInspector(ObjectInspector parameter) {
+            partialObjectInspector = (StructObjectInspector) parameter;
+            actionsPerStepField = partialObjectInspector.getStructFieldRef(ACTIONS_PER_STEP);
+            pathsField = partialObjectInspector.getStructFieldRef(PATHS);
+            pathsObjectInspector = (ListObjectInspector) pathsField.getFieldObjectInspector();
+        }
+
+        /**
+         * Build the partial struct object inspector, the number of actions
+         * per step and the funnel paths.
+         *
+         * @param actionObjectInspector Action object inspector
+         * @return Partial struct object inspector
+         */
+        private ObjectInspector partialObjectInspector(ObjectInspector actionObjectInspector) {
+            List<String> fieldNames = Arrays.asList(ACTIONS_PER_STEP, PATHS);
+            List<ObjectInspector> fieldInspectors = Arrays.asList(PrimitiveObjectInspectorFactory.javaIntObjectInspector,
+                                                                  pathsObjectInspector(actionObjectInspector));
+            return ObjectInspectorFactory.getStandardStructObjectInspector(fieldNames, fieldInspectors);
+        }
+
+        @Override
+        public AggregationBuffer getNewAggregationBuffer() throws HiveException {
+            return new FunnelPathsAggregateBuffer();
+        }
+
+        @Override
+        public void iterate(AggregationBuffer aggregate, Object[] parameters) throws HiveException {
+            FunnelPathsAggregateBuffer pathsAggregate = (FunnelPathsAggregateBuffer) aggregate;
+            pathsAggregate.capacity = actionsPerStep;
+            Object parameter = parameters[0];
+            // If not null
+            if (parameter != null) {
+                pathsAggregate.addPaths(pathsObjectInspector, parameter);
+            }
+        }
+
+        @Override
+        public void merge(AggregationBuffer aggregate, Object partial) throws HiveException {
+            if (partial != null) {
+                FunnelPathsAggregateBuffer pathsAggregate = (FunnelPathsAggregateBuffer) aggregate;
+
+                // The number of actions per step comes with the partial
+                if (pathsAggregate.capacity == 0) {
+                    Object value = partialObjectInspector.getStructFieldData(partial, actionsPerStepField);
+                    pathsAggregate.capacity = PrimitiveObjectInspectorUtils.getInt(value, (PrimitiveObjectInspector) actionsPerStepField.getFieldObjectInspector());
+                }
+                pathsAggregate.addPaths(pathsObjectInspector, partialObjectInspector.getStructFieldData(partial, pathsField));
+            }
+        }
+
+        @Override
+        public void reset(AggregationBuffer aggregate) throws HiveException {
+            FunnelPathsAggregateBuffer pathsAggregate = (FunnelPathsAggregateBuffer) aggregate;
+            pathsAggregate.clear();
+        }
+
+        @Override
+        public Object terminate(AggregationBuffer aggregate) throws HiveException {
+            FunnelPathsAggregateBuffer pathsAggregate = (FunnelPathsAggregateBuffer) aggregate;
+            return pathsAggregate.output();
+        }
+
+        @Override
+        public Object terminatePartial(AggregationBuffer aggregate) throws HiveException {
+            FunnelPathsAggregateBuffer pathsAggregate = (FunnelPathsAggregateBuffer) aggregate;
+            return Arrays.asList(pathsAggregate.capacity, pathsAggregate.output());
+        }
+    }
+}
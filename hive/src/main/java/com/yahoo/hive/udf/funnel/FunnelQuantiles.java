@@ -0,0 +1,139 @@
+/*
+ * Copyright 2016 Yahoo Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.hive.udf.funnel;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentLengthException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.UDFType;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDF;
+import org.apache.hadoop.hive.serde2.objectinspector.ListObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
+
+@UDFType(deterministic = true)
+@Description(name = "funnel_quantiles",
+             value = "funnel_quantiles(histograms, quantiles) - Estimates quantiles of the funnel step durations.",
+             extended = "Returns, for each funnel step, the estimated duration at each quantile. Empty for steps without durations.")
+public class FunnelQuantiles extends GenericUDF {
+    static final Log LOG = LogFactory.getLog(FunnelQuantiles.class.getName());
+
+    private ListObjectInspector histogramsObjectInspector;
+
+    private ListObjectInspector quantilesObjectInspector;
+
+    @Override
+    public ObjectInspector initialize(ObjectInspector[] arguments) throws UDFArgumentException {
+        if (arguments.length != 2) {
+            throw new UDFArgumentLengthException("The operator 'funnel_quantiles' accepts 2 arguments.");
+        }
+
+        // Check that the first argument is a list of lists of longs
+        if (arguments[0].getCategory() != ObjectInspector.Category.LIST
+            || ((ListObjectInspector) arguments[0]).getListElementObjectInspector().getCategory() != ObjectInspector.Category.LIST) {
+            throw new UDFArgumentTypeException(0, "A funnel durations histograms argument should be passed, but " + arguments[0].getTypeName() + " was passed instead.");
+        }
+        ObjectInspector countObjectInspector = ((ListObjectInspector) ((ListObjectInspector) arguments[0]).getListElementObjectInspector()).getListElementObjectInspector();
+        if (countObjectInspector.getCategory() != ObjectInspector.Category.PRIMITIVE
+            || ((PrimitiveObjectInspector) countObjectInspector).getPrimitiveCategory() != PrimitiveObjectInspector.PrimitiveCategory.LONG) {
+            throw new UDFArgumentTypeException(0, "A funnel durations histograms argument should be passed, but " + arguments[0].getTypeName() + " was passed instead.");
+        }
+
+        // Check that the second argument is a list of doubles
+        if (arguments[1].getCategory() != ObjectInspector.Category.LIST) {
+            throw new UDFArgumentTypeException(1, "A double array argument should be passed, but " + arguments[1].getTypeName() + " was passed instead.");
+        }
+        ObjectInspector quantileObjectInspector = ((ListObjectInspector) arguments[1]).getListElementObjectInspector();
+        if (quantileObjectInspector.getCategory() != ObjectInspector.Category.PRIMITIVE) {
+            throw new UDFArgumentTypeException(1, "A double array argument should be passed, but " + arguments[1].getTypeName() + " was passed instead.");
+        }
+        switch (((PrimitiveObjectInspector) quantileObjectInspector).getPrimitiveCategory()) {
+            case FLOAT:
+            case DOUBLE:
+            case DECIMAL:
+                break;
+            default:
+                throw new UDFArgumentTypeException(1, "A double array argument should be passed, but " + arguments[1].getTypeName() + " was passed instead.");
+        }
+
+        // Get the list object inspectors
+        histogramsObjectInspector = (ListObjectInspector) arguments[0];
+        quantilesObjectInspector = (ListObjectInspector) arguments[1];
+
+        // This UDF will return a list of lists of doubles
+        return ObjectInspectorFactory.getStandardListObjectInspector(
+            ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaDoubleObjectInspector));
+    }
+
+    @Override
+    public Object evaluate(DeferredObject[] args) throws HiveException {
+        // Check that we have both arguments
+        if (args.length != 2) {
+            return null;
+        }
+        Object histograms = args[0].get();
+        Object quantiles = args[1].get();
+        if (histograms == null || quantiles == null) {
+            return null;
+        }
+
+        // Read the quantiles once
+        PrimitiveObjectInspector quantileObjectInspector = (PrimitiveObjectInspector) quantilesObjectInspector.getListElementObjectInspector();
+        int quantileSize = quantilesObjectInspector.getListLength(quantiles);
+        double[] quantileValues = new double[quantileSize];
+        for (int i = 0; i < quantileSize; i++) {
+            quantileValues[i] = PrimitiveObjectInspectorUtils.getDouble(quantilesObjectInspector.getListElement(quantiles, i), quantileObjectInspector);
+            if (quantileValues[i] < 0.0 || quantileValues[i] > 1.0) {
+                throw new UDFArgumentException("Quantiles should be between 0 and 1, but " + quantileValues[i] + " was passed.");
+            }
+        }
+
+        // Estimate the quantiles of each funnel step
+        ListObjectInspector histogramObjectInspector = (ListObjectInspector) histogramsObjectInspector.getListElementObjectInspector();
+        int length = histogramsObjectInspector.getListLength(histograms);
+        List<Object> result = new ArrayList<>(length);
+        for (int i = 0; i < length; i++) {
+            LogHistogram histogram = new LogHistogram();
+            Object counts = histogramsObjectInspector.getListElement(histograms, i);
+            if (counts != null) {
+                histogram.merge(histogramObjectInspector, counts);
+            }
+            List<Double> stepQuantiles = new ArrayList<>(quantileSize);
+            if (histogram.total > 0) {
+                for (double quantile : quantileValues) {
+                    stepQuantiles.add(histogram.quantile(quantile));
+                }
+            }
+            result.add(stepQuantiles);
+        }
+        return result;
+    }
+
+    @Override
+    public String getDisplayString(String[] children) {
+        return "Estimates quantiles of the funnel step durations.";
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2016 Yahoo Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.hive.udf.funnel;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.parse.SemanticException;
+import org.apache.hadoop.hive.ql.udf.UDFType;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFParameterInfo;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
+
+@UDFType(deterministic = true)
+@Description(name = "funnel_state",
+             value = "_FUNC_(action_column, timestamp_column, step_1, step_2, ..., [options]) - Builds the funnel state of a group, to store and merge later with funnel_state_merge. Use funnel_state_result to get the funnel.",
+             extended = "Returns struct<steps, timestamps, masks>, the funnel events in order, as a timestamp and the bitmask of the funnel steps of the action.\n" +
+                        "Example: INSERT INTO TABLE states PARTITION (day = '2016-01-01')\n" +
+                        "         SELECT user_id, funnel_state(action, timestamp, array('signup_page'), array('confirm_button')) AS state\n" +
+                        "         FROM table\n" +
+                        "         WHERE day = '2016-01-01'\n" +
+                        "         GROUP BY user_id;")
+public class FunnelState extends Funnel {
+    static final Log LOG = LogFactory.getLog(FunnelState.class.getName());
+
+    @Override
+    public FunnelStateEvaluator getEvaluator(GenericUDAFParameterInfo info) throws SemanticException {
+        // Same parameters as funnel
+        checkParameters(info.getParameters(), true);
+
+        // States keep timestamps as numbers
+        FunnelTimed.checkTimestampType(info.getParameters()[1]);
+
+        return new FunnelStateEvaluator();
+    }
+
+    public static class FunnelStateEvaluator extends FunnelEvaluator {
+        /** Object inspector of the timestamps in the aggregate. For FINAL and COMPLETE. */
+        private PrimitiveObjectInspector bufferedTimestampObjectInspector;
+
+        @Override
+        public ObjectInspector init(Mode m, ObjectInspector[] parameters) throws HiveException {
+            ObjectInspector funnelObjectInspector = super.init(m, parameters);
+
+            // States keep the events in order, with a step bitmask
+            if ((m == Mode.PARTIAL1 || m == Mode.COMPLETE) && (options.unordered || options.sessionGap > 0)) {
+                throw new UDFArgumentException("Funnel states don't support the '" + FunnelOptions.UNORDERED + "' and '" + FunnelOptions.SESSION_GAP + "' options.");
+            }
+            if ((m == Mode.PARTIAL1 || m == Mode.COMPLETE) && parameters.length - 2 - trailingParameters > Long.SIZE) {
+                throw new UDFArgumentException("Funnel states have at most " + Long.SIZE + " steps, but " + (parameters.length - 2 - trailingParameters) + " were passed.");
+            }
+
+            switch (m) {
+                case PARTIAL1:
+                case PARTIAL2:
+                    // Same partials as funnel
+                    return funnelObjectInspector;
+                case FINAL:
+                case COMPLETE:
+                    bufferedTimestampObjectInspector = FunnelTimed.bufferedTimestampObjectInspector(m, parameters);
+                    return FunnelStateMerge.stateObjectInspector();
+                default:
+                    throw new HiveException("Unknown Mode: " + m.toString());
+            }
+        }
+
+        @Override
+        public Object terminate(AggregationBuffer aggregate) throws HiveException {
+            FunnelAggregateBuffer funnelAggregate = (FunnelAggregateBuffer) aggregate;
+            if (funnelAggregate.funnelSteps.size() > Long.SIZE) {
+                throw new HiveException("Funnel states have at most " + Long.SIZE + " steps, but " + funnelAggregate.funnelSteps.size() + " were passed.");
+            }
+
+            // Same order as funnel, on timestamp and action
+            FunnelStateAggregateBuffer state = new FunnelStateAggregateBuffer();
+            state.steps = funnelAggregate.funnelSteps.size();
+            for (Integer i : funnelAggregate.sortEvents()) {
+                long timestamp = PrimitiveObjectInspectorUtils.getLong(funnelAggregate.timestamps.get(i), bufferedTimestampObjectInspector);
+                state.add(timestamp, funnelAggregate.stepMask(funnelAggregate.actions.get(i)));
+            }
+            state.compact();
+            return state.serialize();
+        }
+    }
+}
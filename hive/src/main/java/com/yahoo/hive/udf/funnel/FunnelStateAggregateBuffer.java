@@ -0,0 +1,218 @@
+/*
+ * Copyright 2016 Yahoo Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.hive.udf.funnel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.AggregationBuffer;
+import org.apache.hadoop.hive.serde2.objectinspector.ListObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.StructField;
+import org.apache.hadoop.hive.serde2.objectinspector.StructObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
+
+/**
+ * Funnel state of a user: the funnel events, in order, as a timestamp and
+ * the bitmask of the funnel steps the action is in. States are merged by
+ * interleaving their events, so yesterday's state can be folded with the
+ * events of today without reading the past events again.
+ */
+class FunnelStateAggregateBuffer implements AggregationBuffer {
+    /** Number of funnel steps, 0 until the first state is added. */
+    int steps;
+
+    /** Event timestamps, in order. Only the first size elements are used. */
+    long[] timestamps = new long[0];
+
+    /** Event funnel step masks. Only the first size elements are used. */
+    long[] masks = new long[0];
+
+    /** Number of events. */
+    int size;
+
+    /**
+     * Append an event, after all the other events.
+     *
+     * @param timestamp Event timestamp
+     * @param mask Funnel steps of the event action
+     */
+    public void add(long timestamp, long mask) {
+        if (size == timestamps.length) {
+            int capacity = Math.max(16, size * 2);
+            timestamps = Arrays.copyOf(timestamps, capacity);
+            masks = Arrays.copyOf(masks, capacity);
+        }
+        timestamps[size] = timestamp;
+        masks[size] = mask;
+        size++;
+    }
+
+    /**
+     * Merge a funnel state into this one, keeping the events in timestamp
+     * order. Events with the same timestamp keep this state's events first.
+     *
+     * @param stateObjectInspector State struct object inspector
+     * @param state State struct
+     * @param windowStart Events before this timestamp are dropped, or null
+     */
+    public void addState(StructObjectInspector stateObjectInspector, Object state, Long windowStart) throws HiveException {
+        StructField stepsField = stateObjectInspector.getStructFieldRef(FunnelStateMerge.STEPS);
+        StructField timestampsField = stateObjectInspector.getStructFieldRef(FunnelStateMerge.TIMESTAMPS);
+        StructField masksField = stateObjectInspector.getStructFieldRef(FunnelStateMerge.MASKS);
+        int stateSteps = PrimitiveObjectInspectorUtils.getInt(stateObjectInspector.getStructFieldData(state, stepsField), (PrimitiveObjectInspector) stepsField.getFieldObjectInspector());
+        checkSteps(stateSteps);
+
+        // Read the state events, dropping the ones out of the window
+        ListObjectInspector timestampsObjectInspector = (ListObjectInspector) timestampsField.getFieldObjectInspector();
+        ListObjectInspector masksObjectInspector = (ListObjectInspector) masksField.getFieldObjectInspector();
+        PrimitiveObjectInspector timestampObjectInspector = (PrimitiveObjectInspector) timestampsObjectInspector.getListElementObjectInspector();
+        PrimitiveObjectInspector maskObjectInspector = (PrimitiveObjectInspector) masksObjectInspector.getListElementObjectInspector();
+        Object stateTimestamps = stateObjectInspector.getStructFieldData(state, timestampsField);
+        Object stateMasks = stateObjectInspector.getStructFieldData(state, masksField);
+        int length = Math.min(Math.max(timestampsObjectInspector.getListLength(stateTimestamps), 0), Math.max(masksObjectInspector.getListLength(stateMasks), 0));
+        FunnelStateAggregateBuffer other = new FunnelStateAggregateBuffer();
+        for (int i = 0; i < length; i++) {
+            long timestamp = PrimitiveObjectInspectorUtils.getLong(timestampsObjectInspector.getListElement(stateTimestamps, i), timestampObjectInspector);
+            if (windowStart == null || timestamp >= windowStart) {
+                other.add(timestamp, PrimitiveObjectInspectorUtils.getLong(masksObjectInspector.getListElement(stateMasks, i), maskObjectInspector));
+            }
+        }
+        mergeEvents(other);
+    }
+
+    /**
+     * Set the number of funnel steps on the first state, and check that
+     * other states have the same number.
+     *
+     * @param stateSteps Number of funnel steps of the state being added
+     */
+    private void checkSteps(int stateSteps) throws HiveException {
+        if (steps == 0) {
+            steps = stateSteps;
+        } else if (steps != stateSteps) {
+            throw new HiveException("Funnel states must have the same number of steps to merge!");
+        }
+    }
+
+    /**
+     * Interleave the events of another state with this one.
+     *
+     * @param other Other state events
+     */
+    private void mergeEvents(FunnelStateAggregateBuffer other) {
+        // States usually follow each other, then it's an append
+        if (size == 0 || other.size == 0 || other.timestamps[0] >= timestamps[size - 1]) {
+            for (int i = 0; i < other.size; i++) {
+                add(other.timestamps[i], other.masks[i]);
+            }
+            return;
+        }
+        long[] mergedTimestamps = new long[size + other.size];
+        long[] mergedMasks = new long[size + other.size];
+        int i = 0;
+        int j = 0;
+        for (int k = 0; k < mergedTimestamps.length; k++) {
+            if (j >= other.size || (i < size && timestamps[i] <= other.timestamps[j])) {
+                mergedTimestamps[k] = timestamps[i];
+                mergedMasks[k] = masks[i++];
+            } else {
+                mergedTimestamps[k] = other.timestamps[j];
+                mergedMasks[k] = other.masks[j++];
+            }
+        }
+        timestamps = mergedTimestamps;
+        masks = mergedMasks;
+        size = mergedTimestamps.length;
+    }
+
+    /**
+     * Match the events against the funnel steps, like
+     * FunnelAggregateBuffer.matchFunnelSteps.
+     *
+     * @return For each funnel step, the position of the event that matched
+     *         it, or -1 if not matched
+     */
+    public int[] matchFunnelSteps() {
+        int[] matches = new int[steps];
+        Arrays.fill(matches, -1);
+        int currentFunnelStep = 0;
+        for (int i = 0; i < size && currentFunnelStep < steps; i++) {
+            if ((masks[i] & (1L << currentFunnelStep)) != 0) {
+                matches[currentFunnelStep] = i;
+                currentFunnelStep++;
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Compute the funnel of the events.
+     *
+     * @return list of longs representing the funnel
+     */
+    public List<Long> computeFunnel() {
+        List<Long> results = new ArrayList<>(Collections.nCopies(steps, 0L));
+        int[] matches = matchFunnelSteps();
+        for (int i = 0; i < steps && matches[i] >= 0; i++) {
+            results.set(i, 1L);
+        }
+        return results;
+    }
+
+    /**
+     * Drop the repeated events, they can't change the funnel. Other events
+     * are kept even if they matched no step: a state merged later may have
+     * earlier events, after which they match.
+     */
+    public void compact() {
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            if (kept == 0 || timestamps[i] != timestamps[kept - 1] || masks[i] != masks[kept - 1]) {
+                timestamps[kept] = timestamps[i];
+                masks[kept++] = masks[i];
+            }
+        }
+        size = kept;
+    }
+
+    /**
+     * Clear the aggregate.
+     */
+    public void clear() {
+        steps = 0;
+        size = 0;
+    }
+
+    /**
+     * Output the state, the number of funnel steps, the timestamps and the
+     * masks.
+     *
+     * @return State struct
+     */
+    public List<Object> serialize() {
+        List<Long> stateTimestamps = new ArrayList<>(size);
+        List<Long> stateMasks = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            stateTimestamps.add(timestamps[i]);
+            stateMasks.add(masks[i]);
+        }
+        return new ArrayList<>(Arrays.asList(steps, stateTimestamps, stateMasks));
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright 2016 Yahoo Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.hive.udf.funnel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentLengthException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.parse.SemanticException;
+import org.apache.hadoop.hive.ql.udf.UDFType;
+import org.apache.hadoop.hive.ql.udf.generic.AbstractGenericUDAFResolver;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFParameterInfo;
+import org.apache.hadoop.hive.serde2.objectinspector.ConstantObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector.PrimitiveCategory;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.StructField;
+import org.apache.hadoop.hive.serde2.objectinspector.StructObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.typeinfo.ListTypeInfo;
+import org.apache.hadoop.hive.serde2.typeinfo.PrimitiveTypeInfo;
+import org.apache.hadoop.hive.serde2.typeinfo.StructTypeInfo;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+
+@UDFType(deterministic = true)
+@Description(name = "funnel_state_merge",
+             value = "_FUNC_(state_column, [window_start]) - Merges funnel states of the same user. Use with funnel_state and funnel_state_result UDFs.",
+             extended = "Events before window_start are dropped. States can be merged in any order.\n" +
+                        "Example: SELECT user_id, funnel_state_merge(state, unix_timestamp('2016-01-02 00:00:00') - 30 * 86400)\n" +
+                        "         FROM (SELECT user_id, state FROM states WHERE day = '2016-01-01'\n" +
+                        "               UNION ALL\n" +
+                        "               SELECT user_id, funnel_state(action, timestamp, array('signup_page'), array('confirm_button')) AS state\n" +
+                        "               FROM table WHERE day = '2016-01-02' GROUP BY user_id) t\n" +
+                        "         GROUP BY user_id;")
+public class FunnelStateMerge extends AbstractGenericUDAFResolver {
+    static final Log LOG = LogFactory.getLog(FunnelStateMerge.class.getName());
+
+    /** Funnel steps key constant. */
+    static final String STEPS = "steps";
+
+    /** Timestamps key constant. */
+    static final String TIMESTAMPS = "timestamps";
+
+    /** Masks key constant. */
+    static final String MASKS = "masks";
+
+    /** Window start key constant, in the partials. */
+    static final String WINDOW_START = "window_start";
+
+    @Override
+    public FunnelStateMergeEvaluator getEvaluator(GenericUDAFParameterInfo info) throws SemanticException {
+        // Get the parameters
+        TypeInfo [] parameters = info.getParameters();
+
+        // Check number of arguments
+        if (parameters.length != 1 && parameters.length != 2) {
+            throw new UDFArgumentLengthException("Please specify the funnel state column, and maybe the window start.");
+        }
+
+        // Check that the parameter is a funnel state
+        if (!isStateType(parameters[0])) {
+            throw new UDFArgumentTypeException(0, "A funnel state argument should be passed, but " + parameters[0].getTypeName() + " was passed instead.");
+        }
+
+        // The window start is a timestamp
+        if (parameters.length == 2) {
+            if (parameters[1].getCategory() != ObjectInspector.Category.PRIMITIVE) {
+                throw new UDFArgumentTypeException(1, "An integer or timestamp argument should be passed, but " + parameters[1].getTypeName() + " was passed instead.");
+            }
+            FunnelTimed.checkTimestampType(parameters[1]);
+        }
+
+        return new FunnelStateMergeEvaluator();
+    }
+
+    /**
+     * Check that a type is a funnel state, struct<steps:int,
+     * timestamps:array<bigint>, masks:array<bigint>>.
+     */
+    static boolean isStateType(TypeInfo typeInfo) {
+        if (typeInfo.getCategory() != ObjectInspector.Category.STRUCT) {
+            return false;
+        }
+        List<String> names = ((StructTypeInfo) typeInfo).getAllStructFieldNames();
+        if (!names.contains(STEPS) || !names.contains(TIMESTAMPS) || !names.contains(MASKS)) {
+            return false;
+        }
+        StructTypeInfo structTypeInfo = (StructTypeInfo) typeInfo;
+        return isPrimitiveType(structTypeInfo.getStructFieldTypeInfo(STEPS), PrimitiveCategory.INT)
+            && structTypeInfo.getStructFieldTypeInfo(TIMESTAMPS).getCategory() == ObjectInspector.Category.LIST
+            && isPrimitiveType(((ListTypeInfo) structTypeInfo.getStructFieldTypeInfo(TIMESTAMPS)).getListElementTypeInfo(), PrimitiveCategory.LONG)
+            && structTypeInfo.getStructFieldTypeInfo(MASKS).getCategory() == ObjectInspector.Category.LIST
+            && isPrimitiveType(((ListTypeInfo) structTypeInfo.getStructFieldTypeInfo(MASKS)).getListElementTypeInfo(), PrimitiveCategory.LONG);
+    }
+
+    /**
+     * Check that a type is a given primitive type.
+     */
+    private static boolean isPrimitiveType(TypeInfo typeInfo, PrimitiveCategory category) {
+        return typeInfo.getCategory() == ObjectInspector.Category.PRIMITIVE
+            && ((PrimitiveTypeInfo) typeInfo).getPrimitiveCategory() == category;
+    }
+
+    /**
+     * Build the funnel state object inspector.
+     *
+     * @return State struct object inspector
+     */
+    static StructObjectInspector stateObjectInspector() {
+        return ObjectInspectorFactory.getStandardStructObjectInspector(stateFieldNames(), stateFieldInspectors());
+    }
+
+    /**
+     * Funnel state field names, order matters.
+     */
+    private static List<String> stateFieldNames() {
+        return new ArrayList<>(Arrays.asList(STEPS, TIMESTAMPS, MASKS));
+    }
+
+    /**
+     * Funnel state field object inspectors.
+     */
+    private static List<ObjectInspector> stateFieldInspectors() {
+        ObjectInspector longsObjectInspector = ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaLongObjectInspector);
+        return new ArrayList<>(Arrays.asList(PrimitiveObjectInspectorFactory.javaIntObjectInspector, longsObjectInspector, longsObjectInspector));
+    }
+
+    public static class FunnelStateMergeEvaluator extends GenericUDAFEvaluator {
+        /** Input state, or partial state, struct object inspector. */
+        private StructObjectInspector stateObjectInspector;
+
+        /** For PARTIAL2 and FINAL. */
+        private StructField windowStartField;
+
+        /** Events before this timestamp are dropped, or null to keep all the events. */
+        private Long windowStart;
+
+        @Override
+        public ObjectInspector init(Mode m, ObjectInspector[] parameters) throws HiveException {
+            super.init(m, parameters);
+            stateObjectInspector = (StructObjectInspector) parameters[0];
+            windowStart = null;
+            windowStartField = null;
+
+            switch (m) {
+                case PARTIAL1:
+                case COMPLETE:
+                    if (parameters.length > 1) {
+                        windowStart = constantWindowStart(parameters[1]);
+                    }
+                    break;
+                case PARTIAL2:
+                case FINAL:
+                    // The window start travels with the partials
+                    windowStartField = stateObjectInspector.getStructFieldRef(WINDOW_START);
+                    break;
+                default:
+                    throw new HiveException("Unknown Mode: " + m.toString());
+            }
+
+            if (m == Mode.PARTIAL1 || m == Mode.PARTIAL2) {
+                // Will output states with the window start
+                List<String> fieldNames = stateFieldNames();
+                List<ObjectInspector> fieldInspectors = stateFieldInspectors();
+                fieldNames.add(WINDOW_START);
+                fieldInspectors.add(PrimitiveObjectInspectorFactory.javaLongObjectInspector);
+                return ObjectInspectorFactory.getStandardStructObjectInspector(fieldNames, fieldInspectors);
+            }
+            return stateObjectInspector();
+        }
+
+        /**
+         * Read the constant window start.
+         *
+         * @param parameter Window start object inspector
+         * @return Window start, in timestamp units or seconds for timestamps
+         */
+        private static Long constantWindowStart(ObjectInspector parameter) throws HiveException {
+            if (!(parameter instanceof ConstantObjectInspector)) {
+                throw new UDFArgumentTypeException(1, "The window start should be a constant.");
+            }
+            Object value = ((ConstantObjectInspector) parameter).getWritableConstantValue();
+            return value == null ? null : PrimitiveObjectInspectorUtils.getLong(value, (PrimitiveObjectInspector) parameter);
+        }
+
+        @Override
+        public AggregationBuffer getNewAggregationBuffer() throws HiveException {
+            return new FunnelStateAggregateBuffer();
+        }
+
+        @Override
+        public void iterate(AggregationBuffer aggregate, Object[] parameters) throws HiveException {
+            if (parameters[0] != null) {
+                ((FunnelStateAggregateBuffer) aggregate).addState(stateObjectInspector, parameters[0], windowStart);
+            }
+        }
+
+        @Override
+        public void merge(AggregationBuffer aggregate, Object partial) throws HiveException {
+            if (partial != null) {
+                Object window = stateObjectInspector.getStructFieldData(partial, windowStartField);
+                windowStart = window == null ? null : PrimitiveObjectInspectorUtils.getLong(window, (PrimitiveObjectInspector) windowStartField.getFieldObjectInspector());
+                ((FunnelStateAggregateBuffer) aggregate).addState(stateObjectInspector, partial, windowStart);
+            }
+        }
+
+        @Override
+        public void reset(AggregationBuffer aggregate) throws HiveException {
+            ((FunnelStateAggregateBuffer) aggregate).clear();
+        }
+
+        @Override
+        public Object terminate(AggregationBuffer aggregate) throws HiveException {
+            // States merged later may have earlier events, so keep them all
+            FunnelStateAggregateBuffer state = (FunnelStateAggregateBuffer) aggregate;
+            state.compact();
+            return state.serialize();
+        }
+
+        @Override
+        public Object terminatePartial(AggregationBuffer aggregate) throws HiveException {
+            // Other partials may have events in between, so keep them all
+            FunnelStateAggregateBuffer state = (FunnelStateAggregateBuffer) aggregate;
+            state.compact();
+            List<Object> partial = state.serialize();
+            partial.add(windowStart);
+            return partial;
+        }
+    }
+}
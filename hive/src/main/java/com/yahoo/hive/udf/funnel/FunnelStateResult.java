@@ -0,0 +1,76 @@
+/*
+ * Copyright 2016 Yahoo Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.hive.udf.funnel;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentLengthException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.UDFType;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDF;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.StructObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfoUtils;
+
+@UDFType(deterministic = true)
+@Description(name = "funnel_state_result",
+             value = "_FUNC_(state) - Converts a funnel state to a funnel, the same as funnel would return for the events of the state. Use with funnel_merge.",
+             extended = "Example: SELECT funnel_merge(funnel_state_result(state))\n" +
+                        "         FROM states\n" +
+                        "         WHERE day = '2016-01-02';")
+public class FunnelStateResult extends GenericUDF {
+    static final Log LOG = LogFactory.getLog(FunnelStateResult.class.getName());
+
+    private StructObjectInspector stateObjectInspector;
+
+    @Override
+    public ObjectInspector initialize(ObjectInspector[] arguments) throws UDFArgumentException {
+        if (arguments.length != 1) {
+            throw new UDFArgumentLengthException("The operator 'funnel_state_result' accepts 1 argument.");
+        }
+
+        // Check that the argument is a funnel state
+        if (!FunnelStateMerge.isStateType(TypeInfoUtils.getTypeInfoFromObjectInspector(arguments[0]))) {
+            throw new UDFArgumentTypeException(0, "A funnel state argument should be passed, but " + arguments[0].getTypeName() + " was passed instead.");
+        }
+        stateObjectInspector = (StructObjectInspector) arguments[0];
+
+        // This UDF will return a list of longs, the same as funnel
+        return ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaLongObjectInspector);
+    }
+
+    @Override
+    public Object evaluate(DeferredObject[] args) throws HiveException {
+        Object state = args[0].get();
+        if (state == null) {
+            return null;
+        }
+        FunnelStateAggregateBuffer funnelState = new FunnelStateAggregateBuffer();
+        funnelState.addState(stateObjectInspector, state, null);
+        return funnelState.computeFunnel();
+    }
+
+    @Override
+    public String getDisplayString(String[] children) {
+        return "Converts a funnel state to a funnel.";
+    }
+}
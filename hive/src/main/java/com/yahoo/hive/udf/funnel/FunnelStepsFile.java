@@ -0,0 +1,178 @@
+/*
+ * Copyright 2016 Yahoo Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.yahoo.hive.udf.funnel;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorConverters.Converter;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorConverters;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+
+/**
+ * Funnel steps loaded from a file shipped with ADD FILE, so large step
+ * catalogs are not part of the query plan. The file is UTF-8 text with one
+ * value per line, and funnel steps separated by empty lines. Files are
+ * read, parsed once, and shared by all the evaluators of the JVM.
+ * Only the last version of each file is kept.
+ */
+class FunnelStepsFile {
+    /** Parsed files, by absolute path. */
+    private static final Map<String, Parsed> CACHE = new HashMap<>();
+
+    /**
+     * A parsed version of a file.
+     */
+    private static class Parsed {
+        /** Modification time and length of the file when parsed. */
+        final String version;
+
+        /** Funnel steps, lists of values. */
+        final List<List<String>> funnelSteps;
+
+        /**
+         * Create a parsed version.
+         *
+         * @param version Modification time and length of the file
+         * @param funnelSteps Funnel steps
+         */
+        Parsed(String version, List<List<String>> funnelSteps) {
+            this.version = version;
+            this.funnelSteps = funnelSteps;
+        }
+    }
+
+    /** Not instantiated. */
+    private FunnelStepsFile() {
+    }
+
+    /**
+     * Load the funnel steps of a file, found in the working directory where
+     * ADD FILE puts it.
+     *
+     * @param name File name
+     * @return Funnel steps, lists of values
+     */
+    static List<List<String>> load(String name) throws HiveException {
+        File file = new File(name);
+        if (!file.isFile()) {
+            throw new UDFArgumentException("Funnel steps file '" + name + "' not found, it should be added with ADD FILE.");
+        }
+        String path = file.getAbsolutePath();
+        String version = file.lastModified() + ":" + file.length();
+        synchronized (CACHE) {
+            Parsed parsed = CACHE.get(path);
+            if (parsed == null || !parsed.version.equals(version)) {
+                // Replaces the previous version of the file
+                parsed = new Parsed(version, Collections.unmodifiableList(parse(read(file))));
+                CACHE.put(path, parsed);
+            }
+            return parsed.funnelSteps;
+        }
+    }
+
+    /**
+     * Number of files kept parsed.
+     *
+     * @return Number of files
+     */
+    static int cacheSize() {
+        synchronized (CACHE) {
+            return CACHE.size();
+        }
+    }
+
+    /**
+     * Load the funnel steps of a file, as sets of values of the action type.
+     *
+     * @param name File name
+     * @param actionObjectInspector Standard object inspector of the actions
+     * @return Funnel steps
+     */
+    static List<Set<Object>> loadFunnelSteps(String name, ObjectInspector actionObjectInspector) throws HiveException {
+        Converter converter = ObjectInspectorConverters.getConverter(PrimitiveObjectInspectorFactory.javaStringObjectInspector, actionObjectInspector);
+        List<Set<Object>> funnelSteps = new ArrayList<>();
+        for (List<String> values : load(name)) {
+            Set<Object> funnelStep = new HashSet<>();
+            for (String value : values) {
+                // Converters reuse their output
+                funnelStep.add(ObjectInspectorUtils.copyToStandardObject(converter.convert(value), actionObjectInspector));
+            }
+            funnelStep.remove(null);
+            funnelSteps.add(funnelStep);
+        }
+        return funnelSteps;
+    }
+
+    /**
+     * Read and decode a file. It is parsed into sets right away, so it is
+     * read plainly rather than memory mapped.
+     *
+     * @param file File
+     * @return File content
+     */
+    private static String read(File file) throws HiveException {
+        if (file.length() > Integer.MAX_VALUE) {
+            throw new UDFArgumentException("Funnel steps file '" + file + "' is larger than 2GB.");
+        }
+        try {
+            return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new HiveException("Could not read funnel steps file '" + file + "'.", e);
+        }
+    }
+
+    /**
+     * Parse funnel steps, one value per line and empty lines between steps.
+     *
+     * @param content File content
+     * @return Funnel steps, lists of values
+     */
+    static List<List<String>> parse(CharSequence content) {
+        List<List<String>> funnelSteps = new ArrayList<>();
+        List<String> funnelStep = new ArrayList<>();
+        int start = 0;
+        for (int i = 0; i <= content.length(); i++) {
+            if (i == content.length() || content.charAt(i) == '\n') {
+                int end = i > start && content.charAt(i - 1) == '\r' ? i - 1 : i;
+                if (end > start) {
+                    funnelStep.add(content.subSequence(start, end).toString());
+                } else if (!funnelStep.isEmpty()) {
+                    // An empty line ends the funnel step
+                    funnelSteps.add(funnelStep);
+                    funnelStep = new ArrayList<>();
+                }
+                start = i + 1;
+            }
+        }
+        if (!funnelStep.isEmpty()) {
+            funnelSteps.add(funnelStep);
+        }
+        return funnelSteps;
+    }
+}
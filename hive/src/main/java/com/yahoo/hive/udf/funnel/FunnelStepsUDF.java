@@ -0,0 +1,202 @@
+/*
+ * Copyright 2016 Yahoo Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.hive.udf.funnel;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentLengthException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDF;
+import org.apache.hadoop.hive.serde2.objectinspector.ConstantObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ListObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorConverters.Converter;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorConverters;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector.PrimitiveCategory;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
+
+/**
+ * Base of the UDFs taking constant funnel steps and a funnel options string,
+ * like the funnel UDAF, but evaluated row by row.
+ */
+abstract class FunnelStepsUDF extends GenericUDF {
+    /** Action object inspector. */
+    protected PrimitiveObjectInspector actionObjectInspector;
+
+    /** Standard object inspector of the actions, the type of the funnel step values. */
+    protected ObjectInspector standardActionObjectInspector;
+
+    /** Funnel options. */
+    protected FunnelOptions options;
+
+    /** Funnel steps. Null until the steps file is loaded. */
+    protected List<Set<Object>> funnelSteps;
+
+    /** Set of all the funnel step values. */
+    protected Set<Object> funnelSet;
+
+    /** Matcher of the funnel steps, or null to use the funnel set. */
+    protected ActionMatcher matcher;
+
+    /**
+     * Read the funnel steps and the trailing options string.
+     *
+     * @param arguments Input object inspectors
+     * @param first Index of the first funnel step argument
+     * @param action Action object inspector
+     * @param actionArgument Index of the argument holding the actions, for errors
+     */
+    protected void setupFunnelSteps(ObjectInspector[] arguments, int first, ObjectInspector action, int actionArgument) throws UDFArgumentException {
+        // Check the action type
+        if (action.getCategory() != ObjectInspector.Category.PRIMITIVE) {
+            throw new UDFArgumentTypeException(actionArgument, "Only primitive actions are accepted but " + action.getTypeName() + " was passed.");
+        }
+        actionObjectInspector = (PrimitiveObjectInspector) action;
+        standardActionObjectInspector = ObjectInspectorUtils.getStandardObjectInspector(actionObjectInspector);
+
+        // The options are a trailing constant string, the same as funnel
+        int funnelStepEnd = arguments.length;
+        options = new FunnelOptions();
+        int last = arguments.length - 1;
+        if (last >= first && arguments[last].getCategory() == ObjectInspector.Category.PRIMITIVE) {
+            if (((PrimitiveObjectInspector) arguments[last]).getPrimitiveCategory() != PrimitiveCategory.STRING) {
+                throw new UDFArgumentTypeException(last, "Funnel list parameter " + last + " of type " + arguments[last].getTypeName() + " should be a list.");
+            }
+            if (!(arguments[last] instanceof ConstantObjectInspector)) {
+                throw new UDFArgumentTypeException(last, "The funnel options should be a constant.");
+            }
+            String value = PrimitiveObjectInspectorUtils.getString(((ConstantObjectInspector) arguments[last]).getWritableConstantValue(), (PrimitiveObjectInspector) arguments[last]);
+            options = FunnelOptions.parse(value == null ? "" : value);
+            funnelStepEnd--;
+        }
+
+        // Rows are not grouped, so there are no groups to sample
+        if (options.sampleRate < 1) {
+            throw new UDFArgumentException("The '" + FunnelOptions.SAMPLE + "' funnel option is only supported by funnel.");
+        }
+
+        // Patterns match strings
+        if (options.patterns && actionObjectInspector.getPrimitiveCategory() != PrimitiveCategory.STRING) {
+            throw new UDFArgumentTypeException(actionArgument, "Pattern funnel steps need string actions, but " + action.getTypeName() + " was passed.");
+        }
+
+        // Unordered funnel steps are bits of a long
+        int steps = funnelStepEnd - first;
+        if (options.unordered && steps > Long.SIZE) {
+            throw new UDFArgumentException("Unordered funnels have at most " + Long.SIZE + " steps, but " + steps + " were passed.");
+        }
+
+        // The funnel steps are either arguments or in the steps file, loaded by the tasks
+        if (options.stepsFile != null && steps > 0) {
+            throw new UDFArgumentException("Funnel steps should be either arguments or in the steps file, not both.");
+        } else if (options.stepsFile == null && steps == 0) {
+            throw new UDFArgumentLengthException("Please specify at least one funnel, or a steps file.");
+        }
+
+        // Build the funnel steps once, they are constants
+        List<Set<Object>> constantSteps = new ArrayList<>();
+        for (int i = first; i < funnelStepEnd; i++) {
+            constantSteps.add(funnelStep(arguments, i, actionArgument));
+        }
+        funnelSteps = null;
+        if (options.stepsFile == null) {
+            setupFunnelSteps(constantSteps);
+        }
+    }
+
+    /**
+     * Read a constant funnel step argument as a set of values of the action
+     * type.
+     *
+     * @param arguments Input object inspectors
+     * @param i Funnel step argument index
+     * @param actionArgument Index of the argument holding the actions, for errors
+     * @return Funnel step values
+     */
+    private Set<Object> funnelStep(ObjectInspector[] arguments, int i, int actionArgument) throws UDFArgumentException {
+        if (arguments[i].getCategory() != ObjectInspector.Category.LIST) {
+            throw new UDFArgumentTypeException(i, "Funnel list parameter " + i + " of type " + arguments[i].getTypeName() + " should be a list.");
+        }
+        ObjectInspector elementObjectInspector = ((ListObjectInspector) arguments[i]).getListElementObjectInspector();
+        if (elementObjectInspector.getCategory() != ObjectInspector.Category.PRIMITIVE
+            || ((PrimitiveObjectInspector) elementObjectInspector).getPrimitiveCategory() != actionObjectInspector.getPrimitiveCategory()) {
+            throw new UDFArgumentTypeException(i, "Funnel list parameter " + i + " of type " + arguments[i].getTypeName() + " does not match expected type " + arguments[actionArgument].getTypeName() + ".");
+        }
+        if (!(arguments[i] instanceof ConstantObjectInspector)) {
+            throw new UDFArgumentTypeException(i, "Funnel list parameter " + i + " should be a constant.");
+        }
+
+        Set<Object> funnelStep = new HashSet<>();
+        Object values = ((ConstantObjectInspector) arguments[i]).getWritableConstantValue();
+        if (values != null) {
+            Converter converter = ObjectInspectorConverters.getConverter(elementObjectInspector, standardActionObjectInspector);
+            for (Object value : (List<?>) values) {
+                // Converters reuse their output
+                funnelStep.add(ObjectInspectorUtils.copyToStandardObject(converter.convert(value), standardActionObjectInspector));
+            }
+        }
+        funnelStep.remove(null);
+        return funnelStep;
+    }
+
+    /**
+     * Keep the non empty funnel steps, and build their set and matcher.
+     *
+     * @param steps Funnel steps
+     */
+    private void setupFunnelSteps(List<Set<Object>> steps) throws UDFArgumentException {
+        steps.removeIf(Set::isEmpty);
+        if (options.unordered && steps.size() > Long.SIZE) {
+            throw new UDFArgumentException("Unordered funnels have at most " + Long.SIZE + " steps, but " + steps.size() + " were passed.");
+        }
+        Set<Object> values = new HashSet<>();
+        steps.forEach(values::addAll);
+        try {
+            matcher = MatcherCache.get(steps, options.patterns);
+        } catch (IllegalArgumentException e) {
+            throw new UDFArgumentException(e.getMessage());
+        }
+        funnelSet = values;
+        funnelSteps = steps;
+    }
+
+    /**
+     * Load the funnel steps from the steps file, once. The file is only on
+     * the tasks.
+     */
+    protected void loadFunnelSteps() throws HiveException {
+        if (funnelSteps == null) {
+            setupFunnelSteps(FunnelStepsFile.loadFunnelSteps(options.stepsFile, standardActionObjectInspector));
+        }
+    }
+
+    /**
+     * Check if an action is in any funnel step.
+     *
+     * @param action Standard action value
+     * @return True if the action is in a funnel step
+     */
+    protected boolean isFunnelAction(Object action) {
+        return matcher != null ? matcher.match(action) != 0 : funnelSet.contains(action);
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2016 Yahoo Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.hive.udf.funnel;
+
+import java.util.Arrays;
+import java.util.List;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.parse.SemanticException;
+import org.apache.hadoop.hive.ql.udf.UDFType;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFParameterInfo;
+import org.apache.hadoop.hive.serde2.objectinspector.ListObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.StructObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.typeinfo.PrimitiveTypeInfo;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+
+@UDFType(deterministic = true)
+@Description(name = "funnel_timed",
+             value = "_FUNC_(action_column, timestamp_column, step_1, step_2, ...) - Same as funnel, but also returns the time taken to reach each funnel step from the previous one. Should be used with funnel_merge and funnel_durations_merge UDFs.",
+             extended = "Returns struct<funnel, durations>. Durations are in timestamp units, or seconds for timestamp columns, and null for the first step and the steps not reached.\n" +
+                        "Example: SELECT funnel_merge(f.funnel), funnel_durations_merge(f.durations)\n" +
+                        "         FROM (SELECT funnel_timed(action, timestamp, array('signup_page', 'email_signup'), \n" +
+                        "                                                      array('confirm_button'),\n" +
+                        "                                                      array('submit_button')) AS f\n" +
+                        "               FROM table\n" +
+                        "               GROUP BY user_id) t;")
+public class FunnelTimed extends Funnel {
+    static final Log LOG = LogFactory.getLog(FunnelTimed.class.getName());
+
+    @Override
+    public FunnelTimedEvaluator getEvaluator(GenericUDAFParameterInfo info) throws SemanticException {
+        // Same parameters as funnel
+        checkParameters(info.getParameters(), false);
+
+        // Durations need a numeric timestamp_column
+        checkTimestampType(info.getParameters()[1]);
+
+        return new FunnelTimedEvaluator();
+    }
+
+    /**
+     * Check that the timestamp_column is an integer or a timestamp, so
+     * timestamps can be subtracted.
+     *
+     * @param timestampTypeInfo Type of the timestamp_column
+     */
+    static void checkTimestampType(TypeInfo timestampTypeInfo) throws UDFArgumentTypeException {
+        switch (((PrimitiveTypeInfo) timestampTypeInfo).getPrimitiveCategory()) {
+            case BYTE:
+            case SHORT:
+            case INT:
+            case LONG:
+            case TIMESTAMP:
+                break;
+            default:
+                throw new UDFArgumentTypeException(1, "An integer or timestamp argument should be passed, but " + timestampTypeInfo.getTypeName() + " was passed instead.");
+        }
+    }
+
+    /**
+     * Get the object inspector of the timestamps buffered by a funnel
+     * evaluator in FINAL or COMPLETE mode.
+     *
+     * @param m Evaluator mode
+     * @param parameters Evaluator input object inspectors
+     * @return Buffered timestamp object inspector
+     */
+    static PrimitiveObjectInspector bufferedTimestampObjectInspector(GenericUDAFEvaluator.Mode m, ObjectInspector[] parameters) {
+        ObjectInspector timestampObjectInspector;
+        if (m == GenericUDAFEvaluator.Mode.FINAL) {
+            // Timestamps are standard copies of the partial timestamps
+            ListObjectInspector timestampListObjectInspector = (ListObjectInspector) ((StructObjectInspector) parameters[0]).getStructFieldRef("timestamp").getFieldObjectInspector();
+            timestampObjectInspector = timestampListObjectInspector.getListElementObjectInspector();
+        } else {
+            // Timestamps are standard copies of the input timestamps
+            timestampObjectInspector = parameters[1];
+        }
+        return (PrimitiveObjectInspector) ObjectInspectorUtils.getStandardObjectInspector(timestampObjectInspector);
+    }
+
+    public static class FunnelTimedEvaluator extends FunnelEvaluator {
+        /** Output field names, order matters. */
+        private static final List<String> OUTPUT_FIELD_NAMES = Arrays.asList("funnel", "durations");
+
+        /** Object inspector of the timestamps in the aggregate. For FINAL and COMPLETE. */
+        private PrimitiveObjectInspector bufferedTimestampObjectInspector;
+
+        @Override
+        public ObjectInspector init(Mode m, ObjectInspector[] parameters) throws HiveException {
+            ObjectInspector funnelObjectInspector = super.init(m, parameters);
+
+            switch (m) {
+                case PARTIAL1:
+                case PARTIAL2:
+                    // Same partials as funnel
+                    return funnelObjectInspector;
+                case FINAL:
+                case COMPLETE:
+                    bufferedTimestampObjectInspector = bufferedTimestampObjectInspector(m, parameters);
+                    return outputObjectInspector(funnelObjectInspector);
+                default:
+                    throw new HiveException("Unknown Mode: " + m.toString());
+            }
+        }
+
+        /**
+         * Build the output struct object inspector.
+         *
+         * @param funnelObjectInspector Funnel list object inspector
+         * @return Output struct object inspector
+         */
+        private ObjectInspector outputObjectInspector(ObjectInspector funnelObjectInspector) {
+            List<ObjectInspector> fieldInspectors = Arrays.asList(funnelObjectInspector,
+                                                                  ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaLongObjectInspector));
+            return ObjectInspectorFactory.getStandardStructObjectInspector(OUTPUT_FIELD_NAMES, fieldInspectors);
+        }
+
+        @Override
+        public AggregationBuffer getNewAggregationBuffer() throws HiveException {
+            FunnelAggregateBuffer funnelAggregate = (FunnelAggregateBuffer) super.getNewAggregationBuffer();
+            if (bufferedTimestampObjectInspector != null) {
+                funnelAggregate.timestampClock = this::toLong;
+            }
+            return funnelAggregate;
+        }
+
+        /**
+         * Convert a buffered timestamp to a number, seconds for timestamps.
+         *
+         * @param timestamp Buffered timestamp
+         * @return Timestamp as a long
+         */
+        private long toLong(Object timestamp) {
+            return PrimitiveObjectInspectorUtils.getLong(timestamp, bufferedTimestampObjectInspector);
+        }
+
+        @Override
+        public Object terminate(AggregationBuffer aggregate) throws HiveException {
+            Object funnel = super.terminate(aggregate);
+            return Arrays.asList(funnel, ((FunnelAggregateBuffer) aggregate).durations);
+        }
+    }
+}
@@ -0,0 +1,386 @@
+/*
+ * Copyright 2016 Yahoo Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.hive.udf.funnel;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+
+/**
+ * Compressed set of ints, in the style of Roaring bitmaps. Values are split
+ * in containers by their high 16 bits. A container holds the low 16 bits
+ * either in a sorted array, when it has at most ARRAY_MAX values, or in a
+ * 65536 bit bitset. Sets can be merged, intersected, and serialized to be
+ * stored in tables.
+ */
+class IntBitmap {
+    /** Serialization format version. */
+    private static final byte VERSION = 1;
+
+    /** Containers with more values than this are bitsets. */
+    static final int ARRAY_MAX = 4096;
+
+    /** Number of longs in a bitset container. */
+    private static final int WORDS = 1024;
+
+    /** High 16 bits of the values of each container, sorted. */
+    private char[] keys = new char[0];
+
+    /** Containers, in the order of the keys. */
+    private Container[] containers = new Container[0];
+
+    /** Number of containers used. */
+    private int size;
+
+    /**
+     * Add a value.
+     *
+     * @param value Value
+     */
+    public void add(int value) {
+        char key = (char) (value >>> 16);
+        int i = Arrays.binarySearch(keys, 0, size, key);
+        if (i < 0) {
+            i = -i - 1;
+            insert(i, key, new Container());
+        }
+        containers[i].add((char) value);
+    }
+
+    /**
+     * Check if a value is in the set.
+     *
+     * @param value Value
+     * @return True if the value was added
+     */
+    public boolean contains(int value) {
+        int i = Arrays.binarySearch(keys, 0, size, (char) (value >>> 16));
+        return i >= 0 && containers[i].contains((char) value);
+    }
+
+    /**
+     * Number of values in the set.
+     *
+     * @return Cardinality
+     */
+    public long cardinality() {
+        long cardinality = 0;
+        for (int i = 0; i < size; i++) {
+            cardinality += containers[i].cardinality;
+        }
+        return cardinality;
+    }
+
+    /**
+     * Add all the values of another set.
+     *
+     * @param other Other set, not modified
+     */
+    public void or(IntBitmap other) {
+        for (int j = 0; j < other.size; j++) {
+            int i = Arrays.binarySearch(keys, 0, size, other.keys[j]);
+            if (i < 0) {
+                insert(-i - 1, other.keys[j], other.containers[j].copy());
+            } else {
+                containers[i].or(other.containers[j]);
+            }
+        }
+    }
+
+    /**
+     * Intersect with another set.
+     *
+     * @param other Other set, not modified
+     * @return New set of the values in both sets
+     */
+    public IntBitmap and(IntBitmap other) {
+        IntBitmap result = new IntBitmap();
+        int i = 0;
+        int j = 0;
+        while (i < size && j < other.size) {
+            if (keys[i] < other.keys[j]) {
+                i++;
+            } else if (keys[i] > other.keys[j]) {
+                j++;
+            } else {
+                Container container = containers[i].and(other.containers[j]);
+                if (container.cardinality > 0) {
+                    result.insert(result.size, keys[i], container);
+                }
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Insert a container.
+     *
+     * @param i Position of the container
+     * @param key High 16 bits of the container values
+     * @param container Container
+     */
+    private void insert(int i, char key, Container container) {
+        if (size == keys.length) {
+            int length = Math.max(4, size * 2);
+            keys = Arrays.copyOf(keys, length);
+            containers = Arrays.copyOf(containers, length);
+        }
+        System.arraycopy(keys, i, keys, i + 1, size - i);
+        System.arraycopy(containers, i, containers, i + 1, size - i);
+        keys[i] = key;
+        containers[i] = container;
+        size++;
+    }
+
+    /**
+     * Serialize the set. The format is a version byte, the number of
+     * containers, then for each container its key, its cardinality, and
+     * either its sorted values or its bitset.
+     *
+     * @return Serialized set
+     */
+    public byte[] serialize() {
+        int length = 1 + 4;
+        for (int i = 0; i < size; i++) {
+            length += 2 + 4 + (containers[i].words == null ? 2 * containers[i].cardinality : 8 * WORDS);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        buffer.put(VERSION);
+        buffer.putInt(size);
+        for (int i = 0; i < size; i++) {
+            Container container = containers[i];
+            buffer.putChar(keys[i]);
+            buffer.putInt(container.cardinality);
+            if (container.words == null) {
+                for (int j = 0; j < container.cardinality; j++) {
+                    buffer.putChar(container.values[j]);
+                }
+            } else {
+                for (long word : container.words) {
+                    buffer.putLong(word);
+                }
+            }
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Deserialize a set.
+     *
+     * @param bytes Serialized set
+     * @return Set
+     */
+    public static IntBitmap deserialize(byte[] bytes) throws HiveException {
+        IntBitmap bitmap = new IntBitmap();
+        if (bytes.length == 0) {
+            return bitmap;
+        }
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            if (buffer.get() != VERSION) {
+                throw new HiveException("Unknown bitmap format version " + bytes[0] + ".");
+            }
+            int size = buffer.getInt();
+            for (int i = 0; i < size; i++) {
+                char key = buffer.getChar();
+                Container container = new Container();
+                container.cardinality = buffer.getInt();
+                if (container.cardinality <= ARRAY_MAX) {
+                    container.values = new char[container.cardinality];
+                    for (int j = 0; j < container.cardinality; j++) {
+                        container.values[j] = buffer.getChar();
+                    }
+                } else {
+                    container.values = null;
+                    container.words = new long[WORDS];
+                    for (int j = 0; j < WORDS; j++) {
+                        container.words[j] = buffer.getLong();
+                    }
+                }
+                bitmap.insert(bitmap.size, key, container);
+            }
+        } catch (BufferUnderflowException e) {
+            throw new HiveException("Truncated bitmap.", e);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Low 16 bits of the values sharing the same high 16 bits.
+     */
+    static class Container {
+        /** Sorted values, for array containers. */
+        char[] values = new char[4];
+
+        /** Bitset, for bitset containers. Null for array containers. */
+        long[] words;
+
+        /** Number of values. */
+        int cardinality;
+
+        /**
+         * Add a value, converting to a bitset when the array is full.
+         */
+        void add(char value) {
+            if (words != null) {
+                long mask = 1L << value;
+                if ((words[value >>> 6] & mask) == 0) {
+                    words[value >>> 6] |= mask;
+                    cardinality++;
+                }
+                return;
+            }
+            int i = Arrays.binarySearch(values, 0, cardinality, value);
+            if (i >= 0) {
+                return;
+            }
+            if (cardinality == ARRAY_MAX) {
+                toBitset();
+                add(value);
+                return;
+            }
+            i = -i - 1;
+            if (cardinality == values.length) {
+                values = Arrays.copyOf(values, Math.min(ARRAY_MAX, Math.max(4, values.length * 2)));
+            }
+            System.arraycopy(values, i, values, i + 1, cardinality - i);
+            values[i] = value;
+            cardinality++;
+        }
+
+        /**
+         * Check if a value is in the container.
+         */
+        boolean contains(char value) {
+            if (words != null) {
+                return (words[value >>> 6] & (1L << value)) != 0;
+            }
+            return Arrays.binarySearch(values, 0, cardinality, value) >= 0;
+        }
+
+        /**
+         * Add all the values of another container.
+         */
+        void or(Container other) {
+            if (words == null && other.words == null) {
+                // Merge the sorted arrays
+                char[] merged = new char[cardinality + other.cardinality];
+                int i = 0;
+                int j = 0;
+                int length = 0;
+                while (i < cardinality || j < other.cardinality) {
+                    if (j == other.cardinality || (i < cardinality && values[i] < other.values[j])) {
+                        merged[length++] = values[i++];
+                    } else if (i == cardinality || other.values[j] < values[i]) {
+                        merged[length++] = other.values[j++];
+                    } else {
+                        merged[length++] = values[i++];
+                        j++;
+                    }
+                }
+                values = merged;
+                cardinality = length;
+                if (cardinality > ARRAY_MAX) {
+                    toBitset();
+                }
+            } else if (other.words == null) {
+                for (int i = 0; i < other.cardinality; i++) {
+                    add(other.values[i]);
+                }
+            } else {
+                if (words == null) {
+                    toBitset();
+                }
+                cardinality = 0;
+                for (int i = 0; i < WORDS; i++) {
+                    words[i] |= other.words[i];
+                    cardinality += Long.bitCount(words[i]);
+                }
+            }
+        }
+
+        /**
+         * Intersect with another container.
+         *
+         * @return New container of the values in both
+         */
+        Container and(Container other) {
+            Container result = new Container();
+            if (words != null && other.words != null) {
+                result.words = new long[WORDS];
+                for (int i = 0; i < WORDS; i++) {
+                    result.words[i] = words[i] & other.words[i];
+                    result.cardinality += Long.bitCount(result.words[i]);
+                }
+                if (result.cardinality <= ARRAY_MAX) {
+                    result.toArray();
+                }
+                return result;
+            }
+
+            // Keep the values of an array container found in the other one
+            Container array = words == null ? this : other;
+            Container lookup = array == this ? other : this;
+            result.values = new char[array.cardinality];
+            for (int i = 0; i < array.cardinality; i++) {
+                if (lookup.contains(array.values[i])) {
+                    result.values[result.cardinality++] = array.values[i];
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Deep copy of the container.
+         */
+        Container copy() {
+            Container copy = new Container();
+            copy.cardinality = cardinality;
+            copy.values = values == null ? null : Arrays.copyOf(values, values.length);
+            copy.words = words == null ? null : Arrays.copyOf(words, WORDS);
+            return copy;
+        }
+
+        /**
+         * Convert an array container to a bitset.
+         */
+        private void toBitset() {
+            words = new long[WORDS];
+            for (int i = 0; i < cardinality; i++) {
+                words[values[i] >>> 6] |= 1L << values[i];
+            }
+            values = null;
+        }
+
+        /**
+         * Convert a bitset container to an array.
+         */
+        private void toArray() {
+            values = new char[cardinality];
+            int length = 0;
+            for (int i = 0; i < WORDS; i++) {
+                for (long word = words[i]; word != 0; word &= word - 1) {
+                    values[length++] = (char) (i * 64 + Long.numberOfTrailingZeros(word));
+                }
+            }
+            words = null;
+        }
+    }
+}
@@ -19,7 +19,6 @@ package com.yahoo.hive.udf.funnel;
 import java.util.List;
 import java.util.Objects;
 import java.util.stream.Collectors;
-import org.apache.hadoop.hive.serde2.lazybinary.LazyBinaryArray;
 
 public class ListUtils {
     /**
@@ -43,21 +42,4 @@ public class ListUtils {
                    .filter(Objects::nonNull)
                    .collect(Collectors.toList());
     }
-
-    /**
-     * Cast an object to a list. Checks if it is a LazyBinaryArray or a
-     * regular list.
-     *
-     * @param object Input object to try and cast to a list.
-     * @return List of objects.
-     */
-    public static List<Object> toList(Object object) {
-        List<Object> result;
-        if (object instanceof LazyBinaryArray) {
-            result = ((LazyBinaryArray) object).getList();
-        } else {
-            result = (List<Object>) object;
-        }
-        return result;
-    }
 }
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2016 Yahoo Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.hive.udf.funnel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.hadoop.hive.serde2.objectinspector.ListObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
+
+/**
+ * Histogram of non negative values with logarithmic buckets. Bucket 0 holds
+ * 0, bucket i holds values in [BASE^(i-1), BASE^i). Quantiles are the
+ * middle of their bucket, so they are off by at most (BASE - 1) / 2 of the
+ * true value, about 5%. Histograms are merged by adding bucket counts, and
+ * there are at most MAX_BUCKETS buckets.
+ */
+class LogHistogram {
+    /** Ratio between the bounds of a bucket. */
+    static final double BASE = 1.1;
+
+    /** Buckets needed for Long.MAX_VALUE. */
+    static final int MAX_BUCKETS = bucket(Long.MAX_VALUE) + 1;
+
+    /** Bucket counts, grown as needed. */
+    long[] counts = new long[0];
+
+    /** Number of values added. */
+    long total;
+
+    /**
+     * Bucket of a value, negative values go in bucket 0.
+     *
+     * @param value Value
+     * @return Bucket index
+     */
+    static int bucket(long value) {
+        if (value <= 0) {
+            return 0;
+        }
+        return 1 + (int) Math.floor(Math.log(value) / Math.log(BASE));
+    }
+
+    /**
+     * Value representing a bucket, the middle of its bounds.
+     *
+     * @param bucket Bucket index
+     * @return Bucket value
+     */
+    static double value(int bucket) {
+        if (bucket == 0) {
+            return 0.0;
+        }
+        return (Math.pow(BASE, bucket - 1) + Math.pow(BASE, bucket)) / 2;
+    }
+
+    /**
+     * Add a value.
+     *
+     * @param value Value
+     * @param count Number of times to add it
+     */
+    public void add(long value, long count) {
+        addToBucket(bucket(value), count);
+    }
+
+    /**
+     * Add to a bucket count, growing the buckets if needed.
+     */
+    private void addToBucket(int bucket, long count) {
+        if (bucket >= counts.length) {
+            counts = Arrays.copyOf(counts, Math.min(MAX_BUCKETS, Math.max(bucket + 1, counts.length * 2)));
+        }
+        counts[bucket] += count;
+        total += count;
+    }
+
+    /**
+     * Merge a serialized histogram, read through its object inspector.
+     *
+     * @param listObjectInspector Histogram list object inspector
+     * @param histogram Histogram list object
+     */
+    public void merge(ListObjectInspector listObjectInspector, Object histogram) {
+        PrimitiveObjectInspector countObjectInspector = (PrimitiveObjectInspector) listObjectInspector.getListElementObjectInspector();
+        int length = Math.min(listObjectInspector.getListLength(histogram), MAX_BUCKETS);
+        for (int i = length - 1; i >= 0; i--) {
+            long count = PrimitiveObjectInspectorUtils.getLong(listObjectInspector.getListElement(histogram, i), countObjectInspector);
+            if (count != 0) {
+                addToBucket(i, count);
+            }
+        }
+    }
+
+    /**
+     * Estimate a quantile.
+     *
+     * @param quantile Quantile, between 0 and 1
+     * @return Estimated value, or null if the histogram is empty
+     */
+    public Double quantile(double quantile) {
+        if (total == 0) {
+            return null;
+        }
+        // Rank of the value, 1 based
+        long rank = Math.max(1L, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return value(i);
+            }
+        }
+        return value(counts.length - 1);
+    }
+
+    /**
+     * Serialize the bucket counts, without the empty buckets at the end.
+     *
+     * @return List of bucket counts
+     */
+    public List<Long> serialize() {
+        int length = counts.length;
+        while (length > 0 && counts[length - 1] == 0) {
+            length--;
+        }
+        List<Long> serialized = new ArrayList<>(length);
+        for (int i = 0; i < length; i++) {
+            serialized.add(counts[i]);
+        }
+        return serialized;
+    }
+}
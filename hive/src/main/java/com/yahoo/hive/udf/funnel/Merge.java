@@ -0,0 +1,375 @@
+/*
+ * Copyright 2016 Yahoo Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.hive.udf.funnel;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.MapredContext;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentLengthException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.parse.SemanticException;
+import org.apache.hadoop.hive.ql.parse.WindowingSpec.BoundarySpec;
+import org.apache.hadoop.hive.ql.parse.WindowingSpec.Direction;
+import org.apache.hadoop.hive.ql.plan.ptf.BoundaryDef;
+import org.apache.hadoop.hive.ql.plan.ptf.WindowFrameDef;
+import org.apache.hadoop.hive.ql.udf.UDFType;
+import org.apache.hadoop.hive.ql.udf.generic.AbstractGenericUDAFResolver;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFParameterInfo;
+import org.apache.hadoop.hive.ql.udf.generic.ISupportStreamingModeForWindowing;
+import org.apache.hadoop.hive.serde2.objectinspector.ConstantObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ListObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.StructField;
+import org.apache.hadoop.hive.serde2.objectinspector.StructObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.DoubleObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.typeinfo.ListTypeInfo;
+import org.apache.hadoop.hive.serde2.typeinfo.PrimitiveTypeInfo;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+
+@UDFType(deterministic = true)
+@Description(name = "merge_funnel",
+             value = "_FUNC_(funnel_column, [sample_rate]) - Merges funnels. Use with funnel UDF.",
+             extended = "With the sample rate of the funnels, returns struct<funnel, sample_rate>, the funnel scaled up by the rate.\n" +
+                        "Example: SELECT merge_funnel(funnel)\n" +
+                        "         FROM (SELECT funnel(action, timestamp, array('signup_page', 'email_signup'), \n" +
+                        "                                                array('confirm_button'),\n" +
+                        "                                                array('submit_button')) AS funnel\n" +
+                        "               FROM table\n" +
+                        "               GROUP BY user_id) t;")
+public class Merge extends AbstractGenericUDAFResolver {
+    static final Log LOG = LogFactory.getLog(Merge.class.getName());
+
+    @Override
+    public MergeEvaluator getEvaluator(GenericUDAFParameterInfo info) throws SemanticException {
+        // Get the parameters
+        TypeInfo [] parameters = info.getParameters();
+
+        // Check number of arguments
+        // A second parameter can only be the sample rate, funnels are merged one column at a time
+        if (parameters.length != 1 && (parameters.length != 2 || parameters[1].getCategory() != ObjectInspector.Category.PRIMITIVE)) {
+            throw new UDFArgumentLengthException("Please specify the funnel column, and maybe the sample rate.");
+        }
+
+        // Check that the sample rate is a number
+        if (parameters.length == 2 && !isRateType(parameters[1])) {
+            throw new UDFArgumentTypeException(1, "A double sample rate should be passed, but " + parameters[1].getTypeName() + " was passed instead.");
+        }
+
+        // Check if the parameter is not a list
+        if (parameters[0].getCategory() != ObjectInspector.Category.LIST) {
+            throw new UDFArgumentTypeException(0, "Only list type arguments are accepted but " + parameters[0].getTypeName() + " was passed as the first parameter.");
+        }
+
+        // Check that the list is an array of primitives
+        if (((ListTypeInfo) parameters[0]).getListElementTypeInfo().getCategory() != ObjectInspector.Category.PRIMITIVE) {
+            throw new UDFArgumentTypeException(0, "A long array argument should be passed, but " + parameters[0].getTypeName() + " was passed instead.");
+        }
+
+        // Check that the list is of type long
+        // May want to add support for int/double/float later
+        switch (((PrimitiveTypeInfo) ((ListTypeInfo) parameters[0]).getListElementTypeInfo()).getPrimitiveCategory()) {
+            case LONG:
+                break;
+            default:
+                throw new UDFArgumentTypeException(0, "A long array argument should be passed, but " + parameters[0].getTypeName() + " was passed instead.");
+        }
+
+        return new MergeEvaluator();
+    }
+
+    /**
+     * Check if a parameter type is a sample rate.
+     */
+    private static boolean isRateType(TypeInfo typeInfo) {
+        if (typeInfo.getCategory() != ObjectInspector.Category.PRIMITIVE) {
+            return false;
+        }
+        switch (((PrimitiveTypeInfo) typeInfo).getPrimitiveCategory()) {
+            case FLOAT:
+            case DOUBLE:
+            case DECIMAL:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    public static class MergeEvaluator extends GenericUDAFEvaluator {
+        /** Funnel key constant. */
+        private static final String FUNNEL = "funnel";
+
+        /** Sample rate key constant. */
+        private static final String SAMPLE_RATE = "sample_rate";
+
+        /** Input list object inspector. Used during iterate and merge. */
+        private ListObjectInspector listObjectInspector;
+
+        /** Sample rate of the funnels, from the parameters or the partials. 0 if not sampled. */
+        private double sampleRate;
+
+        /** Sampled partial struct object inspector. For PARTIAL2 and FINAL. */
+        private StructObjectInspector partialObjectInspector;
+
+        /** For PARTIAL2 and FINAL, when sampled. */
+        private StructField funnelField;
+
+        /** For PARTIAL2 and FINAL, when sampled. */
+        private StructField sampleRateField;
+
+        /** Task counters. */
+        private final TaskCounters counters = new TaskCounters(Merge.class.getName());
+
+        @Override
+        public void configure(MapredContext mapredContext) {
+            counters.configure(mapredContext);
+        }
+
+        @Override
+        public void close() throws IOException {
+            counters.flush();
+        }
+
+        @Override
+        public ObjectInspector init(Mode mode, ObjectInspector[] parameters) throws HiveException {
+            super.init(mode, parameters);
+
+            // Setup the list object inspector, elements are read as longs
+            sampleRate = 0;
+            partialObjectInspector = null;
+            if (parameters[0].getCategory() == ObjectInspector.Category.STRUCT) {
+                // Sampled partials, the sample rate travels with the funnel
+                partialObjectInspector = (StructObjectInspector) parameters[0];
+                funnelField = partialObjectInspector.getStructFieldRef(FUNNEL);
+                sampleRateField = partialObjectInspector.getStructFieldRef(SAMPLE_RATE);
+                listObjectInspector = (ListObjectInspector) funnelField.getFieldObjectInspector();
+            } else {
+                listObjectInspector = (ListObjectInspector) parameters[0];
+            }
+            if ((mode == Mode.PARTIAL1 || mode == Mode.COMPLETE) && parameters.length > 1) {
+                sampleRate = constantSampleRate(parameters[1]);
+            }
+
+            // Will return a list of longs, with the sample rate if sampled
+            ObjectInspector funnelObjectInspector = ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaLongObjectInspector);
+            if (!isSampled()) {
+                return funnelObjectInspector;
+            }
+            return ObjectInspectorFactory.getStandardStructObjectInspector(Arrays.asList(FUNNEL, SAMPLE_RATE),
+                                                                           Arrays.asList(funnelObjectInspector, PrimitiveObjectInspectorFactory.javaDoubleObjectInspector));
+        }
+
+        /**
+         * Read the constant sample rate.
+         *
+         * @param parameter Sample rate object inspector
+         * @return Sample rate, in (0, 1]
+         */
+        private static double constantSampleRate(ObjectInspector parameter) throws HiveException {
+            if (!(parameter instanceof ConstantObjectInspector)) {
+                throw new UDFArgumentTypeException(1, "The sample rate should be a constant.");
+            }
+            Object value = ((ConstantObjectInspector) parameter).getWritableConstantValue();
+            double rate = value == null ? 0 : PrimitiveObjectInspectorUtils.getDouble(value, (PrimitiveObjectInspector) parameter);
+            if (!(rate > 0 && rate <= 1)) {
+                throw new UDFArgumentException("The sample rate should be in (0, 1], but " + value + " was passed.");
+            }
+            return rate;
+        }
+
+        @Override
+        public AggregationBuffer getNewAggregationBuffer() throws HiveException {
+            return new MergeAggregateBuffer();
+        }
+
+        @Override
+        public void iterate(AggregationBuffer aggregate, Object[] parameters) throws HiveException {
+            counters.increment(FunnelCounter.ROWS_SEEN, 1);
+            Object parameter = parameters[0];
+            // If not null
+            if (parameter != null) {
+                // Add the funnel to the funnel aggregate
+                MergeAggregateBuffer funnelAggregate = (MergeAggregateBuffer) aggregate;
+                funnelAggregate.addFunnel(listObjectInspector, parameter);
+            }
+        }
+
+        @Override
+        public void merge(AggregationBuffer aggregate, Object partial) throws HiveException {
+            if (partial != null) {
+                // Sampled partials have the sample rate
+                Object funnel = partial;
+                if (partialObjectInspector != null) {
+                    funnel = partialObjectInspector.getStructFieldData(partial, funnelField);
+                    Object rate = partialObjectInspector.getStructFieldData(partial, sampleRateField);
+                    if (rate != null) {
+                        sampleRate = ((DoubleObjectInspector) sampleRateField.getFieldObjectInspector()).get(rate);
+                    }
+                }
+
+                // Add the partial results to the funnel aggregate, without converting them to a list
+                MergeAggregateBuffer funnelAggregate = (MergeAggregateBuffer) aggregate;
+                funnelAggregate.addFunnel(listObjectInspector, funnel);
+                counters.increment(FunnelCounter.PARTIALS_MERGED, 1);
+            }
+        }
+
+        @Override
+        public void reset(AggregationBuffer aggregate) throws HiveException {
+            MergeAggregateBuffer funnelAggregate = (MergeAggregateBuffer) aggregate;
+            funnelAggregate.clear();
+        }
+
+        @Override
+        public Object terminate(AggregationBuffer aggregate) throws HiveException {
+            MergeAggregateBuffer funnelAggregate = (MergeAggregateBuffer) aggregate;
+            if (!isSampled()) {
+                return funnelAggregate.output();
+            }
+            // Scale the sampled funnel up to all the groups
+            List<Long> funnel = funnelAggregate.output();
+            if (sampleRate > 0) {
+                funnel.replaceAll(count -> Math.round(count / sampleRate));
+            }
+            return Arrays.asList(funnel, sampleRate > 0 ? sampleRate : null);
+        }
+
+        @Override
+        public Object terminatePartial(AggregationBuffer aggregate) throws HiveException {
+            MergeAggregateBuffer funnelAggregate = (MergeAggregateBuffer) aggregate;
+            // Each funnel step is a long
+            counters.increment(FunnelCounter.PARTIAL_BYTES_EMITTED, funnelAggregate.size * 8L);
+            if (isSampled()) {
+                // The unscaled funnel, and the sample rate as a double
+                counters.increment(FunnelCounter.PARTIAL_BYTES_EMITTED, 8L);
+                return Arrays.asList(funnelAggregate.output(), sampleRate > 0 ? sampleRate : null);
+            }
+            return funnelAggregate.output();
+        }
+
+        /**
+         * Check if the funnels are sampled, from the parameters or the
+         * partials.
+         */
+        private boolean isSampled() {
+            return sampleRate > 0 || partialObjectInspector != null;
+        }
+
+        @Override
+        public GenericUDAFEvaluator getWindowingEvaluator(WindowFrameDef windowFrame) {
+            // Sampled funnels are scaled by the non streaming evaluator
+            if (isSampled()) {
+                return null;
+            }
+            BoundaryDef start = windowFrame.getStart();
+            BoundaryDef end = windowFrame.getEnd();
+
+            // Only frames from a preceding (or unbounded preceding) row to a following row can stream
+            if (start.getDirection() == Direction.FOLLOWING || end.getDirection() == Direction.PRECEDING || end.getAmt() == BoundarySpec.UNBOUNDED_AMOUNT) {
+                return null;
+            }
+            int preceding = start.getAmt() == BoundarySpec.UNBOUNDED_AMOUNT ? -1 : start.getAmt();
+            return new MergeStreamingEvaluator(listObjectInspector, preceding, end.getAmt());
+        }
+    }
+
+    /**
+     * Streaming evaluator for funnel_merge over a window frame. Each row
+     * adds its funnel to the window sum and subtracts the one leaving the
+     * frame, instead of merging the whole frame again.
+     */
+    public static class MergeStreamingEvaluator extends GenericUDAFEvaluator implements ISupportStreamingModeForWindowing {
+        /** Input list object inspector, from the evaluator being streamed. */
+        private final ListObjectInspector listObjectInspector;
+
+        /** Rows before the current row in the frame, or -1 if unbounded. */
+        private final int preceding;
+
+        /** Rows after the current row in the frame. */
+        private final int following;
+
+        MergeStreamingEvaluator(ListObjectInspector listObjectInspector, int preceding, int following) {
+            this.listObjectInspector = listObjectInspector;
+            this.preceding = preceding;
+            this.following = following;
+        }
+
+        @Override
+        public ObjectInspector init(Mode mode, ObjectInspector[] parameters) throws HiveException {
+            super.init(mode, parameters);
+            return ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaLongObjectInspector);
+        }
+
+        @Override
+        public AggregationBuffer getNewAggregationBuffer() throws HiveException {
+            return new MergeWindowAggregateBuffer(preceding, following);
+        }
+
+        @Override
+        public void reset(AggregationBuffer aggregate) throws HiveException {
+            ((MergeWindowAggregateBuffer) aggregate).clear();
+        }
+
+        @Override
+        public void aggregate(AggregationBuffer aggregate, Object[] parameters) throws HiveException {
+            // Windowing always iterates over rows
+            iterate(aggregate, parameters);
+        }
+
+        @Override
+        public void iterate(AggregationBuffer aggregate, Object[] parameters) throws HiveException {
+            ((MergeWindowAggregateBuffer) aggregate).addRow(listObjectInspector, parameters[0]);
+        }
+
+        @Override
+        public Object terminatePartial(AggregationBuffer aggregate) throws HiveException {
+            throw new HiveException(getClass().getSimpleName() + ": terminatePartial not supported");
+        }
+
+        @Override
+        public void merge(AggregationBuffer aggregate, Object partial) throws HiveException {
+            throw new HiveException(getClass().getSimpleName() + ": merge not supported");
+        }
+
+        @Override
+        public Object terminate(AggregationBuffer aggregate) throws HiveException {
+            // Results of the last rows are returned by getNextResult
+            ((MergeWindowAggregateBuffer) aggregate).finish();
+            return null;
+        }
+
+        @Override
+        public Object getNextResult(AggregationBuffer aggregate) throws HiveException {
+            return ((MergeWindowAggregateBuffer) aggregate).results.poll();
+        }
+
+        @Override
+        public int getRowsRemainingAfterTerminate() throws HiveException {
+            return following;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2016 Yahoo Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.hive.udf.funnel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.AggregationBuffer;
+import org.apache.hadoop.hive.serde2.objectinspector.ListObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.LongObjectInspector;
+
+/**
+ * Merges funnels into an aggregate. Counts are kept in a long array, so
+ * adding a funnel doesn't box.
+ */
+class MergeAggregateBuffer implements AggregationBuffer {
+    /** Stores funnel aggregate, only the first size elements are used. */
+    long[] elements = new long[0];
+
+    /** Funnel size, 0 until the first funnel is added. */
+    int size;
+
+    /**
+     * Add a funnel to the aggregate.
+     *
+     * @param funnel Funnel in the form of a list of longs.
+     */
+    public void addFunnel(List<Long> funnel) throws HiveException {
+        checkSize(funnel.size());
+        for (int i = 0; i < size; i++) {
+            elements[i] += funnel.get(i);
+        }
+    }
+
+    /**
+     * Add a funnel to the aggregate, reading the counts through the object
+     * inspectors.
+     *
+     * @param listObjectInspector Funnel list object inspector
+     * @param funnel Funnel list object
+     */
+    public void addFunnel(ListObjectInspector listObjectInspector, Object funnel) throws HiveException {
+        LongObjectInspector longObjectInspector = (LongObjectInspector) listObjectInspector.getListElementObjectInspector();
+        checkSize(listObjectInspector.getListLength(funnel));
+        for (int i = 0; i < size; i++) {
+            elements[i] += longObjectInspector.get(listObjectInspector.getListElement(funnel, i));
+        }
+    }
+
+    /**
+     * Add the first length counts of a funnel to the aggregate.
+     *
+     * @param funnel Funnel counts
+     * @param length Funnel size
+     */
+    public void addFunnel(long[] funnel, int length) throws HiveException {
+        checkSize(length);
+        for (int i = 0; i < size; i++) {
+            elements[i] += funnel[i];
+        }
+    }
+
+    /**
+     * Add a bitmap to the aggregate, counting one for each bit set among the
+     * first length bits.
+     *
+     * @param bitmap Bitmap, bit i counts for element i
+     * @param length Funnel size, at most 64
+     */
+    public void addBitmap(long bitmap, int length) throws HiveException {
+        checkSize(length);
+        for (long bits = bitmap; bits != 0; bits &= bits - 1) {
+            int i = Long.numberOfTrailingZeros(bits);
+            if (i >= size) {
+                break;
+            }
+            elements[i]++;
+        }
+    }
+
+    /**
+     * Remove the first length counts of a funnel that was added before.
+     *
+     * @param funnel Funnel counts
+     * @param length Funnel size
+     */
+    public void removeFunnel(long[] funnel, int length) {
+        for (int i = 0; i < length; i++) {
+            elements[i] -= funnel[i];
+        }
+    }
+
+    /**
+     * Set the funnel size on the first funnel, and check that other funnels
+     * have the same size.
+     *
+     * @param length Size of the funnel being added
+     */
+    private void checkSize(int length) throws HiveException {
+        // If empty, use the size of this funnel
+        if (size == 0) {
+            if (elements.length < length) {
+                elements = new long[length];
+            }
+            size = length;
+        } else if (size != length) {
+            // If the sizes don't match, throw an exception
+            throw new UDFArgumentTypeException(0, "Funnels must be of the same size to merge!");
+        }
+    }
+
+    /**
+     * Clear the aggregate.
+     */
+    public void clear() {
+        Arrays.fill(elements, 0, size, 0L);
+        size = 0;
+    }
+
+    /**
+     * Output aggregate. Must do a deep copy, and return a new list.
+     *
+     * @return Funnel aggregate counts.
+     */
+    public List<Long> output() {
+        List<Long> values = new ArrayList<Long>(size);
+        for (int i = 0; i < size; i++) {
+            values.add(elements[i]);
+        }
+        return values;
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2016 Yahoo Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.hive.udf.funnel;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.AbstractAggregationBuffer;
+import org.apache.hadoop.hive.serde2.objectinspector.ListObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.LongObjectInspector;
+
+/**
+ * Merges funnels over a sliding window of rows. The window sum is kept in a
+ * merge aggregate, funnels that leave the window are subtracted from it, so
+ * each row costs the same whatever the window size.
+ */
+class MergeWindowAggregateBuffer extends AbstractAggregationBuffer {
+    /** Funnels summed over the current window. */
+    final MergeAggregateBuffer window = new MergeAggregateBuffer();
+
+    /** Rows before the current row in the window, or -1 if unbounded. */
+    final int preceding;
+
+    /** Rows after the current row in the window. */
+    final int following;
+
+    /** Funnels of the last preceding + following + 1 rows, indexed by row. */
+    final long[][] rowFunnels;
+
+    /** Size of each funnel in rowFunnels, 0 for null funnels. */
+    final int[] rowSizes;
+
+    /** Results not yet returned, in row order. */
+    final Deque<Object> results = new ArrayDeque<>();
+
+    /** Number of non empty funnels in the window. */
+    int windowFunnels;
+
+    /** Number of rows added. */
+    int rows;
+
+    /** Number of results computed. */
+    int resultRows;
+
+    /**
+     * @param preceding Rows before the current row in the window, or -1 if unbounded
+     * @param following Rows after the current row in the window
+     */
+    MergeWindowAggregateBuffer(int preceding, int following) {
+        this.preceding = preceding;
+        this.following = following;
+        int stored = preceding < 0 ? 0 : preceding + following + 1;
+        rowFunnels = new long[stored][];
+        rowSizes = new int[stored];
+    }
+
+    /**
+     * Add the funnel of the next row, and compute the result of the row
+     * whose window is now complete.
+     *
+     * @param listObjectInspector Funnel list object inspector
+     * @param funnel Funnel list object, may be null
+     */
+    public void addRow(ListObjectInspector listObjectInspector, Object funnel) throws HiveException {
+        int length = funnel == null ? 0 : Math.max(listObjectInspector.getListLength(funnel), 0);
+        if (rowFunnels.length > 0) {
+            // The funnel that was stored in this slot is the one leaving the window
+            int slot = rows % rowFunnels.length;
+            if (rows >= rowFunnels.length) {
+                removeRow(slot);
+            }
+            storeRow(slot, listObjectInspector, funnel, length);
+            if (funnel != null) {
+                window.addFunnel(rowFunnels[slot], length);
+            }
+        } else if (funnel != null) {
+            window.addFunnel(listObjectInspector, funnel);
+        }
+        if (length > 0) {
+            windowFunnels++;
+        }
+        rows++;
+        if (rows > following) {
+            addResult();
+        }
+    }
+
+    /**
+     * Copy a row funnel into its slot, reusing the slot array.
+     */
+    private void storeRow(int slot, ListObjectInspector listObjectInspector, Object funnel, int length) {
+        if (rowFunnels[slot] == null || rowFunnels[slot].length < length) {
+            rowFunnels[slot] = new long[length];
+        }
+        LongObjectInspector longObjectInspector = (LongObjectInspector) listObjectInspector.getListElementObjectInspector();
+        for (int i = 0; i < length; i++) {
+            rowFunnels[slot][i] = longObjectInspector.get(listObjectInspector.getListElement(funnel, i));
+        }
+        rowSizes[slot] = length;
+    }
+
+    /**
+     * Remove the funnel stored in a slot from the window. A window left
+     * without funnels is cleared, so it merges like a new aggregate.
+     */
+    private void removeRow(int slot) {
+        if (rowSizes[slot] > 0) {
+            window.removeFunnel(rowFunnels[slot], rowSizes[slot]);
+            windowFunnels--;
+            if (windowFunnels == 0) {
+                window.clear();
+            }
+        }
+    }
+
+    /**
+     * Compute the results of the last rows, whose windows end with the
+     * partition.
+     */
+    public void finish() {
+        while (resultRows < rows) {
+            // The first row of the previous window leaves
+            int leaving = resultRows - preceding - 1;
+            if (rowFunnels.length > 0 && leaving >= 0) {
+                removeRow(leaving % rowFunnels.length);
+            }
+            addResult();
+        }
+    }
+
+    /**
+     * Queue the current window sum as the result of the next row.
+     */
+    private void addResult() {
+        results.add(window.output());
+        resultRows++;
+    }
+
+    /**
+     * Clear the aggregate.
+     */
+    public void clear() {
+        window.clear();
+        results.clear();
+        windowFunnels = 0;
+        rows = 0;
+        resultRows = 0;
+    }
+}
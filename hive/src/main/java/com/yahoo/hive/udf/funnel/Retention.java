@@ -0,0 +1,240 @@
+/*
+ * Copyright 2016 Yahoo Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.hive.udf.funnel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentLengthException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.parse.SemanticException;
+import org.apache.hadoop.hive.ql.udf.UDFType;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFParameterInfo;
+import org.apache.hadoop.hive.serde2.objectinspector.ConstantObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.StructField;
+import org.apache.hadoop.hive.serde2.objectinspector.StructObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.typeinfo.PrimitiveTypeInfo;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+
+@UDFType(deterministic = true)
+@Description(name = "retention",
+             value = "_FUNC_(action_column, timestamp_column, first_actions, return_actions, period_length) - Builds a retention bitmap of the periods a user came back in, after a first action. Should be used with retention_merge UDF.",
+             extended = "Bit 0 is set if the user did one of the first actions, bit i if the user did one of the return actions i periods later. Covers 64 periods.\n" +
+                        "Example: SELECT retention_merge(bitmap, 30)\n" +
+                        "         FROM (SELECT retention(action, timestamp, array('signup'), array('login', 'purchase'), 86400) AS bitmap\n" +
+                        "               FROM table\n" +
+                        "               GROUP BY user_id) t;")
+public class Retention extends Funnel {
+    static final Log LOG = LogFactory.getLog(Retention.class.getName());
+
+    @Override
+    public RetentionEvaluator getEvaluator(GenericUDAFParameterInfo info) throws SemanticException {
+        // Get the parameters
+        TypeInfo [] parameters = info.getParameters();
+
+        // Check number of arguments
+        if (parameters.length != 5) {
+            throw new UDFArgumentLengthException("Please specify the action column, the timestamp column, the first actions, the return actions, and the period length.");
+        }
+
+        // Same parameters as funnel with two steps, without the period length
+        checkParameters(Arrays.copyOf(parameters, 4), false);
+
+        // Periods need a numeric timestamp_column
+        FunnelTimed.checkTimestampType(parameters[1]);
+
+        // Check the period length type
+        if (parameters[4].getCategory() != ObjectInspector.Category.PRIMITIVE) {
+            throw new UDFArgumentTypeException(4, "An integer argument should be passed, but " + parameters[4].getTypeName() + " was passed instead.");
+        }
+        switch (((PrimitiveTypeInfo) parameters[4]).getPrimitiveCategory()) {
+            case BYTE:
+            case SHORT:
+            case INT:
+            case LONG:
+                break;
+            default:
+                throw new UDFArgumentTypeException(4, "An integer argument should be passed, but " + parameters[4].getTypeName() + " was passed instead.");
+        }
+
+        return new RetentionEvaluator();
+    }
+
+    public static class RetentionEvaluator extends FunnelEvaluator {
+        /** Period length key constant. */
+        private static final String PERIOD_LENGTH = "period_length";
+
+        /** Length of a period in timestamp units. For PARTIAL1 and COMPLETE. */
+        private long periodLength;
+
+        /** Object inspector of the timestamps in the aggregate. For FINAL and COMPLETE. */
+        private PrimitiveObjectInspector bufferedTimestampObjectInspector;
+
+        /** For PARTIAL2 and FINAL. */
+        private StructObjectInspector partialObjectInspector;
+
+        /** For PARTIAL2 and FINAL. */
+        private StructField periodLengthField;
+
+        @Override
+        public ObjectInspector init(Mode m, ObjectInspector[] parameters) throws HiveException {
+            ObjectInspector funnelObjectInspector = super.init(m, parameters);
+
+            switch (m) {
+                case PARTIAL1:
+                    setupPeriodLength(parameters[4]);
+
+                    // Will output structs
+                    return partialObjectInspector(funnelObjectInspector);
+                case PARTIAL2:
+                    setupPartialObjectInspector(parameters[0]);
+
+                    // Will output structs
+                    return partialObjectInspector(funnelObjectInspector);
+                case FINAL:
+                    setupPartialObjectInspector(parameters[0]);
+                    bufferedTimestampObjectInspector = FunnelTimed.bufferedTimestampObjectInspector(m, parameters);
+
+                    // Will output bitmaps
+                    return PrimitiveObjectInspectorFactory.javaLongObjectInspector;
+                case COMPLETE:
+                    setupPeriodLength(parameters[4]);
+                    bufferedTimestampObjectInspector = FunnelTimed.bufferedTimestampObjectInspector(m, parameters);
+
+                    // Will output bitmaps
+                    return PrimitiveObjectInspectorFactory.javaLongObjectInspector;
+                default:
+                    throw new HiveException("Unknown Mode: " + m.toString());
+            }
+        }
+
+        /**
+         * Store the period length, which has to be a constant.
+         *
+         * @param parameter Period length object inspector
+         */
+        private void setupPeriodLength(ObjectInspector parameter) throws HiveException {
+            if (!(parameter instanceof ConstantObjectInspector)) {
+                throw new UDFArgumentTypeException(4, "The period length should be a constant.");
+            }
+            Object value = ((ConstantObjectInspector) parameter).getWritableConstantValue();
+            periodLength = PrimitiveObjectInspectorUtils.getLong(value, (PrimitiveObjectInspector) parameter);
+            if (periodLength < 1) {
+                throw new UDFArgumentException("The period length should be at least 1, but " + periodLength + " was passed.");
+            }
+        }
+
+        /**
+         * Build the partial struct object inspector, the funnel partial
+         * struct with the period length added.
+         *
+         * @param funnelObjectInspector Funnel partial struct object inspector
+         * @return Partial struct object inspector
+         */
+        private ObjectInspector partialObjectInspector(ObjectInspector funnelObjectInspector) {
+            List<String> fieldNames = new ArrayList<>();
+            List<ObjectInspector> fieldInspectors = new ArrayList<>();
+            for (StructField field : ((StructObjectInspector) funnelObjectInspector).getAllStructFieldRefs()) {
+                // The period length is already there in PARTIAL2
+                if (!PERIOD_LENGTH.equals(field.getFieldName())) {
+                    fieldNames.add(field.getFieldName());
+                    fieldInspectors.add(field.getFieldObjectInspector());
+                }
+            }
+            fieldNames.add(PERIOD_LENGTH);
+            fieldInspectors.add(PrimitiveObjectInspectorFactory.javaLongObjectInspector);
+            return ObjectInspectorFactory.getStandardStructObjectInspector(fieldNames, fieldInspectors);
+        }
+
+        /**
+         * Store the partial struct object inspector and period length field.
+         *
+         * @param parameter Partial struct object inspector
+         */
+        private void setupPartialObjectInspector(ObjectInspector parameter) {
+            partialObjectInspector = (StructObjectInspector) parameter;
+            periodLengthField = partialObjectInspector.getStructFieldRef(PERIOD_LENGTH);
+        }
+
+        @Override
+        public AggregationBuffer getNewAggregationBuffer() throws HiveException {
+            RetentionAggregateBuffer retentionAggregate = new RetentionAggregateBuffer();
+            retentionAggregate.periodLength = periodLength;
+            if (bufferedTimestampObjectInspector != null) {
+                retentionAggregate.timestampClock = this::toLong;
+            }
+            return retentionAggregate;
+        }
+
+        /**
+         * Convert a buffered timestamp to a number, seconds for timestamps.
+         *
+         * @param timestamp Buffered timestamp
+         * @return Timestamp as a long
+         */
+        private long toLong(Object timestamp) {
+            return PrimitiveObjectInspectorUtils.getLong(timestamp, bufferedTimestampObjectInspector);
+        }
+
+        @Override
+        protected void setupParameters(ObjectInspector[] parameters) throws HiveException {
+            // The period length follows the funnel steps, there are no options
+            trailingParameters = 1;
+            setupSharedFunnel(parameters);
+        }
+
+        @Override
+        public void merge(AggregationBuffer aggregate, Object partial) throws HiveException {
+            super.merge(aggregate, partial);
+            RetentionAggregateBuffer retentionAggregate = (RetentionAggregateBuffer) aggregate;
+
+            // The period length comes with the partial
+            if (retentionAggregate.periodLength == 0) {
+                Object value = partialObjectInspector.getStructFieldData(partial, periodLengthField);
+                retentionAggregate.periodLength = PrimitiveObjectInspectorUtils.getLong(value, (PrimitiveObjectInspector) periodLengthField.getFieldObjectInspector());
+            }
+        }
+
+        @Override
+        public void reset(AggregationBuffer aggregate) throws HiveException {
+            super.reset(aggregate);
+            ((RetentionAggregateBuffer) aggregate).periodLength = periodLength;
+        }
+
+        @Override
+        public Object terminate(AggregationBuffer aggregate) throws HiveException {
+            return ((RetentionAggregateBuffer) aggregate).computeRetention();
+        }
+
+        @Override
+        public Object terminatePartial(AggregationBuffer aggregate) throws HiveException {
+            List<Object> partial = (List<Object>) super.terminatePartial(aggregate);
+            partial.add(((RetentionAggregateBuffer) aggregate).periodLength);
+            return partial;
+        }
+    }
+}
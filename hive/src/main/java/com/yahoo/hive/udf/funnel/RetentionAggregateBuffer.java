@@ -0,0 +1,66 @@
+/*
+ * Copyright 2016 Yahoo Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.hive.udf.funnel;
+
+import java.util.Set;
+
+/**
+ * Funnel aggregate that computes a retention bitmap. The first funnel step
+ * holds the first actions, the second one the return actions.
+ */
+class RetentionAggregateBuffer extends FunnelAggregateBuffer {
+    /** Number of periods in a retention bitmap. */
+    static final int MAX_PERIODS = Long.SIZE;
+
+    /** Length of a period in timestamp units, 0 until known. */
+    long periodLength;
+
+    /**
+     * Compute the retention bitmap. Bit 0 is set if the user did a first
+     * action, and bit i if the user did a return action i periods after the
+     * first action. Periods past MAX_PERIODS are dropped.
+     *
+     * @return Retention bitmap
+     */
+    public long computeRetention() {
+        if (funnelSteps.size() < 2) {
+            return 0L;
+        }
+        Set<Object> firstActions = funnelSteps.get(0);
+        Set<Object> returnActions = funnelSteps.get(1);
+        Integer[] sortedIndex = sortEvents();
+
+        long bitmap = 0L;
+        long first = 0L;
+        for (int index : sortedIndex) {
+            Object action = actions.get(index);
+            if (bitmap == 0L) {
+                // Look for the first action
+                if (firstActions.contains(action)) {
+                    first = timestampClock.applyAsLong(timestamps.get(index));
+                    bitmap = 1L;
+                }
+            } else if (returnActions.contains(action)) {
+                long period = (timestampClock.applyAsLong(timestamps.get(index)) - first) / periodLength;
+                if (period < MAX_PERIODS) {
+                    bitmap |= 1L << period;
+                }
+            }
+        }
+        return bitmap;
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2016 Yahoo Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.hive.udf.funnel;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentLengthException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.parse.SemanticException;
+import org.apache.hadoop.hive.ql.udf.UDFType;
+import org.apache.hadoop.hive.ql.udf.generic.AbstractGenericUDAFResolver;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFParameterInfo;
+import org.apache.hadoop.hive.serde2.objectinspector.ConstantObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ListObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.PrimitiveObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorUtils;
+import org.apache.hadoop.hive.serde2.typeinfo.PrimitiveTypeInfo;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+
+@UDFType(deterministic = true)
+@Description(name = "retention_merge",
+             value = "_FUNC_(bitmap_column, periods) - Merges retention bitmaps into a retention curve. Use with retention UDF.",
+             extended = "Returns an array of periods longs, the number of users active in each period. The first one is the cohort size.\n" +
+                        "Example: SELECT retention_merge(bitmap, 30)\n" +
+                        "         FROM (SELECT retention(action, timestamp, array('signup'), array('login', 'purchase'), 86400) AS bitmap\n" +
+                        "               FROM table\n" +
+                        "               GROUP BY user_id) t;")
+public class RetentionMerge extends AbstractGenericUDAFResolver {
+    static final Log LOG = LogFactory.getLog(RetentionMerge.class.getName());
+
+    @Override
+    public RetentionMergeEvaluator getEvaluator(GenericUDAFParameterInfo info) throws SemanticException {
+        // Get the parameters
+        TypeInfo [] parameters = info.getParameters();
+
+        // Check number of arguments
+        if (parameters.length != 2) {
+            throw new UDFArgumentLengthException("Please specify the retention bitmap column and the number of periods.");
+        }
+
+        // Check that the parameters are integers
+        for (int i = 0; i < parameters.length; i++) {
+            if (parameters[i].getCategory() != ObjectInspector.Category.PRIMITIVE) {
+                throw new UDFArgumentTypeException(i, "An integer argument should be passed, but " + parameters[i].getTypeName() + " was passed instead.");
+            }
+        }
+        switch (((PrimitiveTypeInfo) parameters[0]).getPrimitiveCategory()) {
+            case LONG:
+                break;
+            default:
+                throw new UDFArgumentTypeException(0, "A long argument should be passed, but " + parameters[0].getTypeName() + " was passed instead.");
+        }
+        switch (((PrimitiveTypeInfo) parameters[1]).getPrimitiveCategory()) {
+            case BYTE:
+            case SHORT:
+            case INT:
+            case LONG:
+                break;
+            default:
+                throw new UDFArgumentTypeException(1, "An integer argument should be passed, but " + parameters[1].getTypeName() + " was passed instead.");
+        }
+
+        return new RetentionMergeEvaluator();
+    }
+
+    public static class RetentionMergeEvaluator extends GenericUDAFEvaluator {
+        /** Bitmap object inspector. For PARTIAL1 and COMPLETE. */
+        private PrimitiveObjectInspector bitmapObjectInspector;
+
+        /** Number of periods in the curve. For PARTIAL1 and COMPLETE. */
+        private int periods;
+
+        /** Partial list object inspector. For PARTIAL2 and FINAL. */
+        private ListObjectInspector listObjectInspector;
+
+        @Override
+        public ObjectInspector init(Mode m, ObjectInspector[] parameters) throws HiveException {
+            super.init(m, parameters);
+
+            switch (m) {
+                case PARTIAL1:
+                case COMPLETE:
+                    bitmapObjectInspector = (PrimitiveObjectInspector) parameters[0];
+                    setupPeriods(parameters[1]);
+                    break;
+                case PARTIAL2:
+                case FINAL:
+                    // Partials are retention curves
+                    listObjectInspector = (ListObjectInspector) parameters[0];
+                    break;
+                default:
+                    throw new HiveException("Unknown Mode: " + m.toString());
+            }
+
+            // Will return a list of longs
+            return ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaLongObjectInspector);
+        }
+
+        /**
+         * Store the number of periods, which has to be a constant.
+         *
+         * @param parameter Number of periods object inspector
+         */
+        private void setupPeriods(ObjectInspector parameter) throws HiveException {
+            if (!(parameter instanceof ConstantObjectInspector)) {
+                throw new UDFArgumentTypeException(1, "The number of periods should be a constant.");
+            }
+            Object value = ((ConstantObjectInspector) parameter).getWritableConstantValue();
+            periods = PrimitiveObjectInspectorUtils.getInt(value, (PrimitiveObjectInspector) parameter);
+            if (periods < 1 || periods > RetentionAggregateBuffer.MAX_PERIODS) {
+                throw new UDFArgumentException("The number of periods should be between 1 and " + RetentionAggregateBuffer.MAX_PERIODS + ", but " + periods + " was passed.");
+            }
+        }
+
+        @Override
+        public AggregationBuffer getNewAggregationBuffer() throws HiveException {
+            return new MergeAggregateBuffer();
+        }
+
+        @Override
+        public void iterate(AggregationBuffer aggregate, Object[] parameters) throws HiveException {
+            Object parameter = parameters[0];
+            // If not null
+            if (parameter != null) {
+                MergeAggregateBuffer retentionAggregate = (MergeAggregateBuffer) aggregate;
+                retentionAggregate.addBitmap(PrimitiveObjectInspectorUtils.getLong(parameter, bitmapObjectInspector), periods);
+            }
+        }
+
+        @Override
+        public void merge(AggregationBuffer aggregate, Object partial) throws HiveException {
+            if (partial != null) {
+                // Add the partial curve to the aggregate, the same as a funnel
+                MergeAggregateBuffer retentionAggregate = (MergeAggregateBuffer) aggregate;
+                retentionAggregate.addFunnel(listObjectInspector, partial);
+            }
+        }
+
+        @Override
+        public void reset(AggregationBuffer aggregate) throws HiveException {
+            MergeAggregateBuffer retentionAggregate = (MergeAggregateBuffer) aggregate;
+            retentionAggregate.clear();
+        }
+
+        @Override
+        public Object terminate(AggregationBuffer aggregate) throws HiveException {
+            MergeAggregateBuffer retentionAggregate = (MergeAggregateBuffer) aggregate;
+            return retentionAggregate.output();
+        }
+
+        @Override
+        public Object terminatePartial(AggregationBuffer aggregate) throws HiveException {
+            return terminate(aggregate);
+        }
+    }
+}
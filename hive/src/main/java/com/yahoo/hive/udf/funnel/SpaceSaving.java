@@ -0,0 +1,158 @@
+/*
+ * Copyright 2016 Yahoo Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.hive.udf.funnel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Space-Saving top-k sketch. Keeps at most capacity counters, an item that
+ * isn't counted replaces the smallest counter. Each counter has a count and
+ * an error, the true count of the item is between count - error and count.
+ * Sketches are mergeable, merging keeps the same guarantee.
+ */
+class SpaceSaving {
+    /** Maximum number of counters. */
+    final int capacity;
+
+    /** Item to {count, error}. */
+    final Map<Object, long[]> counters = new HashMap<>();
+
+    /**
+     * @param capacity Maximum number of counters
+     */
+    SpaceSaving(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * A full sketch may have dropped items, with at most its smallest count.
+     *
+     * @return True if the sketch is full
+     */
+    public boolean isFull() {
+        return counters.size() >= capacity;
+    }
+
+    /**
+     * @return Smallest count, 0 if empty
+     */
+    public long minCount() {
+        long min = Long.MAX_VALUE;
+        for (long[] counter : counters.values()) {
+            min = Math.min(min, counter[0]);
+        }
+        return counters.isEmpty() ? 0 : min;
+    }
+
+    /**
+     * Add a counted item. Use add for items of the same sketch, and merge
+     * for other sketches.
+     *
+     * @param item Item, must be a standard object
+     * @param count Item count
+     * @param error Item count error
+     */
+    public void add(Object item, long count, long error) {
+        long[] counter = counters.get(item);
+        if (counter == null) {
+            counters.put(item, new long[]{count, error});
+        } else {
+            counter[0] += count;
+            counter[1] += error;
+        }
+    }
+
+    /**
+     * Merge another sketch. An item missing from a full sketch may have been
+     * dropped by it, so it is counted with the smallest count of that
+     * sketch, as an error.
+     *
+     * @param other Sketch to merge
+     */
+    public void merge(SpaceSaving other) {
+        long minCount = isFull() ? minCount() : 0;
+        long otherMinCount = other.isFull() ? other.minCount() : 0;
+        if (otherMinCount > 0) {
+            for (Map.Entry<Object, long[]> e : counters.entrySet()) {
+                if (!other.counters.containsKey(e.getKey())) {
+                    e.getValue()[0] += otherMinCount;
+                    e.getValue()[1] += otherMinCount;
+                }
+            }
+        }
+        for (Map.Entry<Object, long[]> e : other.counters.entrySet()) {
+            long[] counter = counters.get(e.getKey());
+            if (counter == null) {
+                counters.put(e.getKey(), new long[]{e.getValue()[0] + minCount, e.getValue()[1] + minCount});
+            } else {
+                counter[0] += e.getValue()[0];
+                counter[1] += e.getValue()[1];
+            }
+        }
+        trim();
+    }
+
+    /**
+     * Drop the smallest counters until the sketch fits its capacity.
+     */
+    private void trim() {
+        if (counters.size() <= capacity) {
+            return;
+        }
+        List<Map.Entry<Object, long[]>> entries = sortedEntries();
+        for (Map.Entry<Object, long[]> e : entries.subList(capacity, entries.size())) {
+            counters.remove(e.getKey());
+        }
+    }
+
+    /**
+     * Counters sorted on count descending, then item, so ties are stable.
+     */
+    private List<Map.Entry<Object, long[]>> sortedEntries() {
+        List<Map.Entry<Object, long[]>> entries = new ArrayList<>(counters.entrySet());
+        entries.sort(SpaceSaving::compareEntries);
+        return entries;
+    }
+
+    /**
+     * Order counters on count descending, then item.
+     */
+    private static int compareEntries(Map.Entry<Object, long[]> e1, Map.Entry<Object, long[]> e2) {
+        int result = Long.compare(e2.getValue()[0], e1.getValue()[0]);
+        if (result == 0) {
+            return ((Comparable) e1.getKey()).compareTo(e2.getKey());
+        }
+        return result;
+    }
+
+    /**
+     * Serialize the counters, largest count first.
+     *
+     * @return List of {item, count, error} lists
+     */
+    public List<Object> serialize() {
+        List<Object> serialized = new ArrayList<>(counters.size());
+        for (Map.Entry<Object, long[]> e : sortedEntries()) {
+            serialized.add(Arrays.asList(e.getKey(), e.getValue()[0], e.getValue()[1]));
+        }
+        return serialized;
+    }
+}
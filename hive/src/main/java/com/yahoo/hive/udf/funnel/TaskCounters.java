@@ -0,0 +1,121 @@
+/*
+ * Copyright 2016 Yahoo Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.hive.udf.funnel;
+
+import java.util.EnumSet;
+import java.util.Set;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hive.ql.exec.MapredContext;
+import org.apache.hadoop.mapred.Reporter;
+
+/**
+ * Accumulates funnel counters for a task. Counters are kept in a local array
+ * and only pushed to the Hadoop reporter on flush, so counting on the hot
+ * path is a plain array update. Hadoop sums counters over the tasks, so
+ * maxima are written to the task log instead.
+ */
+class TaskCounters {
+    static final Log LOG = LogFactory.getLog(TaskCounters.class.getName());
+
+    /** Counter group name shown in the job UI. */
+    private final String group;
+
+    /** Current counter values. */
+    private final long[] values = new long[FunnelCounter.values().length];
+
+    /** Counter values already pushed to the reporter. */
+    private final long[] published = new long[FunnelCounter.values().length];
+
+    /** Counters updated with max, logged instead of published. */
+    private final Set<FunnelCounter> maxima = EnumSet.noneOf(FunnelCounter.class);
+
+    /** Task context, null when running outside of a task. */
+    private MapredContext context;
+
+    TaskCounters(String group) {
+        this.group = group;
+    }
+
+    /**
+     * Set the task context used to look up the reporter.
+     *
+     * @param context Task context
+     */
+    public void configure(MapredContext context) {
+        this.context = context;
+    }
+
+    /**
+     * Increment a counter.
+     *
+     * @param counter Counter to increment
+     * @param amount Amount to add
+     */
+    public void increment(FunnelCounter counter, long amount) {
+        values[counter.ordinal()] += amount;
+    }
+
+    /**
+     * Raise a counter to value if it is larger than the current value. The
+     * counter is a maximum over the task, logged on flush.
+     *
+     * @param counter Counter to update
+     * @param value Candidate maximum
+     */
+    public void max(FunnelCounter counter, long value) {
+        values[counter.ordinal()] = Math.max(values[counter.ordinal()], value);
+        maxima.add(counter);
+    }
+
+    /**
+     * Get the current value of a counter.
+     *
+     * @param counter Counter to look up
+     * @return Counter value
+     */
+    public long get(FunnelCounter counter) {
+        return values[counter.ordinal()];
+    }
+
+    /**
+     * Push the counter changes since the last flush to the reporter, and
+     * log the maxima that changed. Only logs if there is no reporter.
+     */
+    public void flush() {
+        for (FunnelCounter counter : maxima) {
+            if (values[counter.ordinal()] != published[counter.ordinal()]) {
+                LOG.info(group + " " + counter.name() + " in this task: " + values[counter.ordinal()]);
+                published[counter.ordinal()] = values[counter.ordinal()];
+            }
+        }
+        Reporter reporter = context == null ? null : context.getReporter();
+        if (reporter == null) {
+            return;
+        }
+        for (FunnelCounter counter : FunnelCounter.values()) {
+            if (maxima.contains(counter)) {
+                continue;
+            }
+            long delta = values[counter.ordinal()] - published[counter.ordinal()];
+            if (delta != 0) {
+                reporter.incrCounter(group, counter.name(), delta);
+                published[counter.ordinal()] = values[counter.ordinal()];
+            }
+        }
+    }
+}
@@ -0,0 +1,306 @@
+/*
+ * Copyright 2016 Yahoo Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.hive.udf.funnel;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.AggregationBuffer;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.Mode;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDF.DeferredJavaObject;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDF.DeferredObject;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDF;
+import org.apache.hadoop.hive.ql.udf.generic.SimpleGenericUDAFParameterInfo;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Allocation regression tests. Measures the bytes allocated per call of the
+ * hot paths, and fails when a path allocates more than its budget. Budgets
+ * are in bytes per call, lower them when a path gets cheaper so it stays
+ * that way.
+ */
+public class AllocationTest {
+    /**
+     * Calls measured for the paths handling a row. A quarter as many are
+     * made before measuring, so the JIT has settled.
+     */
+    private static final int MEASURED_CALLS = 200000;
+
+    /**
+     * Events per group, buffers are reset after this many iterate calls.
+     * Larger than the Integer cache, so boxed event indexes are counted.
+     */
+    private static final int GROUP_SIZE = 1000;
+
+    /** Calls measured for the paths handling a whole group, each costs GROUP_SIZE rows. */
+    private static final int GROUP_MEASURED_CALLS = 2000;
+
+    /** Budget for funnel iterate with a matching action. */
+    private static final long FUNNEL_ITERATE_MATCH_BUDGET = 8L;
+
+    /** Budget for funnel iterate with a non matching action. */
+    private static final long FUNNEL_ITERATE_NO_MATCH_BUDGET = 8L;
+
+    /** Budget for funnel merge of a partial with GROUP_SIZE events. */
+    private static final long FUNNEL_MERGE_BUDGET = 8L;
+
+    /**
+     * Budget for funnel merge of a LazyBinary partial with GROUP_SIZE
+     * events. The serde reuses its objects, so each action and timestamp is
+     * copied.
+     */
+    private static final long FUNNEL_MERGE_LAZY_BINARY_BUDGET = 80L * GROUP_SIZE;
+
+    /**
+     * Budget for funnel terminate of a group with GROUP_SIZE events, mostly
+     * the boxed sort index.
+     */
+    private static final long FUNNEL_TERMINATE_BUDGET = 2048L + 24L * GROUP_SIZE;
+
+    /** Budget for funnel_merge iterate. */
+    private static final long MERGE_ITERATE_BUDGET = 8L;
+
+    /** Budget for funnel_merge merge. */
+    private static final long MERGE_MERGE_BUDGET = 8L;
+
+    /** Budget for funnel_merge terminate. */
+    private static final long MERGE_TERMINATE_BUDGET = 192L;
+
+    /** Budget for funnel_conversion evaluate. */
+    private static final long CONVERSION_BUDGET = 256L;
+
+    /** Budget for funnel_fallout evaluate. */
+    private static final long FALLOUT_BUDGET = 256L;
+
+    /** A hot path call. */
+    interface Call {
+        void run(int i) throws Exception;
+    }
+
+    private com.sun.management.ThreadMXBean threadMXBean;
+
+    @Before
+    public void setUp() {
+        Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threadMXBean.isThreadAllocatedMemorySupported());
+        threadMXBean.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    /**
+     * Measure the bytes allocated per call, after a quarter as many calls
+     * to warm up.
+     */
+    private long allocatedPerCall(Call call, int calls) throws Exception {
+        for (int i = 0; i < calls / 4; i++) {
+            call.run(i);
+        }
+        long threadId = Thread.currentThread().getId();
+        long start = threadMXBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < calls; i++) {
+            call.run(i);
+        }
+        return (threadMXBean.getThreadAllocatedBytes(threadId) - start) / calls;
+    }
+
+    /**
+     * Assert a call handling a row stays within its budget.
+     */
+    private void assertWithinBudget(String name, long budget, Call call) throws Exception {
+        assertWithinBudget(name, budget, MEASURED_CALLS, call);
+    }
+
+    /**
+     * Assert the call stays within its budget, measured over calls.
+     */
+    private void assertWithinBudget(String name, long budget, int calls, Call call) throws Exception {
+        long allocated = allocatedPerCall(call, calls);
+        Assert.assertTrue(name + " allocated " + allocated + " bytes per call, budget is " + budget, allocated <= budget);
+    }
+
+    private static ObjectInspector[] funnelInputObjectInspectors() {
+        return new ObjectInspector[]{
+            PrimitiveObjectInspectorFactory.javaStringObjectInspector,
+            PrimitiveObjectInspectorFactory.javaLongObjectInspector,
+            ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaStringObjectInspector),
+            ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaStringObjectInspector)
+        };
+    }
+
+    private static GenericUDAFEvaluator funnelEvaluator(Mode mode, ObjectInspector[] inspectors) throws Exception {
+        GenericUDAFEvaluator evaluator = new Funnel().getEvaluator(new SimpleGenericUDAFParameterInfo(funnelInputObjectInspectors(), false, false));
+        evaluator.init(mode, inspectors);
+        return evaluator;
+    }
+
+    /**
+     * Rows for funnel iterate, timestamps are preallocated so the caller
+     * doesn't allocate.
+     */
+    private static Object[][] funnelRows(String action) {
+        List<Object> step1 = Arrays.asList("alpha");
+        List<Object> step2 = Arrays.asList("beta");
+        Object[][] rows = new Object[GROUP_SIZE][];
+        for (int i = 0; i < GROUP_SIZE; i++) {
+            rows[i] = new Object[]{action, Long.valueOf(1000 + GROUP_SIZE - i), step1, step2};
+        }
+        return rows;
+    }
+
+    private void assertFunnelIterateWithinBudget(String name, long budget, String action) throws Exception {
+        GenericUDAFEvaluator evaluator = funnelEvaluator(Mode.COMPLETE, funnelInputObjectInspectors());
+        AggregationBuffer buffer = evaluator.getNewAggregationBuffer();
+        Object[][] rows = funnelRows(action);
+        assertWithinBudget(name, budget, i -> iterateGroup(evaluator, buffer, rows, i));
+    }
+
+    /**
+     * Iterate over the rows of a group, the buffer is reset at the start of
+     * each group.
+     */
+    private static void iterateGroup(GenericUDAFEvaluator evaluator, AggregationBuffer buffer, Object[][] rows, int i) throws Exception {
+        if (i % GROUP_SIZE == 0) {
+            evaluator.reset(buffer);
+        }
+        evaluator.iterate(buffer, rows[i % GROUP_SIZE]);
+    }
+
+    @Test
+    public void testFunnelIterateMatch() throws Exception {
+        assertFunnelIterateWithinBudget("funnel iterate, matching action", FUNNEL_ITERATE_MATCH_BUDGET, "alpha");
+    }
+
+    @Test
+    public void testFunnelIterateNoMatch() throws Exception {
+        assertFunnelIterateWithinBudget("funnel iterate, non matching action", FUNNEL_ITERATE_NO_MATCH_BUDGET, "gamma");
+    }
+
+    /**
+     * A PARTIAL1 funnel partial with GROUP_SIZE events.
+     */
+    private static Object funnelPartial() throws Exception {
+        GenericUDAFEvaluator evaluator = funnelEvaluator(Mode.PARTIAL1, funnelInputObjectInspectors());
+        AggregationBuffer buffer = evaluator.getNewAggregationBuffer();
+        evaluator.reset(buffer);
+        for (Object[] row : funnelRows("alpha")) {
+            evaluator.iterate(buffer, row);
+        }
+        return evaluator.terminatePartial(buffer);
+    }
+
+    @Test
+    public void testFunnelMerge() throws Exception {
+        ObjectInspector partialObjectInspector = funnelEvaluator(Mode.PARTIAL1, funnelInputObjectInspectors()).init(Mode.PARTIAL1, funnelInputObjectInspectors());
+        GenericUDAFEvaluator evaluator = funnelEvaluator(Mode.FINAL, new ObjectInspector[]{partialObjectInspector});
+        AggregationBuffer buffer = evaluator.getNewAggregationBuffer();
+        Object partial = funnelPartial();
+        assertWithinBudget("funnel merge", FUNNEL_MERGE_BUDGET, GROUP_MEASURED_CALLS, i -> resetAndMerge(evaluator, buffer, partial));
+    }
+
+    @Test
+    public void testFunnelMergeLazyBinary() throws Exception {
+        // The partial as the reducers read it, through the serde
+        FunnelSimulator.PartialChannel channel = new FunnelSimulator.PartialChannel(funnelEvaluator(Mode.PARTIAL1, funnelInputObjectInspectors()).init(Mode.PARTIAL1, funnelInputObjectInspectors()));
+        GenericUDAFEvaluator evaluator = funnelEvaluator(Mode.FINAL, new ObjectInspector[]{channel.getObjectInspector()});
+        AggregationBuffer buffer = evaluator.getNewAggregationBuffer();
+        Object partial = channel.deserialize(channel.serialize(funnelPartial()));
+        assertWithinBudget("funnel merge, LazyBinary partial", FUNNEL_MERGE_LAZY_BINARY_BUDGET, GROUP_MEASURED_CALLS, i -> resetAndMerge(evaluator, buffer, partial));
+    }
+
+    /**
+     * Merge a partial into an empty buffer.
+     */
+    private static void resetAndMerge(GenericUDAFEvaluator evaluator, AggregationBuffer buffer, Object partial) throws Exception {
+        evaluator.reset(buffer);
+        evaluator.merge(buffer, partial);
+    }
+
+    @Test
+    public void testFunnelTerminate() throws Exception {
+        GenericUDAFEvaluator evaluator = funnelEvaluator(Mode.COMPLETE, funnelInputObjectInspectors());
+        AggregationBuffer buffer = evaluator.getNewAggregationBuffer();
+        evaluator.reset(buffer);
+        for (Object[] row : funnelRows("alpha")) {
+            evaluator.iterate(buffer, row);
+        }
+        assertWithinBudget("funnel terminate", FUNNEL_TERMINATE_BUDGET, GROUP_MEASURED_CALLS, i -> evaluator.terminate(buffer));
+    }
+
+    private static GenericUDAFEvaluator mergeEvaluator(Mode mode) throws Exception {
+        ObjectInspector[] inspectors = new ObjectInspector[]{
+            ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaLongObjectInspector)
+        };
+        GenericUDAFEvaluator evaluator = new Merge().getEvaluator(new SimpleGenericUDAFParameterInfo(inspectors, false, false));
+        evaluator.init(mode, inspectors);
+        return evaluator;
+    }
+
+    /**
+     * A funnel with large counts, so values are outside of the Long cache.
+     */
+    private static List<Long> funnelCounts() {
+        return new ArrayList<>(Arrays.asList(100000L, 50000L, 25000L, 1000L));
+    }
+
+    @Test
+    public void testMergeIterate() throws Exception {
+        GenericUDAFEvaluator evaluator = mergeEvaluator(Mode.COMPLETE);
+        AggregationBuffer buffer = evaluator.getNewAggregationBuffer();
+        Object[] parameters = new Object[]{Arrays.asList(1L, 1L, 0L, 0L)};
+        assertWithinBudget("funnel_merge iterate", MERGE_ITERATE_BUDGET, i -> evaluator.iterate(buffer, parameters));
+    }
+
+    @Test
+    public void testMergeMerge() throws Exception {
+        GenericUDAFEvaluator evaluator = mergeEvaluator(Mode.FINAL);
+        AggregationBuffer buffer = evaluator.getNewAggregationBuffer();
+        Object partial = funnelCounts();
+        assertWithinBudget("funnel_merge merge", MERGE_MERGE_BUDGET, i -> evaluator.merge(buffer, partial));
+    }
+
+    @Test
+    public void testMergeTerminate() throws Exception {
+        GenericUDAFEvaluator evaluator = mergeEvaluator(Mode.FINAL);
+        AggregationBuffer buffer = evaluator.getNewAggregationBuffer();
+        evaluator.merge(buffer, funnelCounts());
+        assertWithinBudget("funnel_merge terminate", MERGE_TERMINATE_BUDGET, i -> evaluator.terminate(buffer));
+    }
+
+    private void assertEvaluateWithinBudget(String name, long budget, GenericUDF udf) throws Exception {
+        udf.initialize(new ObjectInspector[]{ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaLongObjectInspector)});
+        DeferredObject[] arguments = new DeferredObject[]{new DeferredJavaObject(funnelCounts())};
+        assertWithinBudget(name, budget, i -> udf.evaluate(arguments));
+    }
+
+    @Test
+    public void testConversion() throws Exception {
+        assertEvaluateWithinBudget("funnel_conversion evaluate", CONVERSION_BUDGET, new Conversion());
+    }
+
+    @Test
+    public void testFallout() throws Exception {
+        assertEvaluateWithinBudget("funnel_fallout evaluate", FALLOUT_BUDGET, new Fallout());
+    }
+}
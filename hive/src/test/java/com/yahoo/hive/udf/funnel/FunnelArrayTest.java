@@ -0,0 +1,191 @@
+/*
+ * Copyright 2016 Yahoo Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.hive.udf.funnel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentLengthException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDF.DeferredObject;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfoFactory;
+import org.apache.hadoop.io.Text;
+import org.junit.Assert;
+import org.junit.Test;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit test for FunnelArray.
+ */
+public class FunnelArrayTest {
+    /**
+     * Array of event structs object inspector.
+     */
+    private static ObjectInspector eventsObjectInspector() {
+        return ObjectInspectorFactory.getStandardListObjectInspector(
+            ObjectInspectorFactory.getStandardStructObjectInspector(Arrays.asList("action", "ts"),
+                                                                    Arrays.asList(PrimitiveObjectInspectorFactory.javaStringObjectInspector,
+                                                                                  PrimitiveObjectInspectorFactory.javaLongObjectInspector)));
+    }
+
+    /**
+     * Constant string funnel step.
+     */
+    private static ObjectInspector step(String value) {
+        return ObjectInspectorFactory.getStandardConstantListObjectInspector(PrimitiveObjectInspectorFactory.writableStringObjectInspector, Arrays.asList(new Text(value)));
+    }
+
+    /**
+     * Constant options string.
+     */
+    private static ObjectInspector options(String options) {
+        return PrimitiveObjectInspectorFactory.getPrimitiveWritableConstantObjectInspector(TypeInfoFactory.stringTypeInfo, new Text(options));
+    }
+
+    /**
+     * Build an array of events from actions and timestamps.
+     */
+    private static List<Object> events(Object... actionsAndTimestamps) {
+        List<Object> events = new ArrayList<>();
+        for (int i = 0; i < actionsAndTimestamps.length; i += 2) {
+            events.add(Arrays.asList(actionsAndTimestamps[i], actionsAndTimestamps[i + 1]));
+        }
+        return events;
+    }
+
+    /**
+     * Evaluate the funnel of the arguments.
+     */
+    private static Object evaluate(FunnelArray udf, Object... arguments) throws HiveException {
+        DeferredObject[] objs = new DeferredObject[arguments.length];
+        for (int i = 0; i < arguments.length; i++) {
+            objs[i] = mock(DeferredObject.class);
+            when(objs[i].get()).thenReturn(arguments[i]);
+        }
+        return udf.evaluate(objs);
+    }
+
+    @Test(expected = UDFArgumentLengthException.class)
+    public void testTooFewInputs() throws HiveException {
+        FunnelArray udf = new FunnelArray();
+        udf.initialize(new ObjectInspector[]{eventsObjectInspector()});
+    }
+
+    @Test(expected = UDFArgumentTypeException.class)
+    public void testNonListEvents() throws HiveException {
+        FunnelArray udf = new FunnelArray();
+        udf.initialize(new ObjectInspector[]{PrimitiveObjectInspectorFactory.javaStringObjectInspector, step("alpha")});
+    }
+
+    @Test(expected = UDFArgumentTypeException.class)
+    public void testNonListTimestamps() throws HiveException {
+        FunnelArray udf = new FunnelArray();
+        udf.initialize(new ObjectInspector[]{
+            ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaStringObjectInspector),
+            PrimitiveObjectInspectorFactory.javaLongObjectInspector,
+            step("alpha")
+        });
+    }
+
+    @Test(expected = UDFArgumentTypeException.class)
+    public void testFunnelStepTypeMismatch() throws HiveException {
+        FunnelArray udf = new FunnelArray();
+        udf.initialize(new ObjectInspector[]{
+            eventsObjectInspector(),
+            ObjectInspectorFactory.getStandardConstantListObjectInspector(PrimitiveObjectInspectorFactory.writableLongObjectInspector, Arrays.asList(1L))
+        });
+    }
+
+    @Test
+    public void testEvents() throws HiveException {
+        FunnelArray udf = new FunnelArray();
+        ObjectInspector outputObjectInspector = udf.initialize(new ObjectInspector[]{eventsObjectInspector(), step("alpha"), step("beta"), step("gamma")});
+        Assert.assertEquals(ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaLongObjectInspector), outputObjectInspector);
+
+        // Unsorted, with an event out of the funnel and a null event
+        List<Object> events = events("beta", 200L, "delta", 150L, "alpha", 100L);
+        events.add(null);
+        Assert.assertEquals(Arrays.asList(1L, 1L, 0L), evaluate(udf, events));
+
+        // The funnel is reset for each row
+        Assert.assertEquals(Arrays.asList(1L, 0L, 0L), evaluate(udf, events("beta", 100L, "alpha", 200L)));
+        Assert.assertEquals(Arrays.asList(0L, 0L, 0L), evaluate(udf, events()));
+        Assert.assertNull(evaluate(udf, (Object) null));
+    }
+
+    @Test
+    public void testParallelArrays() throws HiveException {
+        FunnelArray udf = new FunnelArray();
+        udf.initialize(new ObjectInspector[]{
+            ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaStringObjectInspector),
+            ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaLongObjectInspector),
+            step("alpha"),
+            step("beta")
+        });
+        Assert.assertEquals(Arrays.asList(1L, 1L), evaluate(udf, Arrays.asList("beta", "alpha"), Arrays.asList(200L, 100L)));
+
+        // The extra action has no timestamp
+        Assert.assertEquals(Arrays.asList(1L, 0L), evaluate(udf, Arrays.asList("alpha", "beta"), Arrays.asList(100L)));
+        Assert.assertEquals(Arrays.asList(0L, 0L), evaluate(udf, Arrays.asList("alpha", "beta"), null));
+    }
+
+    @Test
+    public void testUnordered() throws HiveException {
+        FunnelArray udf = new FunnelArray();
+        udf.initialize(new ObjectInspector[]{eventsObjectInspector(), step("alpha"), step("beta"), options("unordered")});
+        Assert.assertEquals(Arrays.asList(1L, 1L), evaluate(udf, events("beta", 100L, "alpha", 200L)));
+        Assert.assertEquals(Arrays.asList(0L, 0L), evaluate(udf, events("beta", 100L)));
+    }
+
+    @Test
+    public void testSessions() throws HiveException {
+        FunnelArray udf = new FunnelArray();
+        udf.initialize(new ObjectInspector[]{eventsObjectInspector(), step("alpha"), step("beta"), options("session_gap=10,sessions=sum")});
+        Assert.assertEquals(Arrays.asList(2L, 1L), evaluate(udf, events("alpha", 100L, "beta", 105L, "alpha", 200L)));
+    }
+
+    @Test
+    public void testPatterns() throws HiveException {
+        FunnelArray udf = new FunnelArray();
+        udf.initialize(new ObjectInspector[]{eventsObjectInspector(), step("prefix:product_"), step("buy"), options("patterns")});
+        Assert.assertEquals(Arrays.asList(1L, 1L), evaluate(udf, events("product_7", 100L, "buy", 200L)));
+    }
+
+    @Test
+    public void testSameAsFunnel() throws HiveException {
+        FunnelArray udf = new FunnelArray();
+        udf.initialize(new ObjectInspector[]{eventsObjectInspector(), step("alpha"), step("beta"), step("gamma")});
+        List<Object> events = events("alpha", 300L, "beta", 200L, "gamma", 400L, "beta", 350L);
+
+        FunnelAggregateBuffer funnelAggregate = new FunnelAggregateBuffer();
+        for (String value : Arrays.asList("alpha", "beta", "gamma")) {
+            funnelAggregate.funnelSteps.add(new HashSet<Object>(Arrays.asList(value)));
+            funnelAggregate.funnelSet.add(value);
+        }
+        for (Object event : events) {
+            funnelAggregate.actions.add(((List<?>) event).get(0));
+            funnelAggregate.timestamps.add(((List<?>) event).get(1));
+        }
+        Assert.assertEquals(funnelAggregate.computeFunnel(), evaluate(udf, events));
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2016 Yahoo Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.hive.udf.funnel;
+
+import java.util.Arrays;
+import java.util.List;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentLengthException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.AggregationBuffer;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.Mode;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFParameterInfo;
+import org.apache.hadoop.hive.ql.udf.generic.SimpleGenericUDAFParameterInfo;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class FunnelAttributedTest {
+    /** Input object inspectors, with two steps and a string attribute. */
+    private static final ObjectInspector[] INPUT_OBJECT_INSPECTORS = new ObjectInspector[]{
+        PrimitiveObjectInspectorFactory.javaStringObjectInspector, // action_column
+        PrimitiveObjectInspectorFactory.javaLongObjectInspector, // timestamp_column
+        ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaStringObjectInspector), // funnel_step_1
+        ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaStringObjectInspector), // funnel_step_2
+        PrimitiveObjectInspectorFactory.javaStringObjectInspector // attribute_column
+    };
+
+    /** Input row for an event. */
+    private static Object[] row(String action, long timestamp, String attribute) {
+        return new Object[]{action, timestamp, Arrays.asList("signup"), Arrays.asList("purchase"), attribute};
+    }
+
+    /** Attributed funnel of a single user in COMPLETE mode. */
+    private static List<Object> complete(Object[]... rows) throws HiveException {
+        FunnelAttributed udaf = new FunnelAttributed();
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(INPUT_OBJECT_INSPECTORS, false, false);
+        GenericUDAFEvaluator udafEvaluator = udaf.getEvaluator(paramInfo);
+        udafEvaluator.init(Mode.COMPLETE, INPUT_OBJECT_INSPECTORS);
+
+        AggregationBuffer agg = udafEvaluator.getNewAggregationBuffer();
+        udafEvaluator.reset(agg);
+        for (Object[] row : rows) {
+            udafEvaluator.iterate(agg, row);
+        }
+        return (List<Object>) udafEvaluator.terminate(agg);
+    }
+
+    @Test(expected = UDFArgumentLengthException.class)
+    public void testNoAttribute() throws HiveException {
+        FunnelAttributed udaf = new FunnelAttributed();
+        ObjectInspector[] inputObjectInspectorList = Arrays.copyOf(INPUT_OBJECT_INSPECTORS, 3);
+        udaf.getEvaluator(new SimpleGenericUDAFParameterInfo(inputObjectInspectorList, false, false));
+    }
+
+    @Test(expected = UDFArgumentTypeException.class)
+    public void testComplexAttribute() throws HiveException {
+        FunnelAttributed udaf = new FunnelAttributed();
+        ObjectInspector[] inputObjectInspectorList = Arrays.copyOf(INPUT_OBJECT_INSPECTORS, 5);
+        inputObjectInspectorList[4] = ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaStringObjectInspector);
+        udaf.getEvaluator(new SimpleGenericUDAFParameterInfo(inputObjectInspectorList, false, false));
+    }
+
+    @Test
+    public void testComplete() throws HiveException {
+        // The first signup in time wins, events that are not steps are ignored
+        List<Object> result = complete(row("purchase", 300L, "email"), row("signup", 200L, "search"),
+                                       row("browse", 100L, "ads"), row("signup", 250L, "email"));
+        Assert.assertEquals(Arrays.asList(1L, 1L), result.get(0));
+        Assert.assertEquals("search", result.get(1));
+    }
+
+    @Test
+    public void testCompleteNoFirstStep() throws HiveException {
+        List<Object> result = complete(row("purchase", 300L, "email"), row("browse", 100L, "ads"));
+        Assert.assertEquals(Arrays.asList(0L, 0L), result.get(0));
+        Assert.assertNull(result.get(1));
+    }
+
+    @Test
+    public void testPartials() throws Exception {
+        FunnelAttributed udaf = new FunnelAttributed();
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(INPUT_OBJECT_INSPECTORS, false, false);
+
+        // Two map side partials, sent through the serde
+        GenericUDAFEvaluator mapEvaluator = udaf.getEvaluator(paramInfo);
+        FunnelSimulator.PartialChannel channel = new FunnelSimulator.PartialChannel(mapEvaluator.init(Mode.PARTIAL1, INPUT_OBJECT_INSPECTORS));
+        AggregationBuffer agg1 = mapEvaluator.getNewAggregationBuffer();
+        mapEvaluator.reset(agg1);
+        mapEvaluator.iterate(agg1, row("signup", 200L, "search"));
+        mapEvaluator.iterate(agg1, row("purchase", 300L, "search"));
+        byte[] partial1 = channel.serialize(mapEvaluator.terminatePartial(agg1));
+        AggregationBuffer agg2 = mapEvaluator.getNewAggregationBuffer();
+        mapEvaluator.reset(agg2);
+        mapEvaluator.iterate(agg2, row("signup", 100L, "email"));
+        byte[] partial2 = channel.serialize(mapEvaluator.terminatePartial(agg2));
+
+        // Combine them, then finish on the reduce side
+        GenericUDAFEvaluator combineEvaluator = udaf.getEvaluator(paramInfo);
+        FunnelSimulator.PartialChannel combineChannel = new FunnelSimulator.PartialChannel(combineEvaluator.init(Mode.PARTIAL2, new ObjectInspector[]{channel.getObjectInspector()}));
+        AggregationBuffer combined = combineEvaluator.getNewAggregationBuffer();
+        combineEvaluator.reset(combined);
+        combineEvaluator.merge(combined, channel.deserialize(partial1));
+        combineEvaluator.merge(combined, channel.deserialize(partial2));
+        byte[] partial = combineChannel.serialize(combineEvaluator.terminatePartial(combined));
+
+        GenericUDAFEvaluator reduceEvaluator = udaf.getEvaluator(paramInfo);
+        reduceEvaluator.init(Mode.FINAL, new ObjectInspector[]{combineChannel.getObjectInspector()});
+        AggregationBuffer agg = reduceEvaluator.getNewAggregationBuffer();
+        reduceEvaluator.reset(agg);
+        reduceEvaluator.merge(agg, combineChannel.deserialize(partial));
+        List<Object> result = (List<Object>) reduceEvaluator.terminate(agg);
+        Assert.assertEquals(Arrays.asList(1L, 1L), result.get(0));
+        // Attributes through the serde are writables
+        Assert.assertEquals("email", result.get(1).toString());
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2016 Yahoo Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.hive.udf.funnel;
+
+import java.util.Arrays;
+import java.util.List;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentLengthException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.AggregationBuffer;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.Mode;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFParameterInfo;
+import org.apache.hadoop.hive.ql.udf.generic.SimpleGenericUDAFParameterInfo;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class FunnelBitmapMergeTest {
+    /** Input object inspectors. */
+    private static final ObjectInspector[] INPUT_OBJECT_INSPECTORS = new ObjectInspector[]{
+        FunnelBitmapMerge.bitmapsObjectInspector()
+    };
+
+    @Test(expected = UDFArgumentLengthException.class)
+    public void testInvalidNumberOfParams() throws HiveException {
+        FunnelBitmapMerge udaf = new FunnelBitmapMerge();
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(new ObjectInspector[0], false, false);
+        GenericUDAFEvaluator udafEvaluator = udaf.getEvaluator(paramInfo);
+    }
+
+    @Test(expected = UDFArgumentTypeException.class)
+    public void testInvalidBitmapsType() throws HiveException {
+        FunnelBitmapMerge udaf = new FunnelBitmapMerge();
+        ObjectInspector[] inputObjectInspectorList = new ObjectInspector[]{
+            ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaStringObjectInspector)
+        };
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(inputObjectInspectorList, false, false);
+        GenericUDAFEvaluator udafEvaluator = udaf.getEvaluator(paramInfo);
+    }
+
+    /**
+     * Serialized bitmap of user ids.
+     */
+    static byte[] bitmap(int... userIds) {
+        IntBitmap bitmap = new IntBitmap();
+        for (int userId : userIds) {
+            bitmap.add(userId);
+        }
+        return bitmap.serialize();
+    }
+
+    /**
+     * Merge rows in COMPLETE mode.
+     */
+    private static Object complete(Object... rows) throws HiveException {
+        FunnelBitmapMerge udaf = new FunnelBitmapMerge();
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(INPUT_OBJECT_INSPECTORS, false, false);
+        GenericUDAFEvaluator udafEvaluator = udaf.getEvaluator(paramInfo);
+        udafEvaluator.init(Mode.COMPLETE, INPUT_OBJECT_INSPECTORS);
+
+        AggregationBuffer agg = udafEvaluator.getNewAggregationBuffer();
+        udafEvaluator.reset(agg);
+        for (Object row : rows) {
+            udafEvaluator.iterate(agg, new Object[]{row});
+        }
+        return udafEvaluator.terminate(agg);
+    }
+
+    @Test
+    public void testComplete() throws HiveException {
+        // Two days of bitmaps
+        Object result = complete(Arrays.asList(bitmap(1, 2), bitmap(1)),
+                                 null,
+                                 Arrays.asList(bitmap(2, 3), null));
+
+        List<Object> merged = (List<Object>) result;
+        Assert.assertArrayEquals(bitmap(1, 2, 3), (byte[]) merged.get(0));
+        Assert.assertArrayEquals(bitmap(1), (byte[]) merged.get(1));
+    }
+
+    @Test(expected = UDFArgumentTypeException.class)
+    public void testStepsMismatch() throws HiveException {
+        complete(Arrays.asList(bitmap(1), bitmap(1)), Arrays.asList(bitmap(1)));
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2016 Yahoo Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.hive.udf.funnel;
+
+import java.util.Arrays;
+import java.util.List;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentLengthException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.AggregationBuffer;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.Mode;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFParameterInfo;
+import org.apache.hadoop.hive.ql.udf.generic.SimpleGenericUDAFParameterInfo;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class FunnelBitmapTest {
+    /** Input object inspectors. */
+    private static final ObjectInspector[] INPUT_OBJECT_INSPECTORS = new ObjectInspector[]{
+        PrimitiveObjectInspectorFactory.javaStringObjectInspector, // action_column
+        PrimitiveObjectInspectorFactory.javaLongObjectInspector,   // user_id_column
+        ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaStringObjectInspector), // funnel_step_1
+        ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaStringObjectInspector) // funnel_step_2
+    };
+
+    @Test(expected = UDFArgumentLengthException.class)
+    public void testInvalidNumberOfParams() throws HiveException {
+        FunnelBitmap udaf = new FunnelBitmap();
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(Arrays.copyOf(INPUT_OBJECT_INSPECTORS, 2), false, false);
+        GenericUDAFEvaluator udafEvaluator = udaf.getEvaluator(paramInfo);
+    }
+
+    @Test(expected = UDFArgumentTypeException.class)
+    public void testInvalidUserIdType() throws HiveException {
+        FunnelBitmap udaf = new FunnelBitmap();
+        ObjectInspector[] inputObjectInspectorList = Arrays.copyOf(INPUT_OBJECT_INSPECTORS, 4);
+        inputObjectInspectorList[1] = PrimitiveObjectInspectorFactory.javaStringObjectInspector;
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(inputObjectInspectorList, false, false);
+        GenericUDAFEvaluator udafEvaluator = udaf.getEvaluator(paramInfo);
+    }
+
+    @Test(expected = HiveException.class)
+    public void testUserIdTooLarge() throws HiveException {
+        FunnelBitmap udaf = new FunnelBitmap();
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(INPUT_OBJECT_INSPECTORS, false, false);
+        GenericUDAFEvaluator udafEvaluator = udaf.getEvaluator(paramInfo);
+        udafEvaluator.init(Mode.COMPLETE, INPUT_OBJECT_INSPECTORS);
+        AggregationBuffer agg = udafEvaluator.getNewAggregationBuffer();
+        udafEvaluator.iterate(agg, new Object[]{"alpha", 1L << 40, Arrays.asList("alpha"), Arrays.asList("beta")});
+    }
+
+    @Test
+    public void testUserIdUnsigned() throws HiveException {
+        FunnelBitmap udaf = new FunnelBitmap();
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(INPUT_OBJECT_INSPECTORS, false, false);
+        GenericUDAFEvaluator udafEvaluator = udaf.getEvaluator(paramInfo);
+        udafEvaluator.init(Mode.COMPLETE, INPUT_OBJECT_INSPECTORS);
+        AggregationBuffer agg = udafEvaluator.getNewAggregationBuffer();
+        udafEvaluator.reset(agg);
+        // Negative ids are members, the unsigned id with the same 32 bits is rejected
+        udafEvaluator.iterate(agg, new Object[]{"alpha", -1L, Arrays.asList("alpha"), Arrays.asList("beta")});
+        boolean rejected = false;
+        try {
+            udafEvaluator.iterate(agg, new Object[]{"alpha", 0xFFFFFFFFL, Arrays.asList("alpha"), Arrays.asList("beta")});
+        } catch (HiveException e) {
+            rejected = true;
+        }
+        Assert.assertTrue(rejected);
+        IntBitmap[] bitmaps = bitmaps(udafEvaluator.terminate(agg));
+        Assert.assertEquals(1L, bitmaps[0].cardinality());
+        Assert.assertTrue(bitmaps[0].contains(-1));
+    }
+
+    /**
+     * Deserialize the bitmaps of each funnel step.
+     */
+    private static IntBitmap[] bitmaps(Object result) throws HiveException {
+        List<Object> serialized = (List<Object>) result;
+        IntBitmap[] bitmaps = new IntBitmap[serialized.size()];
+        for (int i = 0; i < bitmaps.length; i++) {
+            bitmaps[i] = IntBitmap.deserialize((byte[]) serialized.get(i));
+        }
+        return bitmaps;
+    }
+
+    @Test
+    public void testComplete() throws HiveException {
+        FunnelBitmap udaf = new FunnelBitmap();
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(INPUT_OBJECT_INSPECTORS, false, false);
+        GenericUDAFEvaluator udafEvaluator = udaf.getEvaluator(paramInfo);
+        udafEvaluator.init(Mode.COMPLETE, INPUT_OBJECT_INSPECTORS);
+
+        // Process the data, events of all users in one group
+        AggregationBuffer agg = udafEvaluator.getNewAggregationBuffer();
+        udafEvaluator.reset(agg);
+        Object[][] events = {{"alpha", 1L}, {"beta", 1L}, {"alpha", 2L}, {"gamma", 3L}, {"beta", 3L}, {null, 4L}, {"alpha", null}};
+        for (Object[] event : events) {
+            udafEvaluator.iterate(agg, new Object[]{event[0], event[1], Arrays.asList("alpha"), Arrays.asList("beta", "gamma")});
+        }
+        IntBitmap[] bitmaps = bitmaps(udafEvaluator.terminate(agg));
+
+        Assert.assertEquals(2, bitmaps.length);
+        Assert.assertEquals(2L, bitmaps[0].cardinality());
+        Assert.assertTrue(bitmaps[0].contains(1) && bitmaps[0].contains(2));
+        Assert.assertEquals(2L, bitmaps[1].cardinality());
+        Assert.assertTrue(bitmaps[1].contains(1) && bitmaps[1].contains(3));
+    }
+
+    @Test
+    public void testPartials() throws Exception {
+        FunnelBitmap udaf = new FunnelBitmap();
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(INPUT_OBJECT_INSPECTORS, false, false);
+
+        // Two map side partials, sent through the serde
+        GenericUDAFEvaluator mapEvaluator = udaf.getEvaluator(paramInfo);
+        FunnelSimulator.PartialChannel channel = new FunnelSimulator.PartialChannel(mapEvaluator.init(Mode.PARTIAL1, INPUT_OBJECT_INSPECTORS));
+        AggregationBuffer agg1 = mapEvaluator.getNewAggregationBuffer();
+        mapEvaluator.reset(agg1);
+        mapEvaluator.iterate(agg1, new Object[]{"alpha", 1L, Arrays.asList("alpha"), Arrays.asList("beta")});
+        mapEvaluator.iterate(agg1, new Object[]{"alpha", 2L, Arrays.asList("alpha"), Arrays.asList("beta")});
+        byte[] partial1 = channel.serialize(mapEvaluator.terminatePartial(agg1));
+        AggregationBuffer agg2 = mapEvaluator.getNewAggregationBuffer();
+        mapEvaluator.reset(agg2);
+        mapEvaluator.iterate(agg2, new Object[]{"beta", 2L, Arrays.asList("alpha"), Arrays.asList("beta")});
+        byte[] partial2 = channel.serialize(mapEvaluator.terminatePartial(agg2));
+
+        // Merge them
+        GenericUDAFEvaluator reduceEvaluator = udaf.getEvaluator(paramInfo);
+        reduceEvaluator.init(Mode.FINAL, new ObjectInspector[]{channel.getObjectInspector()});
+        AggregationBuffer agg = reduceEvaluator.getNewAggregationBuffer();
+        reduceEvaluator.reset(agg);
+        reduceEvaluator.merge(agg, channel.deserialize(partial1));
+        reduceEvaluator.merge(agg, channel.deserialize(partial2));
+        IntBitmap[] bitmaps = bitmaps(reduceEvaluator.terminate(agg));
+
+        Assert.assertEquals(2L, bitmaps[0].cardinality());
+        Assert.assertEquals(1L, bitmaps[1].cardinality());
+        Assert.assertTrue(bitmaps[1].contains(2));
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2016 Yahoo Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.hive.udf.funnel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentLengthException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.AggregationBuffer;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.Mode;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFParameterInfo;
+import org.apache.hadoop.hive.ql.udf.generic.SimpleGenericUDAFParameterInfo;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.StructObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class FunnelDebugTest {
+    @Test(expected = UDFArgumentLengthException.class)
+    public void testInvalidNumberOfParams() throws HiveException {
+        FunnelDebug udaf = new FunnelDebug();
+        ObjectInspector[] inputObjectInspectorList = new ObjectInspector[]{
+            PrimitiveObjectInspectorFactory.javaLongObjectInspector
+        };
+
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(inputObjectInspectorList, false, false);
+        GenericUDAFEvaluator udafEvaluator = udaf.getEvaluator(paramInfo);
+    }
+
+    @Test
+    public void testComplete() throws HiveException {
+        FunnelDebug udaf = new FunnelDebug();
+
+        ObjectInspector[] inputObjectInspectorList = new ObjectInspector[]{
+            PrimitiveObjectInspectorFactory.javaStringObjectInspector, // action_column
+            PrimitiveObjectInspectorFactory.javaLongObjectInspector,   // timestamp_column
+            ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaStringObjectInspector), // funnel_step_1
+            ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaStringObjectInspector) // funnel_step_2
+        };
+
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(inputObjectInspectorList, false, false);
+        GenericUDAFEvaluator udafEvaluator = udaf.getEvaluator(paramInfo);
+
+        StructObjectInspector outputObjectInspector = (StructObjectInspector) udafEvaluator.init(Mode.COMPLETE, inputObjectInspectorList);
+
+        Object[] parameters1 = new Object[]{ "beta", 200L, Arrays.asList("beta"), Arrays.asList("gamma")};
+        Object[] parameters2 = new Object[]{"alpha", 100L, Arrays.asList("beta"), Arrays.asList("gamma")};
+        Object[] parameters3 = new Object[]{ "beta", 300L, Arrays.asList("beta"), Arrays.asList("gamma")};
+
+        // Process the data
+        AggregationBuffer agg = udafEvaluator.getNewAggregationBuffer();
+        udafEvaluator.reset(agg);
+        udafEvaluator.iterate(agg, parameters1);
+        udafEvaluator.iterate(agg, parameters2);
+        udafEvaluator.iterate(agg, parameters3);
+        List<Object> result = (List<Object>) udafEvaluator.terminate(agg);
+
+        Assert.assertEquals(Arrays.asList(1L, 0L), outputObjectInspector.getStructFieldData(result, outputObjectInspector.getStructFieldRef("funnel")));
+        Assert.assertEquals(2L, outputObjectInspector.getStructFieldData(result, outputObjectInspector.getStructFieldRef("events")));
+        Assert.assertEquals(1L, outputObjectInspector.getStructFieldData(result, outputObjectInspector.getStructFieldRef("distinct_actions")));
+        Assert.assertTrue((Long) outputObjectInspector.getStructFieldData(result, outputObjectInspector.getStructFieldRef("sort_nanos")) >= 0L);
+        Assert.assertTrue((Long) outputObjectInspector.getStructFieldData(result, outputObjectInspector.getStructFieldRef("compute_nanos")) >= 0L);
+        Assert.assertEquals(0L, outputObjectInspector.getStructFieldData(result, outputObjectInspector.getStructFieldRef("partials")));
+    }
+
+    @Test
+    public void testPartial1() throws HiveException {
+        FunnelDebug udaf = new FunnelDebug();
+
+        ObjectInspector[] inputObjectInspectorList = new ObjectInspector[]{
+            PrimitiveObjectInspectorFactory.javaStringObjectInspector, // action_column
+            PrimitiveObjectInspectorFactory.javaLongObjectInspector,   // timestamp_column
+            ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaStringObjectInspector) // funnel_step_1
+        };
+
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(inputObjectInspectorList, false, false);
+        GenericUDAFEvaluator udafEvaluator = udaf.getEvaluator(paramInfo);
+
+        ObjectInspector outputObjectInspector = udafEvaluator.init(Mode.PARTIAL1, inputObjectInspectorList);
+
+        // Process the data
+        AggregationBuffer agg = udafEvaluator.getNewAggregationBuffer();
+        udafEvaluator.reset(agg);
+        udafEvaluator.iterate(agg, new Object[]{"beta", 200L, Arrays.asList("beta")});
+        Object result = udafEvaluator.terminatePartial(agg);
+
+        // Expected partial output, a partial from iterate counts as one
+        List<Object> expected = new ArrayList<>();
+        expected.add(Arrays.asList("beta"));
+        expected.add(Arrays.asList(200L));
+        expected.add(Arrays.asList("beta", null));
+        expected.add(1L);
+
+        Assert.assertEquals(expected, result);
+    }
+
+    @Test
+    public void testFinal() throws HiveException {
+        FunnelDebug udaf = new FunnelDebug();
+
+        // Construct the object inspector for udaf evaluator
+        ObjectInspector[] inputObjectInspectorList = new ObjectInspector[]{
+            PrimitiveObjectInspectorFactory.javaStringObjectInspector, // action_column
+            PrimitiveObjectInspectorFactory.javaLongObjectInspector,   // timestamp_column
+            ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaStringObjectInspector) // funnel_step_1
+        };
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(inputObjectInspectorList, false, false);
+        GenericUDAFEvaluator udafEvaluator = udaf.getEvaluator(paramInfo);
+
+        // Construct the partial struct object inspector from PARTIAL1
+        ObjectInspector structObjectInspector = udaf.getEvaluator(paramInfo).init(Mode.PARTIAL1, inputObjectInspectorList);
+        StructObjectInspector outputObjectInspector = (StructObjectInspector) udafEvaluator.init(Mode.FINAL, new ObjectInspector[]{structObjectInspector});
+
+        // Create the two structs to merge, the first one already merged two partials
+        List<Object> parameter1 = Arrays.asList(Arrays.asList("alpha", "beta"), Arrays.asList(100L, 300L), Arrays.asList("alpha", null, "beta", null), 2L);
+        List<Object> parameter2 = Arrays.asList(Arrays.asList("beta"), Arrays.asList(200L), Arrays.asList("alpha", null, "beta", null), 1L);
+
+        // Process the data
+        AggregationBuffer agg = udafEvaluator.getNewAggregationBuffer();
+        udafEvaluator.reset(agg);
+        udafEvaluator.merge(agg, parameter1);
+        udafEvaluator.merge(agg, parameter2);
+        Object result = udafEvaluator.terminate(agg);
+
+        Assert.assertEquals(Arrays.asList(1L, 1L), outputObjectInspector.getStructFieldData(result, outputObjectInspector.getStructFieldRef("funnel")));
+        Assert.assertEquals(3L, outputObjectInspector.getStructFieldData(result, outputObjectInspector.getStructFieldRef("events")));
+        Assert.assertEquals(2L, outputObjectInspector.getStructFieldData(result, outputObjectInspector.getStructFieldRef("distinct_actions")));
+        Assert.assertEquals(3L, outputObjectInspector.getStructFieldData(result, outputObjectInspector.getStructFieldRef("partials")));
+    }
+}
@@ -0,0 +1,447 @@
+/*
+ * Copyright 2016 Yahoo Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.hive.udf.funnel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.AggregationBuffer;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.Mode;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDF.DeferredJavaObject;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDF.DeferredObject;
+import org.apache.hadoop.hive.ql.udf.generic.SimpleGenericUDAFParameterInfo;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.StructObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Randomized differential tests. Every way of computing a funnel must match
+ * the reference implementation of the funnel semantics on generated inputs:
+ * events sorted on timestamp then action, nulls dropped from events and
+ * steps, empty steps dropped, and actions shared by several steps.
+ */
+public class FunnelDifferentialTest {
+    /** Number of random cases per engine. */
+    private static final int CASES = 500;
+
+    /** Seed for the random cases, a failure reports the case number. */
+    private static final long SEED = 1234L;
+
+    /**
+     * A way of computing the funnel for a single group.
+     */
+    interface FunnelEngine {
+        List<Long> compute(Case input, Random random) throws Exception;
+    }
+
+    /**
+     * A generated group. Events are {action, timestamp}, actions are either
+     * all strings or all longs.
+     */
+    static class Case {
+        boolean longActions;
+
+        List<Object[]> events = new ArrayList<>();
+
+        List<List<Object>> funnelSteps = new ArrayList<>();
+
+        /** Pass the funnel steps as constants. */
+        boolean constantSteps;
+
+        /**
+         * Object inspectors for funnel(action, timestamp, step_1, ..., step_n).
+         */
+        ObjectInspector[] inputObjectInspectors() {
+            ObjectInspector actionObjectInspector = longActions ? PrimitiveObjectInspectorFactory.javaLongObjectInspector
+                                                                : PrimitiveObjectInspectorFactory.javaStringObjectInspector;
+            ObjectInspector[] inspectors = new ObjectInspector[2 + funnelSteps.size()];
+            inspectors[0] = actionObjectInspector;
+            inspectors[1] = PrimitiveObjectInspectorFactory.javaLongObjectInspector;
+            for (int i = 0; i < funnelSteps.size(); i++) {
+                inspectors[2 + i] = constantSteps ? ObjectInspectorFactory.getStandardConstantListObjectInspector(actionObjectInspector, funnelSteps.get(i))
+                                                  : ObjectInspectorFactory.getStandardListObjectInspector(actionObjectInspector);
+            }
+            return inspectors;
+        }
+
+        /**
+         * Parameters for iterate.
+         */
+        Object[] parameters(Object[] event) {
+            Object[] parameters = new Object[2 + funnelSteps.size()];
+            parameters[0] = event[0];
+            parameters[1] = event[1];
+            for (int i = 0; i < funnelSteps.size(); i++) {
+                parameters[2 + i] = funnelSteps.get(i);
+            }
+            return parameters;
+        }
+    }
+
+    /**
+     * Generate a random group. Small action and timestamp domains make
+     * collisions, shared actions and nulls common.
+     */
+    static Case generate(Random random) {
+        Case input = new Case();
+        input.longActions = random.nextBoolean();
+        int actions = 1 + random.nextInt(6);
+
+        int steps = 1 + random.nextInt(4);
+        for (int i = 0; i < steps; i++) {
+            List<Object> step = new ArrayList<>();
+            int stepSize = random.nextInt(4);
+            for (int j = 0; j < stepSize; j++) {
+                step.add(random.nextInt(8) == 0 ? null : action(input, random, actions));
+            }
+            input.funnelSteps.add(step);
+        }
+
+        // A group always has at least one row
+        int events = 1 + random.nextInt(40);
+        for (int i = 0; i < events; i++) {
+            Object action = random.nextInt(10) == 0 ? null : action(input, random, actions + 2);
+            Object timestamp = random.nextInt(10) == 0 ? null : (Object) (long) random.nextInt(20);
+            input.events.add(new Object[]{action, timestamp});
+        }
+        return input;
+    }
+
+    /**
+     * Same group, with the funnel steps passed as constants.
+     */
+    static Case constant(Case input) {
+        Case copy = new Case();
+        copy.longActions = input.longActions;
+        copy.events = input.events;
+        copy.funnelSteps = input.funnelSteps;
+        copy.constantSteps = true;
+        return copy;
+    }
+
+    /**
+     * Same group, with the first non empty funnel step padded with values
+     * that never occur, so the steps are matched with a fingerprint table.
+     */
+    static Case padded(Case input) {
+        Case copy = constant(input);
+        copy.constantSteps = input.constantSteps;
+        copy.funnelSteps = new ArrayList<>(input.funnelSteps);
+        for (int i = 0; i < copy.funnelSteps.size(); i++) {
+            List<Object> step = copy.funnelSteps.get(i);
+            if (step.stream().anyMatch(Objects::nonNull)) {
+                List<Object> paddedStep = new ArrayList<>(step);
+                for (int j = 0; j < FingerprintTable.MIN_VALUES; j++) {
+                    paddedStep.add(input.longActions ? (Object) (1000000L + j) : (Object) ("padding_" + j));
+                }
+                copy.funnelSteps.set(i, paddedStep);
+                break;
+            }
+        }
+        return copy;
+    }
+
+    private static Object action(Case input, Random random, int actions) {
+        int action = random.nextInt(actions);
+        return input.longActions ? (Object) (long) action : (Object) ("action_" + action);
+    }
+
+    /**
+     * Reference implementation of the funnel semantics.
+     */
+    static List<Long> reference(Case input) {
+        List<Set<Object>> steps = input.funnelSteps.stream()
+                                                   .map(step -> step.stream().filter(Objects::nonNull).collect(Collectors.toSet()))
+                                                   .filter(step -> !step.isEmpty())
+                                                   .collect(Collectors.toList());
+        Set<Object> all = new HashSet<>();
+        steps.forEach(all::addAll);
+
+        List<Object[]> events = input.events.stream()
+                                            .filter(e -> e[0] != null && e[1] != null && all.contains(e[0]))
+                                            .sorted(FunnelDifferentialTest::compareEvents)
+                                            .collect(Collectors.toList());
+
+        List<Long> result = new ArrayList<>(Collections.nCopies(steps.size(), 0L));
+        int step = 0;
+        for (Object[] event : events) {
+            if (step < steps.size() && steps.get(step).contains(event[0])) {
+                result.set(step++, 1L);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Order events on timestamp, then on action.
+     */
+    private static int compareEvents(Object[] e1, Object[] e2) {
+        int result = ((Comparable) e1[1]).compareTo(e2[1]);
+        return result != 0 ? result : ((Comparable) e1[0]).compareTo(e2[0]);
+    }
+
+    /**
+     * Run every case through the engine and compare with the reference.
+     */
+    private void check(FunnelEngine engine) throws Exception {
+        Random random = new Random(SEED);
+        for (int i = 0; i < CASES; i++) {
+            Case input = generate(random);
+            List<Long> expected = reference(input);
+            Assert.assertEquals("Case " + i, expected, engine.compute(input, random));
+        }
+    }
+
+    /**
+     * Shuffle the events, Hive gives no ordering guarantee.
+     */
+    private static List<Object[]> shuffled(Case input, Random random) {
+        List<Object[]> events = new ArrayList<>(input.events);
+        Collections.shuffle(events, random);
+        return events;
+    }
+
+    /**
+     * Funnel in COMPLETE mode.
+     */
+    static List<Long> complete(GenericUDAFEvaluator evaluator, Case input, Random random) throws Exception {
+        evaluator.init(Mode.COMPLETE, input.inputObjectInspectors());
+        AggregationBuffer buffer = evaluator.getNewAggregationBuffer();
+        evaluator.reset(buffer);
+        for (Object[] event : shuffled(input, random)) {
+            evaluator.iterate(buffer, input.parameters(event));
+        }
+        return (List<Long>) evaluator.terminate(buffer);
+    }
+
+    /**
+     * Funnel through PARTIAL1, PARTIAL2 and FINAL. Events are split into a
+     * random number of partials, partials are combined in random groups.
+     * With serde, all partials go through the LazyBinary serde, otherwise
+     * the standard partials are merged directly.
+     */
+    static Object partials(Funnel udaf, Case input, Random random, boolean serde) throws Exception {
+        ObjectInspector[] inspectors = input.inputObjectInspectors();
+        SimpleGenericUDAFParameterInfo info = new SimpleGenericUDAFParameterInfo(inspectors, false, false);
+
+        // PARTIAL1, each split is a map task
+        GenericUDAFEvaluator map = udaf.getEvaluator(info);
+        FunnelSimulator.PartialChannel mapOutput = new FunnelSimulator.PartialChannel(map.init(Mode.PARTIAL1, inspectors));
+        // A split without rows for the group doesn't output a partial
+        Map<Integer, AggregationBuffer> splitBuffers = new TreeMap<>();
+        int maxSplits = 1 + random.nextInt(4);
+        for (Object[] event : shuffled(input, random)) {
+            int split = random.nextInt(maxSplits);
+            AggregationBuffer buffer = splitBuffers.get(split);
+            if (buffer == null) {
+                buffer = map.getNewAggregationBuffer();
+                map.reset(buffer);
+                splitBuffers.put(split, buffer);
+            }
+            map.iterate(buffer, input.parameters(event));
+        }
+        List<AggregationBuffer> mapBuffers = new ArrayList<>(splitBuffers.values());
+        int splits = mapBuffers.size();
+
+        // PARTIAL2, partials are merged in random groups
+        GenericUDAFEvaluator combine = udaf.getEvaluator(info);
+        ObjectInspector mapOutputObjectInspector = serde ? mapOutput.getObjectInspector() : mapOutput.getInputObjectInspector();
+        FunnelSimulator.PartialChannel combineOutput = new FunnelSimulator.PartialChannel(combine.init(Mode.PARTIAL2, new ObjectInspector[]{mapOutputObjectInspector}));
+        int combiners = 1 + random.nextInt(splits);
+        List<AggregationBuffer> combineBuffers = new ArrayList<>();
+        for (int i = 0; i < combiners; i++) {
+            AggregationBuffer buffer = combine.getNewAggregationBuffer();
+            combine.reset(buffer);
+            combineBuffers.add(buffer);
+        }
+        for (int i = 0; i < splits; i++) {
+            // Make sure every combiner gets at least one partial
+            AggregationBuffer buffer = combineBuffers.get(i < combiners ? i : random.nextInt(combiners));
+            combine.merge(buffer, transfer(mapOutput, map.terminatePartial(mapBuffers.get(i)), serde));
+        }
+
+        // FINAL
+        GenericUDAFEvaluator reduce = udaf.getEvaluator(info);
+        reduce.init(Mode.FINAL, new ObjectInspector[]{serde ? combineOutput.getObjectInspector() : combineOutput.getInputObjectInspector()});
+        AggregationBuffer buffer = reduce.getNewAggregationBuffer();
+        reduce.reset(buffer);
+        Collections.shuffle(combineBuffers, random);
+        for (AggregationBuffer combineBuffer : combineBuffers) {
+            reduce.merge(buffer, transfer(combineOutput, combine.terminatePartial(combineBuffer), serde));
+        }
+        return reduce.terminate(buffer);
+    }
+
+    /**
+     * Send a partial to the next stage, through the serde or as is.
+     */
+    private static Object transfer(FunnelSimulator.PartialChannel channel, Object partial, boolean serde) throws Exception {
+        return serde ? channel.deserialize(channel.serialize(partial)) : partial;
+    }
+
+    /**
+     * Funnel field of funnel_debug in COMPLETE mode.
+     */
+    static List<Long> debugComplete(Case input, Random random) throws Exception {
+        GenericUDAFEvaluator evaluator = new FunnelDebug().getEvaluator(new SimpleGenericUDAFParameterInfo(input.inputObjectInspectors(), false, false));
+        StructObjectInspector outputObjectInspector = (StructObjectInspector) evaluator.init(Mode.COMPLETE, input.inputObjectInspectors());
+        AggregationBuffer buffer = evaluator.getNewAggregationBuffer();
+        evaluator.reset(buffer);
+        for (Object[] event : shuffled(input, random)) {
+            evaluator.iterate(buffer, input.parameters(event));
+        }
+        Object result = evaluator.terminate(buffer);
+        return (List<Long>) outputObjectInspector.getStructFieldData(result, outputObjectInspector.getStructFieldRef("funnel"));
+    }
+
+    /**
+     * funnel_array of the group, the events as parallel arrays. The funnel
+     * steps are constants.
+     */
+    static List<Long> funnelArray(Case input, Random random) throws Exception {
+        ObjectInspector[] inspectors = constant(input).inputObjectInspectors();
+        inspectors[0] = ObjectInspectorFactory.getStandardListObjectInspector(inspectors[0]);
+        inspectors[1] = ObjectInspectorFactory.getStandardListObjectInspector(inspectors[1]);
+        FunnelArray udf = new FunnelArray();
+        udf.initialize(inspectors);
+
+        List<Object> actions = new ArrayList<>();
+        List<Object> timestamps = new ArrayList<>();
+        for (Object[] event : shuffled(input, random)) {
+            actions.add(event[0]);
+            timestamps.add(event[1]);
+        }
+        DeferredObject[] arguments = new DeferredObject[inspectors.length];
+        arguments[0] = new DeferredJavaObject(actions);
+        arguments[1] = new DeferredJavaObject(timestamps);
+        for (int i = 0; i < input.funnelSteps.size(); i++) {
+            arguments[2 + i] = new DeferredJavaObject(input.funnelSteps.get(i));
+        }
+        return (List<Long>) udf.evaluate(arguments);
+    }
+
+    @Test
+    public void testComplete() throws Exception {
+        check((input, random) -> complete(new Funnel().getEvaluator(new SimpleGenericUDAFParameterInfo(input.inputObjectInspectors(), false, false)), input, random));
+    }
+
+    @Test
+    public void testPartials() throws Exception {
+        check((input, random) -> (List<Long>) partials(new Funnel(), input, random, true));
+    }
+
+    @Test
+    public void testStandardPartials() throws Exception {
+        check((input, random) -> (List<Long>) partials(new Funnel(), input, random, false));
+    }
+
+    @Test
+    public void testDebugComplete() throws Exception {
+        check(FunnelDifferentialTest::debugComplete);
+    }
+
+    @Test
+    public void testDebugPartials() throws Exception {
+        check((input, random) -> (List<Long>) ((List<Object>) partials(new FunnelDebug(), input, random, true)).get(0));
+    }
+
+    @Test
+    public void testConstantComplete() throws Exception {
+        check((input, random) -> complete(new Funnel().getEvaluator(new SimpleGenericUDAFParameterInfo(constant(input).inputObjectInspectors(), false, false)), constant(input), random));
+    }
+
+    @Test
+    public void testConstantPartials() throws Exception {
+        check((input, random) -> (List<Long>) partials(new Funnel(), constant(input), random, true));
+    }
+
+    @Test
+    public void testLargeStepsComplete() throws Exception {
+        // Fingerprint membership on the string form must match the set membership
+        check((input, random) -> complete(new Funnel().getEvaluator(new SimpleGenericUDAFParameterInfo(padded(input).inputObjectInspectors(), false, false)), padded(input), random));
+    }
+
+    @Test
+    public void testLargeStepsPartials() throws Exception {
+        check((input, random) -> (List<Long>) partials(new Funnel(), padded(input), random, true));
+    }
+
+    @Test
+    public void testLargeConstantStepsPartials() throws Exception {
+        check((input, random) -> (List<Long>) partials(new Funnel(), padded(constant(input)), random, true));
+    }
+
+    @Test
+    public void testFunnelArray() throws Exception {
+        check(FunnelDifferentialTest::funnelArray);
+    }
+
+    @Test
+    public void testLargeStepsFunnelArray() throws Exception {
+        check((input, random) -> funnelArray(padded(input), random));
+    }
+
+    @Test
+    public void testPadded() throws Exception {
+        // The padded funnel steps are matched with a fingerprint table
+        Case input = new Case();
+        input.funnelSteps.add(Arrays.asList(null, null));
+        input.funnelSteps.add(Arrays.asList("a", null));
+        input.funnelSteps.add(Arrays.asList("b"));
+        Case padded = padded(input);
+        Assert.assertEquals(input.funnelSteps.get(0), padded.funnelSteps.get(0));
+        Assert.assertEquals(2 + FingerprintTable.MIN_VALUES, padded.funnelSteps.get(1).size());
+
+        GenericUDAFEvaluator evaluator = new Funnel().getEvaluator(new SimpleGenericUDAFParameterInfo(padded.inputObjectInspectors(), false, false));
+        evaluator.init(Mode.COMPLETE, padded.inputObjectInspectors());
+        AggregationBuffer buffer = evaluator.getNewAggregationBuffer();
+        evaluator.reset(buffer);
+        evaluator.iterate(buffer, padded.parameters(new Object[]{"a", 1L}));
+        Assert.assertTrue(((FunnelAggregateBuffer) buffer).matcher instanceof FingerprintTable);
+        Assert.assertEquals(Arrays.asList(1L, 0L), evaluator.terminate(buffer));
+    }
+
+    @Test
+    public void testReference() {
+        // Sanity check the reference itself: ties sort on action, shared actions, nulls and empty steps
+        Case input = new Case();
+        input.funnelSteps.add(Arrays.asList("b", null));
+        input.funnelSteps.add(new ArrayList<>());
+        input.funnelSteps.add(Arrays.asList("a", "b"));
+        input.funnelSteps.add(Arrays.asList("c"));
+        input.events.add(new Object[]{"b", 2L});
+        input.events.add(new Object[]{"a", 2L});
+        input.events.add(new Object[]{null, 1L});
+        input.events.add(new Object[]{"c", null});
+        Assert.assertEquals(Arrays.asList(1L, 0L, 0L), reference(input));
+
+        input.events.add(new Object[]{"b", 3L});
+        Assert.assertEquals(Arrays.asList(1L, 1L, 0L), reference(input));
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2016 Yahoo Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.hive.udf.funnel;
+
+import java.util.Arrays;
+import java.util.List;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentLengthException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.AggregationBuffer;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.Mode;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFParameterInfo;
+import org.apache.hadoop.hive.ql.udf.generic.SimpleGenericUDAFParameterInfo;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class FunnelDurationsMergeTest {
+    /** Durations of funnel_timed. */
+    private static final ObjectInspector DURATIONS_OBJECT_INSPECTOR = ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaLongObjectInspector);
+
+    /** Histograms of funnel_durations_merge. */
+    private static final ObjectInspector HISTOGRAMS_OBJECT_INSPECTOR = ObjectInspectorFactory.getStandardListObjectInspector(DURATIONS_OBJECT_INSPECTOR);
+
+    @Test(expected = UDFArgumentLengthException.class)
+    public void testInvalidNumberOfParams() throws HiveException {
+        FunnelDurationsMerge udaf = new FunnelDurationsMerge();
+        ObjectInspector[] inputObjectInspectorList = new ObjectInspector[]{
+            DURATIONS_OBJECT_INSPECTOR,
+            DURATIONS_OBJECT_INSPECTOR
+        };
+
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(inputObjectInspectorList, false, false);
+        GenericUDAFEvaluator udafEvaluator = udaf.getEvaluator(paramInfo);
+    }
+
+    @Test(expected = UDFArgumentTypeException.class)
+    public void testInvalidDurationsType() throws HiveException {
+        FunnelDurationsMerge udaf = new FunnelDurationsMerge();
+        ObjectInspector[] inputObjectInspectorList = new ObjectInspector[]{
+            ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaStringObjectInspector)
+        };
+
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(inputObjectInspectorList, false, false);
+        GenericUDAFEvaluator udafEvaluator = udaf.getEvaluator(paramInfo);
+    }
+
+    /**
+     * Merge rows in COMPLETE mode.
+     */
+    private static Object complete(ObjectInspector inputObjectInspector, Object... rows) throws HiveException {
+        FunnelDurationsMerge udaf = new FunnelDurationsMerge();
+        ObjectInspector[] inputObjectInspectorList = new ObjectInspector[]{
+            inputObjectInspector
+        };
+
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(inputObjectInspectorList, false, false);
+        GenericUDAFEvaluator udafEvaluator = udaf.getEvaluator(paramInfo);
+        udafEvaluator.init(Mode.COMPLETE, inputObjectInspectorList);
+
+        // Process the data
+        AggregationBuffer agg = udafEvaluator.getNewAggregationBuffer();
+        udafEvaluator.reset(agg);
+        for (Object row : rows) {
+            udafEvaluator.iterate(agg, new Object[]{row});
+        }
+        return udafEvaluator.terminate(agg);
+    }
+
+    @Test
+    public void testComplete() throws HiveException {
+        Object result = complete(DURATIONS_OBJECT_INSPECTOR,
+                                 Arrays.asList(null, 1L, null),
+                                 null,
+                                 Arrays.asList(null, 1L, 0L),
+                                 Arrays.asList(null, null, null));
+
+        // No durations for the first step, two in bucket 1 for the second, one in bucket 0 for the third
+        List<Object> expected = Arrays.asList(Arrays.asList(), Arrays.asList(0L, 2L), Arrays.asList(1L));
+        Assert.assertEquals(expected, result);
+    }
+
+    @Test
+    public void testMergeHistograms() throws HiveException {
+        // Histograms can be merged again
+        Object result = complete(HISTOGRAMS_OBJECT_INSPECTOR,
+                                 Arrays.asList(Arrays.asList(), Arrays.asList(0L, 2L)),
+                                 Arrays.asList(Arrays.asList(), Arrays.asList(1L, 1L, 0L, 4L)));
+        Assert.assertEquals(Arrays.asList(Arrays.asList(), Arrays.asList(1L, 3L, 0L, 4L)), result);
+    }
+
+    @Test(expected = UDFArgumentTypeException.class)
+    public void testStepsMismatch() throws HiveException {
+        complete(DURATIONS_OBJECT_INSPECTOR, Arrays.asList(null, 1L), Arrays.asList(null, 1L, 2L));
+    }
+
+    @Test
+    public void testPartials() throws Exception {
+        FunnelDurationsMerge udaf = new FunnelDurationsMerge();
+        ObjectInspector[] inputObjectInspectorList = new ObjectInspector[]{
+            DURATIONS_OBJECT_INSPECTOR
+        };
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(inputObjectInspectorList, false, false);
+
+        // Two map side partials, sent through the serde
+        GenericUDAFEvaluator mapEvaluator = udaf.getEvaluator(paramInfo);
+        FunnelSimulator.PartialChannel channel = new FunnelSimulator.PartialChannel(mapEvaluator.init(Mode.PARTIAL1, inputObjectInspectorList));
+        AggregationBuffer agg1 = mapEvaluator.getNewAggregationBuffer();
+        mapEvaluator.reset(agg1);
+        mapEvaluator.iterate(agg1, new Object[]{Arrays.asList(null, 1000L)});
+        mapEvaluator.iterate(agg1, new Object[]{Arrays.asList(null, 2000L)});
+        byte[] partial1 = channel.serialize(mapEvaluator.terminatePartial(agg1));
+        AggregationBuffer agg2 = mapEvaluator.getNewAggregationBuffer();
+        mapEvaluator.reset(agg2);
+        mapEvaluator.iterate(agg2, new Object[]{Arrays.asList(null, 3000L)});
+        byte[] partial2 = channel.serialize(mapEvaluator.terminatePartial(agg2));
+
+        // Merge them
+        GenericUDAFEvaluator reduceEvaluator = udaf.getEvaluator(paramInfo);
+        reduceEvaluator.init(Mode.FINAL, new ObjectInspector[]{channel.getObjectInspector()});
+        AggregationBuffer agg = reduceEvaluator.getNewAggregationBuffer();
+        reduceEvaluator.reset(agg);
+        reduceEvaluator.merge(agg, channel.deserialize(partial1));
+        reduceEvaluator.merge(agg, channel.deserialize(partial2));
+        Object result = reduceEvaluator.terminate(agg);
+
+        LogHistogram expected = new LogHistogram();
+        expected.add(1000L, 1L);
+        expected.add(2000L, 1L);
+        expected.add(3000L, 1L);
+        Assert.assertEquals(Arrays.asList(Arrays.asList(), expected.serialize()), result);
+    }
+}
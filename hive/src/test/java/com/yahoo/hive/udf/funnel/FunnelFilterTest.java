@@ -0,0 +1,198 @@
+/*
+ * Copyright 2016 Yahoo Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.hive.udf.funnel;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentLengthException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDF.DeferredObject;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfoFactory;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.junit.Assert;
+import org.junit.Test;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit test for FunnelFilter.
+ */
+public class FunnelFilterTest {
+    /**
+     * Constant string funnel step.
+     */
+    private static ObjectInspector step(String... values) {
+        List<Text> texts = new ArrayList<>();
+        for (String value : values) {
+            texts.add(new Text(value));
+        }
+        return ObjectInspectorFactory.getStandardConstantListObjectInspector(PrimitiveObjectInspectorFactory.writableStringObjectInspector, texts);
+    }
+
+    /**
+     * Constant options string.
+     */
+    private static ObjectInspector options(String options) {
+        return PrimitiveObjectInspectorFactory.getPrimitiveWritableConstantObjectInspector(TypeInfoFactory.stringTypeInfo, new Text(options));
+    }
+
+    /**
+     * Evaluate the filter on an action.
+     */
+    private static Object evaluate(FunnelFilter udf, Object action) throws HiveException {
+        DeferredObject obj1 = mock(DeferredObject.class);
+        when(obj1.get()).thenReturn(action);
+        return udf.evaluate(new DeferredObject[]{obj1});
+    }
+
+    @Test(expected = UDFArgumentLengthException.class)
+    public void testTooFewInputs() throws HiveException {
+        FunnelFilter udf = new FunnelFilter();
+        udf.initialize(new ObjectInspector[]{PrimitiveObjectInspectorFactory.javaStringObjectInspector});
+    }
+
+    @Test(expected = UDFArgumentTypeException.class)
+    public void testNonPrimitiveAction() throws HiveException {
+        FunnelFilter udf = new FunnelFilter();
+        udf.initialize(new ObjectInspector[]{step("alpha"), step("alpha")});
+    }
+
+    @Test(expected = UDFArgumentTypeException.class)
+    public void testFunnelStepTypeMismatch() throws HiveException {
+        FunnelFilter udf = new FunnelFilter();
+        udf.initialize(new ObjectInspector[]{PrimitiveObjectInspectorFactory.javaLongObjectInspector, step("alpha")});
+    }
+
+    @Test(expected = UDFArgumentTypeException.class)
+    public void testNonConstantFunnelStep() throws HiveException {
+        FunnelFilter udf = new FunnelFilter();
+        udf.initialize(new ObjectInspector[]{
+            PrimitiveObjectInspectorFactory.javaStringObjectInspector,
+            ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaStringObjectInspector)
+        });
+    }
+
+    @Test(expected = UDFArgumentLengthException.class)
+    public void testOnlyOptions() throws HiveException {
+        FunnelFilter udf = new FunnelFilter();
+        udf.initialize(new ObjectInspector[]{PrimitiveObjectInspectorFactory.javaStringObjectInspector, options("patterns")});
+    }
+
+    @Test(expected = UDFArgumentException.class)
+    public void testUnknownOption() throws HiveException {
+        FunnelFilter udf = new FunnelFilter();
+        udf.initialize(new ObjectInspector[]{PrimitiveObjectInspectorFactory.javaStringObjectInspector, step("alpha"), options("shuffled")});
+    }
+
+    @Test
+    public void testFilter() throws HiveException {
+        FunnelFilter udf = new FunnelFilter();
+        ObjectInspector outputObjectInspector = udf.initialize(new ObjectInspector[]{
+            PrimitiveObjectInspectorFactory.javaStringObjectInspector,
+            step("alpha", "beta"),
+            step("gamma")
+        });
+        Assert.assertEquals(PrimitiveObjectInspectorFactory.javaBooleanObjectInspector, outputObjectInspector);
+        Assert.assertEquals(true, evaluate(udf, "alpha"));
+        Assert.assertEquals(true, evaluate(udf, "beta"));
+        Assert.assertEquals(true, evaluate(udf, "gamma"));
+        Assert.assertEquals(false, evaluate(udf, "delta"));
+        Assert.assertEquals(false, evaluate(udf, null));
+    }
+
+    @Test
+    public void testWritableAction() throws HiveException {
+        FunnelFilter udf = new FunnelFilter();
+        udf.initialize(new ObjectInspector[]{
+            PrimitiveObjectInspectorFactory.writableLongObjectInspector,
+            ObjectInspectorFactory.getStandardConstantListObjectInspector(PrimitiveObjectInspectorFactory.writableLongObjectInspector, Arrays.asList(new LongWritable(7L)))
+        });
+        Assert.assertEquals(true, evaluate(udf, new LongWritable(7L)));
+        Assert.assertEquals(false, evaluate(udf, new LongWritable(8L)));
+    }
+
+    @Test
+    public void testPatterns() throws HiveException {
+        FunnelFilter udf = new FunnelFilter();
+        udf.initialize(new ObjectInspector[]{
+            PrimitiveObjectInspectorFactory.javaStringObjectInspector,
+            step("prefix:product_"),
+            step("glob:*_button"),
+            options("patterns")
+        });
+        Assert.assertEquals(true, evaluate(udf, "product_7"));
+        Assert.assertEquals(true, evaluate(udf, "confirm_button"));
+        Assert.assertEquals(false, evaluate(udf, "home"));
+    }
+
+    @Test(expected = UDFArgumentTypeException.class)
+    public void testPatternsNeedStrings() throws HiveException {
+        FunnelFilter udf = new FunnelFilter();
+        udf.initialize(new ObjectInspector[]{
+            PrimitiveObjectInspectorFactory.javaLongObjectInspector,
+            ObjectInspectorFactory.getStandardConstantListObjectInspector(PrimitiveObjectInspectorFactory.writableLongObjectInspector, Arrays.asList(new LongWritable(7L))),
+            options("patterns")
+        });
+    }
+
+    @Test
+    public void testLargeFunnelSteps() throws HiveException {
+        String[] products = new String[FingerprintTable.MIN_VALUES];
+        for (int i = 0; i < products.length; i++) {
+            products[i] = "product_" + i;
+        }
+        FunnelFilter udf = new FunnelFilter();
+        udf.initialize(new ObjectInspector[]{PrimitiveObjectInspectorFactory.javaStringObjectInspector, step(products), step("buy")});
+        Assert.assertEquals(true, evaluate(udf, "product_7"));
+        Assert.assertEquals(true, evaluate(udf, "buy"));
+        Assert.assertEquals(false, evaluate(udf, "home"));
+    }
+
+    @Test
+    public void testStepsFile() throws Exception {
+        File file = File.createTempFile("steps", ".txt");
+        file.deleteOnExit();
+        Files.write(file.toPath(), "beta\n\ngamma\n".getBytes(StandardCharsets.UTF_8));
+        FunnelFilter udf = new FunnelFilter();
+        udf.initialize(new ObjectInspector[]{PrimitiveObjectInspectorFactory.javaStringObjectInspector, options("steps_file=" + file.getPath())});
+        Assert.assertEquals(true, evaluate(udf, "beta"));
+        Assert.assertEquals(true, evaluate(udf, "gamma"));
+        Assert.assertEquals(false, evaluate(udf, "alpha"));
+    }
+
+    @Test(expected = UDFArgumentException.class)
+    public void testStepsFileAndSteps() throws HiveException {
+        FunnelFilter udf = new FunnelFilter();
+        udf.initialize(new ObjectInspector[]{PrimitiveObjectInspectorFactory.javaStringObjectInspector, step("alpha"), options("steps_file=steps.txt")});
+    }
+
+    @Test(expected = UDFArgumentException.class)
+    public void testSampleNotSupported() throws HiveException {
+        FunnelFilter udf = new FunnelFilter();
+        udf.initialize(new ObjectInspector[]{PrimitiveObjectInspectorFactory.javaStringObjectInspector, step("alpha"), options("sample=0.1")});
+    }
+}
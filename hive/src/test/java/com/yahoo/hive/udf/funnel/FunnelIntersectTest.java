@@ -0,0 +1,81 @@
+/*
+ * Copyright 2016 Yahoo Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.hive.udf.funnel;
+
+import java.util.Arrays;
+import java.util.List;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentLengthException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDF.DeferredObject;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.junit.Assert;
+import org.junit.Test;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit test for FunnelIntersect.
+ */
+public class FunnelIntersectTest {
+    @Test(expected = UDFArgumentLengthException.class)
+    public void testTooManyInputs() throws HiveException {
+        FunnelIntersect udf = new FunnelIntersect();
+        udf.initialize(new ObjectInspector[]{FunnelBitmapMerge.bitmapsObjectInspector(), FunnelBitmapMerge.bitmapsObjectInspector()});
+    }
+
+    @Test(expected = UDFArgumentTypeException.class)
+    public void testBadInputType() throws HiveException {
+        FunnelIntersect udf = new FunnelIntersect();
+        udf.initialize(new ObjectInspector[]{ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaLongObjectInspector)});
+    }
+
+    /**
+     * Evaluate the funnel of the bitmaps.
+     */
+    private static Object evaluate(List<Object> bitmaps) throws HiveException {
+        FunnelIntersect udf = new FunnelIntersect();
+        udf.initialize(new ObjectInspector[]{FunnelBitmapMerge.bitmapsObjectInspector()});
+
+        DeferredObject obj1 = mock(DeferredObject.class);
+        DeferredObject[] objs = new DeferredObject[] { obj1 };
+        when(obj1.get()).thenReturn(bitmaps);
+
+        return udf.evaluate(objs);
+    }
+
+    @Test
+    public void testIntersect() throws HiveException {
+        List<Object> bitmaps = Arrays.asList(FunnelBitmapMergeTest.bitmap(1, 2, 3, 4),
+                                             FunnelBitmapMergeTest.bitmap(2, 3, 5),
+                                             FunnelBitmapMergeTest.bitmap(3, 4, 5, 6));
+        Assert.assertEquals(Arrays.asList(4L, 2L, 1L), evaluate(bitmaps));
+    }
+
+    @Test
+    public void testNullStep() throws HiveException {
+        List<Object> bitmaps = Arrays.asList(FunnelBitmapMergeTest.bitmap(1, 2), null, FunnelBitmapMergeTest.bitmap(1));
+        Assert.assertEquals(Arrays.asList(2L, 0L, 0L), evaluate(bitmaps));
+    }
+
+    @Test
+    public void testNull() throws HiveException {
+        Assert.assertNull(evaluate(null));
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2016 Yahoo Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.hive.udf.funnel;
+
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class FunnelOptionsTest {
+    @Test
+    public void testEmpty() throws UDFArgumentException {
+        Assert.assertFalse(FunnelOptions.parse("").unordered);
+        Assert.assertFalse(FunnelOptions.parse(" , ").unordered);
+    }
+
+    @Test
+    public void testFlag() throws UDFArgumentException {
+        Assert.assertTrue(FunnelOptions.parse("unordered").unordered);
+        Assert.assertTrue(FunnelOptions.parse(" Unordered = TRUE ").unordered);
+        Assert.assertFalse(FunnelOptions.parse("unordered=false").unordered);
+        Assert.assertTrue(FunnelOptions.parse("patterns").patterns);
+        Assert.assertEquals("steps.txt", FunnelOptions.parse("steps_file=steps.txt").stepsFile);
+    }
+
+    @Test(expected = UDFArgumentException.class)
+    public void testUnknownOption() throws UDFArgumentException {
+        FunnelOptions.parse("unordered,sorted");
+    }
+
+    @Test(expected = UDFArgumentException.class)
+    public void testInvalidFlag() throws UDFArgumentException {
+        FunnelOptions.parse("unordered=yes");
+    }
+
+    @Test
+    public void testSessions() throws UDFArgumentException {
+        FunnelOptions options = FunnelOptions.parse("session_gap=1800,sessions=sum");
+        Assert.assertEquals(1800L, options.sessionGap);
+        Assert.assertTrue(options.sumSessions);
+        options = FunnelOptions.parse("session_gap=60");
+        Assert.assertEquals(60L, options.sessionGap);
+        Assert.assertFalse(options.sumSessions);
+    }
+
+    @Test(expected = UDFArgumentException.class)
+    public void testInvalidSessionGap() throws UDFArgumentException {
+        FunnelOptions.parse("session_gap=0");
+    }
+
+    @Test(expected = UDFArgumentException.class)
+    public void testInvalidSessions() throws UDFArgumentException {
+        FunnelOptions.parse("session_gap=60,sessions=all");
+    }
+
+    @Test(expected = UDFArgumentException.class)
+    public void testUnorderedSessions() throws UDFArgumentException {
+        FunnelOptions.parse("unordered,session_gap=60");
+    }
+
+    @Test(expected = UDFArgumentException.class)
+    public void testEmptyStepsFile() throws UDFArgumentException {
+        FunnelOptions.parse("steps_file=");
+    }
+
+    @Test
+    public void testSample() throws UDFArgumentException {
+        Assert.assertEquals(1.0, FunnelOptions.parse("").sampleRate, 0.0);
+        Assert.assertEquals(0.25, FunnelOptions.parse("sample=0.25").sampleRate, 0.0);
+    }
+
+    @Test(expected = UDFArgumentException.class)
+    public void testInvalidSample() throws UDFArgumentException {
+        FunnelOptions.parse("sample=1.5");
+    }
+
+    @Test(expected = UDFArgumentException.class)
+    public void testMissingSample() throws UDFArgumentException {
+        FunnelOptions.parse("sample");
+    }
+
+    @Test
+    public void testIsSampled() throws UDFArgumentException {
+        FunnelOptions options = FunnelOptions.parse("sample=0.1");
+        int sampled = 0;
+        for (long key = 0; key < 100000; key++) {
+            if (options.isSampled(key)) {
+                sampled++;
+            }
+            // The same key is always in or out, whatever its type
+            Assert.assertEquals(options.isSampled(key), options.isSampled(Long.toString(key)));
+        }
+        Assert.assertEquals(10000, sampled, 500);
+        Assert.assertFalse(options.isSampled(null));
+        Assert.assertTrue(FunnelOptions.parse("").isSampled(null));
+    }
+}
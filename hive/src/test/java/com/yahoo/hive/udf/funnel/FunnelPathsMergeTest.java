@@ -0,0 +1,162 @@
+/*
+ * Copyright 2016 Yahoo Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.hive.udf.funnel;
+
+import java.util.Arrays;
+import java.util.List;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentLengthException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.AggregationBuffer;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.Mode;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFParameterInfo;
+import org.apache.hadoop.hive.ql.udf.generic.SimpleGenericUDAFParameterInfo;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfoFactory;
+import org.apache.hadoop.io.IntWritable;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class FunnelPathsMergeTest {
+    /** Funnel paths of strings. */
+    private static final ObjectInspector PATHS_OBJECT_INSPECTOR = FunnelPathsMerge.pathsObjectInspector(PrimitiveObjectInspectorFactory.javaStringObjectInspector);
+
+    @Test(expected = UDFArgumentLengthException.class)
+    public void testInvalidNumberOfParams() throws HiveException {
+        FunnelPathsMerge udaf = new FunnelPathsMerge();
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(new ObjectInspector[]{}, false, false);
+        GenericUDAFEvaluator udafEvaluator = udaf.getEvaluator(paramInfo);
+    }
+
+    @Test(expected = UDFArgumentTypeException.class)
+    public void testInvalidPathsType() throws HiveException {
+        FunnelPathsMerge udaf = new FunnelPathsMerge();
+        ObjectInspector[] inputObjectInspectorList = new ObjectInspector[]{
+            PrimitiveObjectInspectorFactory.javaStringObjectInspector
+        };
+
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(inputObjectInspectorList, false, false);
+        GenericUDAFEvaluator udafEvaluator = udaf.getEvaluator(paramInfo);
+    }
+
+    @Test(expected = UDFArgumentTypeException.class)
+    public void testNonConstantActionsPerStep() throws HiveException {
+        FunnelPathsMerge udaf = new FunnelPathsMerge();
+        ObjectInspector[] inputObjectInspectorList = new ObjectInspector[]{
+            PATHS_OBJECT_INSPECTOR,
+            PrimitiveObjectInspectorFactory.javaIntObjectInspector
+        };
+
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(inputObjectInspectorList, false, false);
+        GenericUDAFEvaluator udafEvaluator = udaf.getEvaluator(paramInfo);
+        udafEvaluator.init(Mode.COMPLETE, inputObjectInspectorList);
+    }
+
+    /**
+     * Paths of a user that stopped at a step and did an action next.
+     */
+    private static List<Object> paths(int steps, int step, String action) {
+        List<Object> paths = Arrays.asList(new Object[steps]);
+        for (int i = 0; i < steps; i++) {
+            paths.set(i, i == step ? Arrays.asList(Arrays.asList(action, 1L, 0L)) : Arrays.asList());
+        }
+        return paths;
+    }
+
+    @Test
+    public void testComplete() throws HiveException {
+        FunnelPathsMerge udaf = new FunnelPathsMerge();
+        ObjectInspector[] inputObjectInspectorList = new ObjectInspector[]{
+            PATHS_OBJECT_INSPECTOR,
+            PrimitiveObjectInspectorFactory.getPrimitiveWritableConstantObjectInspector(TypeInfoFactory.intTypeInfo, new IntWritable(2))
+        };
+
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(inputObjectInspectorList, false, false);
+        GenericUDAFEvaluator udafEvaluator = udaf.getEvaluator(paramInfo);
+        udafEvaluator.init(Mode.COMPLETE, inputObjectInspectorList);
+
+        // Process the data
+        AggregationBuffer agg = udafEvaluator.getNewAggregationBuffer();
+        udafEvaluator.reset(agg);
+        for (String action : Arrays.asList("delta", "epsilon", "delta", "zeta", "delta")) {
+            udafEvaluator.iterate(agg, new Object[]{paths(2, 0, action), null});
+        }
+        udafEvaluator.iterate(agg, new Object[]{paths(2, 1, "theta"), null});
+        udafEvaluator.iterate(agg, new Object[]{null, null});
+        Object result = udafEvaluator.terminate(agg);
+
+        // Two actions kept per step, zeta replaced epsilon
+        List<Object> expected = Arrays.asList(Arrays.asList(Arrays.asList("delta", 3L, 0L), Arrays.asList("zeta", 2L, 1L)),
+                                              Arrays.asList(Arrays.asList("theta", 1L, 0L)));
+        Assert.assertEquals(expected, result);
+    }
+
+    @Test(expected = UDFArgumentTypeException.class)
+    public void testStepsMismatch() throws HiveException {
+        FunnelPathsMerge udaf = new FunnelPathsMerge();
+        ObjectInspector[] inputObjectInspectorList = new ObjectInspector[]{
+            PATHS_OBJECT_INSPECTOR
+        };
+
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(inputObjectInspectorList, false, false);
+        GenericUDAFEvaluator udafEvaluator = udaf.getEvaluator(paramInfo);
+        udafEvaluator.init(Mode.COMPLETE, inputObjectInspectorList);
+
+        AggregationBuffer agg = udafEvaluator.getNewAggregationBuffer();
+        udafEvaluator.reset(agg);
+        udafEvaluator.iterate(agg, new Object[]{paths(2, 0, "delta")});
+        udafEvaluator.iterate(agg, new Object[]{paths(3, 0, "delta")});
+    }
+
+    @Test
+    public void testPartials() throws Exception {
+        FunnelPathsMerge udaf = new FunnelPathsMerge();
+        ObjectInspector[] inputObjectInspectorList = new ObjectInspector[]{
+            PATHS_OBJECT_INSPECTOR,
+            PrimitiveObjectInspectorFactory.getPrimitiveWritableConstantObjectInspector(TypeInfoFactory.intTypeInfo, new IntWritable(5))
+        };
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(inputObjectInspectorList, false, false);
+
+        // Two map side partials, sent through the serde
+        GenericUDAFEvaluator mapEvaluator = udaf.getEvaluator(paramInfo);
+        FunnelSimulator.PartialChannel channel = new FunnelSimulator.PartialChannel(mapEvaluator.init(Mode.PARTIAL1, inputObjectInspectorList));
+        AggregationBuffer agg1 = mapEvaluator.getNewAggregationBuffer();
+        mapEvaluator.reset(agg1);
+        mapEvaluator.iterate(agg1, new Object[]{paths(2, 0, "delta"), null});
+        mapEvaluator.iterate(agg1, new Object[]{paths(2, 0, "epsilon"), null});
+        byte[] partial1 = channel.serialize(mapEvaluator.terminatePartial(agg1));
+        AggregationBuffer agg2 = mapEvaluator.getNewAggregationBuffer();
+        mapEvaluator.reset(agg2);
+        mapEvaluator.iterate(agg2, new Object[]{paths(2, 0, "delta"), null});
+        byte[] partial2 = channel.serialize(mapEvaluator.terminatePartial(agg2));
+
+        // Merge them
+        GenericUDAFEvaluator reduceEvaluator = udaf.getEvaluator(paramInfo);
+        reduceEvaluator.init(Mode.FINAL, new ObjectInspector[]{channel.getObjectInspector()});
+        AggregationBuffer agg = reduceEvaluator.getNewAggregationBuffer();
+        reduceEvaluator.reset(agg);
+        reduceEvaluator.merge(agg, channel.deserialize(partial1));
+        reduceEvaluator.merge(agg, channel.deserialize(partial2));
+        Object result = reduceEvaluator.terminate(agg);
+
+        List<Object> expected = Arrays.asList(Arrays.asList(Arrays.asList("delta", 2L, 0L), Arrays.asList("epsilon", 1L, 0L)),
+                                              Arrays.asList());
+        Assert.assertEquals(expected, result);
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2016 Yahoo Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.hive.udf.funnel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentLengthException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.AggregationBuffer;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.Mode;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFParameterInfo;
+import org.apache.hadoop.hive.ql.udf.generic.SimpleGenericUDAFParameterInfo;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class FunnelPathsTest {
+    @Test(expected = UDFArgumentLengthException.class)
+    public void testInvalidNumberOfParams() throws HiveException {
+        FunnelPaths udaf = new FunnelPaths();
+        ObjectInspector[] inputObjectInspectorList = new ObjectInspector[]{
+            PrimitiveObjectInspectorFactory.javaLongObjectInspector
+        };
+
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(inputObjectInspectorList, false, false);
+        GenericUDAFEvaluator udafEvaluator = udaf.getEvaluator(paramInfo);
+    }
+
+    /**
+     * Funnel paths of a single user in COMPLETE mode, for events
+     * {action, timestamp}.
+     */
+    private static Object complete(Object[]... events) throws HiveException {
+        FunnelPaths udaf = new FunnelPaths();
+
+        ObjectInspector[] inputObjectInspectorList = new ObjectInspector[]{
+            PrimitiveObjectInspectorFactory.javaStringObjectInspector, // action_column
+            PrimitiveObjectInspectorFactory.javaLongObjectInspector,   // timestamp_column
+            ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaStringObjectInspector), // funnel_step_1
+            ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaStringObjectInspector), // funnel_step_2
+            ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaStringObjectInspector) // funnel_step_3
+        };
+
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(inputObjectInspectorList, false, false);
+        GenericUDAFEvaluator udafEvaluator = udaf.getEvaluator(paramInfo);
+        udafEvaluator.init(Mode.COMPLETE, inputObjectInspectorList);
+
+        // Process the data
+        AggregationBuffer agg = udafEvaluator.getNewAggregationBuffer();
+        udafEvaluator.reset(agg);
+        for (Object[] event : events) {
+            udafEvaluator.iterate(agg, new Object[]{event[0], event[1], Arrays.asList("alpha"), Arrays.asList("beta"), Arrays.asList("gamma")});
+        }
+        return udafEvaluator.terminate(agg);
+    }
+
+    @Test
+    public void testComplete() throws HiveException {
+        // Stopped at beta, did delta next, out of order input
+        Object result = complete(new Object[]{"delta", 300L}, new Object[]{"alpha", 100L}, new Object[]{"beta", 200L}, new Object[]{"epsilon", 400L});
+
+        List<Object> expected = new ArrayList<>();
+        expected.add(Arrays.asList());
+        expected.add(Arrays.asList(Arrays.asList("delta", 1L, 0L)));
+        expected.add(Arrays.asList());
+
+        Assert.assertEquals(expected, result);
+    }
+
+    @Test
+    public void testCompleteNoNextAction() throws HiveException {
+        // Stopped at alpha, nothing after it
+        Object result = complete(new Object[]{"delta", 100L}, new Object[]{"alpha", 200L});
+        Assert.assertEquals(Arrays.asList(Arrays.asList(), Arrays.asList(), Arrays.asList()), result);
+    }
+
+    @Test
+    public void testCompleteConverted() throws HiveException {
+        // Reached the end of the funnel, didn't stop
+        Object result = complete(new Object[]{"alpha", 100L}, new Object[]{"beta", 200L}, new Object[]{"gamma", 300L}, new Object[]{"delta", 400L});
+        Assert.assertEquals(Arrays.asList(Arrays.asList(), Arrays.asList(), Arrays.asList()), result);
+    }
+
+    @Test
+    public void testFinal() throws HiveException {
+        FunnelPaths udaf = new FunnelPaths();
+
+        // Construct the object inspector for udaf evaluator
+        ObjectInspector[] inputObjectInspectorList = new ObjectInspector[]{
+            PrimitiveObjectInspectorFactory.javaStringObjectInspector, // action_column
+            PrimitiveObjectInspectorFactory.javaLongObjectInspector,   // timestamp_column
+            ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaStringObjectInspector), // funnel_step_1
+            ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaStringObjectInspector) // funnel_step_2
+        };
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(inputObjectInspectorList, false, false);
+        GenericUDAFEvaluator udafEvaluator = udaf.getEvaluator(paramInfo);
+
+        // Partials keep all actions, not only the funnel steps
+        GenericUDAFEvaluator partialEvaluator = udaf.getEvaluator(paramInfo);
+        ObjectInspector structObjectInspector = partialEvaluator.init(Mode.PARTIAL1, inputObjectInspectorList);
+        AggregationBuffer partialAgg = partialEvaluator.getNewAggregationBuffer();
+        partialEvaluator.reset(partialAgg);
+        partialEvaluator.iterate(partialAgg, new Object[]{"delta", 200L, Arrays.asList("alpha"), Arrays.asList("beta")});
+        Object partial = partialEvaluator.terminatePartial(partialAgg);
+        Assert.assertEquals(Arrays.asList(Arrays.asList("delta"), Arrays.asList(200L), Arrays.asList("alpha", null, "beta", null)), partial);
+
+        udafEvaluator.init(Mode.FINAL, new ObjectInspector[]{structObjectInspector});
+
+        // Process the data
+        AggregationBuffer agg = udafEvaluator.getNewAggregationBuffer();
+        udafEvaluator.reset(agg);
+        udafEvaluator.merge(agg, Arrays.asList(Arrays.asList("alpha"), Arrays.asList(100L), Arrays.asList("alpha", null, "beta", null)));
+        udafEvaluator.merge(agg, partial);
+        Object result = udafEvaluator.terminate(agg);
+
+        List<Object> expected = new ArrayList<>();
+        expected.add(Arrays.asList(Arrays.asList("delta", 1L, 0L)));
+        expected.add(Arrays.asList());
+
+        Assert.assertEquals(expected, result);
+    }
+}
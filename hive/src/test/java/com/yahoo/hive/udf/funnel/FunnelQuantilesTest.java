@@ -0,0 +1,95 @@
+/*
+ * Copyright 2016 Yahoo Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.hive.udf.funnel;
+
+import java.util.Arrays;
+import java.util.List;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentLengthException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDF.DeferredObject;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.junit.Assert;
+import org.junit.Test;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Unit test for FunnelQuantiles.
+ */
+public class FunnelQuantilesTest {
+    /** Input object inspectors, histograms and quantiles. */
+    private static final ObjectInspector[] INPUT_OBJECT_INSPECTORS = new ObjectInspector[]{
+        ObjectInspectorFactory.getStandardListObjectInspector(ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaLongObjectInspector)),
+        ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaDoubleObjectInspector)
+    };
+
+    @Test(expected = UDFArgumentLengthException.class)
+    public void testTooFewInputs() throws HiveException {
+        FunnelQuantiles udf = new FunnelQuantiles();
+        udf.initialize(new ObjectInspector[]{INPUT_OBJECT_INSPECTORS[0]});
+    }
+
+    @Test(expected = UDFArgumentTypeException.class)
+    public void testBadInputType() throws HiveException {
+        FunnelQuantiles udf = new FunnelQuantiles();
+
+        ObjectInspector[] inputOiList = new ObjectInspector[]{
+            ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaLongObjectInspector),
+            INPUT_OBJECT_INSPECTORS[1]
+        };
+
+        udf.initialize(inputOiList);
+    }
+
+    /**
+     * Evaluate the quantiles of the histograms.
+     */
+    private static Object evaluate(List<Object> histograms, List<Double> quantiles) throws HiveException {
+        FunnelQuantiles udf = new FunnelQuantiles();
+        udf.initialize(INPUT_OBJECT_INSPECTORS);
+
+        DeferredObject obj1 = mock(DeferredObject.class);
+        DeferredObject obj2 = mock(DeferredObject.class);
+        DeferredObject[] objs = new DeferredObject[] { obj1, obj2 };
+        when(obj1.get()).thenReturn(histograms);
+        when(obj2.get()).thenReturn(quantiles);
+
+        return udf.evaluate(objs);
+    }
+
+    @Test
+    public void testQuantiles() throws HiveException {
+        // 10 zeros and 10 ones in the second step, nothing in the first
+        List<Object> histograms = Arrays.asList(Arrays.asList(), Arrays.asList(10L, 10L));
+        Object result = evaluate(histograms, Arrays.asList(0.5, 0.9));
+        Assert.assertEquals(Arrays.asList(Arrays.asList(), Arrays.asList(0.0, LogHistogram.value(1))), result);
+    }
+
+    @Test
+    public void testNull() throws HiveException {
+        Assert.assertNull(evaluate(null, Arrays.asList(0.5)));
+    }
+
+    @Test(expected = UDFArgumentException.class)
+    public void testBadQuantile() throws HiveException {
+        evaluate(Arrays.asList(Arrays.asList(1L)), Arrays.asList(1.5));
+    }
+}
@@ -0,0 +1,308 @@
+/*
+ * Copyright 2016 Yahoo Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.hive.udf.funnel;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hive.ql.exec.MapredContext;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.AggregationBuffer;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.Mode;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.ql.udf.generic.SimpleGenericUDAFParameterInfo;
+import org.apache.hadoop.hive.serde.serdeConstants;
+import org.apache.hadoop.hive.serde2.SerDeException;
+import org.apache.hadoop.hive.serde2.lazybinary.LazyBinarySerDe;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.StructField;
+import org.apache.hadoop.hive.serde2.objectinspector.StructObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfoUtils;
+import org.apache.hadoop.io.BytesWritable;
+
+/**
+ * Simulates a Hive job locally. Drives the funnel and merge evaluators
+ * through the PARTIAL1, PARTIAL2 and FINAL modes, passing every partial
+ * through the LazyBinary serde like Hive does between map and reduce.
+ *
+ * Run the main method to profile a skewed workload without a cluster.
+ */
+public class FunnelSimulator {
+    /** Number of map tasks, rows are spread randomly across them. */
+    int mappers = 8;
+
+    /** Number of intermediate (PARTIAL2) reduce tasks. */
+    int combiners = 4;
+
+    /** Number of final reduce tasks, groups are hash partitioned. */
+    int reducers = 4;
+
+    /** Random seed used to assign rows and partials to tasks. */
+    long seed = 42L;
+
+    /** Task context of the funnel evaluators, or null. The evaluators are closed at the end of the run. */
+    MapredContext context;
+
+    /**
+     * Result and metrics of a simulation.
+     */
+    public static class Report {
+        /** Number of input rows. */
+        long rows;
+
+        /** Number of groups (users). */
+        long groups;
+
+        /** Wall time of the simulation in nanoseconds. */
+        long nanos;
+
+        /** Serialized bytes of funnel partials, over all stages. */
+        long funnelPartialBytes;
+
+        /** Serialized bytes of merge partials, over all stages. */
+        long mergePartialBytes;
+
+        /** Largest number of events held by a single aggregate buffer. */
+        int peakBufferSize;
+
+        /** Merged funnel. */
+        List<Long> funnel;
+
+        public double rowsPerSecond() {
+            return nanos > 0 ? rows * 1e9 / nanos : 0.0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("rows=%d groups=%d time=%.3fs rows/sec=%.0f funnel_partial_bytes=%d merge_partial_bytes=%d peak_buffer_size=%d funnel=%s",
+                                 rows, groups, nanos / 1e9, rowsPerSecond(), funnelPartialBytes, mergePartialBytes, peakBufferSize, funnel);
+        }
+    }
+
+    /**
+     * Run the rows through the simulated job.
+     *
+     * @param rows Rows of {user_id, action, timestamp}
+     * @param funnelSteps Funnel steps
+     * @return Report of the run
+     */
+    public Report run(List<Object[]> rows, List<List<Object>> funnelSteps) throws HiveException, SerDeException, IOException {
+        Report report = new Report();
+        Random random = new Random(seed);
+        long start = System.nanoTime();
+
+        // Funnel stage, grouped by user
+        ObjectInspector[] funnelInspectors = funnelInputObjectInspectors(funnelSteps.size());
+        GenericUDAFEvaluator funnelMap = funnelEvaluator(funnelInspectors);
+        ObjectInspector funnelPartialInspector = funnelMap.init(Mode.PARTIAL1, funnelInspectors);
+
+        List<Map<Object, AggregationBuffer>> mapTasks = newTasks(mappers);
+        for (Object[] row : rows) {
+            Object[] parameters = new Object[2 + funnelSteps.size()];
+            parameters[0] = row[1];
+            parameters[1] = row[2];
+            for (int i = 0; i < funnelSteps.size(); i++) {
+                parameters[2 + i] = funnelSteps.get(i);
+            }
+            AggregationBuffer buffer = getBuffer(funnelMap, mapTasks.get(random.nextInt(mappers)), row[0]);
+            funnelMap.iterate(buffer, parameters);
+        }
+        report.rows = rows.size();
+
+        // PARTIAL1 -> PARTIAL2, partials go to a random task (skew mode)
+        PartialChannel mapOutput = new PartialChannel(funnelPartialInspector);
+        GenericUDAFEvaluator funnelCombine = funnelEvaluator(funnelInspectors);
+        ObjectInspector funnelCombineInspector = funnelCombine.init(Mode.PARTIAL2, new ObjectInspector[]{mapOutput.getObjectInspector()});
+        List<Map<Object, AggregationBuffer>> combineTasks = newTasks(combiners);
+        for (Map<Object, AggregationBuffer> task : mapTasks) {
+            for (Map.Entry<Object, AggregationBuffer> entry : task.entrySet()) {
+                report.peakBufferSize = Math.max(report.peakBufferSize, bufferSize(entry.getValue()));
+                byte[] bytes = mapOutput.serialize(funnelMap.terminatePartial(entry.getValue()));
+                report.funnelPartialBytes += bytes.length;
+                AggregationBuffer buffer = getBuffer(funnelCombine, combineTasks.get(random.nextInt(combiners)), entry.getKey());
+                funnelCombine.merge(buffer, mapOutput.deserialize(bytes));
+            }
+        }
+
+        // PARTIAL2 -> FINAL, partials are hash partitioned on the group
+        PartialChannel combineOutput = new PartialChannel(funnelCombineInspector);
+        GenericUDAFEvaluator funnelReduce = funnelEvaluator(funnelInspectors);
+        funnelReduce.init(Mode.FINAL, new ObjectInspector[]{combineOutput.getObjectInspector()});
+        List<Map<Object, AggregationBuffer>> reduceTasks = newTasks(reducers);
+        for (Map<Object, AggregationBuffer> task : combineTasks) {
+            for (Map.Entry<Object, AggregationBuffer> entry : task.entrySet()) {
+                report.peakBufferSize = Math.max(report.peakBufferSize, bufferSize(entry.getValue()));
+                byte[] bytes = combineOutput.serialize(funnelCombine.terminatePartial(entry.getValue()));
+                report.funnelPartialBytes += bytes.length;
+                AggregationBuffer buffer = getBuffer(funnelReduce, reduceTasks.get(Math.abs(entry.getKey().hashCode() % reducers)), entry.getKey());
+                funnelReduce.merge(buffer, combineOutput.deserialize(bytes));
+            }
+        }
+
+        // Merge stage, a single global group, map side aggregation in each funnel reducer
+        ObjectInspector[] mergeInspectors = new ObjectInspector[]{
+            ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaLongObjectInspector)
+        };
+        GenericUDAFEvaluator mergeMap = new Merge().getEvaluator(new SimpleGenericUDAFParameterInfo(mergeInspectors, false, false));
+        ObjectInspector mergePartialInspector = mergeMap.init(Mode.PARTIAL1, mergeInspectors);
+        PartialChannel mergeMapOutput = new PartialChannel(mergePartialInspector);
+        GenericUDAFEvaluator mergeCombine = new Merge().getEvaluator(new SimpleGenericUDAFParameterInfo(mergeInspectors, false, false));
+        ObjectInspector mergeCombineInspector = mergeCombine.init(Mode.PARTIAL2, new ObjectInspector[]{mergeMapOutput.getObjectInspector()});
+        Map<Object, AggregationBuffer> mergeCombineBuffers = new LinkedHashMap<>();
+
+        for (Map<Object, AggregationBuffer> task : reduceTasks) {
+            AggregationBuffer mergeBuffer = mergeMap.getNewAggregationBuffer();
+            for (AggregationBuffer buffer : task.values()) {
+                report.peakBufferSize = Math.max(report.peakBufferSize, bufferSize(buffer));
+                mergeMap.iterate(mergeBuffer, new Object[]{funnelReduce.terminate(buffer)});
+                report.groups++;
+            }
+            byte[] bytes = mergeMapOutput.serialize(mergeMap.terminatePartial(mergeBuffer));
+            report.mergePartialBytes += bytes.length;
+            mergeCombine.merge(getBuffer(mergeCombine, mergeCombineBuffers, random.nextInt(combiners)), mergeMapOutput.deserialize(bytes));
+        }
+
+        PartialChannel mergeCombineOutput = new PartialChannel(mergeCombineInspector);
+        GenericUDAFEvaluator mergeReduce = new Merge().getEvaluator(new SimpleGenericUDAFParameterInfo(mergeInspectors, false, false));
+        mergeReduce.init(Mode.FINAL, new ObjectInspector[]{mergeCombineOutput.getObjectInspector()});
+        AggregationBuffer mergeFinal = mergeReduce.getNewAggregationBuffer();
+        for (AggregationBuffer buffer : mergeCombineBuffers.values()) {
+            byte[] bytes = mergeCombineOutput.serialize(mergeCombine.terminatePartial(buffer));
+            report.mergePartialBytes += bytes.length;
+            mergeReduce.merge(mergeFinal, mergeCombineOutput.deserialize(bytes));
+        }
+        report.funnel = (List<Long>) mergeReduce.terminate(mergeFinal);
+        funnelMap.close();
+        funnelCombine.close();
+        funnelReduce.close();
+
+        report.nanos = System.nanoTime() - start;
+        return report;
+    }
+
+    /**
+     * Object inspectors for funnel(action, timestamp, step_1, ..., step_n).
+     */
+    static ObjectInspector[] funnelInputObjectInspectors(int steps) {
+        ObjectInspector[] inspectors = new ObjectInspector[2 + steps];
+        inspectors[0] = PrimitiveObjectInspectorFactory.javaStringObjectInspector;
+        inspectors[1] = PrimitiveObjectInspectorFactory.javaLongObjectInspector;
+        for (int i = 0; i < steps; i++) {
+            inspectors[2 + i] = ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaStringObjectInspector);
+        }
+        return inspectors;
+    }
+
+    /**
+     * A funnel evaluator, configured with the task context if any.
+     */
+    private GenericUDAFEvaluator funnelEvaluator(ObjectInspector[] inspectors) throws HiveException {
+        GenericUDAFEvaluator evaluator = new Funnel().getEvaluator(new SimpleGenericUDAFParameterInfo(inspectors, false, false));
+        if (context != null) {
+            evaluator.configure(context);
+        }
+        return evaluator;
+    }
+
+    private static List<Map<Object, AggregationBuffer>> newTasks(int count) {
+        List<Map<Object, AggregationBuffer>> tasks = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            tasks.add(new LinkedHashMap<>());
+        }
+        return tasks;
+    }
+
+    private static AggregationBuffer getBuffer(GenericUDAFEvaluator evaluator, Map<Object, AggregationBuffer> task, Object key) throws HiveException {
+        AggregationBuffer buffer = task.get(key);
+        if (buffer == null) {
+            buffer = evaluator.getNewAggregationBuffer();
+            evaluator.reset(buffer);
+            task.put(key, buffer);
+        }
+        return buffer;
+    }
+
+    private static int bufferSize(AggregationBuffer buffer) {
+        return ((FunnelAggregateBuffer) buffer).actions.size();
+    }
+
+    /**
+     * Serializes partials with the LazyBinary serde. The deserialized row is
+     * reused between calls, like Hive does.
+     */
+    static class PartialChannel {
+        private final LazyBinarySerDe serde = new LazyBinarySerDe();
+
+        private final ObjectInspector partialObjectInspector;
+
+        private final ObjectInspector rowObjectInspector;
+
+        private final StructField partialField;
+
+        PartialChannel(ObjectInspector partialObjectInspector) throws SerDeException {
+            Properties properties = new Properties();
+            properties.setProperty(serdeConstants.LIST_COLUMNS, "partial");
+            properties.setProperty(serdeConstants.LIST_COLUMN_TYPES, TypeInfoUtils.getTypeInfoFromObjectInspector(partialObjectInspector).getTypeName());
+            serde.initialize(new Configuration(), properties);
+            this.partialObjectInspector = partialObjectInspector;
+            rowObjectInspector = ObjectInspectorFactory.getStandardStructObjectInspector(Arrays.asList("partial"), Arrays.asList(partialObjectInspector));
+            partialField = ((StructObjectInspector) serde.getObjectInspector()).getStructFieldRef("partial");
+        }
+
+        ObjectInspector getObjectInspector() {
+            return partialField.getFieldObjectInspector();
+        }
+
+        ObjectInspector getInputObjectInspector() {
+            return partialObjectInspector;
+        }
+
+        byte[] serialize(Object partial) throws SerDeException {
+            BytesWritable writable = (BytesWritable) serde.serialize(Arrays.asList(partial), rowObjectInspector);
+            return Arrays.copyOf(writable.getBytes(), writable.getLength());
+        }
+
+        Object deserialize(byte[] bytes) throws SerDeException {
+            Object row = serde.deserialize(new BytesWritable(bytes));
+            return ((StructObjectInspector) serde.getObjectInspector()).getStructFieldData(row, partialField);
+        }
+    }
+
+    /**
+     * Profile a generated workload. Optional arguments are the number of
+     * users and the bot rate.
+     */
+    public static void main(String[] args) throws Exception {
+        WorkloadGenerator generator = new WorkloadGenerator();
+        if (args.length > 0) {
+            generator.users = Integer.parseInt(args[0]);
+        }
+        if (args.length > 1) {
+            generator.botRate = Double.parseDouble(args[1]);
+        }
+        List<Object[]> rows = generator.generate();
+        System.out.println(new FunnelSimulator().run(rows, generator.funnelSteps));
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2016 Yahoo Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.hive.udf.funnel;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.hadoop.hive.ql.exec.MapredContext;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.AggregationBuffer;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.Mode;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.ql.udf.generic.SimpleGenericUDAFParameterInfo;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.Reporter;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+public class FunnelSimulatorTest {
+    @Test
+    public void testSimulationMatchesComplete() throws Exception {
+        WorkloadGenerator generator = new WorkloadGenerator();
+        generator.users = 300;
+        generator.maxEventsPerUser = 50;
+        generator.botRate = 0.02;
+        generator.botEvents = 2000;
+        List<Object[]> rows = generator.generate();
+
+        FunnelSimulator.Report report = new FunnelSimulator().run(rows, generator.funnelSteps);
+
+        Assert.assertEquals(complete(rows, generator.funnelSteps), report.funnel);
+        Assert.assertEquals(rows.size(), report.rows);
+        Assert.assertEquals(generator.users, report.groups);
+        Assert.assertTrue(report.funnelPartialBytes > 0);
+        Assert.assertTrue(report.mergePartialBytes > 0);
+        Assert.assertTrue(report.peakBufferSize > 0);
+    }
+
+    @Test
+    public void testGroupsOverSizeLimit() throws Exception {
+        WorkloadGenerator generator = new WorkloadGenerator();
+        generator.users = 300;
+        generator.maxEventsPerUser = 50;
+        generator.botRate = 0.02;
+        generator.botEvents = 2000;
+        List<Object[]> rows = generator.generate();
+
+        long limit = 20L;
+        JobConf jobConf = new JobConf();
+        jobConf.setLong(Funnel.FunnelEvaluator.GROUP_SIZE_LIMIT_CONF, limit);
+        MapredContext context = MapredContext.init(false, jobConf);
+        Reporter reporter = Mockito.mock(Reporter.class);
+        context.setReporter(reporter);
+        FunnelSimulator simulator = new FunnelSimulator();
+        simulator.context = context;
+        try {
+            simulator.run(rows, generator.funnelSteps);
+        } finally {
+            MapredContext.close();
+        }
+
+        // Groups are split over the mappers, but only counted once, by the final stage
+        long oversized = completeBuffers(rows, generator.funnelSteps).values()
+                                                                     .stream()
+                                                                     .filter(buffer -> ((FunnelAggregateBuffer) buffer).actions.size() > limit)
+                                                                     .count();
+        ArgumentCaptor<Long> counts = ArgumentCaptor.forClass(Long.class);
+        Mockito.verify(reporter, Mockito.atLeastOnce()).incrCounter(Mockito.eq(Funnel.class.getName()), Mockito.eq(FunnelCounter.GROUPS_OVER_SIZE_LIMIT.name()), counts.capture());
+        Assert.assertTrue(oversized > 0);
+        Assert.assertEquals(oversized, counts.getAllValues().stream().mapToLong(Long::longValue).sum());
+    }
+
+    /**
+     * Compute the merged funnel with the funnel evaluator in COMPLETE mode.
+     */
+    private List<Long> complete(List<Object[]> rows, List<List<Object>> funnelSteps) throws Exception {
+        ObjectInspector[] inspectors = FunnelSimulator.funnelInputObjectInspectors(funnelSteps.size());
+        GenericUDAFEvaluator evaluator = new Funnel().getEvaluator(new SimpleGenericUDAFParameterInfo(inspectors, false, false));
+        evaluator.init(Mode.COMPLETE, inspectors);
+        MergeAggregateBuffer merged = new MergeAggregateBuffer();
+        for (AggregationBuffer buffer : completeBuffers(rows, funnelSteps).values()) {
+            merged.addFunnel((List<Long>) evaluator.terminate(buffer));
+        }
+        return merged.output();
+    }
+
+    /**
+     * Aggregate the groups with the funnel evaluator in COMPLETE mode.
+     */
+    private Map<Object, AggregationBuffer> completeBuffers(List<Object[]> rows, List<List<Object>> funnelSteps) throws Exception {
+        ObjectInspector[] inspectors = FunnelSimulator.funnelInputObjectInspectors(funnelSteps.size());
+        GenericUDAFEvaluator evaluator = new Funnel().getEvaluator(new SimpleGenericUDAFParameterInfo(inspectors, false, false));
+        evaluator.init(Mode.COMPLETE, inspectors);
+
+        Map<Object, AggregationBuffer> groups = new LinkedHashMap<>();
+        for (Object[] row : rows) {
+            AggregationBuffer buffer = groups.get(row[0]);
+            if (buffer == null) {
+                buffer = evaluator.getNewAggregationBuffer();
+                groups.put(row[0], buffer);
+            }
+            List<Object> parameters = new ArrayList<>();
+            parameters.add(row[1]);
+            parameters.add(row[2]);
+            parameters.addAll(funnelSteps);
+            evaluator.iterate(buffer, parameters.toArray());
+        }
+        return groups;
+    }
+}
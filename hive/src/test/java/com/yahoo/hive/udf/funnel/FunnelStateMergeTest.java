@@ -0,0 +1,162 @@
+/*
+ * Copyright 2016 Yahoo Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.hive.udf.funnel;
+
+import java.util.Arrays;
+import java.util.List;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentLengthException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.AggregationBuffer;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.Mode;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFParameterInfo;
+import org.apache.hadoop.hive.ql.udf.generic.SimpleGenericUDAFParameterInfo;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfoFactory;
+import org.apache.hadoop.io.LongWritable;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class FunnelStateMergeTest {
+    /** Input object inspectors, without a window. */
+    private static final ObjectInspector[] INPUT_OBJECT_INSPECTORS = new ObjectInspector[]{FunnelStateMerge.stateObjectInspector()};
+
+    /** Input object inspectors, with a constant window start. */
+    private static ObjectInspector[] windowObjectInspectors(long windowStart) {
+        return new ObjectInspector[]{
+            FunnelStateMerge.stateObjectInspector(),
+            PrimitiveObjectInspectorFactory.getPrimitiveWritableConstantObjectInspector(TypeInfoFactory.longTypeInfo, new LongWritable(windowStart))
+        };
+    }
+
+    /** Funnel state with three steps. */
+    private static List<Object> state(List<Long> timestamps, List<Long> masks) {
+        return Arrays.asList(3, timestamps, masks);
+    }
+
+    /** Merge states in COMPLETE mode. */
+    private static Object complete(ObjectInspector[] inputObjectInspectorList, List<?>... states) throws HiveException {
+        FunnelStateMerge udaf = new FunnelStateMerge();
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(inputObjectInspectorList, false, false);
+        GenericUDAFEvaluator udafEvaluator = udaf.getEvaluator(paramInfo);
+        udafEvaluator.init(Mode.COMPLETE, inputObjectInspectorList);
+        AggregationBuffer agg = udafEvaluator.getNewAggregationBuffer();
+        udafEvaluator.reset(agg);
+        for (List<?> state : states) {
+            udafEvaluator.iterate(agg, new Object[]{state, null});
+        }
+        return udafEvaluator.terminate(agg);
+    }
+
+    @Test
+    public void testIncremental() throws HiveException {
+        // Yesterday's state, with today's events
+        Object state = complete(INPUT_OBJECT_INSPECTORS,
+                                state(Arrays.asList(100L, 150L, 200L, 300L), Arrays.asList(1L, 1L, 2L, 1L)),
+                                state(Arrays.asList(1000L), Arrays.asList(4L)));
+        // Without a window, all the events are kept
+        Assert.assertEquals(state(Arrays.asList(100L, 150L, 200L, 300L, 1000L), Arrays.asList(1L, 1L, 2L, 1L, 4L)), state);
+        Assert.assertEquals(Arrays.asList(1L, 1L, 1L), FunnelStateTest.result(state));
+    }
+
+    @Test
+    public void testOutOfOrder() throws HiveException {
+        // The second step before the first one matches nothing on its own
+        Object state = complete(INPUT_OBJECT_INSPECTORS, state(Arrays.asList(200L, 300L), Arrays.asList(2L, 1L)));
+        Assert.assertEquals(Arrays.asList(1L, 0L, 0L), FunnelStateTest.result(state));
+        // It does once an earlier state is merged
+        state = complete(INPUT_OBJECT_INSPECTORS, (List<?>) state, state(Arrays.asList(100L), Arrays.asList(1L)));
+        Assert.assertEquals(state(Arrays.asList(100L, 200L, 300L), Arrays.asList(1L, 2L, 1L)), state);
+        Assert.assertEquals(Arrays.asList(1L, 1L, 0L), FunnelStateTest.result(state));
+    }
+
+    @Test
+    public void testWindow() throws HiveException {
+        Object state = complete(windowObjectInspectors(150L),
+                                state(Arrays.asList(100L, 200L, 300L), Arrays.asList(1L, 2L, 1L)),
+                                state(Arrays.asList(400L), Arrays.asList(2L)));
+        // The first step left the window, the events that may match later are kept
+        Assert.assertEquals(state(Arrays.asList(200L, 300L, 400L), Arrays.asList(2L, 1L, 2L)), state);
+        Assert.assertEquals(Arrays.asList(1L, 1L, 0L), FunnelStateTest.result(state));
+    }
+
+    @Test
+    public void testInterleaved() throws HiveException {
+        Object state = complete(windowObjectInspectors(0L),
+                                state(Arrays.asList(100L, 300L), Arrays.asList(1L, 4L)),
+                                state(Arrays.asList(200L, 300L), Arrays.asList(2L, 4L)));
+        Assert.assertEquals(state(Arrays.asList(100L, 200L, 300L), Arrays.asList(1L, 2L, 4L)), state);
+    }
+
+    @Test
+    public void testPartials() throws Exception {
+        FunnelStateMerge udaf = new FunnelStateMerge();
+        ObjectInspector[] inputObjectInspectorList = windowObjectInspectors(150L);
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(inputObjectInspectorList, false, false);
+
+        GenericUDAFEvaluator mapEvaluator = udaf.getEvaluator(paramInfo);
+        FunnelSimulator.PartialChannel channel = new FunnelSimulator.PartialChannel(mapEvaluator.init(Mode.PARTIAL1, inputObjectInspectorList));
+        AggregationBuffer agg1 = mapEvaluator.getNewAggregationBuffer();
+        mapEvaluator.reset(agg1);
+        mapEvaluator.iterate(agg1, new Object[]{state(Arrays.asList(100L, 200L, 300L), Arrays.asList(1L, 1L, 1L)), 150L});
+        byte[] partial1 = channel.serialize(mapEvaluator.terminatePartial(agg1));
+        AggregationBuffer agg2 = mapEvaluator.getNewAggregationBuffer();
+        mapEvaluator.reset(agg2);
+        mapEvaluator.iterate(agg2, new Object[]{state(Arrays.asList(250L), Arrays.asList(2L)), 150L});
+        byte[] partial2 = channel.serialize(mapEvaluator.terminatePartial(agg2));
+
+        // The window start comes with the partials, all the events in the window are kept
+        GenericUDAFEvaluator reduceEvaluator = udaf.getEvaluator(paramInfo);
+        reduceEvaluator.init(Mode.FINAL, new ObjectInspector[]{channel.getObjectInspector()});
+        AggregationBuffer agg = reduceEvaluator.getNewAggregationBuffer();
+        reduceEvaluator.reset(agg);
+        reduceEvaluator.merge(agg, channel.deserialize(partial1));
+        reduceEvaluator.merge(agg, channel.deserialize(partial2));
+        Assert.assertEquals(state(Arrays.asList(200L, 250L, 300L), Arrays.asList(1L, 2L, 1L)), reduceEvaluator.terminate(agg));
+    }
+
+    @Test(expected = HiveException.class)
+    public void testStepsMismatch() throws HiveException {
+        complete(INPUT_OBJECT_INSPECTORS, state(Arrays.asList(100L), Arrays.asList(1L)), Arrays.asList(2, Arrays.asList(200L), Arrays.asList(2L)));
+    }
+
+    @Test(expected = UDFArgumentLengthException.class)
+    public void testInvalidNumberOfParams() throws HiveException {
+        new FunnelStateMerge().getEvaluator(new SimpleGenericUDAFParameterInfo(new ObjectInspector[0], false, false));
+    }
+
+    @Test(expected = UDFArgumentTypeException.class)
+    public void testNotAState() throws HiveException {
+        ObjectInspector[] inputObjectInspectorList = new ObjectInspector[]{
+            ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaLongObjectInspector)
+        };
+        new FunnelStateMerge().getEvaluator(new SimpleGenericUDAFParameterInfo(inputObjectInspectorList, false, false));
+    }
+
+    @Test(expected = UDFArgumentTypeException.class)
+    public void testNonConstantWindow() throws HiveException {
+        ObjectInspector[] inputObjectInspectorList = new ObjectInspector[]{
+            FunnelStateMerge.stateObjectInspector(),
+            PrimitiveObjectInspectorFactory.javaLongObjectInspector
+        };
+        FunnelStateMerge udaf = new FunnelStateMerge();
+        udaf.getEvaluator(new SimpleGenericUDAFParameterInfo(inputObjectInspectorList, false, false)).init(Mode.COMPLETE, inputObjectInspectorList);
+    }
+}
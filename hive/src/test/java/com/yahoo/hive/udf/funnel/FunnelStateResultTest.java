@@ -0,0 +1,53 @@
+/*
+ * Copyright 2016 Yahoo Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.hive.udf.funnel;
+
+import java.util.Arrays;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentLengthException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit test for FunnelStateResult.
+ */
+public class FunnelStateResultTest {
+    @Test(expected = UDFArgumentLengthException.class)
+    public void testTooManyInputs() throws HiveException {
+        FunnelStateResult udf = new FunnelStateResult();
+        udf.initialize(new ObjectInspector[]{FunnelStateMerge.stateObjectInspector(), FunnelStateMerge.stateObjectInspector()});
+    }
+
+    @Test(expected = UDFArgumentTypeException.class)
+    public void testBadInputType() throws HiveException {
+        FunnelStateResult udf = new FunnelStateResult();
+        udf.initialize(new ObjectInspector[]{ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaLongObjectInspector)});
+    }
+
+    @Test
+    public void testResult() throws HiveException {
+        // An action in steps 1 and 2 only matches one of them
+        Assert.assertEquals(Arrays.asList(1L, 0L, 0L), FunnelStateTest.result(Arrays.asList(3, Arrays.asList(100L, 200L), Arrays.asList(3L, 4L))));
+        Assert.assertEquals(Arrays.asList(1L, 1L, 1L), FunnelStateTest.result(Arrays.asList(3, Arrays.asList(100L, 200L, 300L), Arrays.asList(3L, 3L, 4L))));
+        Assert.assertEquals(Arrays.asList(0L, 0L, 0L), FunnelStateTest.result(Arrays.asList(3, Arrays.asList(), Arrays.asList())));
+        Assert.assertNull(FunnelStateTest.result(null));
+    }
+}
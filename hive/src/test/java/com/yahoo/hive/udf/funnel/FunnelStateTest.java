@@ -0,0 +1,142 @@
+/*
+ * Copyright 2016 Yahoo Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.hive.udf.funnel;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.AggregationBuffer;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.Mode;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFParameterInfo;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDF.DeferredObject;
+import org.apache.hadoop.hive.ql.udf.generic.SimpleGenericUDAFParameterInfo;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfoFactory;
+import org.apache.hadoop.io.Text;
+import org.junit.Assert;
+import org.junit.Test;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class FunnelStateTest {
+    /** Input object inspectors, with three steps. */
+    private static final ObjectInspector[] INPUT_OBJECT_INSPECTORS = new ObjectInspector[]{
+        PrimitiveObjectInspectorFactory.javaStringObjectInspector, // action_column
+        PrimitiveObjectInspectorFactory.javaLongObjectInspector, // timestamp_column
+        ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaStringObjectInspector), // funnel_step_1
+        ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaStringObjectInspector), // funnel_step_2
+        ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaStringObjectInspector) // funnel_step_3
+    };
+
+    /** Input row for an event. */
+    private static Object[] row(String action, long timestamp) {
+        return new Object[]{action, timestamp, Arrays.asList("alpha"), Arrays.asList("beta"), Arrays.asList("gamma")};
+    }
+
+    /** Run a UDAF in COMPLETE mode over the rows. */
+    private static Object complete(Funnel udaf, List<Object[]> rows) throws HiveException {
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(INPUT_OBJECT_INSPECTORS, false, false);
+        GenericUDAFEvaluator udafEvaluator = udaf.getEvaluator(paramInfo);
+        udafEvaluator.init(Mode.COMPLETE, INPUT_OBJECT_INSPECTORS);
+        AggregationBuffer agg = udafEvaluator.getNewAggregationBuffer();
+        udafEvaluator.reset(agg);
+        for (Object[] row : rows) {
+            udafEvaluator.iterate(agg, row);
+        }
+        return udafEvaluator.terminate(agg);
+    }
+
+    /** Funnel of a state. */
+    static Object result(Object state) throws HiveException {
+        FunnelStateResult udf = new FunnelStateResult();
+        udf.initialize(new ObjectInspector[]{FunnelStateMerge.stateObjectInspector()});
+        DeferredObject obj1 = mock(DeferredObject.class);
+        when(obj1.get()).thenReturn(state);
+        return udf.evaluate(new DeferredObject[]{obj1});
+    }
+
+    @Test
+    public void testState() throws HiveException {
+        Object state = complete(new FunnelState(), Arrays.asList(row("beta", 100L), row("alpha", 200L), row("delta", 250L),
+                                                                 row("beta", 300L), row("beta", 300L), row("gamma", 400L)));
+        // Actions out of the funnel are dropped, and so are repeated events
+        Assert.assertEquals(Arrays.asList(3, Arrays.asList(100L, 200L, 300L, 400L), Arrays.asList(2L, 1L, 2L, 4L)), state);
+        Assert.assertEquals(Arrays.asList(1L, 1L, 1L), result(state));
+    }
+
+    @Test
+    public void testSameAsFunnel() throws HiveException {
+        Random random = new Random(42);
+        List<String> actions = Arrays.asList("alpha", "beta", "gamma", "delta");
+        for (int n = 0; n < 200; n++) {
+            Object[][] rows = new Object[random.nextInt(10)][];
+            for (int i = 0; i < rows.length; i++) {
+                rows[i] = row(actions.get(random.nextInt(actions.size())), random.nextInt(20));
+            }
+            Assert.assertEquals(complete(new Funnel(), Arrays.asList(rows)), result(complete(new FunnelState(), Arrays.asList(rows))));
+        }
+    }
+
+    @Test
+    public void testPartials() throws Exception {
+        FunnelState udaf = new FunnelState();
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(INPUT_OBJECT_INSPECTORS, false, false);
+
+        // Same partials as funnel, sent through the serde
+        GenericUDAFEvaluator mapEvaluator = udaf.getEvaluator(paramInfo);
+        FunnelSimulator.PartialChannel channel = new FunnelSimulator.PartialChannel(mapEvaluator.init(Mode.PARTIAL1, INPUT_OBJECT_INSPECTORS));
+        AggregationBuffer agg1 = mapEvaluator.getNewAggregationBuffer();
+        mapEvaluator.reset(agg1);
+        mapEvaluator.iterate(agg1, row("beta", 200L));
+        byte[] partial1 = channel.serialize(mapEvaluator.terminatePartial(agg1));
+        AggregationBuffer agg2 = mapEvaluator.getNewAggregationBuffer();
+        mapEvaluator.reset(agg2);
+        mapEvaluator.iterate(agg2, row("alpha", 100L));
+        byte[] partial2 = channel.serialize(mapEvaluator.terminatePartial(agg2));
+
+        GenericUDAFEvaluator reduceEvaluator = udaf.getEvaluator(paramInfo);
+        reduceEvaluator.init(Mode.FINAL, new ObjectInspector[]{channel.getObjectInspector()});
+        AggregationBuffer agg = reduceEvaluator.getNewAggregationBuffer();
+        reduceEvaluator.reset(agg);
+        reduceEvaluator.merge(agg, channel.deserialize(partial1));
+        reduceEvaluator.merge(agg, channel.deserialize(partial2));
+        Assert.assertEquals(Arrays.asList(3, Arrays.asList(100L, 200L), Arrays.asList(1L, 2L)), reduceEvaluator.terminate(agg));
+    }
+
+    @Test(expected = UDFArgumentException.class)
+    public void testUnorderedNotSupported() throws HiveException {
+        ObjectInspector[] inputObjectInspectorList = Arrays.copyOf(INPUT_OBJECT_INSPECTORS, INPUT_OBJECT_INSPECTORS.length + 1);
+        inputObjectInspectorList[INPUT_OBJECT_INSPECTORS.length] = PrimitiveObjectInspectorFactory.getPrimitiveWritableConstantObjectInspector(TypeInfoFactory.stringTypeInfo, new Text("unordered"));
+        FunnelState udaf = new FunnelState();
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(inputObjectInspectorList, false, false);
+        udaf.getEvaluator(paramInfo).init(Mode.COMPLETE, inputObjectInspectorList);
+    }
+
+    @Test(expected = UDFArgumentTypeException.class)
+    public void testStringTimestamp() throws HiveException {
+        ObjectInspector[] inputObjectInspectorList = INPUT_OBJECT_INSPECTORS.clone();
+        inputObjectInspectorList[1] = PrimitiveObjectInspectorFactory.javaStringObjectInspector;
+        FunnelState udaf = new FunnelState();
+        udaf.getEvaluator(new SimpleGenericUDAFParameterInfo(inputObjectInspectorList, false, false));
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2016 Yahoo Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.hive.udf.funnel;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FunnelStepsFileTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testParse() {
+        List<List<String>> funnelSteps = FunnelStepsFile.parse("a\nb\n\nc\r\n\r\n\n\nd\ne");
+        Assert.assertEquals(Arrays.asList(Arrays.asList("a", "b"), Arrays.asList("c"), Arrays.asList("d", "e")), funnelSteps);
+    }
+
+    @Test
+    public void testParseEmpty() {
+        Assert.assertTrue(FunnelStepsFile.parse("").isEmpty());
+        Assert.assertTrue(FunnelStepsFile.parse("\n\n").isEmpty());
+        Assert.assertEquals(Arrays.asList(Arrays.asList("a")), FunnelStepsFile.parse("\na\n"));
+    }
+
+    @Test
+    public void testLoad() throws Exception {
+        File file = folder.newFile("steps.txt");
+        Files.write(file.toPath(), "signup\n\nbuy_\u00e9\n".getBytes(StandardCharsets.UTF_8));
+        List<List<String>> funnelSteps = FunnelStepsFile.load(file.getPath());
+        Assert.assertEquals(Arrays.asList(Arrays.asList("signup"), Arrays.asList("buy_\u00e9")), funnelSteps);
+
+        // Parsed once
+        Assert.assertSame(funnelSteps, FunnelStepsFile.load(file.getPath()));
+    }
+
+    @Test
+    public void testReloadChangedFile() throws Exception {
+        File file = folder.newFile("changed.txt");
+        Files.write(file.toPath(), "signup\n".getBytes(StandardCharsets.UTF_8));
+        FunnelStepsFile.load(file.getPath());
+        int cached = FunnelStepsFile.cacheSize();
+
+        // A new version of the file replaces the old one
+        Files.write(file.toPath(), "signup\n\nbuy\n".getBytes(StandardCharsets.UTF_8));
+        Assert.assertEquals(Arrays.asList(Arrays.asList("signup"), Arrays.asList("buy")), FunnelStepsFile.load(file.getPath()));
+        Assert.assertEquals(cached, FunnelStepsFile.cacheSize());
+    }
+
+    @Test(expected = UDFArgumentException.class)
+    public void testMissingFile() throws HiveException {
+        FunnelStepsFile.load(new File(folder.getRoot(), "missing.txt").getPath());
+    }
+}
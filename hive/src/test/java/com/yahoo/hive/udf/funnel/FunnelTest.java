@@ -0,0 +1,935 @@
+/*
+ * Copyright 2016 Yahoo Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.hive.udf.funnel;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.hadoop.hive.ql.exec.MapredContext;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentLengthException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.AggregationBuffer;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.Mode;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFParameterInfo;
+import org.apache.hadoop.hive.ql.udf.generic.SimpleGenericUDAFParameterInfo;
+import org.apache.hadoop.hive.serde2.objectinspector.ConstantObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfoFactory;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.Reporter;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+public class FunnelTest {
+    @Test(expected = UDFArgumentLengthException.class)
+    public void testInvalidNumberOfParams() throws HiveException {
+        Funnel udaf = new Funnel();
+        ObjectInspector[] inputObjectInspectorList = new ObjectInspector[]{
+            PrimitiveObjectInspectorFactory.javaLongObjectInspector
+        };
+
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(inputObjectInspectorList, false, false);
+        GenericUDAFEvaluator udafEvaluator = udaf.getEvaluator(paramInfo);
+    }
+
+    @Test(expected = UDFArgumentTypeException.class)
+    public void testComplexParamPosition1() throws HiveException {
+        Funnel udaf = new Funnel();
+        ObjectInspector[] inputObjectInspectorList = new ObjectInspector[]{
+            ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaLongObjectInspector),
+            PrimitiveObjectInspectorFactory.javaStringObjectInspector,
+            PrimitiveObjectInspectorFactory.javaStringObjectInspector
+        };
+
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(inputObjectInspectorList, false, false);
+        GenericUDAFEvaluator udafEvaluator = udaf.getEvaluator(paramInfo);
+    }
+
+    @Test(expected = UDFArgumentTypeException.class)
+    public void testComplexParamPosition2() throws HiveException {
+        Funnel udaf = new Funnel();
+        ObjectInspector[] inputObjectInspectorList = new ObjectInspector[]{
+            PrimitiveObjectInspectorFactory.javaStringObjectInspector,
+            ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaLongObjectInspector),
+            PrimitiveObjectInspectorFactory.javaStringObjectInspector
+        };
+
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(inputObjectInspectorList, false, false);
+        GenericUDAFEvaluator udafEvaluator = udaf.getEvaluator(paramInfo);
+    }
+
+    @Test(expected = UDFArgumentTypeException.class)
+    public void testNonmatchingParamPosition4() throws HiveException {
+        Funnel udaf = new Funnel();
+        ObjectInspector[] inputObjectInspectorList = new ObjectInspector[]{
+            PrimitiveObjectInspectorFactory.javaStringObjectInspector,
+            PrimitiveObjectInspectorFactory.javaStringObjectInspector,
+            PrimitiveObjectInspectorFactory.javaStringObjectInspector,
+            PrimitiveObjectInspectorFactory.javaLongObjectInspector
+        };
+
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(inputObjectInspectorList, false, false);
+        GenericUDAFEvaluator udafEvaluator = udaf.getEvaluator(paramInfo);
+    }
+
+    @Test(expected = UDFArgumentTypeException.class)
+    public void testComplexParamPosition4() throws HiveException {
+        Funnel udaf = new Funnel();
+        ObjectInspector[] inputObjectInspectorList = new ObjectInspector[]{
+            PrimitiveObjectInspectorFactory.javaStringObjectInspector,
+            PrimitiveObjectInspectorFactory.javaStringObjectInspector,
+            PrimitiveObjectInspectorFactory.javaStringObjectInspector,
+            ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaLongObjectInspector)
+        };
+
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(inputObjectInspectorList, false, false);
+        GenericUDAFEvaluator udafEvaluator = udaf.getEvaluator(paramInfo);
+    }
+
+    @Test(expected = UDFArgumentTypeException.class)
+    public void testComplexValueInFunnelList() throws HiveException {
+        Funnel udaf = new Funnel();
+        ObjectInspector[] inputObjectInspectorList = new ObjectInspector[]{
+            PrimitiveObjectInspectorFactory.javaStringObjectInspector,
+            PrimitiveObjectInspectorFactory.javaStringObjectInspector,
+            ObjectInspectorFactory.getStandardListObjectInspector(ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaStringObjectInspector)),
+            ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaStringObjectInspector)
+        };
+
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(inputObjectInspectorList, false, false);
+        GenericUDAFEvaluator udafEvaluator = udaf.getEvaluator(paramInfo);
+    }
+
+    @Test(expected = UDFArgumentTypeException.class)
+    public void testFunnelListValueNotMatchingWithActionColumn() throws HiveException {
+        Funnel udaf = new Funnel();
+        ObjectInspector[] inputObjectInspectorList = new ObjectInspector[]{
+            PrimitiveObjectInspectorFactory.javaStringObjectInspector,
+            PrimitiveObjectInspectorFactory.javaStringObjectInspector,
+            ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaStringObjectInspector),
+            ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaLongObjectInspector)
+        };
+
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(inputObjectInspectorList, false, false);
+        GenericUDAFEvaluator udafEvaluator = udaf.getEvaluator(paramInfo);
+    }
+
+    @Test
+    public void testComplete() throws HiveException {
+        Funnel udaf = new Funnel();
+
+        ObjectInspector[] inputObjectInspectorList = new ObjectInspector[]{
+            PrimitiveObjectInspectorFactory.javaStringObjectInspector, // action_column
+            PrimitiveObjectInspectorFactory.javaLongObjectInspector,   // timestamp_column
+            ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaStringObjectInspector), // funnel_step_1
+            ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaStringObjectInspector) // funnel_step_1
+        };
+
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(inputObjectInspectorList, false, false);
+        GenericUDAFEvaluator udafEvaluator = udaf.getEvaluator(paramInfo);
+
+        ObjectInspector outputObjectInspector = udafEvaluator.init(Mode.COMPLETE, inputObjectInspectorList);
+
+        // Order will be "alpha, beta, gamma, delta" when ordered on timestamp_column
+        // Funnel is "beta" -> "gamma" -> "epsilon"
+        // Should return [1, 1, 0] as we don't have an epsilon
+        Object[] parameters1 = new Object[]{ "beta", 200L, new ArrayList<Object>(), Arrays.asList("beta", "BAD"), null, "gamma", Arrays.asList("epsilon")}; // Test empty list funnel step, and null in funnel step
+        Object[] parameters2 = new Object[]{"alpha", 100L,   Arrays.asList("beta", "BAD"), "gamma", Arrays.asList("epsilon")};
+        Object[] parameters3 = new Object[]{"delta", 400L,   Arrays.asList("beta", "BAD"), "gamma", Arrays.asList("epsilon")};
+        Object[] parameters4 = new Object[]{"gamma", 200L,   Arrays.asList("beta", "BAD"), "gamma", Arrays.asList("epsilon")}; // gamma and beta happen at the same time, beta should come first (sorted on action after timestamp)
+        Object[] parameters5 = new Object[]{   null, 800L,   Arrays.asList("beta", "BAD"), "gamma", Arrays.asList("epsilon")}; // Check null action_column
+        Object[] parameters6 = new Object[]{"omega", null,   Arrays.asList("beta", "BAD"), "gamma", Arrays.asList("epsilon")}; // Check null timestamp
+
+        // Process the data
+        AggregationBuffer agg = udafEvaluator.getNewAggregationBuffer();
+        udafEvaluator.reset(agg);
+        udafEvaluator.iterate(agg, parameters1);
+        udafEvaluator.iterate(agg, parameters2);
+        udafEvaluator.iterate(agg, parameters3);
+        udafEvaluator.iterate(agg, parameters4);
+        udafEvaluator.iterate(agg, parameters5);
+        udafEvaluator.iterate(agg, parameters6);
+        Object result = udafEvaluator.terminate(agg);
+
+        // Expected
+        List<Long> expected = new ArrayList<>();
+        expected.add(1L);
+        expected.add(1L);
+        expected.add(0L);
+
+        Assert.assertEquals(expected, result);
+    }
+
+    @Test
+    public void testPartial1() throws HiveException {
+        Funnel udaf = new Funnel();
+
+        ObjectInspector[] inputObjectInspectorList = new ObjectInspector[]{
+            PrimitiveObjectInspectorFactory.javaStringObjectInspector, // action_column
+            PrimitiveObjectInspectorFactory.javaLongObjectInspector,   // timestamp_column
+            ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaStringObjectInspector), // funnel_step_1
+            ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaStringObjectInspector) // funnel_step_1
+        };
+
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(inputObjectInspectorList, false, false);
+        GenericUDAFEvaluator udafEvaluator = udaf.getEvaluator(paramInfo);
+
+        ObjectInspector outputObjectInspector = udafEvaluator.init(Mode.PARTIAL1, inputObjectInspectorList);
+
+        // Order will be "alpha, beta, gamma, delta" when ordered on timestamp_column
+        // Funnel is "beta" -> "gamma" -> "epsilon"
+        // Should return [1, 1, 0] as we don't have an epsilon
+        Object[] parameters1 = new Object[]{ "beta", 200L, Arrays.asList("beta"), "gamma", Arrays.asList("epsilon")};
+        Object[] parameters2 = new Object[]{"alpha", 100L, Arrays.asList("beta"), "gamma", Arrays.asList("epsilon")};
+        Object[] parameters3 = new Object[]{"delta", 400L, Arrays.asList("beta"), "gamma", Arrays.asList("epsilon")};
+        Object[] parameters4 = new Object[]{"gamma", 300L, Arrays.asList("beta"), "gamma", Arrays.asList("epsilon")};
+
+        // Process the data
+        AggregationBuffer agg = udafEvaluator.getNewAggregationBuffer();
+        udafEvaluator.reset(agg);
+        udafEvaluator.iterate(agg, parameters1);
+        udafEvaluator.iterate(agg, parameters2);
+        udafEvaluator.iterate(agg, parameters3);
+        udafEvaluator.iterate(agg, parameters4);
+        Object result = udafEvaluator.terminatePartial(agg);
+
+        // Expected partial output
+        List<Object> expected = new ArrayList<>();
+        expected.add(Arrays.asList("beta", "gamma"));
+        expected.add(Arrays.asList(200L, 300L));
+        expected.add(Arrays.asList("beta", null, "gamma", null, "epsilon", null));
+
+        Assert.assertEquals(expected, result);
+    }
+
+    @Test
+    public void testPartial2() throws HiveException {
+        Funnel udaf = new Funnel();
+
+        // Construct the object inspector for udaf evaluator
+        ObjectInspector[] inputObjectInspectorList = new ObjectInspector[]{
+            PrimitiveObjectInspectorFactory.javaStringObjectInspector, // action_column
+            PrimitiveObjectInspectorFactory.javaLongObjectInspector,   // timestamp_column
+            ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaStringObjectInspector), // funnel_step_1
+            ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaStringObjectInspector) // funnel_step_1
+        };
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(inputObjectInspectorList, false, false);
+        GenericUDAFEvaluator udafEvaluator = udaf.getEvaluator(paramInfo);
+
+        // Construct the struct object inspector
+        List<String> fieldNames = new ArrayList<>();
+        fieldNames.add("action");
+        fieldNames.add("timestamp");
+        fieldNames.add("funnel");
+        List<ObjectInspector> fieldInspectors = new ArrayList<>();
+        fieldInspectors.add(ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaStringObjectInspector));
+        fieldInspectors.add(ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaLongObjectInspector));
+        fieldInspectors.add(ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaStringObjectInspector));
+        ObjectInspector structObjectInspector = ObjectInspectorFactory.getStandardStructObjectInspector(fieldNames, fieldInspectors);
+        ObjectInspector[] evaluatorInputObjectInspectorList = new ObjectInspector[]{structObjectInspector};
+
+        ObjectInspector outputObjectInspector = udafEvaluator.init(Mode.PARTIAL2, evaluatorInputObjectInspectorList);
+
+        // Create the two structs to merge
+        List<Object> parameter1 = new ArrayList<>();
+        parameter1.add(Arrays.asList("beta"));
+        parameter1.add(Arrays.asList(300L));
+        parameter1.add(Arrays.asList("alpha", null, "beta", null, "gamma", null, "epsilon", null));
+
+        List<Object> parameter2 = new ArrayList<>();
+        parameter2.add(Arrays.asList("gamma", "alpha"));
+        parameter2.add(Arrays.asList(400L, 200L));
+        parameter1.add(Arrays.asList("alpha", null, "beta", null, "gamma", null, "epsilon", null));
+
+        // Process the data
+        AggregationBuffer agg = udafEvaluator.getNewAggregationBuffer();
+        udafEvaluator.reset(agg);
+        udafEvaluator.merge(agg, parameter1);
+        udafEvaluator.merge(agg, parameter2);
+        Object result = udafEvaluator.terminatePartial(agg);
+
+        // Expected
+        List<Object> expected = new ArrayList<>();
+        expected.add(Arrays.asList("beta", "gamma", "alpha"));
+        expected.add(Arrays.asList(300L, 400L, 200L));
+        expected.add(Arrays.asList("alpha", null, "beta", null, "gamma", null, "epsilon", null));
+
+        Assert.assertEquals(expected, result);
+    }
+
+    @Test
+    public void testFinal() throws HiveException {
+        Funnel udaf = new Funnel();
+
+        // Construct the object inspector for udaf evaluator
+        ObjectInspector[] inputObjectInspectorList = new ObjectInspector[]{
+            PrimitiveObjectInspectorFactory.javaStringObjectInspector, // action_column
+            PrimitiveObjectInspectorFactory.javaLongObjectInspector,   // timestamp_column
+            ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaStringObjectInspector), // funnel_step_1
+            ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaStringObjectInspector) // funnel_step_1
+        };
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(inputObjectInspectorList, false, false);
+        GenericUDAFEvaluator udafEvaluator = udaf.getEvaluator(paramInfo);
+
+        // Construct the struct object inspector
+        List<String> fieldNames = new ArrayList<>();
+        fieldNames.add("action");
+        fieldNames.add("timestamp");
+        fieldNames.add("funnel");
+        List<ObjectInspector> fieldInspectors = new ArrayList<>();
+        fieldInspectors.add(ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaStringObjectInspector));
+        fieldInspectors.add(ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaLongObjectInspector));
+        fieldInspectors.add(ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaStringObjectInspector));
+        ObjectInspector structObjectInspector = ObjectInspectorFactory.getStandardStructObjectInspector(fieldNames, fieldInspectors);
+        ObjectInspector[] evaluatorInputObjectInspectorList = new ObjectInspector[]{structObjectInspector};
+
+        ObjectInspector outputObjectInspector = udafEvaluator.init(Mode.FINAL, evaluatorInputObjectInspectorList);
+
+        // Create the two structs to merge
+        List<Object> parameter1 = new ArrayList<>();
+        parameter1.add(Arrays.asList("beta"));
+        parameter1.add(Arrays.asList(300L));
+        parameter1.add(Arrays.asList("alpha", null, "beta", null, "gamma", null, "epsilon", null));
+
+        List<Object> parameter2 = new ArrayList<>();
+        parameter2.add(Arrays.asList("gamma", "alpha"));
+        parameter2.add(Arrays.asList(400L, 200L));
+        parameter2.add(Arrays.asList("alpha", null, "beta", null, "gamma", null, "epsilon", null));
+
+        // Process the data
+        AggregationBuffer agg = udafEvaluator.getNewAggregationBuffer();
+        udafEvaluator.reset(agg);
+        udafEvaluator.merge(agg, parameter1);
+        udafEvaluator.merge(agg, parameter2);
+        Object result = udafEvaluator.terminate(agg);
+
+        // Expected
+        List<Long> expected = Arrays.asList(1L, 1L, 1L, 0L);
+
+        Assert.assertEquals(expected, result);
+    }
+
+    @Test
+    public void testCounters() throws Exception {
+        Funnel udaf = new Funnel();
+
+        ObjectInspector[] inputObjectInspectorList = new ObjectInspector[]{
+            PrimitiveObjectInspectorFactory.javaStringObjectInspector, // action_column
+            PrimitiveObjectInspectorFactory.javaLongObjectInspector,   // timestamp_column
+            ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaStringObjectInspector), // funnel_step_1
+            ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaStringObjectInspector) // funnel_step_1
+        };
+
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(inputObjectInspectorList, false, false);
+        GenericUDAFEvaluator udafEvaluator = udaf.getEvaluator(paramInfo);
+
+        // Setup the task context with a group size limit of 1
+        JobConf jobConf = new JobConf();
+        jobConf.setLong(Funnel.FunnelEvaluator.GROUP_SIZE_LIMIT_CONF, 1L);
+        MapredContext context = MapredContext.init(false, jobConf);
+        Reporter reporter = Mockito.mock(Reporter.class);
+        context.setReporter(reporter);
+        udafEvaluator.configure(context);
+
+        ObjectInspector outputObjectInspector = udafEvaluator.init(Mode.COMPLETE, inputObjectInspectorList);
+
+        Object[] parameters1 = new Object[]{ "beta", 200L, Arrays.asList("beta"), Arrays.asList("gamma")};
+        Object[] parameters2 = new Object[]{"alpha", 100L, Arrays.asList("beta"), Arrays.asList("gamma")};
+        Object[] parameters3 = new Object[]{"gamma", 300L, Arrays.asList("beta"), Arrays.asList("gamma")};
+
+        // Process the data
+        AggregationBuffer agg = udafEvaluator.getNewAggregationBuffer();
+        udafEvaluator.reset(agg);
+        udafEvaluator.iterate(agg, parameters1);
+        udafEvaluator.iterate(agg, parameters2);
+        udafEvaluator.iterate(agg, parameters3);
+        udafEvaluator.terminate(agg);
+        udafEvaluator.close();
+        MapredContext.close();
+
+        String group = Funnel.class.getName();
+        Mockito.verify(reporter).incrCounter(group, FunnelCounter.ROWS_SEEN.name(), 3L);
+        Mockito.verify(reporter).incrCounter(group, FunnelCounter.ROWS_MATCHED.name(), 2L);
+        Mockito.verify(reporter).incrCounter(group, FunnelCounter.EVENTS_BUFFERED.name(), 2L);
+        Mockito.verify(reporter, Mockito.never()).incrCounter(Mockito.eq(group), Mockito.eq(FunnelCounter.MAX_EVENTS_PER_GROUP.name()), Mockito.anyLong());
+        Mockito.verify(reporter).incrCounter(group, FunnelCounter.GROUPS_OVER_SIZE_LIMIT.name(), 1L);
+        Mockito.verify(reporter, Mockito.never()).incrCounter(Mockito.eq(group), Mockito.eq(FunnelCounter.PARTIALS_MERGED.name()), Mockito.anyLong());
+    }
+
+    /** Unordered funnel input object inspectors, with three steps. */
+    private static final ObjectInspector[] UNORDERED_OBJECT_INSPECTORS = new ObjectInspector[]{
+        PrimitiveObjectInspectorFactory.javaStringObjectInspector, // action_column
+        PrimitiveObjectInspectorFactory.javaLongObjectInspector, // timestamp_column
+        ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaStringObjectInspector), // funnel_step_1
+        ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaStringObjectInspector), // funnel_step_2
+        ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaStringObjectInspector), // funnel_step_3
+        PrimitiveObjectInspectorFactory.getPrimitiveWritableConstantObjectInspector(TypeInfoFactory.stringTypeInfo, new Text("unordered")) // options
+    };
+
+    /** Unordered funnel row for an action. */
+    private static Object[] unorderedRow(String action, Long timestamp) {
+        return new Object[]{action, timestamp, Arrays.asList("beta"), Arrays.asList("gamma", "delta"), Arrays.asList("epsilon"), new Text("unordered")};
+    }
+
+    @Test
+    public void testUnorderedComplete() throws HiveException {
+        Funnel udaf = new Funnel();
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(UNORDERED_OBJECT_INSPECTORS, false, false);
+        GenericUDAFEvaluator udafEvaluator = udaf.getEvaluator(paramInfo);
+        udafEvaluator.init(Mode.COMPLETE, UNORDERED_OBJECT_INSPECTORS);
+
+        // Delta before beta still counts, epsilon is never done
+        AggregationBuffer agg = udafEvaluator.getNewAggregationBuffer();
+        udafEvaluator.reset(agg);
+        udafEvaluator.iterate(agg, unorderedRow("delta", 100L));
+        udafEvaluator.iterate(agg, unorderedRow("alpha", 200L));
+        udafEvaluator.iterate(agg, unorderedRow("beta", 300L));
+        udafEvaluator.iterate(agg, unorderedRow("epsilon", null));
+        udafEvaluator.iterate(agg, unorderedRow(null, 400L));
+        Assert.assertEquals(Arrays.asList(1L, 1L, 0L), udafEvaluator.terminate(agg));
+
+        // A missing first step stops the funnel
+        udafEvaluator.reset(agg);
+        udafEvaluator.iterate(agg, unorderedRow("gamma", 100L));
+        udafEvaluator.iterate(agg, unorderedRow("epsilon", 200L));
+        Assert.assertEquals(Arrays.asList(0L, 0L, 0L), udafEvaluator.terminate(agg));
+    }
+
+    @Test
+    public void testUnorderedPartials() throws Exception {
+        Funnel udaf = new Funnel();
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(UNORDERED_OBJECT_INSPECTORS, false, false);
+
+        // Two map side partials, sent through the serde
+        GenericUDAFEvaluator mapEvaluator = udaf.getEvaluator(paramInfo);
+        FunnelSimulator.PartialChannel channel = new FunnelSimulator.PartialChannel(mapEvaluator.init(Mode.PARTIAL1, UNORDERED_OBJECT_INSPECTORS));
+        AggregationBuffer agg1 = mapEvaluator.getNewAggregationBuffer();
+        mapEvaluator.reset(agg1);
+        mapEvaluator.iterate(agg1, unorderedRow("epsilon", 100L));
+        mapEvaluator.iterate(agg1, unorderedRow("alpha", 200L));
+        byte[] partial1 = channel.serialize(mapEvaluator.terminatePartial(agg1));
+        AggregationBuffer agg2 = mapEvaluator.getNewAggregationBuffer();
+        mapEvaluator.reset(agg2);
+        mapEvaluator.iterate(agg2, unorderedRow("gamma", 300L));
+        mapEvaluator.iterate(agg2, unorderedRow("beta", 400L));
+        byte[] partial2 = channel.serialize(mapEvaluator.terminatePartial(agg2));
+
+        // Combine them, then finish on the reduce side
+        GenericUDAFEvaluator combineEvaluator = udaf.getEvaluator(paramInfo);
+        FunnelSimulator.PartialChannel combineChannel = new FunnelSimulator.PartialChannel(combineEvaluator.init(Mode.PARTIAL2, new ObjectInspector[]{channel.getObjectInspector()}));
+        AggregationBuffer combined = combineEvaluator.getNewAggregationBuffer();
+        combineEvaluator.reset(combined);
+        combineEvaluator.merge(combined, channel.deserialize(partial1));
+        combineEvaluator.merge(combined, channel.deserialize(partial2));
+        byte[] partial = combineChannel.serialize(combineEvaluator.terminatePartial(combined));
+
+        GenericUDAFEvaluator reduceEvaluator = udaf.getEvaluator(paramInfo);
+        reduceEvaluator.init(Mode.FINAL, new ObjectInspector[]{combineChannel.getObjectInspector()});
+        AggregationBuffer agg = reduceEvaluator.getNewAggregationBuffer();
+        reduceEvaluator.reset(agg);
+        reduceEvaluator.merge(agg, combineChannel.deserialize(partial));
+        Assert.assertEquals(Arrays.asList(1L, 1L, 1L), reduceEvaluator.terminate(agg));
+    }
+
+    @Test
+    public void testUnorderedMergeOrder() throws Exception {
+        Funnel udaf = new Funnel();
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(UNORDERED_OBJECT_INSPECTORS, false, false);
+
+        // A partial with events, and the partial of an empty group, with no steps
+        GenericUDAFEvaluator mapEvaluator = udaf.getEvaluator(paramInfo);
+        FunnelSimulator.PartialChannel channel = new FunnelSimulator.PartialChannel(mapEvaluator.init(Mode.PARTIAL1, UNORDERED_OBJECT_INSPECTORS));
+        AggregationBuffer agg1 = mapEvaluator.getNewAggregationBuffer();
+        mapEvaluator.reset(agg1);
+        mapEvaluator.iterate(agg1, unorderedRow("beta", 100L));
+        byte[] partial = channel.serialize(mapEvaluator.terminatePartial(agg1));
+        mapEvaluator.reset(agg1);
+        byte[] emptyPartial = channel.serialize(mapEvaluator.terminatePartial(agg1));
+
+        // The step count is the same in both orders
+        GenericUDAFEvaluator reduceEvaluator = udaf.getEvaluator(paramInfo);
+        reduceEvaluator.init(Mode.FINAL, new ObjectInspector[]{channel.getObjectInspector()});
+        AggregationBuffer agg = reduceEvaluator.getNewAggregationBuffer();
+        reduceEvaluator.reset(agg);
+        reduceEvaluator.merge(agg, channel.deserialize(partial));
+        reduceEvaluator.merge(agg, channel.deserialize(emptyPartial));
+        Assert.assertEquals(Arrays.asList(1L, 0L, 0L), reduceEvaluator.terminate(agg));
+        reduceEvaluator.reset(agg);
+        reduceEvaluator.merge(agg, channel.deserialize(emptyPartial));
+        reduceEvaluator.merge(agg, channel.deserialize(partial));
+        Assert.assertEquals(Arrays.asList(1L, 0L, 0L), reduceEvaluator.terminate(agg));
+
+        // A reset buffer starts over
+        reduceEvaluator.reset(agg);
+        reduceEvaluator.merge(agg, channel.deserialize(emptyPartial));
+        Assert.assertEquals(new ArrayList<Long>(), reduceEvaluator.terminate(agg));
+    }
+
+    @Test
+    public void testUnorderedEmptyGroup() throws HiveException {
+        Funnel udaf = new Funnel();
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(UNORDERED_OBJECT_INSPECTORS, false, false);
+        GenericUDAFEvaluator udafEvaluator = udaf.getEvaluator(paramInfo);
+        udafEvaluator.init(Mode.COMPLETE, UNORDERED_OBJECT_INSPECTORS);
+        AggregationBuffer agg = udafEvaluator.getNewAggregationBuffer();
+        udafEvaluator.reset(agg);
+        Assert.assertEquals(new ArrayList<Long>(), udafEvaluator.terminate(agg));
+    }
+
+    @Test(expected = UDFArgumentException.class)
+    public void testUnknownOption() throws HiveException {
+        Funnel udaf = new Funnel();
+        ObjectInspector[] inputObjectInspectorList = Arrays.copyOf(UNORDERED_OBJECT_INSPECTORS, UNORDERED_OBJECT_INSPECTORS.length);
+        inputObjectInspectorList[5] = PrimitiveObjectInspectorFactory.getPrimitiveWritableConstantObjectInspector(TypeInfoFactory.stringTypeInfo, new Text("shuffled"));
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(inputObjectInspectorList, false, false);
+        GenericUDAFEvaluator udafEvaluator = udaf.getEvaluator(paramInfo);
+        udafEvaluator.init(Mode.COMPLETE, inputObjectInspectorList);
+    }
+
+    @Test(expected = UDFArgumentTypeException.class)
+    public void testNonConstantOptions() throws HiveException {
+        Funnel udaf = new Funnel();
+        ObjectInspector[] inputObjectInspectorList = Arrays.copyOf(UNORDERED_OBJECT_INSPECTORS, UNORDERED_OBJECT_INSPECTORS.length);
+        inputObjectInspectorList[5] = PrimitiveObjectInspectorFactory.javaStringObjectInspector;
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(inputObjectInspectorList, false, false);
+        GenericUDAFEvaluator udafEvaluator = udaf.getEvaluator(paramInfo);
+        udafEvaluator.init(Mode.COMPLETE, inputObjectInspectorList);
+    }
+
+    @Test(expected = UDFArgumentTypeException.class)
+    public void testOptionsNotAcceptedByFunnelDebug() throws HiveException {
+        FunnelDebug udaf = new FunnelDebug();
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(UNORDERED_OBJECT_INSPECTORS, false, false);
+        udaf.getEvaluator(paramInfo);
+    }
+
+    /** Session funnel input object inspectors, with two steps and the options. */
+    private static ObjectInspector[] sessionObjectInspectors(String options) {
+        return new ObjectInspector[]{
+            PrimitiveObjectInspectorFactory.javaStringObjectInspector, // action_column
+            PrimitiveObjectInspectorFactory.javaLongObjectInspector, // timestamp_column
+            ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaStringObjectInspector), // funnel_step_1
+            ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaStringObjectInspector), // funnel_step_2
+            PrimitiveObjectInspectorFactory.getPrimitiveWritableConstantObjectInspector(TypeInfoFactory.stringTypeInfo, new Text(options)) // options
+        };
+    }
+
+    /**
+     * Session funnel of a single user in COMPLETE mode, for events
+     * {action, timestamp}. Sessions: [alpha 100, beta 150], [gamma 400],
+     * [alpha 1000, beta 1050, gamma 1100].
+     */
+    private static Object completeSessions(String options) throws HiveException {
+        Funnel udaf = new Funnel();
+        ObjectInspector[] inputObjectInspectorList = sessionObjectInspectors(options);
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(inputObjectInspectorList, false, false);
+        GenericUDAFEvaluator udafEvaluator = udaf.getEvaluator(paramInfo);
+        udafEvaluator.init(Mode.COMPLETE, inputObjectInspectorList);
+
+        AggregationBuffer agg = udafEvaluator.getNewAggregationBuffer();
+        udafEvaluator.reset(agg);
+        Object[][] events = new Object[][]{{"gamma", 1100L}, {"alpha", 100L}, {"beta", 1050L}, {"gamma", 400L}, {"beta", 150L}, {"alpha", 1000L}};
+        for (Object[] event : events) {
+            udafEvaluator.iterate(agg, new Object[]{event[0], event[1], Arrays.asList("alpha"), Arrays.asList("beta", "gamma"), new Text(options)});
+        }
+        return udafEvaluator.terminate(agg);
+    }
+
+    @Test
+    public void testSessionsBest() throws HiveException {
+        Assert.assertEquals(Arrays.asList(1L, 1L), completeSessions("session_gap=200"));
+        Assert.assertEquals(Arrays.asList(1L, 1L), completeSessions("session_gap=200,sessions=best"));
+    }
+
+    @Test
+    public void testSessionsSum() throws HiveException {
+        Assert.assertEquals(Arrays.asList(2L, 2L), completeSessions("session_gap=200,sessions=sum"));
+        // A gap equal to the session gap stays in the session
+        Assert.assertEquals(Arrays.asList(1L, 1L), completeSessions("session_gap=600,sessions=sum"));
+        Assert.assertEquals(Arrays.asList(2L, 2L), completeSessions("session_gap=599,sessions=sum"));
+    }
+
+    @Test
+    public void testSessionsPartials() throws Exception {
+        Funnel udaf = new Funnel();
+        ObjectInspector[] inputObjectInspectorList = sessionObjectInspectors("session_gap=200,sessions=sum");
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(inputObjectInspectorList, false, false);
+
+        // Two map side partials, sent through the serde, the sessions span both
+        GenericUDAFEvaluator mapEvaluator = udaf.getEvaluator(paramInfo);
+        FunnelSimulator.PartialChannel channel = new FunnelSimulator.PartialChannel(mapEvaluator.init(Mode.PARTIAL1, inputObjectInspectorList));
+        AggregationBuffer agg1 = mapEvaluator.getNewAggregationBuffer();
+        mapEvaluator.reset(agg1);
+        mapEvaluator.iterate(agg1, new Object[]{"alpha", 100L, Arrays.asList("alpha"), Arrays.asList("beta"), new Text("session_gap=200,sessions=sum")});
+        mapEvaluator.iterate(agg1, new Object[]{"alpha", 1000L, Arrays.asList("alpha"), Arrays.asList("beta"), new Text("session_gap=200,sessions=sum")});
+        byte[] partial1 = channel.serialize(mapEvaluator.terminatePartial(agg1));
+        AggregationBuffer agg2 = mapEvaluator.getNewAggregationBuffer();
+        mapEvaluator.reset(agg2);
+        mapEvaluator.iterate(agg2, new Object[]{"beta", 200L, Arrays.asList("alpha"), Arrays.asList("beta"), new Text("session_gap=200,sessions=sum")});
+        mapEvaluator.iterate(agg2, new Object[]{"beta", 1100L, Arrays.asList("alpha"), Arrays.asList("beta"), new Text("session_gap=200,sessions=sum")});
+        byte[] partial2 = channel.serialize(mapEvaluator.terminatePartial(agg2));
+
+        // Merge them on the reduce side, where the session options come from the partials
+        GenericUDAFEvaluator reduceEvaluator = udaf.getEvaluator(paramInfo);
+        reduceEvaluator.init(Mode.FINAL, new ObjectInspector[]{channel.getObjectInspector()});
+        AggregationBuffer agg = reduceEvaluator.getNewAggregationBuffer();
+        reduceEvaluator.reset(agg);
+        reduceEvaluator.merge(agg, channel.deserialize(partial1));
+        reduceEvaluator.merge(agg, channel.deserialize(partial2));
+        Assert.assertEquals(Arrays.asList(2L, 2L), reduceEvaluator.terminate(agg));
+    }
+
+    @Test(expected = UDFArgumentTypeException.class)
+    public void testSessionsStringTimestamp() throws HiveException {
+        Funnel udaf = new Funnel();
+        ObjectInspector[] inputObjectInspectorList = sessionObjectInspectors("session_gap=200");
+        inputObjectInspectorList[1] = PrimitiveObjectInspectorFactory.javaStringObjectInspector;
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(inputObjectInspectorList, false, false);
+        GenericUDAFEvaluator udafEvaluator = udaf.getEvaluator(paramInfo);
+        udafEvaluator.init(Mode.COMPLETE, inputObjectInspectorList);
+    }
+
+    /** Pattern funnel row for an action. */
+    private static Object[] patternRow(String action, Long timestamp) {
+        return new Object[]{action, timestamp, Arrays.asList("prefix:/search"), Arrays.asList("regex:/product/\\d+", "glob:/item/*"), Arrays.asList("/checkout"), new Text("patterns")};
+    }
+
+    @Test
+    public void testPatterns() throws Exception {
+        Funnel udaf = new Funnel();
+        ObjectInspector[] inputObjectInspectorList = sessionObjectInspectors("patterns");
+        inputObjectInspectorList = new ObjectInspector[]{
+            inputObjectInspectorList[0], inputObjectInspectorList[1], inputObjectInspectorList[2], inputObjectInspectorList[2], inputObjectInspectorList[2], inputObjectInspectorList[4]
+        };
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(inputObjectInspectorList, false, false);
+
+        // Two map side partials, sent through the serde
+        GenericUDAFEvaluator mapEvaluator = udaf.getEvaluator(paramInfo);
+        FunnelSimulator.PartialChannel channel = new FunnelSimulator.PartialChannel(mapEvaluator.init(Mode.PARTIAL1, inputObjectInspectorList));
+        AggregationBuffer agg1 = mapEvaluator.getNewAggregationBuffer();
+        mapEvaluator.reset(agg1);
+        mapEvaluator.iterate(agg1, patternRow("/search?q=shoes", 100L));
+        mapEvaluator.iterate(agg1, patternRow("/product/abc", 200L));
+        mapEvaluator.iterate(agg1, patternRow("/home", 250L));
+        byte[] partial1 = channel.serialize(mapEvaluator.terminatePartial(agg1));
+        AggregationBuffer agg2 = mapEvaluator.getNewAggregationBuffer();
+        mapEvaluator.reset(agg2);
+        mapEvaluator.iterate(agg2, patternRow("/product/42", 300L));
+        mapEvaluator.iterate(agg2, patternRow("/checkout", 400L));
+        byte[] partial2 = channel.serialize(mapEvaluator.terminatePartial(agg2));
+
+        // Merge them on the reduce side, where the steps are matched as patterns again
+        GenericUDAFEvaluator reduceEvaluator = udaf.getEvaluator(paramInfo);
+        reduceEvaluator.init(Mode.FINAL, new ObjectInspector[]{channel.getObjectInspector()});
+        AggregationBuffer agg = reduceEvaluator.getNewAggregationBuffer();
+        reduceEvaluator.reset(agg);
+        reduceEvaluator.merge(agg, channel.deserialize(partial1));
+        reduceEvaluator.merge(agg, channel.deserialize(partial2));
+        Assert.assertEquals(Arrays.asList(1L, 1L, 1L), reduceEvaluator.terminate(agg));
+
+        // Only the events matching a pattern are buffered
+        Assert.assertEquals(3, ((FunnelAggregateBuffer) agg).actions.size());
+    }
+
+    @Test
+    public void testPatternsUnordered() throws HiveException {
+        Funnel udaf = new Funnel();
+        ObjectInspector[] inputObjectInspectorList = sessionObjectInspectors("patterns,unordered");
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(inputObjectInspectorList, false, false);
+        GenericUDAFEvaluator udafEvaluator = udaf.getEvaluator(paramInfo);
+        udafEvaluator.init(Mode.COMPLETE, inputObjectInspectorList);
+
+        AggregationBuffer agg = udafEvaluator.getNewAggregationBuffer();
+        udafEvaluator.reset(agg);
+        Text options = new Text("patterns,unordered");
+        udafEvaluator.iterate(agg, new Object[]{"/b/1", 100L, Arrays.asList("glob:/a/*"), Arrays.asList("glob:/b/*"), options});
+        udafEvaluator.iterate(agg, new Object[]{"/a/1", 200L, Arrays.asList("glob:/a/*"), Arrays.asList("glob:/b/*"), options});
+        Assert.assertEquals(Arrays.asList(1L, 1L), udafEvaluator.terminate(agg));
+    }
+
+    @Test(expected = UDFArgumentTypeException.class)
+    public void testPatternsNumericAction() throws HiveException {
+        Funnel udaf = new Funnel();
+        ObjectInspector[] inputObjectInspectorList = sessionObjectInspectors("patterns");
+        inputObjectInspectorList[0] = PrimitiveObjectInspectorFactory.javaLongObjectInspector;
+        inputObjectInspectorList[2] = ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaLongObjectInspector);
+        inputObjectInspectorList[3] = inputObjectInspectorList[2];
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(inputObjectInspectorList, false, false);
+        GenericUDAFEvaluator udafEvaluator = udaf.getEvaluator(paramInfo);
+        udafEvaluator.init(Mode.COMPLETE, inputObjectInspectorList);
+    }
+
+    @Test
+    public void testConstantFunnelStepsShared() throws HiveException {
+        Funnel udaf = new Funnel();
+        ObjectInspector step1 = ObjectInspectorFactory.getStandardConstantListObjectInspector(PrimitiveObjectInspectorFactory.writableStringObjectInspector, Arrays.asList(new Text("beta")));
+        ObjectInspector step2 = ObjectInspectorFactory.getStandardConstantListObjectInspector(PrimitiveObjectInspectorFactory.writableStringObjectInspector, Arrays.asList(new Text("gamma")));
+        ObjectInspector[] inputObjectInspectorList = new ObjectInspector[]{
+            PrimitiveObjectInspectorFactory.writableStringObjectInspector, // action_column
+            PrimitiveObjectInspectorFactory.javaLongObjectInspector, // timestamp_column
+            step1, // funnel_step_1
+            step2 // funnel_step_2
+        };
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(inputObjectInspectorList, false, false);
+        GenericUDAFEvaluator udafEvaluator = udaf.getEvaluator(paramInfo);
+        udafEvaluator.init(Mode.COMPLETE, inputObjectInspectorList);
+
+        Object[] steps = new Object[]{((ConstantObjectInspector) step1).getWritableConstantValue(), ((ConstantObjectInspector) step2).getWritableConstantValue()};
+        AggregationBuffer agg1 = udafEvaluator.getNewAggregationBuffer();
+        udafEvaluator.reset(agg1);
+        udafEvaluator.iterate(agg1, new Object[]{new Text("beta"), 100L, steps[0], steps[1]});
+        udafEvaluator.iterate(agg1, new Object[]{new Text("gamma"), 200L, steps[0], steps[1]});
+        AggregationBuffer agg2 = udafEvaluator.getNewAggregationBuffer();
+        udafEvaluator.reset(agg2);
+        udafEvaluator.iterate(agg2, new Object[]{new Text("gamma"), 100L, steps[0], steps[1]});
+        udafEvaluator.iterate(agg2, new Object[]{new Text("beta"), 200L, steps[0], steps[1]});
+
+        // Both groups use the same funnel steps
+        Assert.assertSame(((FunnelAggregateBuffer) agg1).funnelSteps, ((FunnelAggregateBuffer) agg2).funnelSteps);
+        Assert.assertEquals(Arrays.asList(1L, 1L), udafEvaluator.terminate(agg1));
+        Assert.assertEquals(Arrays.asList(1L, 0L), udafEvaluator.terminate(agg2));
+    }
+
+    @Test
+    public void testMergedFunnelStepsShared() throws Exception {
+        Funnel udaf = new Funnel();
+        ObjectInspector step = ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaStringObjectInspector);
+        ObjectInspector[] inputObjectInspectorList = new ObjectInspector[]{
+            PrimitiveObjectInspectorFactory.javaStringObjectInspector, // action_column
+            PrimitiveObjectInspectorFactory.javaLongObjectInspector, // timestamp_column
+            step, // funnel_step_1
+            step // funnel_step_2
+        };
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(inputObjectInspectorList, false, false);
+
+        // Three map side partials, the last one with other funnel steps
+        GenericUDAFEvaluator mapEvaluator = udaf.getEvaluator(paramInfo);
+        FunnelSimulator.PartialChannel channel = new FunnelSimulator.PartialChannel(mapEvaluator.init(Mode.PARTIAL1, inputObjectInspectorList));
+        List<byte[]> partials = new ArrayList<>();
+        for (List<String> steps : Arrays.asList(Arrays.asList("alpha", "beta"), Arrays.asList("alpha", "beta"), Arrays.asList("alpha", "gamma"))) {
+            AggregationBuffer agg = mapEvaluator.getNewAggregationBuffer();
+            mapEvaluator.reset(agg);
+            mapEvaluator.iterate(agg, new Object[]{"alpha", 100L, Arrays.asList(steps.get(0)), Arrays.asList(steps.get(1))});
+            mapEvaluator.iterate(agg, new Object[]{"beta", 200L, Arrays.asList(steps.get(0)), Arrays.asList(steps.get(1))});
+            partials.add(channel.serialize(mapEvaluator.terminatePartial(agg)));
+        }
+
+        // Each partial is a group on the reduce side
+        GenericUDAFEvaluator reduceEvaluator = udaf.getEvaluator(paramInfo);
+        reduceEvaluator.init(Mode.FINAL, new ObjectInspector[]{channel.getObjectInspector()});
+        List<FunnelAggregateBuffer> aggs = new ArrayList<>();
+        for (byte[] partial : partials) {
+            AggregationBuffer agg = reduceEvaluator.getNewAggregationBuffer();
+            reduceEvaluator.reset(agg);
+            reduceEvaluator.merge(agg, channel.deserialize(partial));
+            aggs.add((FunnelAggregateBuffer) agg);
+        }
+
+        // Groups with the same funnel steps share them, read only
+        Assert.assertSame(aggs.get(0).funnelSteps, aggs.get(1).funnelSteps);
+        Assert.assertNotSame(aggs.get(1).funnelSteps, aggs.get(2).funnelSteps);
+        Assert.assertEquals(Arrays.asList(1L, 1L), reduceEvaluator.terminate(aggs.get(0)));
+        Assert.assertEquals(Arrays.asList(1L, 1L), reduceEvaluator.terminate(aggs.get(1)));
+        Assert.assertEquals(Arrays.asList(1L, 0L), reduceEvaluator.terminate(aggs.get(2)));
+    }
+
+    @Test
+    public void testLargeFunnelSteps() throws HiveException {
+        Funnel udaf = new Funnel();
+        ObjectInspector[] inputObjectInspectorList = new ObjectInspector[]{
+            PrimitiveObjectInspectorFactory.javaStringObjectInspector, // action_column
+            PrimitiveObjectInspectorFactory.javaLongObjectInspector, // timestamp_column
+            ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaStringObjectInspector), // funnel_step_1
+            ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaStringObjectInspector) // funnel_step_2
+        };
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(inputObjectInspectorList, false, false);
+        GenericUDAFEvaluator udafEvaluator = udaf.getEvaluator(paramInfo);
+        udafEvaluator.init(Mode.COMPLETE, inputObjectInspectorList);
+
+        // Viewed any of many products, then bought one
+        List<Object> products = new ArrayList<>();
+        for (int i = 0; i < FingerprintTable.MIN_VALUES; i++) {
+            products.add("product_" + i);
+        }
+        AggregationBuffer agg = udafEvaluator.getNewAggregationBuffer();
+        udafEvaluator.reset(agg);
+        udafEvaluator.iterate(agg, new Object[]{"home", 100L, products, Arrays.asList("buy")});
+        udafEvaluator.iterate(agg, new Object[]{"product_7", 200L, products, Arrays.asList("buy")});
+        udafEvaluator.iterate(agg, new Object[]{"buy", 300L, products, Arrays.asList("buy")});
+        Assert.assertTrue(((FunnelAggregateBuffer) agg).matcher instanceof FingerprintTable);
+        Assert.assertEquals(2, ((FunnelAggregateBuffer) agg).actions.size());
+        Assert.assertEquals(Arrays.asList(1L, 1L), udafEvaluator.terminate(agg));
+    }
+
+    @Test
+    public void testStepsFile() throws Exception {
+        File file = File.createTempFile("steps", ".txt");
+        file.deleteOnExit();
+        Files.write(file.toPath(), "beta\nBAD\n\ngamma\n\nepsilon\n".getBytes(StandardCharsets.UTF_8));
+        Text options = new Text("steps_file=" + file.getPath());
+        Funnel udaf = new Funnel();
+        ObjectInspector[] inputObjectInspectorList = new ObjectInspector[]{
+            PrimitiveObjectInspectorFactory.javaStringObjectInspector, // action_column
+            PrimitiveObjectInspectorFactory.javaLongObjectInspector, // timestamp_column
+            PrimitiveObjectInspectorFactory.getPrimitiveWritableConstantObjectInspector(TypeInfoFactory.stringTypeInfo, options) // options
+        };
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(inputObjectInspectorList, false, false);
+
+        // Two map side partials, sent through the serde without the funnel steps
+        GenericUDAFEvaluator mapEvaluator = udaf.getEvaluator(paramInfo);
+        FunnelSimulator.PartialChannel channel = new FunnelSimulator.PartialChannel(mapEvaluator.init(Mode.PARTIAL1, inputObjectInspectorList));
+        AggregationBuffer agg1 = mapEvaluator.getNewAggregationBuffer();
+        mapEvaluator.reset(agg1);
+        mapEvaluator.iterate(agg1, new Object[]{"beta", 100L, options});
+        mapEvaluator.iterate(agg1, new Object[]{"alpha", 150L, options});
+        List<Object> partial = (List<Object>) mapEvaluator.terminatePartial(agg1);
+        Assert.assertEquals(new ArrayList<>(), partial.get(2));
+        byte[] partial1 = channel.serialize(partial);
+        AggregationBuffer agg2 = mapEvaluator.getNewAggregationBuffer();
+        mapEvaluator.reset(agg2);
+        mapEvaluator.iterate(agg2, new Object[]{"gamma", 200L, options});
+        byte[] partial2 = channel.serialize(mapEvaluator.terminatePartial(agg2));
+
+        // Merge them on the reduce side, where the funnel steps come from the steps file
+        GenericUDAFEvaluator reduceEvaluator = udaf.getEvaluator(paramInfo);
+        reduceEvaluator.init(Mode.FINAL, new ObjectInspector[]{channel.getObjectInspector()});
+        AggregationBuffer agg = reduceEvaluator.getNewAggregationBuffer();
+        reduceEvaluator.reset(agg);
+        reduceEvaluator.merge(agg, channel.deserialize(partial1));
+        reduceEvaluator.merge(agg, channel.deserialize(partial2));
+        Assert.assertEquals(Arrays.asList(1L, 1L, 0L), reduceEvaluator.terminate(agg));
+    }
+
+    @Test(expected = UDFArgumentException.class)
+    public void testStepsFileAndSteps() throws HiveException {
+        Funnel udaf = new Funnel();
+        ObjectInspector[] inputObjectInspectorList = sessionObjectInspectors("steps_file=steps.txt");
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(inputObjectInspectorList, false, false);
+        GenericUDAFEvaluator udafEvaluator = udaf.getEvaluator(paramInfo);
+        udafEvaluator.init(Mode.COMPLETE, inputObjectInspectorList);
+    }
+
+    @Test(expected = UDFArgumentLengthException.class)
+    public void testNoSteps() throws HiveException {
+        Funnel udaf = new Funnel();
+        ObjectInspector[] inputObjectInspectorList = new ObjectInspector[]{
+            PrimitiveObjectInspectorFactory.javaStringObjectInspector, // action_column
+            PrimitiveObjectInspectorFactory.javaLongObjectInspector, // timestamp_column
+            PrimitiveObjectInspectorFactory.getPrimitiveWritableConstantObjectInspector(TypeInfoFactory.stringTypeInfo, new Text("unordered")) // options
+        };
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(inputObjectInspectorList, false, false);
+        GenericUDAFEvaluator udafEvaluator = udaf.getEvaluator(paramInfo);
+        udafEvaluator.init(Mode.COMPLETE, inputObjectInspectorList);
+    }
+
+    /** Sampled funnel input object inspectors, with two steps, a long sample key and the options. */
+    private static ObjectInspector[] sampleObjectInspectors(String options) {
+        return new ObjectInspector[]{
+            PrimitiveObjectInspectorFactory.javaStringObjectInspector, // action_column
+            PrimitiveObjectInspectorFactory.javaLongObjectInspector, // timestamp_column
+            ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaStringObjectInspector), // funnel_step_1
+            ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaStringObjectInspector), // funnel_step_2
+            PrimitiveObjectInspectorFactory.javaLongObjectInspector, // sample key
+            PrimitiveObjectInspectorFactory.getPrimitiveWritableConstantObjectInspector(TypeInfoFactory.stringTypeInfo, new Text(options)) // options
+        };
+    }
+
+    @Test
+    public void testSample() throws HiveException {
+        Funnel udaf = new Funnel();
+        ObjectInspector[] inputObjectInspectorList = sampleObjectInspectors("sample=0.5");
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(inputObjectInspectorList, false, false);
+        GenericUDAFEvaluator udafEvaluator = udaf.getEvaluator(paramInfo);
+        udafEvaluator.init(Mode.COMPLETE, inputObjectInspectorList);
+        FunnelOptions options = FunnelOptions.parse("sample=0.5");
+
+        // Groups in the sample have their funnel, the others a funnel of 0s
+        AggregationBuffer agg = udafEvaluator.getNewAggregationBuffer();
+        int sampled = 0;
+        for (long user = 0; user < 1000; user++) {
+            udafEvaluator.reset(agg);
+            udafEvaluator.iterate(agg, new Object[]{"beta", 100L, Arrays.asList("beta"), Arrays.asList("gamma"), user, new Text("sample=0.5")});
+            udafEvaluator.iterate(agg, new Object[]{"gamma", 200L, Arrays.asList("beta"), Arrays.asList("gamma"), user, new Text("sample=0.5")});
+            if (options.isSampled(user)) {
+                Assert.assertEquals(Arrays.asList(1L, 1L), udafEvaluator.terminate(agg));
+                sampled++;
+            } else {
+                Assert.assertTrue(((FunnelAggregateBuffer) agg).actions.isEmpty());
+                Assert.assertEquals(Arrays.asList(0L, 0L), udafEvaluator.terminate(agg));
+            }
+        }
+        Assert.assertEquals(500, sampled, 50);
+    }
+
+    @Test
+    public void testSampleDecidedOnFirstRow() throws HiveException {
+        Funnel udaf = new Funnel();
+        ObjectInspector[] inputObjectInspectorList = sampleObjectInspectors("sample=0.5");
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(inputObjectInspectorList, false, false);
+        GenericUDAFEvaluator udafEvaluator = udaf.getEvaluator(paramInfo);
+        udafEvaluator.init(Mode.COMPLETE, inputObjectInspectorList);
+        FunnelOptions options = FunnelOptions.parse("sample=0.5");
+        long in = 0;
+        while (!options.isSampled(in)) {
+            in++;
+        }
+        long out = 0;
+        while (options.isSampled(out)) {
+            out++;
+        }
+
+        // The key of the first row decides for the whole group
+        AggregationBuffer agg = udafEvaluator.getNewAggregationBuffer();
+        udafEvaluator.reset(agg);
+        udafEvaluator.iterate(agg, new Object[]{"beta", 100L, Arrays.asList("beta"), Arrays.asList("gamma"), out, new Text("sample=0.5")});
+        udafEvaluator.iterate(agg, new Object[]{"gamma", 200L, Arrays.asList("beta"), Arrays.asList("gamma"), in, new Text("sample=0.5")});
+        Assert.assertEquals(Arrays.asList(0L, 0L), udafEvaluator.terminate(agg));
+
+        // Until the next group
+        udafEvaluator.reset(agg);
+        udafEvaluator.iterate(agg, new Object[]{"beta", 100L, Arrays.asList("beta"), Arrays.asList("gamma"), in, new Text("sample=0.5")});
+        Assert.assertEquals(Arrays.asList(1L, 0L), udafEvaluator.terminate(agg));
+    }
+
+    @Test(expected = UDFArgumentLengthException.class)
+    public void testSampleWithoutKey() throws HiveException {
+        Funnel udaf = new Funnel();
+        ObjectInspector[] inputObjectInspectorList = sessionObjectInspectors("sample=0.5");
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(inputObjectInspectorList, false, false);
+        GenericUDAFEvaluator udafEvaluator = udaf.getEvaluator(paramInfo);
+        udafEvaluator.init(Mode.COMPLETE, inputObjectInspectorList);
+    }
+
+    @Test(expected = UDFArgumentException.class)
+    public void testSampleKeyWithoutSample() throws HiveException {
+        Funnel udaf = new Funnel();
+        ObjectInspector[] inputObjectInspectorList = sampleObjectInspectors("unordered");
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(inputObjectInspectorList, false, false);
+        GenericUDAFEvaluator udafEvaluator = udaf.getEvaluator(paramInfo);
+        udafEvaluator.init(Mode.COMPLETE, inputObjectInspectorList);
+    }
+}
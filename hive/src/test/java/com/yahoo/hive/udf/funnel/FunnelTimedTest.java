@@ -0,0 +1,129 @@
+/*
+ * Copyright 2016 Yahoo Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.hive.udf.funnel;
+
+import java.sql.Timestamp;
+import java.util.Arrays;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.AggregationBuffer;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.Mode;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFParameterInfo;
+import org.apache.hadoop.hive.ql.udf.generic.SimpleGenericUDAFParameterInfo;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class FunnelTimedTest {
+    /**
+     * Input object inspectors with the given timestamp object inspector.
+     */
+    private static ObjectInspector[] inputObjectInspectors(ObjectInspector timestampObjectInspector) {
+        return new ObjectInspector[]{
+            PrimitiveObjectInspectorFactory.javaStringObjectInspector, // action_column
+            timestampObjectInspector,                                  // timestamp_column
+            ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaStringObjectInspector), // funnel_step_1
+            ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaStringObjectInspector), // funnel_step_2
+            ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaStringObjectInspector) // funnel_step_3
+        };
+    }
+
+    @Test(expected = UDFArgumentTypeException.class)
+    public void testInvalidTimestampType() throws HiveException {
+        FunnelTimed udaf = new FunnelTimed();
+        ObjectInspector[] inputObjectInspectorList = inputObjectInspectors(PrimitiveObjectInspectorFactory.javaStringObjectInspector);
+
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(inputObjectInspectorList, false, false);
+        GenericUDAFEvaluator udafEvaluator = udaf.getEvaluator(paramInfo);
+    }
+
+    /**
+     * Timed funnel of a single user in COMPLETE mode, for events
+     * {action, timestamp}.
+     */
+    private static Object complete(ObjectInspector timestampObjectInspector, Object[]... events) throws HiveException {
+        FunnelTimed udaf = new FunnelTimed();
+        ObjectInspector[] inputObjectInspectorList = inputObjectInspectors(timestampObjectInspector);
+
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(inputObjectInspectorList, false, false);
+        GenericUDAFEvaluator udafEvaluator = udaf.getEvaluator(paramInfo);
+        udafEvaluator.init(Mode.COMPLETE, inputObjectInspectorList);
+
+        // Process the data
+        AggregationBuffer agg = udafEvaluator.getNewAggregationBuffer();
+        udafEvaluator.reset(agg);
+        for (Object[] event : events) {
+            udafEvaluator.iterate(agg, new Object[]{event[0], event[1], Arrays.asList("alpha"), Arrays.asList("beta"), Arrays.asList("gamma")});
+        }
+        return udafEvaluator.terminate(agg);
+    }
+
+    @Test
+    public void testComplete() throws HiveException {
+        // Out of order input, with an action outside the funnel
+        Object result = complete(PrimitiveObjectInspectorFactory.javaLongObjectInspector,
+                                 new Object[]{"gamma", 1000L}, new Object[]{"alpha", 100L}, new Object[]{"delta", 200L}, new Object[]{"beta", 250L});
+        Assert.assertEquals(Arrays.asList(Arrays.asList(1L, 1L, 1L), Arrays.asList(null, 150L, 750L)), result);
+    }
+
+    @Test
+    public void testCompletePartialFunnel() throws HiveException {
+        // Never reached beta, so no durations
+        Object result = complete(PrimitiveObjectInspectorFactory.javaLongObjectInspector,
+                                 new Object[]{"alpha", 100L}, new Object[]{"gamma", 200L});
+        Assert.assertEquals(Arrays.asList(Arrays.asList(1L, 0L, 0L), Arrays.asList(null, null, null)), result);
+    }
+
+    @Test
+    public void testCompleteTimestamp() throws HiveException {
+        // Durations of timestamp columns are in seconds
+        Object result = complete(PrimitiveObjectInspectorFactory.javaTimestampObjectInspector,
+                                 new Object[]{"alpha", new Timestamp(10000L)}, new Object[]{"beta", new Timestamp(70000L)});
+        Assert.assertEquals(Arrays.asList(Arrays.asList(1L, 1L, 0L), Arrays.asList(null, 60L, null)), result);
+    }
+
+    @Test
+    public void testFinal() throws HiveException {
+        FunnelTimed udaf = new FunnelTimed();
+        ObjectInspector[] inputObjectInspectorList = inputObjectInspectors(PrimitiveObjectInspectorFactory.javaLongObjectInspector);
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(inputObjectInspectorList, false, false);
+
+        // Same partials as funnel
+        GenericUDAFEvaluator partialEvaluator = udaf.getEvaluator(paramInfo);
+        ObjectInspector structObjectInspector = partialEvaluator.init(Mode.PARTIAL1, inputObjectInspectorList);
+        AggregationBuffer partialAgg = partialEvaluator.getNewAggregationBuffer();
+        partialEvaluator.reset(partialAgg);
+        partialEvaluator.iterate(partialAgg, new Object[]{"beta", 130L, Arrays.asList("alpha"), Arrays.asList("beta"), Arrays.asList("gamma")});
+        Object partial = partialEvaluator.terminatePartial(partialAgg);
+        Assert.assertEquals(Arrays.asList(Arrays.asList("beta"), Arrays.asList(130L), Arrays.asList("alpha", null, "beta", null, "gamma", null)), partial);
+
+        GenericUDAFEvaluator udafEvaluator = udaf.getEvaluator(paramInfo);
+        udafEvaluator.init(Mode.FINAL, new ObjectInspector[]{structObjectInspector});
+
+        // Process the data
+        AggregationBuffer agg = udafEvaluator.getNewAggregationBuffer();
+        udafEvaluator.reset(agg);
+        udafEvaluator.merge(agg, Arrays.asList(Arrays.asList("alpha"), Arrays.asList(100L), Arrays.asList("alpha", null, "beta", null, "gamma", null)));
+        udafEvaluator.merge(agg, partial);
+        Object result = udafEvaluator.terminate(agg);
+
+        Assert.assertEquals(Arrays.asList(Arrays.asList(1L, 1L, 0L), Arrays.asList(null, 30L, null)), result);
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2016 Yahoo Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.hive.udf.funnel;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class IntBitmapTest {
+    /**
+     * Random values, dense or sparse, spread over a few containers.
+     */
+    private static Set<Integer> randomValues(Random random, int count, int range) {
+        Set<Integer> values = new HashSet<>();
+        int[] highs = {0, 1, 7, -1, Integer.MIN_VALUE >>> 16};
+        for (int i = 0; i < count; i++) {
+            int high = highs[random.nextInt(highs.length)];
+            values.add((high << 16) | random.nextInt(range));
+        }
+        return values;
+    }
+
+    /**
+     * Build a bitmap from values.
+     */
+    private static IntBitmap bitmap(Set<Integer> values) {
+        IntBitmap bitmap = new IntBitmap();
+        for (int value : values) {
+            bitmap.add(value);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Check that a bitmap has exactly the values.
+     */
+    private static void assertSameValues(Set<Integer> expected, IntBitmap bitmap, Random random) {
+        Assert.assertEquals(expected.size(), bitmap.cardinality());
+        for (int value : expected) {
+            Assert.assertTrue(bitmap.contains(value));
+        }
+        for (int i = 0; i < 1000; i++) {
+            int value = random.nextInt();
+            Assert.assertEquals(expected.contains(value), bitmap.contains(value));
+        }
+    }
+
+    @Test
+    public void testAdd() {
+        IntBitmap bitmap = new IntBitmap();
+        bitmap.add(5);
+        bitmap.add(5);
+        bitmap.add(-5);
+        bitmap.add(70000);
+        Assert.assertEquals(3L, bitmap.cardinality());
+        Assert.assertTrue(bitmap.contains(-5));
+        Assert.assertFalse(bitmap.contains(6));
+    }
+
+    @Test
+    public void testRandomOperations() throws HiveException {
+        Random random = new Random(1234L);
+        for (int run = 0; run < 50; run++) {
+            // Dense runs make bitset containers, sparse ones array containers
+            int range = random.nextBoolean() ? 8192 : 65536;
+            Set<Integer> left = randomValues(random, random.nextInt(60000), range);
+            Set<Integer> right = randomValues(random, random.nextInt(60000), range);
+            IntBitmap leftBitmap = bitmap(left);
+            IntBitmap rightBitmap = bitmap(right);
+
+            // Serialization
+            assertSameValues(left, IntBitmap.deserialize(leftBitmap.serialize()), random);
+
+            // Intersection
+            Set<Integer> intersection = new HashSet<>(left);
+            intersection.retainAll(right);
+            assertSameValues(intersection, leftBitmap.and(rightBitmap), random);
+
+            // Union, the other bitmap is not modified
+            Set<Integer> union = new HashSet<>(left);
+            union.addAll(right);
+            leftBitmap.or(rightBitmap);
+            assertSameValues(union, leftBitmap, random);
+            assertSameValues(right, rightBitmap, random);
+        }
+    }
+
+    @Test
+    public void testEmpty() throws HiveException {
+        IntBitmap bitmap = IntBitmap.deserialize(new IntBitmap().serialize());
+        Assert.assertEquals(0L, bitmap.cardinality());
+        Assert.assertEquals(0L, IntBitmap.deserialize(new byte[0]).cardinality());
+    }
+
+    @Test(expected = HiveException.class)
+    public void testTruncated() throws HiveException {
+        IntBitmap bitmap = new IntBitmap();
+        bitmap.add(1);
+        bitmap.add(2);
+        byte[] bytes = bitmap.serialize();
+        IntBitmap.deserialize(Arrays.copyOf(bytes, bytes.length - 1));
+    }
+
+    @Test(expected = HiveException.class)
+    public void testUnknownVersion() throws HiveException {
+        IntBitmap.deserialize(new byte[]{42, 0, 0, 0, 0});
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2016 Yahoo Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.hive.udf.funnel;
+
+import java.util.Arrays;
+import java.util.List;
+import org.apache.hadoop.hive.serde2.objectinspector.ListObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LogHistogramTest {
+    /** Histogram list object inspector. */
+    private static final ListObjectInspector HISTOGRAM_OBJECT_INSPECTOR = ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaLongObjectInspector);
+
+    @Test
+    public void testBuckets() {
+        Assert.assertEquals(0, LogHistogram.bucket(-5L));
+        Assert.assertEquals(0, LogHistogram.bucket(0L));
+        Assert.assertEquals(1, LogHistogram.bucket(1L));
+        Assert.assertEquals(LogHistogram.MAX_BUCKETS - 1, LogHistogram.bucket(Long.MAX_VALUE));
+
+        // Every bucket value is within half a bucket of its values
+        for (long value = 1; value < 100000000L; value = value * 3 + 1) {
+            double estimate = LogHistogram.value(LogHistogram.bucket(value));
+            Assert.assertEquals(value, estimate, value * (LogHistogram.BASE - 1) / 2 + 1e-9);
+        }
+    }
+
+    @Test
+    public void testQuantile() {
+        LogHistogram histogram = new LogHistogram();
+        Assert.assertNull(histogram.quantile(0.5));
+
+        // 1 to 1000
+        for (long value = 1; value <= 1000; value++) {
+            histogram.add(value, 1L);
+        }
+        Assert.assertEquals(1000L, histogram.total);
+        Assert.assertEquals(1.0, histogram.quantile(0.0), 0.1);
+        Assert.assertEquals(500.0, histogram.quantile(0.5), 500 * 0.1);
+        Assert.assertEquals(900.0, histogram.quantile(0.9), 900 * 0.1);
+        Assert.assertEquals(1000.0, histogram.quantile(1.0), 1000 * 0.1);
+    }
+
+    @Test
+    public void testMerge() {
+        LogHistogram left = new LogHistogram();
+        LogHistogram right = new LogHistogram();
+        LogHistogram both = new LogHistogram();
+        for (long value = 0; value < 500; value++) {
+            left.add(value, 1L);
+            both.add(value, 1L);
+            right.add(value * 7, 2L);
+            both.add(value * 7, 2L);
+        }
+
+        // Merging serialized histograms is the same as adding all the values
+        LogHistogram merged = new LogHistogram();
+        merged.merge(HISTOGRAM_OBJECT_INSPECTOR, left.serialize());
+        merged.merge(HISTOGRAM_OBJECT_INSPECTOR, right.serialize());
+        Assert.assertEquals(both.serialize(), merged.serialize());
+        Assert.assertEquals(both.total, merged.total);
+    }
+
+    @Test
+    public void testSerialize() {
+        LogHistogram histogram = new LogHistogram();
+        Assert.assertEquals(Arrays.asList(), histogram.serialize());
+
+        // Trailing empty buckets are dropped
+        histogram.add(0L, 3L);
+        histogram.add(1L, 2L);
+        List<Long> serialized = histogram.serialize();
+        Assert.assertEquals(Arrays.asList(3L, 2L), serialized);
+    }
+}
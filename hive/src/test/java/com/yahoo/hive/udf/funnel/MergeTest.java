@@ -0,0 +1,455 @@
+/*
+ * Copyright 2016 Yahoo Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.hive.udf.funnel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.hadoop.hive.ql.exec.MapredContext;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentLengthException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.parse.WindowingSpec.BoundarySpec;
+import org.apache.hadoop.hive.ql.parse.WindowingSpec.Direction;
+import org.apache.hadoop.hive.ql.plan.ptf.BoundaryDef;
+import org.apache.hadoop.hive.ql.plan.ptf.CurrentRowDef;
+import org.apache.hadoop.hive.ql.plan.ptf.RangeBoundaryDef;
+import org.apache.hadoop.hive.ql.plan.ptf.WindowFrameDef;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.AggregationBuffer;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.Mode;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFParameterInfo;
+import org.apache.hadoop.hive.ql.udf.generic.ISupportStreamingModeForWindowing;
+import org.apache.hadoop.hive.ql.udf.generic.SimpleGenericUDAFParameterInfo;
+import org.apache.hadoop.hive.serde2.io.DoubleWritable;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfoFactory;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.Reporter;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+public class MergeTest {
+    @Test(expected = UDFArgumentLengthException.class)
+    public void testInvalidNumberOfParams() throws HiveException {
+        Merge udaf = new Merge();
+        ObjectInspector[] inputObjectInspectorList = new ObjectInspector[]{
+                ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaLongObjectInspector),
+                ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaLongObjectInspector)
+        };
+
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(inputObjectInspectorList, false, false);
+        GenericUDAFEvaluator udafEvaluator = udaf.getEvaluator(paramInfo);
+    }
+
+    @Test(expected = UDFArgumentTypeException.class)
+    public void testPrimitiveParam() throws HiveException {
+        Merge udaf = new Merge();
+        ObjectInspector[] inputObjectInspectorList = new ObjectInspector[]{
+            PrimitiveObjectInspectorFactory.javaStringObjectInspector
+        };
+
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(inputObjectInspectorList, false, false);
+        GenericUDAFEvaluator udafEvaluator = udaf.getEvaluator(paramInfo);
+    }
+
+    @Test(expected = UDFArgumentTypeException.class)
+    public void testArrayOfNonPrimitives() throws HiveException {
+        Merge udaf = new Merge();
+        ObjectInspector[] inputObjectInspectorList = new ObjectInspector[]{
+                ObjectInspectorFactory.getStandardListObjectInspector(ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaLongObjectInspector))
+        };
+
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(inputObjectInspectorList, false, false);
+        GenericUDAFEvaluator udafEvaluator = udaf.getEvaluator(paramInfo);
+    }
+
+    @Test(expected = UDFArgumentTypeException.class)
+    public void testArrayOfNonNumbers() throws HiveException {
+        Merge udaf = new Merge();
+        ObjectInspector[] inputObjectInspectorList = new ObjectInspector[]{
+                ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaStringObjectInspector)
+        };
+
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(inputObjectInspectorList, false, false);
+        GenericUDAFEvaluator udafEvaluator = udaf.getEvaluator(paramInfo);
+    }
+
+    @Test
+    public void testComplete() throws HiveException {
+        Merge udaf = new Merge();
+        ObjectInspector[] inputObjectInspectorList = new ObjectInspector[]{
+                ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaLongObjectInspector)
+        };
+
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(inputObjectInspectorList, false, false);
+        GenericUDAFEvaluator udafEvaluator = udaf.getEvaluator(paramInfo);
+
+        ObjectInspector outputObjectInspector = udafEvaluator.init(Mode.COMPLETE, inputObjectInspectorList);
+
+        List<Long> funnel1 = new ArrayList<>();
+        funnel1.add(1L);
+        funnel1.add(1L);
+        funnel1.add(0L);
+
+        List<Long> funnel2 = new ArrayList<>();
+        funnel2.add(1L);
+        funnel2.add(0L);
+        funnel2.add(0L);
+
+        Object[] parameters1 = new Object[]{null};
+        Object[] parameters2 = new Object[]{funnel1};
+        Object[] parameters3 = new Object[]{funnel2};
+
+        AggregationBuffer agg = udafEvaluator.getNewAggregationBuffer();
+        udafEvaluator.reset(agg);
+        udafEvaluator.iterate(agg, parameters1);
+        udafEvaluator.iterate(agg, parameters2);
+        udafEvaluator.iterate(agg, parameters3);
+        Object result = udafEvaluator.terminate(agg);
+
+        // Expected
+        List<Long> expected = new ArrayList<>();
+        expected.add(2L);
+        expected.add(1L);
+        expected.add(0L);
+
+        Assert.assertEquals(expected, result);
+    }
+
+    @Test
+    public void testPartial2() throws HiveException {
+        Merge udaf = new Merge();
+        ObjectInspector[] inputObjectInspectorList = new ObjectInspector[]{
+                ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaLongObjectInspector)
+        };
+
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(inputObjectInspectorList, false, false);
+        GenericUDAFEvaluator udafEvaluator = udaf.getEvaluator(paramInfo);
+
+        ObjectInspector outputObjectInspector = udafEvaluator.init(Mode.PARTIAL2, inputObjectInspectorList);
+
+        // Setup the two partial results
+        List<Long> partialResults1 = new ArrayList<>();
+        partialResults1.add(1L);
+        partialResults1.add(1L);
+        partialResults1.add(0L);
+
+        List<Long> partialResults2 = new ArrayList<>();
+        partialResults2.add(1L);
+        partialResults2.add(1L);
+        partialResults2.add(1L);
+
+        // Merge the partial results
+        MergeAggregateBuffer agg = (MergeAggregateBuffer) udafEvaluator.getNewAggregationBuffer();
+        udafEvaluator.reset(agg);
+        udafEvaluator.merge(agg, partialResults1);
+        udafEvaluator.merge(agg, partialResults2);
+        Object result = udafEvaluator.terminatePartial(agg);
+
+        // Expected results
+        List<Long> expected = new ArrayList<>();
+        expected.add(2L);
+        expected.add(2L);
+        expected.add(1L);
+
+        Assert.assertEquals(expected, result);
+    }
+
+    @Test(expected = UDFArgumentTypeException.class)
+    public void testCompleteFunnelSizeMismatch() throws HiveException {
+        Merge udaf = new Merge();
+        ObjectInspector[] inputObjectInspectorList = new ObjectInspector[]{
+                ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaLongObjectInspector)
+        };
+
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(inputObjectInspectorList, false, false);
+        GenericUDAFEvaluator udafEvaluator = udaf.getEvaluator(paramInfo);
+
+        ObjectInspector outputObjectInspector = udafEvaluator.init(Mode.COMPLETE, inputObjectInspectorList);
+
+        // Setup two funnels, different sizes.
+        List<Long> funnel1 = new ArrayList<>();
+        funnel1.add(1L);
+        funnel1.add(1L);
+        funnel1.add(0L);
+
+        List<Long> funnel2 = new ArrayList<>();
+        funnel2.add(1L);
+        funnel2.add(0L);
+
+        Object[] parameters1 = new Object[]{funnel1};
+        Object[] parameters2 = new Object[]{funnel2};
+
+        // Should cause an error when merging funnels of different sizes
+        AggregationBuffer agg = udafEvaluator.getNewAggregationBuffer();
+        udafEvaluator.reset(agg);
+        udafEvaluator.iterate(agg, parameters1);
+        udafEvaluator.iterate(agg, parameters2);
+    }
+
+    @Test(expected = UDFArgumentTypeException.class)
+    public void testPartial2FunnelSizeMismatch() throws HiveException {
+        Merge udaf = new Merge();
+        ObjectInspector[] inputObjectInspectorList = new ObjectInspector[]{
+                ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaLongObjectInspector)
+        };
+
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(inputObjectInspectorList, false, false);
+        GenericUDAFEvaluator udafEvaluator = udaf.getEvaluator(paramInfo);
+
+        ObjectInspector outputObjectInspector = udafEvaluator.init(Mode.PARTIAL2, inputObjectInspectorList);
+
+        // Setup the two partial results, should fail when merging list of different sizes
+        List<Long> partialResults1 = new ArrayList<>();
+        partialResults1.add(1L);
+        partialResults1.add(1L);
+
+        List<Long> partialResults2 = new ArrayList<>();
+        partialResults2.add(1L);
+        partialResults2.add(0L);
+        partialResults2.add(0L);
+
+        // Merge the partial results, should throw error due to list size difference
+        MergeAggregateBuffer agg = (MergeAggregateBuffer) udafEvaluator.getNewAggregationBuffer();
+        udafEvaluator.reset(agg);
+        udafEvaluator.merge(agg, partialResults1);
+        udafEvaluator.merge(agg, partialResults2);
+    }
+
+    @Test
+    public void testCounters() throws Exception {
+        Merge udaf = new Merge();
+        ObjectInspector[] inputObjectInspectorList = new ObjectInspector[]{
+                ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaLongObjectInspector)
+        };
+
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(inputObjectInspectorList, false, false);
+        GenericUDAFEvaluator udafEvaluator = udaf.getEvaluator(paramInfo);
+
+        // Setup the task context
+        MapredContext context = MapredContext.init(false, new JobConf());
+        Reporter reporter = Mockito.mock(Reporter.class);
+        context.setReporter(reporter);
+        udafEvaluator.configure(context);
+
+        ObjectInspector outputObjectInspector = udafEvaluator.init(Mode.PARTIAL1, inputObjectInspectorList);
+
+        List<Long> funnel = new ArrayList<>();
+        funnel.add(1L);
+        funnel.add(0L);
+
+        AggregationBuffer agg = udafEvaluator.getNewAggregationBuffer();
+        udafEvaluator.reset(agg);
+        udafEvaluator.iterate(agg, new Object[]{funnel});
+        udafEvaluator.iterate(agg, new Object[]{null});
+        udafEvaluator.terminatePartial(agg);
+        udafEvaluator.close();
+        MapredContext.close();
+
+        String group = Merge.class.getName();
+        Mockito.verify(reporter).incrCounter(group, FunnelCounter.ROWS_SEEN.name(), 2L);
+        Mockito.verify(reporter).incrCounter(group, FunnelCounter.PARTIAL_BYTES_EMITTED.name(), 16L);
+        Mockito.verifyNoMoreInteractions(reporter);
+    }
+
+    /**
+     * Build a rows window frame boundary, amount is ignored for the current
+     * row.
+     */
+    private static BoundaryDef boundary(Direction direction, int amount) {
+        if (direction == Direction.CURRENT) {
+            return new CurrentRowDef();
+        }
+        RangeBoundaryDef boundary = new RangeBoundaryDef();
+        boundary.setDirection(direction);
+        boundary.setAmt(amount);
+        return boundary;
+    }
+
+    private static WindowFrameDef frame(BoundaryDef start, BoundaryDef end) {
+        WindowFrameDef frame = new WindowFrameDef();
+        frame.setStart(start);
+        frame.setEnd(end);
+        return frame;
+    }
+
+    /**
+     * Stream the rows through the windowing evaluator like Hive does: a
+     * result may follow each row, and the remaining ones follow terminate.
+     */
+    private static List<Object> stream(GenericUDAFEvaluator evaluator, List<List<Long>> rows) throws HiveException {
+        ISupportStreamingModeForWindowing streaming = (ISupportStreamingModeForWindowing) evaluator;
+        AggregationBuffer agg = evaluator.getNewAggregationBuffer();
+        evaluator.reset(agg);
+        List<Object> results = new ArrayList<>();
+        for (List<Long> row : rows) {
+            evaluator.aggregate(agg, new Object[]{row});
+            Object result = streaming.getNextResult(agg);
+            if (result != null) {
+                results.add(result);
+            }
+        }
+        evaluator.terminate(agg);
+        for (int i = 0; i < streaming.getRowsRemainingAfterTerminate(); i++) {
+            Object result = streaming.getNextResult(agg);
+            if (result != null) {
+                results.add(result);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Merge each frame from scratch.
+     */
+    private static List<Object> mergeFrames(GenericUDAFEvaluator evaluator, List<List<Long>> rows, int preceding, int following) throws HiveException {
+        List<Object> results = new ArrayList<>();
+        for (int i = 0; i < rows.size(); i++) {
+            AggregationBuffer agg = evaluator.getNewAggregationBuffer();
+            evaluator.reset(agg);
+            int start = preceding < 0 ? 0 : Math.max(0, i - preceding);
+            int end = Math.min(rows.size() - 1, i + following);
+            for (int j = start; j <= end; j++) {
+                evaluator.iterate(agg, new Object[]{rows.get(j)});
+            }
+            results.add(evaluator.terminate(agg));
+        }
+        return results;
+    }
+
+    @Test
+    public void testWindowing() throws HiveException {
+        Merge udaf = new Merge();
+        ObjectInspector[] inputObjectInspectorList = new ObjectInspector[]{
+                ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaLongObjectInspector)
+        };
+
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(inputObjectInspectorList, false, false);
+        GenericUDAFEvaluator udafEvaluator = udaf.getEvaluator(paramInfo);
+        udafEvaluator.init(Mode.COMPLETE, inputObjectInspectorList);
+
+        // Daily funnels, with days without a funnel
+        List<List<Long>> rows = Arrays.asList(null,
+                                              Arrays.asList(3L, 2L, 1L),
+                                              Arrays.asList(5L, 1L, 0L),
+                                              null,
+                                              null,
+                                              null,
+                                              Arrays.asList(7L, 4L, 2L),
+                                              Arrays.asList(1L, 1L, 1L));
+
+        // {preceding, following}, -1 is unbounded preceding
+        int[][] frames = new int[][]{{-1, 0}, {0, 0}, {2, 0}, {1, 2}, {0, 1}, {-1, 3}, {3, 3}, {10, 10}};
+        for (int[] frame : frames) {
+            BoundaryDef start = frame[0] < 0 ? boundary(Direction.PRECEDING, BoundarySpec.UNBOUNDED_AMOUNT)
+                                             : frame[0] == 0 ? boundary(Direction.CURRENT, 0) : boundary(Direction.PRECEDING, frame[0]);
+            BoundaryDef end = frame[1] == 0 ? boundary(Direction.CURRENT, 0) : boundary(Direction.FOLLOWING, frame[1]);
+            GenericUDAFEvaluator streamingEvaluator = udafEvaluator.getWindowingEvaluator(frame(start, end));
+            Assert.assertEquals(Arrays.toString(frame), mergeFrames(udafEvaluator, rows, frame[0], frame[1]), stream(streamingEvaluator, rows));
+        }
+    }
+
+    @Test
+    public void testWindowingNotStreamed() throws HiveException {
+        Merge udaf = new Merge();
+        ObjectInspector[] inputObjectInspectorList = new ObjectInspector[]{
+                ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaLongObjectInspector)
+        };
+
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(inputObjectInspectorList, false, false);
+        GenericUDAFEvaluator udafEvaluator = udaf.getEvaluator(paramInfo);
+        udafEvaluator.init(Mode.COMPLETE, inputObjectInspectorList);
+
+        // Frames that don't contain the current row, or are unbounded following
+        Assert.assertNull(udafEvaluator.getWindowingEvaluator(frame(boundary(Direction.PRECEDING, 3), boundary(Direction.PRECEDING, 1))));
+        Assert.assertNull(udafEvaluator.getWindowingEvaluator(frame(boundary(Direction.FOLLOWING, 1), boundary(Direction.FOLLOWING, 3))));
+        Assert.assertNull(udafEvaluator.getWindowingEvaluator(frame(boundary(Direction.CURRENT, 0), boundary(Direction.FOLLOWING, BoundarySpec.UNBOUNDED_AMOUNT))));
+    }
+
+    /** Merge input object inspectors, with a constant sample rate. */
+    private static ObjectInspector[] sampledObjectInspectors(double rate) {
+        return new ObjectInspector[]{
+            ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaLongObjectInspector),
+            PrimitiveObjectInspectorFactory.getPrimitiveWritableConstantObjectInspector(TypeInfoFactory.doubleTypeInfo, new DoubleWritable(rate))
+        };
+    }
+
+    @Test
+    public void testSampledComplete() throws HiveException {
+        Merge udaf = new Merge();
+        ObjectInspector[] inputObjectInspectorList = sampledObjectInspectors(0.25);
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(inputObjectInspectorList, false, false);
+        GenericUDAFEvaluator udafEvaluator = udaf.getEvaluator(paramInfo);
+        udafEvaluator.init(Mode.COMPLETE, inputObjectInspectorList);
+
+        AggregationBuffer agg = udafEvaluator.getNewAggregationBuffer();
+        udafEvaluator.reset(agg);
+        udafEvaluator.iterate(agg, new Object[]{Arrays.asList(1L, 1L, 0L), 0.25});
+        udafEvaluator.iterate(agg, new Object[]{Arrays.asList(1L, 0L, 0L), 0.25});
+        udafEvaluator.iterate(agg, new Object[]{Arrays.asList(0L, 0L, 0L), 0.25});
+        Assert.assertEquals(Arrays.asList(Arrays.asList(8L, 4L, 0L), 0.25), udafEvaluator.terminate(agg));
+    }
+
+    @Test
+    public void testSampledPartials() throws HiveException {
+        Merge udaf = new Merge();
+        ObjectInspector[] inputObjectInspectorList = sampledObjectInspectors(0.5);
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(inputObjectInspectorList, false, false);
+        GenericUDAFEvaluator partialEvaluator = udaf.getEvaluator(paramInfo);
+        ObjectInspector partialObjectInspector = partialEvaluator.init(Mode.PARTIAL1, inputObjectInspectorList);
+
+        AggregationBuffer agg = partialEvaluator.getNewAggregationBuffer();
+        partialEvaluator.reset(agg);
+        partialEvaluator.iterate(agg, new Object[]{Arrays.asList(1L, 1L), 0.5});
+        partialEvaluator.iterate(agg, new Object[]{Arrays.asList(1L, 0L), 0.5});
+        Object partial = partialEvaluator.terminatePartial(agg);
+        Assert.assertEquals(Arrays.asList(Arrays.asList(2L, 1L), 0.5), partial);
+
+        // The final evaluator only sees the partials
+        GenericUDAFEvaluator finalEvaluator = udaf.getEvaluator(paramInfo);
+        finalEvaluator.init(Mode.FINAL, new ObjectInspector[]{partialObjectInspector});
+        agg = finalEvaluator.getNewAggregationBuffer();
+        finalEvaluator.reset(agg);
+        finalEvaluator.merge(agg, partial);
+        finalEvaluator.merge(agg, partial);
+        Assert.assertEquals(Arrays.asList(Arrays.asList(8L, 4L), 0.5), finalEvaluator.terminate(agg));
+    }
+
+    @Test(expected = UDFArgumentException.class)
+    public void testInvalidSampleRate() throws HiveException {
+        Merge udaf = new Merge();
+        ObjectInspector[] inputObjectInspectorList = sampledObjectInspectors(0.0);
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(inputObjectInspectorList, false, false);
+        udaf.getEvaluator(paramInfo).init(Mode.COMPLETE, inputObjectInspectorList);
+    }
+
+    @Test(expected = UDFArgumentTypeException.class)
+    public void testSampleRateType() throws HiveException {
+        Merge udaf = new Merge();
+        ObjectInspector[] inputObjectInspectorList = new ObjectInspector[]{
+            ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaLongObjectInspector),
+            PrimitiveObjectInspectorFactory.javaStringObjectInspector
+        };
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(inputObjectInspectorList, false, false);
+        udaf.getEvaluator(paramInfo);
+    }
+}
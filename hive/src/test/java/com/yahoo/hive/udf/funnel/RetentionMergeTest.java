@@ -0,0 +1,120 @@
+/*
+ * Copyright 2016 Yahoo Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.hive.udf.funnel;
+
+import java.util.Arrays;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentLengthException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.AggregationBuffer;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.Mode;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFParameterInfo;
+import org.apache.hadoop.hive.ql.udf.generic.SimpleGenericUDAFParameterInfo;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfoFactory;
+import org.apache.hadoop.io.IntWritable;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RetentionMergeTest {
+    /**
+     * Input object inspectors with a constant number of periods.
+     */
+    private static ObjectInspector[] inputObjectInspectors(int periods) {
+        return new ObjectInspector[]{
+            PrimitiveObjectInspectorFactory.javaLongObjectInspector,
+            PrimitiveObjectInspectorFactory.getPrimitiveWritableConstantObjectInspector(TypeInfoFactory.intTypeInfo, new IntWritable(periods))
+        };
+    }
+
+    @Test(expected = UDFArgumentLengthException.class)
+    public void testInvalidNumberOfParams() throws HiveException {
+        RetentionMerge udaf = new RetentionMerge();
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(Arrays.copyOf(inputObjectInspectors(3), 1), false, false);
+        GenericUDAFEvaluator udafEvaluator = udaf.getEvaluator(paramInfo);
+    }
+
+    @Test(expected = UDFArgumentTypeException.class)
+    public void testInvalidBitmapType() throws HiveException {
+        RetentionMerge udaf = new RetentionMerge();
+        ObjectInspector[] inputObjectInspectorList = inputObjectInspectors(3);
+        inputObjectInspectorList[0] = PrimitiveObjectInspectorFactory.javaStringObjectInspector;
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(inputObjectInspectorList, false, false);
+        GenericUDAFEvaluator udafEvaluator = udaf.getEvaluator(paramInfo);
+    }
+
+    @Test(expected = UDFArgumentException.class)
+    public void testTooManyPeriods() throws HiveException {
+        RetentionMerge udaf = new RetentionMerge();
+        ObjectInspector[] inputObjectInspectorList = inputObjectInspectors(65);
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(inputObjectInspectorList, false, false);
+        GenericUDAFEvaluator udafEvaluator = udaf.getEvaluator(paramInfo);
+        udafEvaluator.init(Mode.COMPLETE, inputObjectInspectorList);
+    }
+
+    @Test
+    public void testComplete() throws HiveException {
+        RetentionMerge udaf = new RetentionMerge();
+        ObjectInspector[] inputObjectInspectorList = inputObjectInspectors(3);
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(inputObjectInspectorList, false, false);
+        GenericUDAFEvaluator udafEvaluator = udaf.getEvaluator(paramInfo);
+        udafEvaluator.init(Mode.COMPLETE, inputObjectInspectorList);
+
+        // Process the data, bits past the number of periods are ignored
+        AggregationBuffer agg = udafEvaluator.getNewAggregationBuffer();
+        udafEvaluator.reset(agg);
+        udafEvaluator.iterate(agg, new Object[]{0b1L, null});
+        udafEvaluator.iterate(agg, new Object[]{0b101L, null});
+        udafEvaluator.iterate(agg, new Object[]{null, null});
+        udafEvaluator.iterate(agg, new Object[]{0L, null});
+        udafEvaluator.iterate(agg, new Object[]{Long.MIN_VALUE | 0b111L, null});
+
+        Assert.assertEquals(Arrays.asList(3L, 1L, 2L), udafEvaluator.terminate(agg));
+    }
+
+    @Test
+    public void testPartials() throws Exception {
+        RetentionMerge udaf = new RetentionMerge();
+        ObjectInspector[] inputObjectInspectorList = inputObjectInspectors(4);
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(inputObjectInspectorList, false, false);
+
+        // Two map side partials, sent through the serde
+        GenericUDAFEvaluator mapEvaluator = udaf.getEvaluator(paramInfo);
+        FunnelSimulator.PartialChannel channel = new FunnelSimulator.PartialChannel(mapEvaluator.init(Mode.PARTIAL1, inputObjectInspectorList));
+        AggregationBuffer agg1 = mapEvaluator.getNewAggregationBuffer();
+        mapEvaluator.reset(agg1);
+        mapEvaluator.iterate(agg1, new Object[]{0b1011L, null});
+        mapEvaluator.iterate(agg1, new Object[]{0b1L, null});
+        byte[] partial1 = channel.serialize(mapEvaluator.terminatePartial(agg1));
+        AggregationBuffer agg2 = mapEvaluator.getNewAggregationBuffer();
+        mapEvaluator.reset(agg2);
+        mapEvaluator.iterate(agg2, new Object[]{0b11L, null});
+        byte[] partial2 = channel.serialize(mapEvaluator.terminatePartial(agg2));
+
+        // Merge them
+        GenericUDAFEvaluator reduceEvaluator = udaf.getEvaluator(paramInfo);
+        reduceEvaluator.init(Mode.FINAL, new ObjectInspector[]{channel.getObjectInspector()});
+        AggregationBuffer agg = reduceEvaluator.getNewAggregationBuffer();
+        reduceEvaluator.reset(agg);
+        reduceEvaluator.merge(agg, channel.deserialize(partial1));
+        reduceEvaluator.merge(agg, channel.deserialize(partial2));
+        Assert.assertEquals(Arrays.asList(3L, 2L, 0L, 1L), reduceEvaluator.terminate(agg));
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2016 Yahoo Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.hive.udf.funnel;
+
+import java.util.Arrays;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentLengthException;
+import org.apache.hadoop.hive.ql.exec.UDFArgumentTypeException;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.AggregationBuffer;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator.Mode;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFEvaluator;
+import org.apache.hadoop.hive.ql.udf.generic.GenericUDAFParameterInfo;
+import org.apache.hadoop.hive.ql.udf.generic.SimpleGenericUDAFParameterInfo;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfoFactory;
+import org.apache.hadoop.io.LongWritable;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RetentionTest {
+    /** Input object inspectors, with a period length of 100. */
+    private static final ObjectInspector[] INPUT_OBJECT_INSPECTORS = new ObjectInspector[]{
+        PrimitiveObjectInspectorFactory.javaStringObjectInspector, // action_column
+        PrimitiveObjectInspectorFactory.javaLongObjectInspector,   // timestamp_column
+        ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaStringObjectInspector), // first_actions
+        ObjectInspectorFactory.getStandardListObjectInspector(PrimitiveObjectInspectorFactory.javaStringObjectInspector), // return_actions
+        PrimitiveObjectInspectorFactory.getPrimitiveWritableConstantObjectInspector(TypeInfoFactory.longTypeInfo, new LongWritable(100L)) // period_length
+    };
+
+    @Test(expected = UDFArgumentLengthException.class)
+    public void testInvalidNumberOfParams() throws HiveException {
+        Retention udaf = new Retention();
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(Arrays.copyOf(INPUT_OBJECT_INSPECTORS, 4), false, false);
+        GenericUDAFEvaluator udafEvaluator = udaf.getEvaluator(paramInfo);
+    }
+
+    @Test(expected = UDFArgumentTypeException.class)
+    public void testInvalidPeriodLengthType() throws HiveException {
+        Retention udaf = new Retention();
+        ObjectInspector[] inputObjectInspectorList = Arrays.copyOf(INPUT_OBJECT_INSPECTORS, 5);
+        inputObjectInspectorList[4] = PrimitiveObjectInspectorFactory.javaStringObjectInspector;
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(inputObjectInspectorList, false, false);
+        GenericUDAFEvaluator udafEvaluator = udaf.getEvaluator(paramInfo);
+    }
+
+    @Test(expected = UDFArgumentTypeException.class)
+    public void testNonConstantPeriodLength() throws HiveException {
+        Retention udaf = new Retention();
+        ObjectInspector[] inputObjectInspectorList = Arrays.copyOf(INPUT_OBJECT_INSPECTORS, 5);
+        inputObjectInspectorList[4] = PrimitiveObjectInspectorFactory.javaLongObjectInspector;
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(inputObjectInspectorList, false, false);
+        GenericUDAFEvaluator udafEvaluator = udaf.getEvaluator(paramInfo);
+        udafEvaluator.init(Mode.COMPLETE, inputObjectInspectorList);
+    }
+
+    /**
+     * Retention bitmap of a single user in COMPLETE mode, for events
+     * {action, timestamp}.
+     */
+    private static Object complete(Object[]... events) throws HiveException {
+        Retention udaf = new Retention();
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(INPUT_OBJECT_INSPECTORS, false, false);
+        GenericUDAFEvaluator udafEvaluator = udaf.getEvaluator(paramInfo);
+        udafEvaluator.init(Mode.COMPLETE, INPUT_OBJECT_INSPECTORS);
+
+        // Process the data
+        AggregationBuffer agg = udafEvaluator.getNewAggregationBuffer();
+        udafEvaluator.reset(agg);
+        for (Object[] event : events) {
+            udafEvaluator.iterate(agg, new Object[]{event[0], event[1], Arrays.asList("signup"), Arrays.asList("login"), new LongWritable(100L)});
+        }
+        return udafEvaluator.terminate(agg);
+    }
+
+    @Test
+    public void testComplete() throws HiveException {
+        // Signed up at 1000, came back in periods 0, 2 and 3, out of order input
+        Object result = complete(new Object[]{"login", 1399L}, new Object[]{"login", 1050L}, new Object[]{"signup", 1000L},
+                                 new Object[]{"login", 1200L}, new Object[]{"other", 1100L}, new Object[]{"login", 900L});
+        Assert.assertEquals(0b1101L, result);
+    }
+
+    @Test
+    public void testCompleteFirstActionOnly() throws HiveException {
+        // Only the first signup counts
+        Object result = complete(new Object[]{"signup", 1000L}, new Object[]{"signup", 1500L});
+        Assert.assertEquals(1L, result);
+    }
+
+    @Test
+    public void testCompleteNoFirstAction() throws HiveException {
+        Object result = complete(new Object[]{"login", 1000L}, new Object[]{"login", 1500L});
+        Assert.assertEquals(0L, result);
+    }
+
+    @Test
+    public void testCompleteLastPeriod() throws HiveException {
+        // Periods past the last bit are dropped
+        Object result = complete(new Object[]{"signup", 0L}, new Object[]{"login", 6399L}, new Object[]{"login", 6400L});
+        Assert.assertEquals(Long.MIN_VALUE | 1L, result);
+    }
+
+    @Test
+    public void testPartials() throws Exception {
+        Retention udaf = new Retention();
+        GenericUDAFParameterInfo paramInfo = new SimpleGenericUDAFParameterInfo(INPUT_OBJECT_INSPECTORS, false, false);
+
+        // Two map side partials, sent through the serde
+        GenericUDAFEvaluator mapEvaluator = udaf.getEvaluator(paramInfo);
+        FunnelSimulator.PartialChannel channel = new FunnelSimulator.PartialChannel(mapEvaluator.init(Mode.PARTIAL1, INPUT_OBJECT_INSPECTORS));
+        AggregationBuffer agg1 = mapEvaluator.getNewAggregationBuffer();
+        mapEvaluator.reset(agg1);
+        mapEvaluator.iterate(agg1, new Object[]{"signup", 1000L, Arrays.asList("signup"), Arrays.asList("login"), new LongWritable(100L)});
+        byte[] partial1 = channel.serialize(mapEvaluator.terminatePartial(agg1));
+        AggregationBuffer agg2 = mapEvaluator.getNewAggregationBuffer();
+        mapEvaluator.reset(agg2);
+        mapEvaluator.iterate(agg2, new Object[]{"login", 1150L, Arrays.asList("signup"), Arrays.asList("login"), new LongWritable(100L)});
+        byte[] partial2 = channel.serialize(mapEvaluator.terminatePartial(agg2));
+
+        // Merge them on the reduce side, where the period length comes from the partials
+        GenericUDAFEvaluator reduceEvaluator = udaf.getEvaluator(paramInfo);
+        reduceEvaluator.init(Mode.FINAL, new ObjectInspector[]{channel.getObjectInspector()});
+        AggregationBuffer agg = reduceEvaluator.getNewAggregationBuffer();
+        reduceEvaluator.reset(agg);
+        reduceEvaluator.merge(agg, channel.deserialize(partial1));
+        reduceEvaluator.merge(agg, channel.deserialize(partial2));
+        Assert.assertEquals(0b11L, reduceEvaluator.terminate(agg));
+    }
+}
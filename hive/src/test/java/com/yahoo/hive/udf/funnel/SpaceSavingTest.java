@@ -0,0 +1,90 @@
+/*
+ * Copyright 2016 Yahoo Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.hive.udf.funnel;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SpaceSavingTest {
+    @Test
+    public void testExactUnderCapacity() {
+        SpaceSaving sketch = new SpaceSaving(3);
+        SpaceSaving other = new SpaceSaving(3);
+        sketch.add("alpha", 2, 0);
+        sketch.add("beta", 1, 0);
+        other.add("alpha", 1, 0);
+        other.add("gamma", 4, 0);
+        sketch.merge(other);
+
+        List<Object> expected = Arrays.asList(Arrays.asList("gamma", 4L, 0L), Arrays.asList("alpha", 3L, 0L), Arrays.asList("beta", 1L, 0L));
+        Assert.assertEquals(expected, sketch.serialize());
+    }
+
+    @Test
+    public void testBounded() {
+        SpaceSaving sketch = new SpaceSaving(2);
+        for (String item : Arrays.asList("alpha", "beta", "gamma", "delta", "alpha", "alpha")) {
+            SpaceSaving single = new SpaceSaving(2);
+            single.add(item, 1, 0);
+            sketch.merge(single);
+        }
+
+        // Never more than capacity counters, the heavy hitter is kept
+        Assert.assertEquals(2, sketch.counters.size());
+        Assert.assertEquals("alpha", ((List<Object>) sketch.serialize().get(0)).get(0));
+    }
+
+    @Test
+    public void testGuarantee() {
+        // Skewed stream split over many sketches, merged in a tree
+        Random random = new Random(42);
+        Map<Object, Long> trueCounts = new HashMap<>();
+        SpaceSaving[] sketches = new SpaceSaving[16];
+        for (int i = 0; i < sketches.length; i++) {
+            sketches[i] = new SpaceSaving(10);
+        }
+        for (int i = 0; i < 20000; i++) {
+            // Zipf like, small items are frequent
+            long item = (long) Math.floor(Math.pow(1000, random.nextDouble()));
+            trueCounts.merge(item, 1L, Long::sum);
+            SpaceSaving single = new SpaceSaving(10);
+            single.add(item, 1, 0);
+            sketches[random.nextInt(sketches.length)].merge(single);
+        }
+        for (int width = 1; width < sketches.length; width *= 2) {
+            for (int i = 0; i + width < sketches.length; i += 2 * width) {
+                sketches[i].merge(sketches[i + width]);
+            }
+        }
+
+        // The true count is between count - error and count
+        for (Object e : sketches[0].serialize()) {
+            List<Object> entry = (List<Object>) e;
+            long trueCount = trueCounts.getOrDefault(entry.get(0), 0L);
+            Assert.assertTrue(entry.toString(), (Long) entry.get(1) >= trueCount);
+            Assert.assertTrue(entry.toString(), (Long) entry.get(1) - (Long) entry.get(2) <= trueCount);
+        }
+
+        // The most frequent item is first
+        Assert.assertEquals(1L, ((List<Object>) sketches[0].serialize().get(0)).get(0));
+    }
+}
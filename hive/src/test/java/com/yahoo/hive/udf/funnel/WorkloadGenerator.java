@@ -0,0 +1,160 @@
+/*
+ * Copyright 2016 Yahoo Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yahoo.hive.udf.funnel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates a synthetic, skewed event workload for funnel simulations.
+ *
+ * Events per user follow a Zipfian distribution, users progress through the
+ * funnel according to per step hit rates, and a fraction of users are bots
+ * producing a large number of events in random order.
+ */
+public class WorkloadGenerator {
+    /** Number of users (groups) to generate. */
+    int users = 1000;
+
+    /** Maximum number of events for a regular user. */
+    int maxEventsPerUser = 1000;
+
+    /** Zipf exponent for the number of events per user. */
+    double zipfExponent = 1.1;
+
+    /** Number of distinct non funnel actions. */
+    int noiseActions = 200;
+
+    /** Fraction of users that are bots. */
+    double botRate = 0.001;
+
+    /** Number of events generated for a bot. */
+    int botEvents = 100000;
+
+    /** Funnel steps, each step is a list of actions. */
+    List<List<Object>> funnelSteps = Arrays.asList(Arrays.asList("signup_page", "email_signup"),
+                                                   Arrays.asList("confirm_button"),
+                                                   Arrays.asList("submit_button"));
+
+    /** Probability a user hits each step, given it hit the previous step. */
+    double[] stepHitRates = {0.8, 0.5, 0.4};
+
+    /** Random seed, results are deterministic for a given seed. */
+    long seed = 42L;
+
+    /**
+     * Generate the rows. Each row is {user_id, action, timestamp}, rows are
+     * shuffled so users are spread across input splits.
+     *
+     * @return List of rows
+     */
+    public List<Object[]> generate() {
+        Random random = new Random(seed);
+        double[] zipfCdf = zipfCdf(maxEventsPerUser, zipfExponent);
+        List<Object[]> rows = new ArrayList<>();
+
+        for (long user = 0; user < users; user++) {
+            if (random.nextDouble() < botRate) {
+                addBotRows(rows, random, user);
+            } else {
+                addUserRows(rows, random, user, sampleZipf(zipfCdf, random));
+            }
+        }
+
+        Collections.shuffle(rows, random);
+        return rows;
+    }
+
+    /**
+     * Add rows for a regular user. The user walks the funnel in order for as
+     * many steps as it hits, the remaining events are noise.
+     */
+    private void addUserRows(List<Object[]> rows, Random random, long user, int events) {
+        // Work out how far down the funnel this user gets
+        int reached = 0;
+        while (reached < funnelSteps.size() && random.nextDouble() < stepHitRates[reached]) {
+            reached++;
+        }
+
+        long timestamp = random.nextInt(1000000);
+        int total = Math.max(events, reached);
+        int nextStep = 0;
+        for (int i = 0; i < total; i++) {
+            timestamp += 1 + random.nextInt(60);
+            // Spread the funnel steps evenly through the user's events
+            Object action;
+            if (nextStep < reached && i == (long) nextStep * total / reached) {
+                action = randomElement(funnelSteps.get(nextStep), random);
+                nextStep++;
+            } else {
+                action = noiseAction(random);
+            }
+            rows.add(new Object[]{user, action, timestamp});
+        }
+    }
+
+    /**
+     * Add rows for a bot. Bots emit a large number of events with random
+     * actions, including funnel actions, and colliding timestamps.
+     */
+    private void addBotRows(List<Object[]> rows, Random random, long user) {
+        for (int i = 0; i < botEvents; i++) {
+            Object action;
+            if (random.nextBoolean()) {
+                action = randomElement(funnelSteps.get(random.nextInt(funnelSteps.size())), random);
+            } else {
+                action = noiseAction(random);
+            }
+            rows.add(new Object[]{user, action, (long) random.nextInt(botEvents)});
+        }
+    }
+
+    private Object noiseAction(Random random) {
+        return "action_" + random.nextInt(noiseActions);
+    }
+
+    private static Object randomElement(List<Object> list, Random random) {
+        return list.get(random.nextInt(list.size()));
+    }
+
+    /**
+     * Cumulative distribution for a Zipf distribution over 1..n.
+     */
+    private static double[] zipfCdf(int n, double exponent) {
+        double[] cdf = new double[n];
+        double sum = 0.0;
+        for (int i = 0; i < n; i++) {
+            sum += 1.0 / Math.pow(i + 1, exponent);
+            cdf[i] = sum;
+        }
+        for (int i = 0; i < n; i++) {
+            cdf[i] /= sum;
+        }
+        return cdf;
+    }
+
+    /**
+     * Sample from the Zipf distribution, returns a value in 1..n.
+     */
+    private static int sampleZipf(double[] cdf, Random random) {
+        int index = Arrays.binarySearch(cdf, random.nextDouble());
+        return (index >= 0 ? index : -index - 1) + 1;
+    }
+}